@@ -0,0 +1,51 @@
+package com.aug3.sys.cache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A skeletal ICache implementation, running the bulk operations one key at a
+ * time. Caches that can do better, such as distributed caches with a
+ * multi-get, override them. Caches are expected to override
+ * <code>getStats</code> as well; by default they record no statistics.
+ * 
+ * @author xial
+ * 
+ * @param <K> key of the cached object
+ * @param <V> the cached object
+ */
+public abstract class AbstractCache<K, V> implements ICache<K, V> {
+
+	@Override
+	public Map<K, V> getAll(Collection<? extends K> keys) {
+		Map<K, V> values = new HashMap<K, V>();
+		for (K key : keys) {
+			V value = get(key);
+			if (value != null) {
+				values.put(key, value);
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public void putAll(Map<? extends K, ? extends V> map) {
+		for (Map.Entry<? extends K, ? extends V> e : map.entrySet()) {
+			put(e.getKey(), e.getValue());
+		}
+	}
+
+	@Override
+	public void removeAll(Collection<? extends K> keys) {
+		for (K key : keys) {
+			remove(key);
+		}
+	}
+
+	@Override
+	public CacheStats getStats() {
+		return CacheStats.EMPTY;
+	}
+
+}
@@ -0,0 +1,284 @@
+package com.aug3.sys.cache;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An MBean exposing the statistics of a cache, so that caches can be sized
+ * from their hit rate and evictions in production. Caches are registered in
+ * the platform MBean server under
+ * <code>com.aug3.sys.cache:type=Cache,name=<em>name</em></code>; registering a
+ * name again replaces the previous cache.
+ * 
+ * A logical cache that is created more than once, such as a cache per thread
+ * or per instance of its user, registers each instance with
+ * <code>registerInstance</code> instead: the MBean of the name adds up the
+ * statistics of the instances, and only references them weakly, so that an
+ * instance that is replaced and dropped by its user is left out once it is
+ * garbage collected. <code>unregisterInstance</code> leaves an instance out at
+ * once.
+ * 
+ * The system cache, the smart caches created from their cache identifier, the
+ * memcached adapter and the configuration caches register themselves. Other
+ * caches can be registered with <code>register</code>.
+ * 
+ * @author xial
+ */
+public class CacheMgr implements CacheMgrMBean {
+
+	private static final Logger LOG = Logger.getLogger(CacheMgr.class);
+
+	static final String DOMAIN = "com.aug3.sys.cache";
+
+	/** the MBeans of the caches registered by instance, by name */
+	private static final Map<String, CacheMgr> groups = new HashMap<String, CacheMgr>();
+
+	private final List<Member> members = new CopyOnWriteArrayList<Member>();
+
+	public CacheMgr(ICache<?, ?> cache) {
+		members.add(new Member(cache, false));
+	}
+
+	private CacheMgr() {
+	}
+
+	/**
+	 * Registers the MBean of a cache. Failures are logged, as monitoring must
+	 * not keep the cache from being used.
+	 */
+	public static void register(String name, ICache<?, ?> cache) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = objectName(name);
+			synchronized (CacheMgr.class) {
+				groups.remove(name);
+				if (server.isRegistered(objectName)) {
+					server.unregisterMBean(objectName);
+				}
+				server.registerMBean(new CacheMgr(cache), objectName);
+			}
+		} catch (JMException e) {
+			LOG.warn("failed to register the MBean of cache " + name, e);
+		}
+	}
+
+	/**
+	 * Adds an instance of a logical cache to the MBean of the name, which is
+	 * registered with the first instance. Registering an instance again does
+	 * nothing. Failures are logged.
+	 */
+	public static void registerInstance(String name, ICache<?, ?> cache) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = objectName(name);
+			synchronized (CacheMgr.class) {
+				CacheMgr group = groups.get(name);
+				if (group == null) {
+					group = new CacheMgr();
+					if (server.isRegistered(objectName)) {
+						server.unregisterMBean(objectName);
+					}
+					server.registerMBean(group, objectName);
+					groups.put(name, group);
+				}
+				for (Member member : group.members) {
+					if (member.cache() == cache) {
+						return;
+					}
+				}
+				group.members.add(new Member(cache, true));
+			}
+		} catch (JMException e) {
+			LOG.warn("failed to register the MBean of cache " + name, e);
+		}
+	}
+
+	/**
+	 * Leaves an instance out of the MBean of the name, which is unregistered
+	 * with its last instance.
+	 */
+	public static void unregisterInstance(String name, ICache<?, ?> cache) {
+		synchronized (CacheMgr.class) {
+			CacheMgr group = groups.get(name);
+			if (group == null) {
+				return;
+			}
+			for (Member member : group.members) {
+				if (member.cache() == cache) {
+					group.members.remove(member);
+				}
+			}
+			if (group.prune()) {
+				unregister(name);
+			}
+		}
+	}
+
+	public static void unregister(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = objectName(name);
+			synchronized (CacheMgr.class) {
+				groups.remove(name);
+				if (server.isRegistered(objectName)) {
+					server.unregisterMBean(objectName);
+				}
+			}
+		} catch (JMException e) {
+			LOG.warn("failed to unregister the MBean of cache " + name, e);
+		}
+	}
+
+	static ObjectName objectName(String name) throws JMException {
+		return new ObjectName(DOMAIN + ":type=Cache,name="
+				+ ObjectName.quote(name));
+	}
+
+	@Override
+	public long getHitCount() {
+		return stats().getHitCount();
+	}
+
+	@Override
+	public long getMissCount() {
+		return stats().getMissCount();
+	}
+
+	@Override
+	public double getHitRate() {
+		return stats().getHitRate();
+	}
+
+	@Override
+	public double getMissRate() {
+		return stats().getMissRate();
+	}
+
+	@Override
+	public long getLoadSuccessCount() {
+		return stats().getLoadSuccessCount();
+	}
+
+	@Override
+	public long getLoadFailureCount() {
+		return stats().getLoadFailureCount();
+	}
+
+	@Override
+	public double getAverageLoadPenalty() {
+		return stats().getAverageLoadPenalty() / 1000000.0;
+	}
+
+	@Override
+	public String getLoadLatencyHistogram() {
+		long[] latencies = stats().getLoadLatencies();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < latencies.length; i++) {
+			if (latencies[i] == 0) {
+				continue;
+			}
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(CacheStats.latencyBucketLabel(i)).append('=').append(
+					latencies[i]);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public long getEvictionCount() {
+		return stats().getEvictionCount();
+	}
+
+	@Override
+	public long getSize() {
+		return stats().getSize();
+	}
+
+	@Override
+	public long getWeightedSize() {
+		return stats().getWeightedSize();
+	}
+
+	@Override
+	public void resetStats() {
+		for (Member member : members) {
+			ICache<?, ?> cache = member.cache();
+			if (cache != null) {
+				member.baseline = cache.getStats();
+			}
+		}
+	}
+
+	@Override
+	public void flush() {
+		for (Member member : members) {
+			ICache<?, ?> cache = member.cache();
+			if (cache != null) {
+				cache.flush();
+			}
+		}
+	}
+
+	/**
+	 * @return the statistics since the last reset, of all the instances
+	 */
+	CacheStats stats() {
+		CacheStats stats = null;
+		for (Member member : members) {
+			ICache<?, ?> cache = member.cache();
+			if (cache == null) {
+				members.remove(member);
+				continue;
+			}
+			CacheStats since = cache.getStats().minus(member.baseline);
+			stats = stats == null ? since : stats.plus(since);
+		}
+		return stats == null ? CacheStats.EMPTY : stats;
+	}
+
+	/**
+	 * Drops the members whose cache was garbage collected.
+	 * 
+	 * @return whether none is left
+	 */
+	private boolean prune() {
+		for (Member member : members) {
+			if (member.cache() == null) {
+				members.remove(member);
+			}
+		}
+		return members.isEmpty();
+	}
+
+	/**
+	 * A cache of the MBean, with the statistics it was last reset at.
+	 */
+	private static final class Member {
+
+		private final ICache<?, ?> strong;
+		private final WeakReference<ICache<?, ?>> weak;
+		volatile CacheStats baseline = CacheStats.EMPTY;
+
+		Member(ICache<?, ?> cache, boolean weakly) {
+			strong = weakly ? null : cache;
+			weak = weakly ? new WeakReference<ICache<?, ?>>(cache) : null;
+		}
+
+		ICache<?, ?> cache() {
+			return strong != null ? strong : weak.get();
+		}
+	}
+
+}
@@ -0,0 +1,55 @@
+package com.aug3.sys.cache;
+
+/**
+ * Manager bean exposing the statistics of a cache. Counts are taken since the
+ * statistics were last reset.
+ * 
+ * @author xial
+ */
+public interface CacheMgrMBean {
+
+	long getHitCount();
+
+	long getMissCount();
+
+	double getHitRate();
+
+	double getMissRate();
+
+	long getLoadSuccessCount();
+
+	long getLoadFailureCount();
+
+	/**
+	 * @return the average time of a load, in milliseconds
+	 */
+	double getAverageLoadPenalty();
+
+	/**
+	 * @return the number of loads by load time, such as "<1ms=12, 1-2ms=3"
+	 */
+	String getLoadLatencyHistogram();
+
+	long getEvictionCount();
+
+	/**
+	 * @return the number of entries in the cache, -1 if unknown
+	 */
+	long getSize();
+
+	/**
+	 * @return the total weight of the entries, -1 if unknown
+	 */
+	long getWeightedSize();
+
+	/**
+	 * starts counting again from zero
+	 */
+	void resetStats();
+
+	/**
+	 * removes all the entries of the cache
+	 */
+	void flush();
+
+}
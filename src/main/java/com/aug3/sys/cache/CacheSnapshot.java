@@ -0,0 +1,510 @@
+package com.aug3.sys.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.aug3.sys.cache.codec.CompactCodec;
+import com.aug3.sys.cache.codec.ValueCodec;
+
+/**
+ * A file holding the entries of a cache, so that a restarted process does not
+ * start with an empty cache and hammer the sources of the entries. The cache
+ * is saved when the JVM shuts down, and optionally at a fixed interval so that
+ * a crash does not lose it.
+ *
+ * The file starts with a magic number, the format version, the time it was
+ * written and a <em>stamp</em> chosen by the application, usually its release.
+ * Each entry is written with the time it was loaded, and its key and value are
+ * encoded with the <code>CompactCodec</code>. A CRC32 of all the preceding
+ * bytes ends the file. A file that is truncated, corrupted, of another format
+ * version or with another stamp is discarded as a whole. The file is written
+ * to a temporary file first and then renamed, so a crash while saving leaves
+ * the previous snapshot. An entry the codec cannot encode, such as a value
+ * that is not serializable, is left out and logged.
+ *
+ * All the snapshots of a file are saved by one shutdown hook and one periodic
+ * task, which write the entries of all their sources together, one write at
+ * a time.
+ *
+ * Values are only decoded when <code>Entry.getValue</code> is called, so that
+ * a cache can restore its entries lazily, as they are requested.
+ *
+ * @author xial
+ */
+public class CacheSnapshot {
+
+	private static final Logger LOG = Logger.getLogger(CacheSnapshot.class);
+
+	private static final int MAGIC = 0x43534e50;
+	private static final int FORMAT_VERSION = 1;
+
+	/** saves the snapshots written at an interval */
+	private static final ScheduledExecutorService saver = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "cache-snapshot");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/** the savers of the snapshot files, by absolute file */
+	private static final Map<File, FileSaver> savers = new HashMap<File, FileSaver>();
+	/** whether the hook saving all the files at shutdown is added */
+	private static boolean hooked;
+
+	private static final ValueCodec<Object> codec = new CompactCodec<Object>();
+
+	private final File file;
+	private final String stamp;
+
+	/**
+	 * @param file
+	 *            the snapshot file
+	 * @param stamp
+	 *            identifies the data the snapshot is valid for, e.g. the
+	 *            release of the application; a snapshot written with another
+	 *            stamp is discarded. Null is the same as an empty stamp.
+	 */
+	public CacheSnapshot(File file, String stamp) {
+		this.file = file;
+		this.stamp = stamp == null ? "" : stamp;
+	}
+
+	// ---------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ---------------------------------------------------------------------
+
+	public File getFile() {
+		return file;
+	}
+
+	public String getStamp() {
+		return stamp;
+	}
+
+	/**
+	 * Replaces the snapshot with the entries.
+	 * 
+	 * @return the number of entries written, those the codec cannot encode
+	 *         being left out
+	 */
+	public int write(Collection<Entry> entries) throws IOException {
+		// encoded first, so that an entry that cannot be encoded does not
+		// abort the whole snapshot
+		List<Entry> encodable = new ArrayList<Entry>(entries.size());
+		List<byte[]> encoded = new ArrayList<byte[]>(2 * entries.size());
+		RuntimeException failure = null;
+		for (Entry entry : entries) {
+			try {
+				byte[] key = codec.encode(entry.key);
+				byte[] value = entry.encoded();
+				encodable.add(entry);
+				encoded.add(key);
+				encoded.add(value);
+			} catch (RuntimeException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		if (failure != null) {
+			LOG.warn("left " + (entries.size() - encodable.size())
+					+ " entries out of cache snapshot " + file + ": "
+					+ failure.getMessage());
+		}
+		synchronized (saverOf(file)) {
+			write(encodable, encoded);
+		}
+		return encodable.size();
+	}
+
+	private void write(List<Entry> entries, List<byte[]> encoded)
+			throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			CheckedOutputStream checked = new CheckedOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp)),
+					new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeLong(System.currentTimeMillis());
+				out.writeUTF(stamp);
+				out.writeInt(entries.size());
+				for (int i = 0; i < entries.size(); i++) {
+					out.writeLong(entries.get(i).time);
+					writeBytes(out, encoded.get(2 * i));
+					writeBytes(out, encoded.get(2 * i + 1));
+				}
+				out.flush();
+				out.writeLong(checked.getChecksum().getValue());
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file)) {
+					throw new IOException("unable to rename " + tmp);
+				}
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the entries of the snapshot by key, with their values still
+	 *         encoded. The map is empty if there is no snapshot or if it is
+	 *         invalid, which is logged.
+	 */
+	public Map<Object, Entry> read() {
+		Map<Object, Entry> entries = new HashMap<Object, Entry>();
+		if (!file.exists()) {
+			return entries;
+		}
+		try {
+			long length = file.length();
+			CountingInputStream counting = new CountingInputStream(
+					new BufferedInputStream(new FileInputStream(file)));
+			CheckedInputStream checked = new CheckedInputStream(counting,
+					new CRC32());
+			DataInputStream in = new DataInputStream(checked);
+			try {
+				if (in.readInt() != MAGIC) {
+					throw new IOException("not a cache snapshot");
+				}
+				int version = in.readInt();
+				if (version != FORMAT_VERSION) {
+					throw new IOException("unsupported format version "
+							+ version);
+				}
+				in.readLong();
+				String written = in.readUTF();
+				if (!stamp.equals(written)) {
+					throw new IOException("written for " + written
+							+ " instead of " + stamp);
+				}
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					long time = in.readLong();
+					Object key = codec.decode(readBytes(in, length
+							- counting.count));
+					entries.put(key, new Entry(key, time, readBytes(in, length
+							- counting.count)));
+				}
+				long checksum = checked.getChecksum().getValue();
+				if (in.readLong() != checksum) {
+					throw new IOException("checksum mismatch");
+				}
+			} finally {
+				in.close();
+			}
+		} catch (EOFException e) {
+			LOG.warn("discarding cache snapshot " + file + ": truncated");
+			entries.clear();
+		} catch (IOException e) {
+			LOG.warn("discarding cache snapshot " + file + ": "
+					+ e.getMessage());
+			entries.clear();
+		} catch (RuntimeException e) {
+			LOG.warn("discarding cache snapshot " + file, e);
+			entries.clear();
+		}
+		LOG.info("read " + entries.size() + " cache entries from " + file);
+		return entries;
+	}
+
+	/**
+	 * Saves the entries of the source when the JVM shuts down, and every
+	 * <em>interval</em> milliseconds if it is positive. Failures are logged.
+	 * 
+	 * The file is saved at the shortest interval asked for by its snapshots.
+	 * The source is only referenced weakly, so that it does not keep its
+	 * cache reachable: the cache keeps it for as long as it is to be saved.
+	 * Once the sources of a file are all gone, the file is no longer saved.
+	 */
+	public void saveOnShutdown(Source source, long interval) {
+		synchronized (CacheSnapshot.class) {
+			FileSaver fileSaver = saverOf(file);
+			fileSaver.snapshot = this;
+			fileSaver.sources.add(new WeakReference<Source>(source));
+			if (interval > 0
+					&& (fileSaver.task == null || interval < fileSaver.interval)) {
+				if (fileSaver.task != null) {
+					fileSaver.task.cancel(false);
+				}
+				fileSaver.interval = interval;
+				fileSaver.task = saver.scheduleWithFixedDelay(fileSaver,
+						interval, interval, TimeUnit.MILLISECONDS);
+			}
+			if (!hooked) {
+				Runtime.getRuntime().addShutdownHook(
+						new Thread("cache-snapshot-shutdown") {
+							public void run() {
+								saveAll();
+							}
+						});
+				hooked = true;
+			}
+		}
+	}
+
+	/**
+	 * @return a copy of the entries of the cache, or null if the cache cannot
+	 *         list them. The <code>ConcurrentLRUCache</code>, the
+	 *         <code>TinyLFUCache</code>, the <code>LRUCache</code> and the
+	 *         <code>SystemCache</code> backed by one of them can.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> Map<K, V> entriesOf(ICache<K, V> cache) {
+		if (cache instanceof SystemCache) {
+			return (Map<K, V>) ((SystemCache) cache).entries();
+		}
+		if (cache instanceof ConcurrentLRUCache<?, ?>) {
+			return ((ConcurrentLRUCache<K, V>) cache).entries();
+		}
+		if (cache instanceof TinyLFUCache<?, ?>) {
+			return ((TinyLFUCache<K, V>) cache).entries();
+		}
+		if (cache instanceof LRUCache<?, ?>) {
+			// the cache is usually shared, and then guarded by itself
+			synchronized (cache) {
+				return new HashMap<K, V>((LRUCache<K, V>) cache);
+			}
+		}
+		return null;
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	private static synchronized FileSaver saverOf(File file) {
+		File key = file.getAbsoluteFile();
+		FileSaver fileSaver = savers.get(key);
+		if (fileSaver == null) {
+			fileSaver = new FileSaver();
+			savers.put(key, fileSaver);
+		}
+		return fileSaver;
+	}
+
+	private static void saveAll() {
+		List<FileSaver> all;
+		synchronized (CacheSnapshot.class) {
+			all = new ArrayList<FileSaver>(savers.values());
+		}
+		for (FileSaver fileSaver : all) {
+			fileSaver.run();
+		}
+	}
+
+	private void save(List<Source> sources) {
+		try {
+			List<Entry> entries = new ArrayList<Entry>();
+			for (Source source : sources) {
+				entries.addAll(source.entries());
+			}
+			int written = write(entries);
+			LOG.info("saved " + written + " cache entries to " + file);
+		} catch (Exception e) {
+			LOG.warn("failed to save cache snapshot " + file, e);
+		}
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes)
+			throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * @param left
+	 *            the bytes left in the file, which the length read must fit
+	 *            in before the bytes are allocated
+	 */
+	private static byte[] readBytes(DataInputStream in, long left)
+			throws IOException {
+		int length = in.readInt();
+		// the length is checked by the CRC only once all is read
+		if (length < 0 || length > left - 4) {
+			throw new IOException("invalid length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER CLASSES
+	// ---------------------------------------------------------------------
+
+	/**
+	 * Counts the bytes read from the file.
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+
+		long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+
+	/**
+	 * Saves the sources of the snapshots of a file, and serializes the writes
+	 * of the file. Its fields are guarded by the class lock.
+	 */
+	private static final class FileSaver implements Runnable {
+
+		final List<WeakReference<Source>> sources = new ArrayList<WeakReference<Source>>();
+		/** the snapshot the file is saved with */
+		CacheSnapshot snapshot;
+		long interval;
+		ScheduledFuture<?> task;
+
+		public void run() {
+			List<Source> live = new ArrayList<Source>();
+			CacheSnapshot target;
+			synchronized (CacheSnapshot.class) {
+				for (Iterator<WeakReference<Source>> it = sources.iterator(); it
+						.hasNext();) {
+					Source source = it.next().get();
+					if (source == null) {
+						it.remove();
+					} else {
+						live.add(source);
+					}
+				}
+				if (live.isEmpty() && task != null) {
+					// the caches saved to the file are gone
+					task.cancel(false);
+					task = null;
+				}
+				target = snapshot;
+			}
+			if (!live.isEmpty()) {
+				target.save(live);
+			}
+		}
+	}
+
+	/**
+	 * Provides the entries to save.
+	 */
+	public interface Source {
+		Collection<Entry> entries();
+	}
+
+	/**
+	 * A value that a cache stores in a shared cache and saves in its own
+	 * snapshot, so that the snapshot of the shared cache leaves it out.
+	 */
+	public interface Owned {
+	}
+
+	/**
+	 * An entry of the snapshot. An entry read from a file keeps its value
+	 * encoded until it is asked for.
+	 */
+	public static final class Entry {
+
+		private final Object key;
+		private final long time;
+		private Object value;
+		private byte[] encoded;
+
+		/**
+		 * @param time
+		 *            when the value was loaded from its source, checked against
+		 *            the source when the entry is restored
+		 */
+		public Entry(Object key, Object value, long time) {
+			this.key = key;
+			this.value = value;
+			this.time = time;
+		}
+
+		Entry(Object key, long time, byte[] encoded) {
+			this.key = key;
+			this.time = time;
+			this.encoded = encoded;
+		}
+
+		public Object getKey() {
+			return key;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return the value, decoded on the first call.
+		 */
+		public synchronized Object getValue() {
+			if (encoded != null) {
+				value = codec.decode(encoded);
+				encoded = null;
+			}
+			return value;
+		}
+
+		/** an entry that was never decoded is written back as it was read */
+		synchronized byte[] encoded() {
+			return encoded != null ? encoded : codec.encode(value);
+		}
+	}
+
+}
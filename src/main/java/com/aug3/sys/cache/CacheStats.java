@@ -0,0 +1,228 @@
+package com.aug3.sys.cache;
+
+import java.io.Serializable;
+
+/**
+ * A snapshot of the statistics of a cache, as returned by
+ * <code>ICache.getStats</code>. Counts are taken since the cache was created.
+ * 
+ * Loads are the calls a cache makes to fetch missing values, such as the
+ * reader calls of a <code>SmartCache</code>; caches that do not load have no
+ * load statistics. Load times are also counted in a histogram of
+ * power-of-two buckets: bucket 0 holds the loads under 1 ms, bucket
+ * <em>i</em> the loads taking 2<sup>i-1</sup> to 2<sup>i</sup> ms, and the
+ * last bucket all the longer loads.
+ * 
+ * The size and weighted size are -1 when the cache cannot tell them, as for a
+ * memcached server shared with other processes.
+ * 
+ * @author xial
+ */
+@SuppressWarnings("serial")
+public class CacheStats implements Serializable {
+
+	/** the number of buckets of the load time histogram */
+	public static final int LATENCY_BUCKETS = 16;
+
+	/** the statistics of a cache that records none */
+	public static final CacheStats EMPTY = new CacheStats(0, 0, 0, 0, 0, 0,
+			-1, -1, new long[LATENCY_BUCKETS]);
+
+	private final long hitCount;
+	private final long missCount;
+	private final long loadSuccessCount;
+	private final long loadFailureCount;
+	private final long totalLoadTime;
+	private final long evictionCount;
+	private final long size;
+	private final long weightedSize;
+	private final long[] loadLatencies;
+
+	/**
+	 * @param totalLoadTime
+	 *            the time spent loading values, in nanoseconds
+	 * @param loadLatencies
+	 *            the load time histogram, of <code>LATENCY_BUCKETS</code>
+	 *            buckets
+	 */
+	public CacheStats(long hitCount, long missCount, long loadSuccessCount,
+			long loadFailureCount, long totalLoadTime, long evictionCount,
+			long size, long weightedSize, long[] loadLatencies) {
+		if (loadLatencies.length != LATENCY_BUCKETS) {
+			throw new IllegalArgumentException("expected " + LATENCY_BUCKETS
+					+ " latency buckets: " + loadLatencies.length);
+		}
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+		this.loadSuccessCount = loadSuccessCount;
+		this.loadFailureCount = loadFailureCount;
+		this.totalLoadTime = totalLoadTime;
+		this.evictionCount = evictionCount;
+		this.size = size;
+		this.weightedSize = weightedSize;
+		this.loadLatencies = loadLatencies.clone();
+	}
+
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	public long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * @return the number of reads, hits and misses.
+	 */
+	public long getRequestCount() {
+		return hitCount + missCount;
+	}
+
+	/**
+	 * @return the share of the reads that were hits, 1.0 if there was no read.
+	 */
+	public double getHitRate() {
+		long requests = getRequestCount();
+		return requests == 0 ? 1.0 : (double) hitCount / requests;
+	}
+
+	/**
+	 * @return the share of the reads that were misses, 0.0 if there was no
+	 *         read.
+	 */
+	public double getMissRate() {
+		long requests = getRequestCount();
+		return requests == 0 ? 0.0 : (double) missCount / requests;
+	}
+
+	public long getLoadSuccessCount() {
+		return loadSuccessCount;
+	}
+
+	public long getLoadFailureCount() {
+		return loadFailureCount;
+	}
+
+	public long getLoadCount() {
+		return loadSuccessCount + loadFailureCount;
+	}
+
+	/**
+	 * @return the time spent loading values, in nanoseconds.
+	 */
+	public long getTotalLoadTime() {
+		return totalLoadTime;
+	}
+
+	/**
+	 * @return the average time of a load in nanoseconds, 0.0 if there was no
+	 *         load.
+	 */
+	public double getAverageLoadPenalty() {
+		long loads = getLoadCount();
+		return loads == 0 ? 0.0 : (double) totalLoadTime / loads;
+	}
+
+	/**
+	 * @return the number of entries evicted to make room for others.
+	 */
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * @return the number of entries in the cache, or -1 if unknown.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the total weight of the entries, which is their number unless
+	 *         the cache is bounded by weight, or -1 if unknown.
+	 */
+	public long getWeightedSize() {
+		return weightedSize;
+	}
+
+	/**
+	 * @return the number of loads in each bucket of the load time histogram.
+	 */
+	public long[] getLoadLatencies() {
+		return loadLatencies.clone();
+	}
+
+	/**
+	 * @return the statistics recorded since the <em>other</em> snapshot of the
+	 *         same cache was taken. The size is the size of this snapshot.
+	 */
+	public CacheStats minus(CacheStats other) {
+		long[] latencies = new long[LATENCY_BUCKETS];
+		for (int i = 0; i < LATENCY_BUCKETS; i++) {
+			latencies[i] = Math.max(0, loadLatencies[i]
+					- other.loadLatencies[i]);
+		}
+		return new CacheStats(Math.max(0, hitCount - other.hitCount),
+				Math.max(0, missCount - other.missCount), Math.max(0,
+						loadSuccessCount - other.loadSuccessCount), Math.max(
+						0, loadFailureCount - other.loadFailureCount),
+				Math.max(0, totalLoadTime - other.totalLoadTime), Math.max(0,
+						evictionCount - other.evictionCount), size,
+				weightedSize, latencies);
+	}
+
+	/**
+	 * @return the statistics of this cache and the <em>other</em> together.
+	 *         The sizes are unknown if either is.
+	 */
+	public CacheStats plus(CacheStats other) {
+		long[] latencies = new long[LATENCY_BUCKETS];
+		for (int i = 0; i < LATENCY_BUCKETS; i++) {
+			latencies[i] = loadLatencies[i] + other.loadLatencies[i];
+		}
+		return new CacheStats(hitCount + other.hitCount, missCount
+				+ other.missCount, loadSuccessCount + other.loadSuccessCount,
+				loadFailureCount + other.loadFailureCount, totalLoadTime
+						+ other.totalLoadTime, evictionCount
+						+ other.evictionCount, size < 0 || other.size < 0 ? -1
+						: size + other.size, weightedSize < 0
+						|| other.weightedSize < 0 ? -1 : weightedSize
+						+ other.weightedSize, latencies);
+	}
+
+	/**
+	 * @return the histogram bucket of a load that took <em>nanos</em>
+	 *         nanoseconds.
+	 */
+	public static int latencyBucket(long nanos) {
+		long millis = nanos / 1000000;
+		if (millis <= 0) {
+			return 0;
+		}
+		return Math.min(64 - Long.numberOfLeadingZeros(millis),
+				LATENCY_BUCKETS - 1);
+	}
+
+	/**
+	 * @return the range of load times of the histogram bucket, such as
+	 *         "4-8ms".
+	 */
+	public static String latencyBucketLabel(int bucket) {
+		if (bucket == 0) {
+			return "<1ms";
+		}
+		if (bucket == LATENCY_BUCKETS - 1) {
+			return ">=" + (1L << (bucket - 1)) + "ms";
+		}
+		return (1L << (bucket - 1)) + "-" + (1L << bucket) + "ms";
+	}
+
+	public String toString() {
+		return "CacheStats[hits=" + hitCount + ", misses=" + missCount
+				+ ", loadSuccesses=" + loadSuccessCount + ", loadFailures="
+				+ loadFailureCount + ", totalLoadTime=" + totalLoadTime
+				+ "ns, evictions=" + evictionCount + ", size=" + size
+				+ ", weightedSize=" + weightedSize + "]";
+	}
+
+}
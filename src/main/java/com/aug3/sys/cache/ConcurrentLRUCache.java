@@ -0,0 +1,390 @@
+package com.aug3.sys.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, thread-safe cache with an approximate least-recently-used
+ * eviction policy. It is meant to replace a <code>LRUCache</code> wrapped in
+ * <code>Collections.synchronizedMap</code> when the cache is shared by many
+ * threads.
+ *
+ * Entries are kept in a <code>ConcurrentHashMap</code>, so reads never take a
+ * lock: a hit only sets the entry's reference bit. Eviction bookkeeping is
+ * split into lock-striped segments, each running the CLOCK (second chance)
+ * algorithm over its own ring of entries. A key always belongs to the same
+ * segment, and writes only lock that segment.
+ *
+ * The capacity is divided evenly among the segments, so an entry may be
+ * evicted from a full segment while another segment still has room. Small
+ * caches use fewer segments to keep the policy close to a true LRU.
+ *
+ * The cache can also be bounded by weight, usually the estimated size of the
+ * entries in bytes, when entries differ widely in size. Each entry is weighed
+ * by a <code>Weigher</code> when it is put, and entries are evicted until the
+ * total weight of their segment fits its share of the maximum weight. An entry
+ * heavier than that share is kept, but alone in its segment.
+ *
+ * @author xial
+ *
+ * @param <K> key of the cached object
+ * @param <V> the cached object
+ */
+public class ConcurrentLRUCache<K, V> extends AbstractCache<K, V> {
+
+	static final int DEFAULT_CAPACITY = 100;
+	static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+	/** the smallest ring a segment is given before we stop adding segments */
+	private static final int MIN_SEGMENT_CAPACITY = 16;
+
+	private final ConcurrentHashMap<K, Node<K, V>> map;
+	private final Segment<K, V>[] segments;
+	private final int segmentMask;
+	private final int capacity;
+	private final long maxWeight;
+	private final Weigher<? super K, ? super V> weigher;
+	private final StatsCounter stats = new StatsCounter();
+
+	// ---------------------------------------------------------------------
+	// CONSTRUCTORS
+	// ---------------------------------------------------------------------
+
+	public ConcurrentLRUCache() {
+		this(DEFAULT_CAPACITY, DEFAULT_CONCURRENCY_LEVEL);
+	}
+
+	public ConcurrentLRUCache(int capacity) {
+		this(capacity, DEFAULT_CONCURRENCY_LEVEL);
+	}
+
+	/**
+	 * @param capacity
+	 *            the maximum number of entries held by the cache
+	 * @param concurrencyLevel
+	 *            the estimated number of concurrently updating threads
+	 */
+	public ConcurrentLRUCache(int capacity, int concurrencyLevel) {
+		this(capacity, concurrencyLevel, 0, null);
+	}
+
+	/**
+	 * @param capacity
+	 *            the maximum number of entries held by the cache
+	 * @param concurrencyLevel
+	 *            the estimated number of concurrently updating threads
+	 * @param maxWeight
+	 *            the maximum total weight of the entries, 0 for no bound
+	 * @param weigher
+	 *            weighs the entries, or null to count each entry as 1
+	 */
+	@SuppressWarnings("unchecked")
+	public ConcurrentLRUCache(int capacity, int concurrencyLevel,
+			long maxWeight, Weigher<? super K, ? super V> weigher) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive: "
+					+ capacity);
+		}
+		if (concurrencyLevel <= 0) {
+			throw new IllegalArgumentException(
+					"concurrency level must be positive: " + concurrencyLevel);
+		}
+		if (maxWeight < 0) {
+			throw new IllegalArgumentException(
+					"maximum weight cannot be negative: " + maxWeight);
+		}
+		this.capacity = capacity;
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+
+		int segmentCount = 1;
+		while (segmentCount < concurrencyLevel
+				&& segmentCount * 2 * MIN_SEGMENT_CAPACITY <= capacity) {
+			segmentCount <<= 1;
+		}
+		segmentMask = segmentCount - 1;
+		segments = new Segment[segmentCount];
+		// the first segments take the remainder, for the capacities to add up
+		// to the capacity of the cache
+		int perSegment = capacity / segmentCount;
+		int remainder = capacity % segmentCount;
+		long weightPerSegment = maxWeight > 0 ? (maxWeight + segmentCount - 1)
+				/ segmentCount : Long.MAX_VALUE;
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment<K, V>(i < remainder ? perSegment + 1
+					: perSegment, weightPerSegment);
+		}
+		map = new ConcurrentHashMap<K, Node<K, V>>(capacity, 0.75f,
+				segmentCount);
+	}
+
+	// ---------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ---------------------------------------------------------------------
+
+	@Override
+	public V get(K key) {
+		Node<K, V> node = map.get(key);
+		if (node == null) {
+			stats.recordMisses(1);
+			return null;
+		}
+		stats.recordHits(1);
+		// avoid dirtying the cache line when the bit is already set
+		if (!node.referenced) {
+			node.referenced = true;
+		}
+		return node.value;
+	}
+
+	@Override
+	public V put(K key, V value) {
+		int weight = weigher == null ? 1 : weigher.weigh(key, value);
+		if (weight < 0) {
+			throw new IllegalArgumentException("negative weight for " + key);
+		}
+		Segment<K, V> segment = segmentFor(key);
+		segment.lock();
+		try {
+			Node<K, V> node = map.get(key);
+			if (node != null) {
+				V old = node.value;
+				node.value = value;
+				node.referenced = true;
+				segment.weight += weight - node.weight;
+				node.weight = weight;
+				trim(segment, node);
+				return old;
+			}
+			node = new Node<K, V>(key, value, weight);
+			Node<K, V> victim = segment.add(node);
+			if (victim != null) {
+				map.remove(victim.key, victim);
+				stats.recordEviction();
+			}
+			map.put(key, node);
+			trim(segment, node);
+			return null;
+		} finally {
+			segment.unlock();
+		}
+	}
+
+	@Override
+	public V remove(K key) {
+		Segment<K, V> segment = segmentFor(key);
+		segment.lock();
+		try {
+			Node<K, V> node = map.remove(key);
+			if (node == null) {
+				return null;
+			}
+			segment.unlink(node);
+			return node.value;
+		} finally {
+			segment.unlock();
+		}
+	}
+
+	@Override
+	public boolean containsKey(K key) {
+		return map.containsKey(key);
+	}
+
+	@Override
+	public void flush() {
+		for (Segment<K, V> segment : segments) {
+			segment.lock();
+			try {
+				for (int i = 0; i < segment.count; i++) {
+					Node<K, V> node = segment.ring[i];
+					map.remove(node.key, node);
+				}
+				segment.clear();
+			} finally {
+				segment.unlock();
+			}
+		}
+	}
+
+	@Override
+	public CacheStats getStats() {
+		return stats.snapshot(size(), weightedSize());
+	}
+
+	/**
+	 * @return the number of entries currently in the cache.
+	 */
+	public int size() {
+		return map.size();
+	}
+
+	/**
+	 * @return the maximum number of entries the cache will hold.
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the total weight of the entries currently in the cache, which is
+	 *         their number if the cache has no weigher.
+	 */
+	public long weightedSize() {
+		long weight = 0;
+		for (Segment<K, V> segment : segments) {
+			weight += segment.weight;
+		}
+		return weight;
+	}
+
+	/**
+	 * @return the maximum total weight of the entries, 0 if the cache is only
+	 *         bounded by its capacity.
+	 */
+	public long maxWeight() {
+		return maxWeight;
+	}
+
+	/**
+	 * @return a copy of the entries currently in the cache. It does not count
+	 *         as reading them.
+	 */
+	public Map<K, V> entries() {
+		Map<K, V> entries = new HashMap<K, V>(map.size() * 4 / 3 + 1);
+		for (Node<K, V> node : map.values()) {
+			entries.put(node.key, node.value);
+		}
+		return entries;
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * Evicts entries from the segment, other than the one just written, until
+	 * the segment fits its maximum weight. Called with the segment locked.
+	 */
+	private void trim(Segment<K, V> segment, Node<K, V> written) {
+		while (segment.weight > segment.maxWeight && segment.count > 1) {
+			Node<K, V> victim = segment.victim(written);
+			segment.unlink(victim);
+			map.remove(victim.key, victim);
+			stats.recordEviction();
+		}
+	}
+
+	private Segment<K, V> segmentFor(Object key) {
+		// spread the bits so that keys with poor hash codes still use all
+		// the segments
+		int h = key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return segments[h & segmentMask];
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER CLASSES
+	// ---------------------------------------------------------------------
+
+	private static final class Node<K, V> {
+		final K key;
+		volatile V value;
+		volatile boolean referenced;
+		int slot; // guarded by the segment lock
+		int weight; // guarded by the segment lock
+
+		Node(K key, V value, int weight) {
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * A segment owns a fixed-size ring of entries and a clock hand sweeping
+	 * over it. All fields are guarded by the segment's own lock; the weight is
+	 * volatile so that it can be summed without locking.
+	 */
+	@SuppressWarnings("serial")
+	private static final class Segment<K, V> extends ReentrantLock {
+
+		final Node<K, V>[] ring;
+		final long maxWeight;
+		int count;
+		int hand;
+		volatile long weight;
+
+		@SuppressWarnings("unchecked")
+		Segment(int capacity, long maxWeight) {
+			ring = new Node[capacity];
+			this.maxWeight = maxWeight;
+		}
+
+		/**
+		 * Adds the node to the ring, evicting another one if the ring is full.
+		 *
+		 * @return the evicted node, or null if there was room.
+		 */
+		Node<K, V> add(Node<K, V> node) {
+			if (count < ring.length) {
+				node.slot = count;
+				ring[count++] = node;
+				weight += node.weight;
+				return null;
+			}
+			Node<K, V> victim = victim(null);
+			node.slot = hand;
+			ring[hand] = node;
+			hand = (hand + 1) % count;
+			weight += node.weight - victim.weight;
+			return victim;
+		}
+
+		/**
+		 * Second chance: clears reference bits until an unreferenced entry,
+		 * other than the one to keep, comes under the hand.
+		 *
+		 * @return the node under the hand, left in the ring.
+		 */
+		Node<K, V> victim(Node<K, V> keep) {
+			Node<K, V> victim = ring[hand];
+			while (victim.referenced || victim == keep) {
+				if (victim != keep) {
+					victim.referenced = false;
+				}
+				hand = (hand + 1) % count;
+				victim = ring[hand];
+			}
+			return victim;
+		}
+
+		/**
+		 * Removes the node from the ring by moving the last node into its slot.
+		 */
+		void unlink(Node<K, V> node) {
+			int last = --count;
+			Node<K, V> moved = ring[last];
+			ring[node.slot] = moved;
+			moved.slot = node.slot;
+			ring[last] = null;
+			if (hand >= count) {
+				hand = 0;
+			}
+			weight -= node.weight;
+		}
+
+		void clear() {
+			for (int i = 0; i < count; i++) {
+				ring[i] = null;
+			}
+			count = 0;
+			hand = 0;
+			weight = 0;
+		}
+	}
+
+}
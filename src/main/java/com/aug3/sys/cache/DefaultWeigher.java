@@ -0,0 +1,116 @@
+package com.aug3.sys.cache;
+
+import java.util.Collection;
+import java.util.Map;
+
+import com.aug3.sys.cfg.ValueSet;
+
+/**
+ * A weigher estimating the heap footprint, in bytes, of the values cached in
+ * this framework: strings, boxed primitives, byte arrays, maps (including
+ * <code>Properties</code>), collections and <code>ValueSet</code>s.
+ * 
+ * The estimates assume a 64-bit JVM with compressed references, and are meant
+ * to tell a 50-entry property set from a 5000-entry one rather than to be
+ * exact. Nested containers are followed a few levels deep; anything deeper, or
+ * of an unknown type, counts as a small object.
+ * 
+ * @author xial
+ */
+public class DefaultWeigher implements Weigher<Object, Object> {
+
+	private static final int OBJECT_HEADER = 16;
+	private static final int ARRAY_HEADER = 16;
+	private static final int REFERENCE = 4;
+	private static final int HASH_ENTRY = 32;
+	private static final int MAX_DEPTH = 4;
+
+	@Override
+	public int weigh(Object key, Object value) {
+		long size = estimate(key) + estimate(value);
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return the estimated number of bytes used by the object and what it
+	 *         references.
+	 */
+	public static long estimate(Object obj) {
+		return estimate(obj, 0);
+	}
+
+	private static long estimate(Object obj, int depth) {
+		if (obj == null) {
+			return 0;
+		}
+		if (obj instanceof String) {
+			return align(OBJECT_HEADER + 8) + array(2, ((String) obj).length());
+		}
+		if (obj instanceof Number || obj instanceof Boolean
+				|| obj instanceof Character) {
+			return align(OBJECT_HEADER + 8);
+		}
+		if (obj instanceof byte[]) {
+			return array(1, ((byte[]) obj).length);
+		}
+		if (depth >= MAX_DEPTH) {
+			return OBJECT_HEADER;
+		}
+		if (obj instanceof Map<?, ?>) {
+			return map((Map<?, ?>) obj, depth);
+		}
+		if (obj instanceof Collection<?>) {
+			return collection((Collection<?>) obj, depth);
+		}
+		if (obj instanceof ValueSet) {
+			return valueSet((ValueSet) obj, depth);
+		}
+		return OBJECT_HEADER;
+	}
+
+	private static long map(Map<?, ?> map, int depth) {
+		// the map itself plus a table sized for a 0.75 load factor
+		long size = align(OBJECT_HEADER + 32)
+				+ array(REFERENCE, map.size() * 4 / 3 + 1);
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			size += HASH_ENTRY + estimate(entry.getKey(), depth + 1)
+					+ estimate(entry.getValue(), depth + 1);
+		}
+		return size;
+	}
+
+	private static long collection(Collection<?> collection, int depth) {
+		long size = align(OBJECT_HEADER + 16)
+				+ array(REFERENCE, collection.size());
+		for (Object element : collection) {
+			size += estimate(element, depth + 1);
+		}
+		return size;
+	}
+
+	/**
+	 * A value set keeps its values in a map and again in a list, so the
+	 * values are only counted once.
+	 */
+	private static long valueSet(ValueSet valueSet, int depth) {
+		long size = align(OBJECT_HEADER + 7 * REFERENCE)
+				+ estimate(valueSet.getConfigTypeName(), depth + 1)
+				+ map(valueSet.getValueMap(), depth + 1)
+				+ array(REFERENCE, valueSet.getAllValues().size()) * 2
+				+ collection(valueSet.getResetSet(), depth + 1)
+				+ collection(valueSet.getUpdateSet(), depth + 1);
+		for (String name : valueSet.getAllNames()) {
+			size += HASH_ENTRY + estimate(valueSet.getDescription(name), depth + 1);
+		}
+		return size;
+	}
+
+	private static long array(int elementSize, int length) {
+		return align(ARRAY_HEADER + (long) elementSize * length);
+	}
+
+	private static long align(long size) {
+		return (size + 7) & ~7L;
+	}
+
+}
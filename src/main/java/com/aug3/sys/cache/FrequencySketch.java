@@ -0,0 +1,128 @@
+package com.aug3.sys.cache;
+
+/**
+ * A count-min sketch estimating how often keys have been seen recently. It
+ * keeps four 4-bit counters per key, packed sixteen to a long, so it uses about
+ * 8 bytes per tracked key whatever the key size is. The estimate of a key is
+ * the smallest of its counters, which can only over-count because of hash
+ * collisions.
+ *
+ * To favour recent history, all counters are halved once the number of
+ * recorded events reaches ten times the table size. The maximum count of a
+ * key is 15.
+ *
+ * This class is not thread-safe.
+ *
+ * @author xial
+ */
+public class FrequencySketch {
+
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L,
+			0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final long ONE_MASK = 0x1111111111111111L;
+	private static final int MAX_COUNT = 15;
+
+	private final long[] table;
+	private final int tableMask;
+	private final int sampleSize;
+	private int additions;
+
+	/**
+	 * @param expectedKeys
+	 *            the number of distinct keys the sketch should tell apart,
+	 *            usually the capacity of the cache using it.
+	 */
+	public FrequencySketch(int expectedKeys) {
+		int size = 1;
+		while (size < Math.max(expectedKeys, 16)) {
+			size <<= 1;
+		}
+		table = new long[size];
+		tableMask = size - 1;
+		sampleSize = 10 * size;
+	}
+
+	/**
+	 * @return the estimated number of times the key has been seen, between 0
+	 *         and 15.
+	 */
+	public int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		int frequency = MAX_COUNT;
+		for (int i = 0; i < 4; i++) {
+			int index = indexOf(hash, i);
+			int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Records one occurrence of the key, aging all the counters when the
+	 * sample period is over.
+	 */
+	public void increment(Object key) {
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			added |= incrementAt(indexOf(hash, i), start + i);
+		}
+		if (added && ++additions == sampleSize) {
+			reset();
+		}
+	}
+
+	/**
+	 * Forgets everything that was recorded.
+	 */
+	public void clear() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = 0L;
+		}
+		additions = 0;
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * Increments the j-th counter of the long at index i, unless it is
+	 * already saturated.
+	 */
+	private boolean incrementAt(int i, int j) {
+		int offset = j << 2;
+		long mask = (0xfL << offset);
+		if ((table[i] & mask) != mask) {
+			table[i] += (1L << offset);
+			return true;
+		}
+		return false;
+	}
+
+	/** halves every counter */
+	private void reset() {
+		int odd = 0;
+		for (int i = 0; i < table.length; i++) {
+			odd += Long.bitCount(table[i] & ONE_MASK);
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions = (additions >>> 1) - (odd >>> 2);
+	}
+
+	private int indexOf(int hash, int depth) {
+		long h = (hash + SEEDS[depth]) * SEEDS[depth];
+		h += (h >>> 32);
+		return ((int) h) & tableMask;
+	}
+
+	private static int spread(int h) {
+		h = ((h >>> 16) ^ h) * 0x45d9f3b;
+		h = ((h >>> 16) ^ h) * 0x45d9f3b;
+		return (h >>> 16) ^ h;
+	}
+
+}
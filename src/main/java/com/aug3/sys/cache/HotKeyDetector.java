@@ -0,0 +1,264 @@
+package com.aug3.sys.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the keys read so often that they are worth keeping apart, such as the
+ * few keys taking most of the traffic of a distributed cache.
+ *
+ * Reads are sampled, one in <em>sampleRate</em>, into count-min sketches over
+ * a sliding window: the window is cut into panes, each with its own sketch,
+ * and the oldest pane is cleared as time moves on. The estimated reads of a
+ * key in the window are the sampled counts of the panes times the sample
+ * rate. A key becomes hot once its estimate reaches the threshold, and stops
+ * being hot when the panes that made it so have slid out of the window. At
+ * most <em>maxHotKeys</em> keys are hot at once, the hottest winning.
+ *
+ * Unsampled reads only look up the hot keys, so <code>record</code> is cheap
+ * on most calls; sampled reads synchronize on the detector. The estimates can
+ * only be too high, because of hash collisions, and are rounded to the sample
+ * rate.
+ *
+ * @author xial
+ */
+public class HotKeyDetector {
+
+	private static final int DEPTH = 4;
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L,
+			0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+	/** [pane][row * width + column] */
+	private final int[][] panes;
+	private final int width;
+	private final long paneMillis;
+	private final int sampleRate;
+	/** the sampled count of a hot key */
+	private final int sampledThreshold;
+	private final int maxHotKeys;
+
+	private final AtomicInteger reads = new AtomicInteger();
+	/** the hot keys and their estimated reads in the window */
+	private final ConcurrentMap<Object, Long> hotKeys = new ConcurrentHashMap<Object, Long>();
+	private int current;
+	private long paneStart;
+
+	// ---------------------------------------------------------------------
+	// CONSTRUCTORS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * @param expectedKeys
+	 *            the number of distinct keys read in a window
+	 * @param windowMillis
+	 *            the length of the window, in milliseconds
+	 * @param panes
+	 *            the number of steps the window slides by
+	 * @param sampleRate
+	 *            one read in so many is counted
+	 * @param threshold
+	 *            the reads in the window making a key hot
+	 * @param maxHotKeys
+	 *            the most keys hot at once
+	 */
+	public HotKeyDetector(int expectedKeys, long windowMillis, int panes,
+			int sampleRate, long threshold, int maxHotKeys) {
+		if (panes <= 0 || windowMillis < panes) {
+			throw new IllegalArgumentException("invalid window of "
+					+ windowMillis + " ms in " + panes + " panes");
+		}
+		if (sampleRate <= 0 || threshold <= 0 || maxHotKeys <= 0) {
+			throw new IllegalArgumentException("sample rate, threshold and "
+					+ "maximum hot keys must be positive");
+		}
+		int size = 16;
+		while (size < expectedKeys) {
+			size <<= 1;
+		}
+		this.width = size;
+		this.panes = new int[panes][DEPTH * size];
+		this.paneMillis = windowMillis / panes;
+		this.sampleRate = sampleRate;
+		this.sampledThreshold = (int) Math.max(1, (threshold + sampleRate - 1)
+				/ sampleRate);
+		this.maxHotKeys = maxHotKeys;
+		this.paneStart = System.currentTimeMillis();
+	}
+
+	// ---------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * Records a read of the key.
+	 *
+	 * @return true if the key is hot.
+	 */
+	public boolean record(Object key) {
+		if (reads.incrementAndGet() % sampleRate != 0) {
+			return hotKeys.containsKey(key);
+		}
+		return sample(key, System.currentTimeMillis());
+	}
+
+	public boolean isHot(Object key) {
+		return hotKeys.containsKey(key);
+	}
+
+	/**
+	 * @return the hot keys with their estimated reads in the window, hottest
+	 *         first.
+	 */
+	public Map<Object, Long> getHotKeys() {
+		synchronized (this) {
+			slide(System.currentTimeMillis());
+		}
+		List<Map.Entry<Object, Long>> entries = new ArrayList<Map.Entry<Object, Long>>(
+				hotKeys.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<Object, Long>>() {
+			public int compare(Map.Entry<Object, Long> a,
+					Map.Entry<Object, Long> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+		Map<Object, Long> sorted = new LinkedHashMap<Object, Long>();
+		for (Map.Entry<Object, Long> e : entries) {
+			sorted.put(e.getKey(), e.getValue());
+		}
+		return sorted;
+	}
+
+	public long getWindowMillis() {
+		return paneMillis * panes.length;
+	}
+
+	public int getMaxHotKeys() {
+		return maxHotKeys;
+	}
+
+	/**
+	 * @return the estimated reads of the key in the window.
+	 */
+	public synchronized long estimate(Object key) {
+		return (long) count(spread(key.hashCode())) * sampleRate;
+	}
+
+	/**
+	 * Forgets everything that was recorded, and all the hot keys.
+	 */
+	public synchronized void clear() {
+		for (int[] pane : panes) {
+			Arrays.fill(pane, 0);
+		}
+		hotKeys.clear();
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * Counts a sampled read at time <em>now</em>.
+	 *
+	 * @return true if the key is hot.
+	 */
+	synchronized boolean sample(Object key, long now) {
+		slide(now);
+		int hash = spread(key.hashCode());
+		int[] pane = panes[current];
+		for (int row = 0; row < DEPTH; row++) {
+			int i = indexOf(hash, row);
+			if (pane[i] < Integer.MAX_VALUE) {
+				pane[i]++;
+			}
+		}
+		int count = count(hash);
+		if (count < sampledThreshold) {
+			return hotKeys.containsKey(key);
+		}
+		long estimate = (long) count * sampleRate;
+		if (hotKeys.containsKey(key) || hotKeys.size() < maxHotKeys) {
+			hotKeys.put(key, estimate);
+			return true;
+		}
+		Object coldest = null;
+		long coldestEstimate = estimate;
+		for (Map.Entry<Object, Long> e : hotKeys.entrySet()) {
+			if (e.getValue() < coldestEstimate) {
+				coldest = e.getKey();
+				coldestEstimate = e.getValue();
+			}
+		}
+		if (coldest == null) {
+			return false;
+		}
+		hotKeys.remove(coldest);
+		hotKeys.put(key, estimate);
+		return true;
+	}
+
+	/**
+	 * Moves the window to time <em>now</em>, clearing the panes left behind,
+	 * and cools down the hot keys whose reads slid out of it.
+	 */
+	private void slide(long now) {
+		long elapsed = (now - paneStart) / paneMillis;
+		if (elapsed <= 0) {
+			return;
+		}
+		int steps = (int) Math.min(elapsed, panes.length);
+		for (int i = 0; i < steps; i++) {
+			current = (current + 1) % panes.length;
+			Arrays.fill(panes[current], 0);
+		}
+		paneStart += elapsed * paneMillis;
+		Map<Object, Long> estimates = new HashMap<Object, Long>();
+		for (Object key : hotKeys.keySet()) {
+			int count = count(spread(key.hashCode()));
+			if (count < sampledThreshold) {
+				hotKeys.remove(key);
+			} else {
+				estimates.put(key, (long) count * sampleRate);
+			}
+		}
+		hotKeys.putAll(estimates);
+	}
+
+	/**
+	 * @return the smallest of the key's counters, each summed over the panes.
+	 */
+	private int count(int hash) {
+		long min = Long.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++) {
+			int i = indexOf(hash, row);
+			long sum = 0;
+			for (int[] pane : panes) {
+				sum += pane[i];
+			}
+			min = Math.min(min, sum);
+		}
+		return (int) Math.min(min, Integer.MAX_VALUE);
+	}
+
+	private int indexOf(int hash, int row) {
+		long h = (hash + SEEDS[row]) * SEEDS[row];
+		h += (h >>> 32);
+		return row * width + (((int) h) & (width - 1));
+	}
+
+	private static int spread(int h) {
+		h = ((h >>> 16) ^ h) * 0x45d9f3b;
+		h = ((h >>> 16) ^ h) * 0x45d9f3b;
+		return (h >>> 16) ^ h;
+	}
+
+}
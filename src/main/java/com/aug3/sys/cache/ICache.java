@@ -1,9 +1,20 @@
 package com.aug3.sys.cache;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * The base interface of all different cache implementations provided by this
  * framework. It is pretty much a limited form of a map.
  * 
+ * The bulk operations let distributed caches serve many keys in one round
+ * trip. <code>AbstractCache</code> implements them on top of the single-key
+ * operations for the caches that have nothing better to offer.
+ * 
+ * <code>getStats</code> reports how well the cache is doing: hits, misses,
+ * loads, evictions and size. See <code>CacheMgr</code> to expose them through
+ * JMX.
+ * 
  * @author xial
  * 
  * @param <K>  key of the cached object
@@ -20,4 +31,20 @@ public interface ICache<K, V> {
 	boolean containsKey(K key);
 	
 	void flush();
+
+	/**
+	 * @return the cached values of the keys, leaving out the keys that are not
+	 *         in the cache.
+	 */
+	Map<K, V> getAll(Collection<? extends K> keys);
+
+	void putAll(Map<? extends K, ? extends V> map);
+
+	void removeAll(Collection<? extends K> keys);
+
+	/**
+	 * @return the statistics recorded since the cache was created, or
+	 *         <code>CacheStats.EMPTY</code> if the cache records none.
+	 */
+	CacheStats getStats();
 }
@@ -1,25 +1,74 @@
 package com.aug3.sys.cache;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
 
 /**
  * A least-recently-used (LRU) cache map. This class is a map that stores up to
  * <em>CAPACITY</em> entries at a time. If one attempts to add an entry to the
  * map exceeding the cache's capacity, the least-recently-used entry is removed.
- * 
+ *
+ * The cache can also be bounded by weight, usually the estimated size of the
+ * entries in bytes. Each entry is then weighed by a <code>Weigher</code> when
+ * it is put, and least-recently-used entries are removed until the total weight
+ * fits the maximum. Entries of a weighted cache must be removed through
+ * <code>remove</code> or <code>clear</code>, not through the iterators of the
+ * map views, for the total weight to stay right. Likewise, only reads through
+ * <code>get</code> are counted in the statistics.
+ *
+ * An entry put with a time to live expires once it has passed: it is no longer
+ * returned by <code>get</code> nor <code>containsKey</code>, and a
+ * <code>TimingWheel</code> finds the expired entries so that they are removed
+ * as the cache is used, without a thread of its own. <code>cleanUp</code>
+ * removes them at once. Entries put without a time to live never expire.
+ *
+ * <code>RemovalListener</code>s are told of the entries leaving the cache,
+ * and subclasses can override <code>onRemoval</code> instead. Removals through
+ * the iterators of the map views are not told.
+ *
  * @author xial
- * 
+ *
  * @param <K> key of the cached object
  * @param <V> the cached object
  */
 @SuppressWarnings("serial")
 public class LRUCache<K, V> extends LinkedHashMap<K, V> implements ICache<K, V> {
 
+	private static final Logger LOG = Logger.getLogger(LRUCache.class);
+
 	static final int DEFAULT_CAPACITY = 100;
 	static final float DEFAULT_LOAD_FACTOR = 0.75f;
 
+	/** the resolution of the expiry of the entries, in milliseconds */
+	static final long EXPIRY_TICK = 100;
+
 	private int capacity;
+	private long maxWeight;
+	private Weigher<? super K, ? super V> weigher;
+	private Map<K, Integer> weights;
+	private long weight;
+	private final StatsCounter stats = new StatsCounter();
+
+	/** created when the first entry with a time to live is put */
+	private TimingWheel<K> wheel;
+	private Map<K, TimingWheel.Timer<K>> timers;
+	private final List<RemovalListener<? super K, ? super V>> listeners = new CopyOnWriteArrayList<RemovalListener<? super K, ? super V>>();
+
+	/**
+	 * the entry evicted by the put in progress, told once the map has
+	 * unlinked it
+	 */
+	private transient boolean evicted;
+	private transient K evictedKey;
+	private transient V evictedValue;
 
 	public LRUCache() {
 		this(DEFAULT_CAPACITY, DEFAULT_LOAD_FACTOR);
@@ -35,8 +84,194 @@ public class LRUCache<K, V> extends LinkedHashMap<K, V> implements ICache<K, V>
 
 	}
 
+	/**
+	 * @param initialCapacity
+	 *            the maximum number of entries held by the cache
+	 * @param maxWeight
+	 *            the maximum total weight of the entries, 0 for no bound
+	 * @param weigher
+	 *            weighs the entries
+	 */
+	public LRUCache(int initialCapacity, long maxWeight,
+			Weigher<? super K, ? super V> weigher) {
+		this(initialCapacity, DEFAULT_LOAD_FACTOR);
+		if (maxWeight < 0) {
+			throw new IllegalArgumentException(
+					"maximum weight cannot be negative: " + maxWeight);
+		}
+		if (weigher == null) {
+			throw new IllegalArgumentException("weigher cannot be null");
+		}
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+		weights = new HashMap<K, Integer>();
+	}
+
 	public void flush() {
+		clear();
+	}
+
+	@Override
+	public V get(Object key) {
+		expireEntries();
+		V value = isExpired(key) ? null : super.get(key);
+		if (value == null) {
+			stats.recordMisses(1);
+		} else {
+			stats.recordHits(1);
+		}
+		return value;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		expireEntries();
+		return !isExpired(key) && super.containsKey(key);
+	}
+
+	@Override
+	public V put(K key, V value) {
+		expireEntries();
+		cancelTimer(key);
+		if (weigher == null) {
+			V old = super.put(key, value);
+			notifyEviction();
+			return replaced(key, old);
+		}
+		int entryWeight = weigher.weigh(key, value);
+		if (entryWeight < 0) {
+			throw new IllegalArgumentException("negative weight for " + key);
+		}
+		V old = super.put(key, value);
+		Integer previous = weights.put(key, entryWeight);
+		weight += entryWeight - (previous == null ? 0 : previous);
+		notifyEviction();
+		if (maxWeight > 0) {
+			// the entry just put is the most recently used, so it is removed
+			// last
+			Iterator<Map.Entry<K, V>> eldest = entrySet().iterator();
+			while (weight > maxWeight && size() > 1) {
+				Map.Entry<K, V> e = eldest.next();
+				K eldestKey = e.getKey();
+				V eldestValue = e.getValue();
+				eldest.remove();
+				weight -= weights.remove(eldestKey);
+				cancelTimer(eldestKey);
+				stats.recordEviction();
+				notifyRemoval(eldestKey, eldestValue, RemovalCause.EVICTED);
+			}
+		}
+		return replaced(key, old);
+	}
+
+	/**
+	 * Puts the entry for at most <em>timeToLive</em> milliseconds.
+	 */
+	public V put(K key, V value, long timeToLive) {
+		if (timeToLive <= 0) {
+			throw new IllegalArgumentException(
+					"time to live must be positive: " + timeToLive);
+		}
+		V old = put(key, value);
+		if (super.containsKey(key)) {
+			// unless the entry was too heavy to be kept
+			long now = System.currentTimeMillis();
+			if (wheel == null) {
+				wheel = new TimingWheel<K>(EXPIRY_TICK, now);
+				timers = new HashMap<K, TimingWheel.Timer<K>>();
+			}
+			timers.put(key, wheel.schedule(key, now + timeToLive));
+		}
+		return old;
+	}
+
+	@Override
+	public void putAll(Map<? extends K, ? extends V> m) {
+		for (Map.Entry<? extends K, ? extends V> e : m.entrySet()) {
+			put(e.getKey(), e.getValue());
+		}
+	}
+
+	public Map<K, V> getAll(Collection<? extends K> keys) {
+		Map<K, V> values = new HashMap<K, V>();
+		for (K key : keys) {
+			V value = get(key);
+			if (value != null) {
+				values.put(key, value);
+			}
+		}
+		return values;
+	}
+
+	public void removeAll(Collection<? extends K> keys) {
+		for (K key : keys) {
+			remove(key);
+		}
+	}
+
+	@Override
+	public V remove(Object key) {
+		return removeEntry(key, RemovalCause.EXPLICIT);
+	}
+
+	@Override
+	public void clear() {
+		// copied to be told once the cache is empty
+		List<Map.Entry<K, V>> removed = isEmpty() ? null
+				: new ArrayList<Map.Entry<K, V>>(entrySet());
 		super.clear();
+		if (weights != null) {
+			weights.clear();
+			weight = 0;
+		}
+		if (wheel != null) {
+			wheel.clear();
+			timers.clear();
+		}
+		if (removed != null) {
+			for (Map.Entry<K, V> e : removed) {
+				notifyRemoval(e.getKey(), e.getValue(), RemovalCause.CLEARED);
+			}
+		}
+	}
+
+	/**
+	 * Removes the entries whose time to live has passed.
+	 */
+	public void cleanUp() {
+		expireEntries();
+	}
+
+	public void addRemovalListener(
+			RemovalListener<? super K, ? super V> listener) {
+		listeners.add(listener);
+	}
+
+	public void removeRemovalListener(
+			RemovalListener<? super K, ? super V> listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return the total weight of the entries currently in the cache, which is
+	 *         their number if the cache has no weigher.
+	 */
+	public long weightedSize() {
+		return weigher == null ? size() : weight;
+	}
+
+	public CacheStats getStats() {
+		return stats.snapshot(size(), weightedSize());
+	}
+
+	/**
+	 * Called when an entry leaves the cache, after it was removed. Tells the
+	 * removal listeners by default.
+	 */
+	protected void onRemoval(K key, V value, RemovalCause cause) {
+		for (RemovalListener<? super K, ? super V> listener : listeners) {
+			listener.onRemoval(key, value, cause);
+		}
 	}
 
 	/**
@@ -45,6 +280,118 @@ public class LRUCache<K, V> extends LinkedHashMap<K, V> implements ICache<K, V>
 	 */
 	@Override
 	protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-		return size() > capacity;
+		if (size() <= capacity) {
+			return false;
+		}
+		if (weights != null) {
+			// the map removes the entry itself, without calling remove()
+			Integer previous = weights.remove(eldest.getKey());
+			if (previous != null) {
+				weight -= previous;
+			}
+		}
+		cancelTimer(eldest.getKey());
+		stats.recordEviction();
+		// the map unlinks the entry after this returns, in the middle of the
+		// put: the listeners are told once the put is done
+		evicted = true;
+		evictedKey = eldest.getKey();
+		evictedValue = eldest.getValue();
+		return true;
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	private V removeEntry(Object key, RemovalCause cause) {
+		boolean present = super.containsKey(key);
+		V value = super.remove(key);
+		if (weights != null) {
+			Integer previous = weights.remove(key);
+			if (previous != null) {
+				weight -= previous;
+			}
+		}
+		cancelTimer(key);
+		if (present) {
+			notifyRemoval(castKey(key), value, cause);
+		}
+		return value;
+	}
+
+	private V replaced(K key, V old) {
+		if (old != null) {
+			notifyRemoval(key, old, RemovalCause.REPLACED);
+		}
+		return old;
+	}
+
+	/**
+	 * Removes the entries the wheel finds expired. The wheel only moves once
+	 * per tick, so this is cheap on most calls.
+	 */
+	private void expireEntries() {
+		if (wheel == null || wheel.size() == 0) {
+			return;
+		}
+		List<K> expired = new ArrayList<K>(0);
+		wheel.advance(System.currentTimeMillis(), expired);
+		for (K key : expired) {
+			timers.remove(key);
+			removeEntry(key, RemovalCause.EXPIRED);
+		}
+	}
+
+	/**
+	 * Removes the entry of the key if its time to live has passed, which the
+	 * wheel notices up to a tick late.
+	 */
+	private boolean isExpired(Object key) {
+		if (timers == null) {
+			return false;
+		}
+		TimingWheel.Timer<K> timer = timers.get(key);
+		if (timer == null || timer.deadline > System.currentTimeMillis()) {
+			return false;
+		}
+		removeEntry(key, RemovalCause.EXPIRED);
+		return true;
+	}
+
+	private void cancelTimer(Object key) {
+		if (timers != null) {
+			TimingWheel.Timer<K> timer = timers.remove(key);
+			if (timer != null) {
+				wheel.cancel(timer);
+			}
+		}
+	}
+
+	/**
+	 * Tells the listeners of the entry evicted by the put just done, if any.
+	 */
+	private void notifyEviction() {
+		if (evicted) {
+			K key = evictedKey;
+			V value = evictedValue;
+			evicted = false;
+			evictedKey = null;
+			evictedValue = null;
+			notifyRemoval(key, value, RemovalCause.EVICTED);
+		}
+	}
+
+	private void notifyRemoval(K key, V value, RemovalCause cause) {
+		try {
+			onRemoval(key, value, cause);
+		} catch (RuntimeException e) {
+			LOG.warn("removal listener failed on " + key, e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private K castKey(Object key) {
+		return (K) key;
 	}
 }
@@ -0,0 +1,258 @@
+package com.aug3.sys.cache;
+
+import java.util.Arrays;
+
+/**
+ * A least-recently-used cache keyed by primitive longs, such as the ids of
+ * users and organizations, that neither boxes the keys nor allocates an entry
+ * per mapping.
+ *
+ * Keys and values are kept in parallel arrays forming an open-addressing hash
+ * table with linear probing, sized to at least twice the capacity so that
+ * probes stay short. Eviction runs the CLOCK (second chance) algorithm over
+ * the table itself: a hit sets the reference bit of the slot, and the hand
+ * sweeping the slots clears the bits until it finds an unreferenced entry to
+ * evict. Removed slots are filled by shifting the rest of their cluster back,
+ * so the table never holds tombstones.
+ *
+ * A slot takes 13 bytes of arrays, and a full cache has two to four slots
+ * per entry depending on how its capacity rounds up, against about 60 bytes
+ * for the entry, boxed key and table slot of a
+ * <code>LRUCache&lt;Long, V&gt;</code>, not counting the garbage of the
+ * boxing on every call.
+ *
+ * The cache also implements <code>ICache&lt;Long, V&gt;</code>, so that it
+ * can be registered with a <code>CacheMgr</code>, but callers should use the
+ * primitive methods to save the boxing. Values cannot be null.
+ *
+ * Like <code>LRUCache</code>, the cache is not thread-safe: a cache shared by
+ * several threads must be locked around its calls.
+ *
+ * @author xial
+ *
+ * @param <V>
+ *            the cached object
+ */
+public class LongLRUCache<V> extends AbstractCache<Long, V> {
+
+	static final int DEFAULT_CAPACITY = 100;
+
+	/** the largest capacity whose table can still be allocated */
+	static final int MAX_CAPACITY = 1 << 29;
+
+	private final int capacity;
+	private final int mask;
+	private final long[] keys;
+	/** null for an empty slot */
+	private final Object[] values;
+	private final boolean[] referenced;
+	private int size;
+	private int hand;
+	private final StatsCounter stats = new StatsCounter();
+
+	// ---------------------------------------------------------------------
+	// CONSTRUCTORS
+	// ---------------------------------------------------------------------
+
+	public LongLRUCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            the maximum number of entries held by the cache
+	 */
+	public LongLRUCache(int capacity) {
+		if (capacity <= 0 || capacity > MAX_CAPACITY) {
+			throw new IllegalArgumentException("invalid capacity: " + capacity);
+		}
+		this.capacity = capacity;
+		int slots = Integer.highestOneBit(capacity * 2 - 1) << 1;
+		mask = slots - 1;
+		keys = new long[slots];
+		values = new Object[slots];
+		referenced = new boolean[slots];
+	}
+
+	// ---------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * @return the value of the key, or null if it is not cached.
+	 */
+	public V get(long key) {
+		int slot = slotOf(key);
+		if (slot < 0) {
+			stats.recordMisses(1);
+			return null;
+		}
+		stats.recordHits(1);
+		// avoid dirtying the cache line when the bit is already set
+		if (!referenced[slot]) {
+			referenced[slot] = true;
+		}
+		return valueAt(slot);
+	}
+
+	/**
+	 * Caches the value, evicting another entry if the cache is full.
+	 *
+	 * @return the previous value of the key, or null if it was not cached.
+	 */
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("null value for " + key);
+		}
+		int slot = slotOf(key);
+		if (slot >= 0) {
+			V old = valueAt(slot);
+			values[slot] = value;
+			referenced[slot] = true;
+			return old;
+		}
+		if (size == capacity) {
+			evict();
+			// the eviction may have shifted the free slot
+			slot = slotOf(key);
+		}
+		slot = ~slot;
+		keys[slot] = key;
+		values[slot] = value;
+		size++;
+		return null;
+	}
+
+	/**
+	 * @return the value the key had, or null if it was not cached.
+	 */
+	public V remove(long key) {
+		int slot = slotOf(key);
+		if (slot < 0) {
+			return null;
+		}
+		V old = valueAt(slot);
+		delete(slot);
+		return old;
+	}
+
+	public boolean containsKey(long key) {
+		return slotOf(key) >= 0;
+	}
+
+	@Override
+	public V get(Long key) {
+		return get(key.longValue());
+	}
+
+	@Override
+	public V put(Long key, V value) {
+		return put(key.longValue(), value);
+	}
+
+	@Override
+	public V remove(Long key) {
+		return remove(key.longValue());
+	}
+
+	@Override
+	public boolean containsKey(Long key) {
+		return containsKey(key.longValue());
+	}
+
+	@Override
+	public void flush() {
+		Arrays.fill(values, null);
+		Arrays.fill(referenced, false);
+		size = 0;
+		hand = 0;
+	}
+
+	@Override
+	public CacheStats getStats() {
+		return stats.snapshot(size, size);
+	}
+
+	/**
+	 * @return the number of entries currently in the cache.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the maximum number of entries the cache will hold.
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * @return the slot of the key, or the one's complement of the empty slot
+	 *         ending its probe if the key is not cached.
+	 */
+	private int slotOf(long key) {
+		int slot = home(key);
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return ~slot;
+	}
+
+	/**
+	 * @return the slot the probe of the key starts from.
+	 */
+	private int home(long key) {
+		// ids are often sequential, so the bits are mixed before masking
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * Second chance: clears reference bits until an unreferenced entry comes
+	 * under the hand, and removes it.
+	 */
+	private void evict() {
+		while (values[hand] == null || referenced[hand]) {
+			referenced[hand] = false;
+			hand = (hand + 1) & mask;
+		}
+		// the entry shifted into the slot, if any, is looked at next
+		delete(hand);
+		stats.recordEviction();
+	}
+
+	/**
+	 * Empties the slot, shifting back the entries of the cluster after it that
+	 * would otherwise no longer be found from their home slot.
+	 */
+	private void delete(int slot) {
+		int gap = slot;
+		for (int i = (slot + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+			// the entry can fill the gap if the gap lies between its home and
+			// its slot
+			if (((i - home(keys[i])) & mask) >= ((i - gap) & mask)) {
+				keys[gap] = keys[i];
+				values[gap] = values[i];
+				referenced[gap] = referenced[i];
+				gap = i;
+			}
+		}
+		values[gap] = null;
+		referenced[gap] = false;
+		size--;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V valueAt(int slot) {
+		return (V) values[slot];
+	}
+
+}
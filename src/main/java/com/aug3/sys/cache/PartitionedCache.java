@@ -0,0 +1,364 @@
+package com.aug3.sys.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A cache split into partitions, usually one per tenant, so that a tenant
+ * using the cache heavily cannot evict the entries of the others.
+ * 
+ * Each partition is a least-recently-used cache holding up to its quota of
+ * entries, the default quota unless set with <code>setQuota</code>. The
+ * entries a partition evicts are moved to a shared overflow pool, itself a
+ * least-recently-used cache, so that the room left by quiet tenants is still
+ * used; a hit in the overflow pool moves the entry back to its partition. An
+ * entry only leaves the cache when the overflow pool evicts it, which is
+ * counted as an eviction of its tenant. A tenant can thus lose the entries
+ * beyond its quota to the others, but never those within it.
+ * 
+ * Hits, misses and evictions are counted per tenant as well as for the whole
+ * cache. <code>register</code> exposes both through JMX.
+ * 
+ * The cache synchronizes on itself, and its partitions and overflow pool are
+ * only reached through it. Subclasses invalidating entries on their own, for
+ * instance on update notifications, go through <code>keys</code> and
+ * <code>remove</code> while holding the lock of the cache.
+ * 
+ * @author xial
+ * 
+ * @param <K>
+ *            key of the cached object
+ * @param <V>
+ *            the cached object
+ */
+public class PartitionedCache<K, V> extends AbstractCache<K, V> {
+
+	/** the name of the partition of the keys without one */
+	public static final String DEFAULT_PARTITION = "";
+
+	private final Partitioner<? super K> partitioner;
+	private final int defaultQuota;
+	private final Map<String, Integer> quotas = new HashMap<String, Integer>();
+	private final Map<String, Tenant> tenants = new HashMap<String, Tenant>();
+	private final int overflowCapacity;
+	private final LRUCache<K, V> overflow;
+	private final StatsCounter stats = new StatsCounter();
+	/** the name the cache is registered as, if it is */
+	private String name;
+	/** the caches registered for the partitions, kept as long as the cache */
+	private final Map<String, PartitionView> views = new HashMap<String, PartitionView>();
+
+	// ---------------------------------------------------------------------
+	// CONSTRUCTORS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * @param partitioner
+	 *            tells the partition of each key
+	 * @param defaultQuota
+	 *            the entries each partition holds
+	 * @param overflowCapacity
+	 *            the entries of the overflow pool, shared by the partitions,
+	 *            0 for none
+	 */
+	public PartitionedCache(Partitioner<? super K> partitioner,
+			int defaultQuota, int overflowCapacity) {
+		if (defaultQuota <= 0 || overflowCapacity < 0) {
+			throw new IllegalArgumentException("invalid quota " + defaultQuota
+					+ " or overflow capacity " + overflowCapacity);
+		}
+		this.partitioner = partitioner;
+		this.defaultQuota = defaultQuota;
+		this.overflowCapacity = overflowCapacity;
+		this.overflow = new LRUCache<K, V>(Math.max(overflowCapacity, 1));
+		overflow.addRemovalListener(new OverflowListener());
+	}
+
+	// ---------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ---------------------------------------------------------------------
+
+	@Override
+	public synchronized V get(K key) {
+		Tenant tenant = tenantOf(key);
+		V value = tenant.entries.get(key);
+		if (value == null && overflow.containsKey(key)) {
+			// back to its partition, whose eldest entry overflows instead
+			value = overflow.remove(key);
+			tenant.entries.put(key, value);
+		}
+		if (value == null) {
+			tenant.stats.recordMisses(1);
+			stats.recordMisses(1);
+		} else {
+			tenant.stats.recordHits(1);
+			stats.recordHits(1);
+		}
+		return value;
+	}
+
+	@Override
+	public synchronized V put(K key, V value) {
+		Tenant tenant = tenantOf(key);
+		V old = overflow.remove(key);
+		V previous = tenant.entries.put(key, value);
+		return previous == null ? old : previous;
+	}
+
+	@Override
+	public synchronized V remove(K key) {
+		Tenant tenant = tenantOf(key);
+		V old = overflow.remove(key);
+		V previous = tenant.entries.remove(key);
+		return previous == null ? old : previous;
+	}
+
+	@Override
+	public synchronized boolean containsKey(K key) {
+		return tenantOf(key).entries.containsKey(key)
+				|| overflow.containsKey(key);
+	}
+
+	@Override
+	public synchronized void flush() {
+		for (Tenant tenant : tenants.values()) {
+			tenant.entries.clear();
+		}
+		overflow.clear();
+	}
+
+	/**
+	 * Removes the entries of one partition, in its quota and in the overflow
+	 * pool.
+	 */
+	public synchronized void flush(String partition) {
+		Tenant tenant = tenants.get(partition);
+		if (tenant == null) {
+			return;
+		}
+		tenant.entries.clear();
+		List<K> overflowed = new ArrayList<K>();
+		for (K key : overflow.keySet()) {
+			if (partition.equals(partitionOf(key))) {
+				overflowed.add(key);
+			}
+		}
+		for (K key : overflowed) {
+			overflow.remove(key);
+		}
+	}
+
+	/**
+	 * Sets the number of entries a partition holds. Lowering the quota of a
+	 * partition in use moves its least recently used entries to the overflow
+	 * pool.
+	 */
+	public synchronized void setQuota(String partition, int quota) {
+		if (quota <= 0) {
+			throw new IllegalArgumentException("quota must be positive: "
+					+ quota);
+		}
+		quotas.put(partition, quota);
+		Tenant tenant = tenants.get(partition);
+		if (tenant != null) {
+			// iterated from the least recently used, which overflow first
+			LRUCache<K, V> entries = new LRUCache<K, V>(quota);
+			entries.addRemovalListener(tenant);
+			for (Map.Entry<K, V> e : tenant.entries.entrySet()) {
+				entries.put(e.getKey(), e.getValue());
+			}
+			tenant.entries.removeRemovalListener(tenant);
+			tenant.entries = entries;
+		}
+	}
+
+	public synchronized int getQuota(String partition) {
+		Integer quota = quotas.get(partition);
+		return quota == null ? defaultQuota : quota;
+	}
+
+	/**
+	 * @return the keys of all the partitions and of the overflow pool.
+	 */
+	public synchronized List<K> keys() {
+		List<K> keys = new ArrayList<K>(overflow.keySet());
+		for (Tenant tenant : tenants.values()) {
+			keys.addAll(tenant.entries.keySet());
+		}
+		return keys;
+	}
+
+	/**
+	 * @return the partitions used so far.
+	 */
+	public synchronized Set<String> getPartitions() {
+		return new TreeSet<String>(tenants.keySet());
+	}
+
+	/**
+	 * @return the statistics of a partition, whose size counts its entries in
+	 *         the overflow pool as well.
+	 */
+	public synchronized CacheStats getStats(String partition) {
+		Tenant tenant = tenants.get(partition);
+		if (tenant == null) {
+			return CacheStats.EMPTY;
+		}
+		long size = tenant.entries.size() + tenant.overflowed;
+		return tenant.stats.snapshot(size, size);
+	}
+
+	/**
+	 * @return the statistics of the whole cache.
+	 */
+	@Override
+	public synchronized CacheStats getStats() {
+		long size = overflow.size();
+		for (Tenant tenant : tenants.values()) {
+			size += tenant.entries.size();
+		}
+		return stats.snapshot(size, size);
+	}
+
+	/**
+	 * Registers the cache with <code>CacheMgr</code> under the name, and each
+	 * partition, as it gets used, under the name followed by "/" and the name
+	 * of the partition. They are registered as instances, so that the caches
+	 * registered under the same name, such as one per thread, are added up.
+	 */
+	public synchronized void register(String name) {
+		this.name = name;
+		CacheMgr.registerInstance(name, this);
+		for (String partition : tenants.keySet()) {
+			registerPartition(partition);
+		}
+	}
+
+	public synchronized String toString() {
+		return "PartitionedCache[partitions=" + tenants.keySet()
+				+ ", overflow=" + overflow.size() + "]";
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	private String partitionOf(K key) {
+		String partition = partitioner.partitionOf(key);
+		return partition == null ? DEFAULT_PARTITION : partition;
+	}
+
+	private Tenant tenantOf(K key) {
+		String partition = partitionOf(key);
+		Tenant tenant = tenants.get(partition);
+		if (tenant == null) {
+			tenant = new Tenant(new LRUCache<K, V>(getQuota(partition)));
+			tenants.put(partition, tenant);
+			if (name != null) {
+				registerPartition(partition);
+			}
+		}
+		return tenant;
+	}
+
+	private void registerPartition(String partition) {
+		PartitionView view = views.get(partition);
+		if (view == null) {
+			view = new PartitionView(partition);
+			views.put(partition, view);
+		}
+		CacheMgr.registerInstance(name + "/" + partition, view);
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER CLASSES
+	// ---------------------------------------------------------------------
+
+	/**
+	 * A partition, which moves the entries it evicts to the overflow pool.
+	 */
+	private class Tenant implements RemovalListener<K, V> {
+		LRUCache<K, V> entries;
+		final StatsCounter stats = new StatsCounter();
+		/** the entries of the tenant in the overflow pool */
+		int overflowed;
+
+		Tenant(LRUCache<K, V> entries) {
+			this.entries = entries;
+			entries.addRemovalListener(this);
+		}
+
+		public void onRemoval(K key, V value, RemovalCause cause) {
+			if (cause != RemovalCause.EVICTED) {
+				return;
+			}
+			if (overflowCapacity == 0) {
+				stats.recordEviction();
+				PartitionedCache.this.stats.recordEviction();
+				return;
+			}
+			overflowed++;
+			overflow.put(key, value);
+		}
+	}
+
+	/**
+	 * Keeps the counts of the tenants up to date as entries leave the
+	 * overflow pool.
+	 */
+	private class OverflowListener implements RemovalListener<K, V> {
+
+		public void onRemoval(K key, V value, RemovalCause cause) {
+			Tenant tenant = tenants.get(partitionOf(key));
+			if (tenant == null) {
+				return;
+			}
+			tenant.overflowed--;
+			if (cause.wasEvicted()) {
+				tenant.stats.recordEviction();
+				stats.recordEviction();
+			}
+		}
+	}
+
+	/**
+	 * A partition seen as a cache of its own, for its statistics to be
+	 * exposed through JMX.
+	 */
+	private class PartitionView extends AbstractCache<K, V> {
+		private final String partition;
+
+		PartitionView(String partition) {
+			this.partition = partition;
+		}
+
+		public V get(K key) {
+			return PartitionedCache.this.get(key);
+		}
+
+		public V put(K key, V value) {
+			return PartitionedCache.this.put(key, value);
+		}
+
+		public V remove(K key) {
+			return PartitionedCache.this.remove(key);
+		}
+
+		public boolean containsKey(K key) {
+			return PartitionedCache.this.containsKey(key);
+		}
+
+		public void flush() {
+			PartitionedCache.this.flush(partition);
+		}
+
+		public CacheStats getStats() {
+			return PartitionedCache.this.getStats(partition);
+		}
+	}
+
+}
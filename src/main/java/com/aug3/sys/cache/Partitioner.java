@@ -0,0 +1,20 @@
+package com.aug3.sys.cache;
+
+/**
+ * Tells the partition of a <code>PartitionedCache</code> a key belongs to,
+ * usually the organization the cached value was read for.
+ * 
+ * @author xial
+ * 
+ * @param <K>
+ *            key of the cached object
+ */
+public interface Partitioner<K> {
+
+	/**
+	 * @return the name of the partition of the key, or null for the default
+	 *         partition.
+	 */
+	String partitionOf(K key);
+
+}
@@ -0,0 +1,33 @@
+package com.aug3.sys.cache;
+
+/**
+ * Why an entry left a cache, as told to a <code>RemovalListener</code>.
+ * 
+ * @author xial
+ */
+public enum RemovalCause {
+
+	/** removed by <code>remove</code> */
+	EXPLICIT,
+
+	/** its value was replaced by <code>put</code> */
+	REPLACED,
+
+	/** evicted to fit the capacity or the maximum weight of the cache */
+	EVICTED,
+
+	/** its time to live passed */
+	EXPIRED,
+
+	/** removed by <code>clear</code> or <code>flush</code> */
+	CLEARED;
+
+	/**
+	 * @return true if the cache removed the entry on its own, rather than
+	 *         being asked to.
+	 */
+	public boolean wasEvicted() {
+		return this == EVICTED || this == EXPIRED;
+	}
+
+}
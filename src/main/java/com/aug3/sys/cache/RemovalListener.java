@@ -0,0 +1,20 @@
+package com.aug3.sys.cache;
+
+/**
+ * Is told of the entries leaving a cache, whatever the reason, so that it
+ * does not have to poll the cache to find out. It is called by the thread
+ * removing the entry, with the lock of the cache held if it has one, so it
+ * should be quick and must not use the cache.
+ * 
+ * @author xial
+ * 
+ * @param <K>
+ *            key of the cached object
+ * @param <V>
+ *            the cached object
+ */
+public interface RemovalListener<K, V> {
+
+	void onRemoval(K key, V value, RemovalCause cause);
+
+}
@@ -0,0 +1,138 @@
+package com.aug3.sys.cache;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the statistics of a cache as it is used, and takes
+ * <code>CacheStats</code> snapshots of them.
+ * 
+ * Hits, misses and evictions are counted on every access, so their counters
+ * are striped to keep threads from contending on them: each thread adds to a
+ * cell picked by its id, the cells being padded apart so that they do not
+ * share a cache line, and a snapshot adds the cells up. Loads are far less
+ * frequent and slow anyway, so they use plain atomic counters.
+ * 
+ * A snapshot is not atomic: the counts updated while it is taken may or may
+ * not be included.
+ * 
+ * @author xial
+ */
+@SuppressWarnings("serial")
+public class StatsCounter implements Serializable {
+
+	private final StripedCounter hits = new StripedCounter();
+	private final StripedCounter misses = new StripedCounter();
+	private final StripedCounter evictions = new StripedCounter();
+	private final AtomicLong loadSuccesses = new AtomicLong();
+	private final AtomicLong loadFailures = new AtomicLong();
+	private final AtomicLong totalLoadTime = new AtomicLong();
+	private final AtomicLongArray loadLatencies = new AtomicLongArray(
+			CacheStats.LATENCY_BUCKETS);
+
+	public void recordHits(int count) {
+		hits.add(count);
+	}
+
+	public void recordMisses(int count) {
+		misses.add(count);
+	}
+
+	public void recordEviction() {
+		evictions.add(1);
+	}
+
+	/**
+	 * @param loadTime
+	 *            the time the load took, in nanoseconds
+	 */
+	public void recordLoadSuccess(long loadTime) {
+		loadSuccesses.incrementAndGet();
+		recordLoadTime(loadTime);
+	}
+
+	/**
+	 * @param loadTime
+	 *            the time the load took until it failed, in nanoseconds
+	 */
+	public void recordLoadFailure(long loadTime) {
+		loadFailures.incrementAndGet();
+		recordLoadTime(loadTime);
+	}
+
+	/**
+	 * @param size
+	 *            the number of entries in the cache, or -1 if unknown
+	 * @param weightedSize
+	 *            the total weight of the entries, or -1 if unknown
+	 */
+	public CacheStats snapshot(long size, long weightedSize) {
+		return snapshot(evictions.sum(), size, weightedSize);
+	}
+
+	/**
+	 * Takes a snapshot with the eviction count of another cache, for caches
+	 * that leave eviction to an underlying cache.
+	 */
+	public CacheStats snapshot(long evictionCount, long size, long weightedSize) {
+		long[] latencies = new long[CacheStats.LATENCY_BUCKETS];
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = loadLatencies.get(i);
+		}
+		return new CacheStats(hits.sum(), misses.sum(), loadSuccesses.get(),
+				loadFailures.get(), totalLoadTime.get(), evictionCount, size,
+				weightedSize, latencies);
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	private void recordLoadTime(long loadTime) {
+		totalLoadTime.addAndGet(loadTime);
+		loadLatencies.incrementAndGet(CacheStats.latencyBucket(loadTime));
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER CLASSES
+	// ---------------------------------------------------------------------
+
+	/**
+	 * A counter spread over one cell per processor or so.
+	 */
+	private static final class StripedCounter implements Serializable {
+
+		/** longs between two cells, 64 bytes apart */
+		private static final int PADDING = 8;
+		private static final int STRIPES = stripes();
+
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES
+				* PADDING);
+
+		void add(long count) {
+			// thread ids are handed out in sequence, so the low bits spread
+			// the threads over the cells
+			int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+			cells.addAndGet(stripe * PADDING, count);
+		}
+
+		long sum() {
+			long sum = 0;
+			for (int i = 0; i < STRIPES; i++) {
+				sum += cells.get(i * PADDING);
+			}
+			return sum;
+		}
+
+		private static int stripes() {
+			int processors = Runtime.getRuntime().availableProcessors();
+			int stripes = 1;
+			while (stripes < processors && stripes < 64) {
+				stripes <<= 1;
+			}
+			return stripes;
+		}
+	}
+
+}
@@ -1,7 +1,14 @@
 package com.aug3.sys.cache;
 
-import java.util.Collections;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
 
 import com.aug3.sys.properties.LazyPropLoader;
 
@@ -10,7 +17,9 @@ import com.aug3.sys.properties.LazyPropLoader;
  * one instance of this cache is available to all other SystemCache instances in
  * the system. 
  * 
- * It is a kind of LRUCache.
+ * It is backed by a <code>ConcurrentLRUCache</code> by default, so lookups do
+ * not contend on a global lock. A <code>TinyLFUCache</code> can be used instead
+ * when the cache sees scans that would flush an LRU cache.
  * 
  * For example, the following code snippet:
  * 
@@ -23,6 +32,8 @@ import com.aug3.sys.properties.LazyPropLoader;
  * 
  * would print "value is theValue."
  * 
+ * Its statistics are exposed through JMX as the cache named "system".
+ * 
  * The cache can be configured through the file systemcache.properties, which
  * should be placed in the classpath. It defines the following properties:
  * <table>
@@ -34,7 +45,56 @@ import com.aug3.sys.properties.LazyPropLoader;
  * <tr>
  * <td>cache.size</td>
  * <td>size of the cache</td>
- * <td>1000</td>
+ * <td>500</td>
+ * </tr>
+ * <tr>
+ * <td>cache.concurrency</td>
+ * <td>estimated number of threads updating the cache concurrently</td>
+ * <td>16</td>
+ * </tr>
+ * <tr>
+ * <td>cache.class</td>
+ * <td>the thread-safe ICache implementation backing the cache. It must have a
+ * constructor taking the cache size.</td>
+ * <td>com.aug3.sys.cache.ConcurrentLRUCache</td>
+ * </tr>
+ * <tr>
+ * <td>cache.maxweight</td>
+ * <td>maximum estimated size of the entries in bytes, 0 for no bound. Only
+ * supported by the ConcurrentLRUCache.</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>cache.weigher</td>
+ * <td>the Weigher estimating the size of the entries when cache.maxweight is
+ * set</td>
+ * <td>com.aug3.sys.cache.DefaultWeigher</td>
+ * </tr>
+ * <tr>
+ * <td>cache.snapshot.file</td>
+ * <td>the file the entries are saved to at shutdown and restored from when the
+ * class is loaded. The keys and values should be serializable. The entries of
+ * the smart caches based on the system cache are left out, as they are saved
+ * by the smart caches.</td>
+ * <td>none (not saved)</td>
+ * </tr>
+ * <tr>
+ * <td>cache.snapshot.interval</td>
+ * <td>seconds between two saves of the entries, besides the one at
+ * shutdown</td>
+ * <td>0 (only at shutdown)</td>
+ * </tr>
+ * <tr>
+ * <td>cache.snapshot.stamp</td>
+ * <td>the release of the data; a snapshot saved with another stamp is
+ * discarded</td>
+ * <td>empty</td>
+ * </tr>
+ * <tr>
+ * <td>cache.snapshot.maxage</td>
+ * <td>seconds after which a saved entry is no longer restored, 0 for no
+ * limit</td>
+ * <td>0</td>
  * </tr>
  * </table>
  * 
@@ -42,18 +102,60 @@ import com.aug3.sys.properties.LazyPropLoader;
  */
 public class SystemCache implements ICache<Object, Object> {
 
+	private static final Logger LOG = Logger.getLogger(SystemCache.class);
+
 	private static final String CONFIG_RESOURCE = "/systemcache.properties";
 	private static final String CACHE_SIZE = "cache.size";
 	private static final String DEFAULT_CACHE_SIZE = "500";
+	private static final String CACHE_CONCURRENCY = "cache.concurrency";
+	private static final String DEFAULT_CACHE_CONCURRENCY = "16";
+	private static final String CACHE_CLASS = "cache.class";
+	private static final String DEFAULT_CACHE_CLASS = ConcurrentLRUCache.class
+			.getName();
+	private static final String CACHE_MAX_WEIGHT = "cache.maxweight";
+	private static final String DEFAULT_CACHE_MAX_WEIGHT = "0";
+	private static final String CACHE_WEIGHER = "cache.weigher";
+	private static final String DEFAULT_CACHE_WEIGHER = DefaultWeigher.class
+			.getName();
+	private static final String SNAPSHOT_FILE = "cache.snapshot.file";
+	private static final String SNAPSHOT_INTERVAL = "cache.snapshot.interval";
+	private static final String DEFAULT_SNAPSHOT_INTERVAL = "0";
+	private static final String SNAPSHOT_STAMP = "cache.snapshot.stamp";
+	private static final String SNAPSHOT_MAX_AGE = "cache.snapshot.maxage";
+	private static final String DEFAULT_SNAPSHOT_MAX_AGE = "0";
 
-	private static Map<Object, Object> theCache;
+	private static ICache<Object, Object> theCache;
+	private static int capacity;
+	/**
+	 * when the entries were put, or saved for those restored from the
+	 * snapshot; null unless the cache is saved
+	 */
+	private static ConcurrentMap<Object, Long> putTimes;
+	/** saves the entries, only weakly referenced by the snapshot */
+	private static CacheSnapshot.Source snapshotSource;
 
 	static {
 		LazyPropLoader props = new LazyPropLoader(CONFIG_RESOURCE);
 		String size = props.getProperty(CACHE_SIZE, DEFAULT_CACHE_SIZE);
-		Map<Object, Object> cache = new LRUCache<Object, Object>(
-				Integer.parseInt(size));
-		theCache = Collections.synchronizedMap(cache);
+		String concurrency = props.getProperty(CACHE_CONCURRENCY,
+				DEFAULT_CACHE_CONCURRENCY);
+		String cacheClass = props.getProperty(CACHE_CLASS, DEFAULT_CACHE_CLASS);
+		String maxWeight = props.getProperty(CACHE_MAX_WEIGHT,
+				DEFAULT_CACHE_MAX_WEIGHT);
+		String weigher = props.getProperty(CACHE_WEIGHER, DEFAULT_CACHE_WEIGHER);
+		capacity = Integer.parseInt(size);
+		theCache = createCache(cacheClass, capacity,
+				Integer.parseInt(concurrency), Long.parseLong(maxWeight),
+				weigher);
+		String snapshotFile = props.getProperty(SNAPSHOT_FILE);
+		if (snapshotFile != null && snapshotFile.trim().length() > 0) {
+			warmStart(new CacheSnapshot(new File(snapshotFile.trim()), props
+					.getProperty(SNAPSHOT_STAMP)), Long.parseLong(props
+					.getProperty(SNAPSHOT_MAX_AGE, DEFAULT_SNAPSHOT_MAX_AGE)
+					.trim()) * 1000, Long.parseLong(props.getProperty(
+					SNAPSHOT_INTERVAL, DEFAULT_SNAPSHOT_INTERVAL).trim()) * 1000);
+		}
+		CacheMgr.register("system", theCache);
 	}
 
 	@Override
@@ -63,11 +165,16 @@ public class SystemCache implements ICache<Object, Object> {
 
 	@Override
 	public Object put(Object key, Object value) {
-		return theCache.put(key, value);
+		Object old = theCache.put(key, value);
+		recordPut(key);
+		return old;
 	}
 
 	@Override
 	public Object remove(Object key) {
+		if (putTimes != null) {
+			putTimes.remove(key);
+		}
 		return theCache.remove(key);
 	}
 
@@ -78,8 +185,151 @@ public class SystemCache implements ICache<Object, Object> {
 
 	@Override
 	public void flush() {
-		theCache.clear();
-		
+		theCache.flush();
+		if (putTimes != null) {
+			putTimes.clear();
+		}
+	}
+
+	@Override
+	public Map<Object, Object> getAll(Collection<? extends Object> keys) {
+		return theCache.getAll(keys);
+	}
+
+	@Override
+	public void putAll(Map<? extends Object, ? extends Object> map) {
+		theCache.putAll(map);
+		for (Object key : map.keySet()) {
+			recordPut(key);
+		}
+	}
+
+	@Override
+	public void removeAll(Collection<? extends Object> keys) {
+		if (putTimes != null) {
+			putTimes.keySet().removeAll(keys);
+		}
+		theCache.removeAll(keys);
+	}
+
+	@Override
+	public CacheStats getStats() {
+		return theCache.getStats();
+	}
+
+	/**
+	 * @return a copy of the cached entries, or null if the backing cache
+	 *         cannot list them. It does not count as reading them.
+	 */
+	public Map<Object, Object> entries() {
+		return CacheSnapshot.entriesOf(theCache);
+	}
+
+	/**
+	 * @return the total weight of the cached entries, which is their number
+	 *         unless cache.maxweight is set, or -1 if the backing cache does
+	 *         not keep track of weight.
+	 */
+	public long weightedSize() {
+		if (theCache instanceof ConcurrentLRUCache<?, ?>) {
+			return ((ConcurrentLRUCache<?, ?>) theCache).weightedSize();
+		}
+		return -1;
+	}
+
+	/**
+	 * Restores the entries of the snapshot that are recent enough, and saves
+	 * the cache to it at shutdown. The system cache is small, so the entries
+	 * are restored at once rather than when they are missed. An entry is
+	 * saved with the time it was put, or the time it was saved with if it was
+	 * restored, so that it ages out after the maximum age whatever the number
+	 * of restarts.
+	 */
+	private static void warmStart(CacheSnapshot snapshot, long maxAge,
+			long interval) {
+		if (CacheSnapshot.entriesOf(theCache) == null) {
+			return;
+		}
+		putTimes = new ConcurrentHashMap<Object, Long>();
+		long now = System.currentTimeMillis();
+		for (CacheSnapshot.Entry entry : snapshot.read().values()) {
+			if (maxAge <= 0 || now - entry.getTime() < maxAge) {
+				try {
+					Object value = entry.getValue();
+					// left by a snapshot saved before they were left out
+					if (!(value instanceof CacheSnapshot.Owned)) {
+						theCache.put(entry.getKey(), value);
+						putTimes.put(entry.getKey(), entry.getTime());
+					}
+				} catch (RuntimeException e) {
+					// the class of the value is gone or changed
+					LOG.warn("failed to restore " + entry.getKey()
+							+ " in the system cache", e);
+				}
+			}
+		}
+		snapshotSource = new CacheSnapshot.Source() {
+			public Collection<CacheSnapshot.Entry> entries() {
+				long now = System.currentTimeMillis();
+				List<CacheSnapshot.Entry> entries = new ArrayList<CacheSnapshot.Entry>();
+				for (Map.Entry<Object, Object> e : CacheSnapshot.entriesOf(
+						theCache).entrySet()) {
+					if (!(e.getValue() instanceof CacheSnapshot.Owned)) {
+						Long time = putTimes.get(e.getKey());
+						entries.add(new CacheSnapshot.Entry(e.getKey(), e
+								.getValue(), time == null ? now : time));
+					}
+				}
+				return entries;
+			}
+		};
+		snapshot.saveOnShutdown(snapshotSource, interval);
+	}
+
+	/**
+	 * Records when the key was put if the cache is saved, dropping the times
+	 * of the evicted entries once they outnumber the cached ones.
+	 */
+	private static void recordPut(Object key) {
+		Map<Object, Long> times = putTimes;
+		if (times == null) {
+			return;
+		}
+		times.put(key, System.currentTimeMillis());
+		if (times.size() > 2 * capacity) {
+			for (Object timed : times.keySet()) {
+				if (!theCache.containsKey(timed)) {
+					times.remove(timed);
+				}
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ICache<Object, Object> createCache(String className,
+			int size, int concurrency, long maxWeight, String weigherClass) {
+		if (DEFAULT_CACHE_CLASS.equals(className)) {
+			if (maxWeight <= 0) {
+				return new ConcurrentLRUCache<Object, Object>(size, concurrency);
+			}
+			try {
+				Weigher<Object, Object> weigher = (Weigher<Object, Object>) Class
+						.forName(weigherClass).newInstance();
+				return new ConcurrentLRUCache<Object, Object>(size,
+						concurrency, maxWeight, weigher);
+			} catch (Exception e) {
+				throw new RuntimeException("failed creating system cache weigher "
+						+ weigherClass, e);
+			}
+		}
+		try {
+			Class<?> clazz = Class.forName(className);
+			return (ICache<Object, Object>) clazz.getConstructor(int.class)
+					.newInstance(size);
+		} catch (Exception e) {
+			throw new RuntimeException("failed creating system cache "
+					+ className, e);
+		}
 	}
 
 }
@@ -0,0 +1,256 @@
+package com.aug3.sys.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel, scheduling elements to expire at a deadline
+ * with a resolution of one tick.
+ *
+ * The wheel has 4 levels of 64 buckets. A bucket of the first level holds the
+ * timers due at one tick, a bucket of the next level those due in a span of
+ * 64 ticks, and so on, covering 2^24 ticks. A timer is put in the finest level
+ * whose buckets reach its deadline, and moved down a level when the wheel
+ * gets to its bucket. Timers further away than the wheel covers wait in its
+ * last bucket and are placed again when it comes round. Scheduling and
+ * cancelling a timer are O(1): the buckets are doubly linked lists.
+ *
+ * The wheel has no thread of its own and does not synchronize: its owner
+ * advances it, usually on access, under its own lock.
+ *
+ * @author xial
+ *
+ * @param <E> the element expiring
+ */
+final class TimingWheel<E> {
+
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+	/** the ticks covered by the wheel */
+	private static final long SPAN = 1L << (BITS * LEVELS);
+
+	private final long tick;
+	private final Timer<E>[][] buckets;
+	/** the last tick processed */
+	private long current;
+	private int size;
+
+	/**
+	 * @param tick
+	 *            the resolution of the wheel, in milliseconds
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	@SuppressWarnings("unchecked")
+	TimingWheel(long tick, long now) {
+		if (tick <= 0) {
+			throw new IllegalArgumentException("tick must be positive: "
+					+ tick);
+		}
+		this.tick = tick;
+		this.current = now / tick;
+		buckets = new Timer[LEVELS][SLOTS];
+		for (int level = 0; level < LEVELS; level++) {
+			for (int slot = 0; slot < SLOTS; slot++) {
+				buckets[level][slot] = Timer.head();
+			}
+		}
+	}
+
+	/**
+	 * @return the timer of the element, to cancel it.
+	 */
+	Timer<E> schedule(E element, long deadline) {
+		Timer<E> timer = new Timer<E>(element, deadline);
+		long due = dueTick(deadline);
+		// the bucket of the current tick was already processed
+		insert(timer, due <= current ? current + 1 : due);
+		size++;
+		return timer;
+	}
+
+	void cancel(Timer<E> timer) {
+		if (timer.isLinked()) {
+			timer.unlink();
+			size--;
+		}
+	}
+
+	/**
+	 * Expires the timers due at time <em>now</em>.
+	 *
+	 * @param expired
+	 *            receives the elements of the expired timers
+	 */
+	void advance(long now, List<E> expired) {
+		long target = now / tick;
+		if (target <= current) {
+			return;
+		}
+		if (size == 0) {
+			current = target;
+			return;
+		}
+		if (target - current >= SPAN) {
+			// idle for longer than the wheel covers: place everything again
+			rebuild(target, expired);
+			return;
+		}
+		while (current < target) {
+			current++;
+			if ((current & MASK) == 0) {
+				cascade(1);
+			}
+			Timer<E> head = buckets[0][(int) (current & MASK)];
+			while (head.next != head) {
+				Timer<E> timer = head.next;
+				timer.unlink();
+				size--;
+				expired.add(timer.element);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of timers scheduled.
+	 */
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		for (Timer<E>[] level : buckets) {
+			for (Timer<E> head : level) {
+				head.clear();
+			}
+		}
+		size = 0;
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	private long dueTick(long deadline) {
+		// rounded up, so that a timer never expires before its deadline
+		return (deadline + tick - 1) / tick;
+	}
+
+	/**
+	 * Links the timer in the bucket of the due tick, at the finest level
+	 * reaching it. A tick not after the current one is the current bucket.
+	 */
+	private void insert(Timer<E> timer, long due) {
+		if (due <= current) {
+			timer.linkLast(buckets[0][(int) (current & MASK)]);
+			return;
+		}
+		for (int level = 0; level < LEVELS; level++) {
+			int shift = BITS * level;
+			if ((due >>> shift) - (current >>> shift) < SLOTS) {
+				timer.linkLast(buckets[level][(int) ((due >>> shift) & MASK)]);
+				return;
+			}
+		}
+		// beyond the wheel: wait in its last bucket
+		int shift = BITS * (LEVELS - 1);
+		timer.linkLast(buckets[LEVELS - 1][(int) (((current >>> shift) + MASK) & MASK)]);
+	}
+
+	/**
+	 * Moves the timers of the level's bucket of the current tick down the
+	 * wheel, cascading the level above first when this one wraps around.
+	 */
+	private void cascade(int level) {
+		int shift = BITS * level;
+		int slot = (int) ((current >>> shift) & MASK);
+		if (slot == 0 && level + 1 < LEVELS) {
+			cascade(level + 1);
+		}
+		Timer<E> head = buckets[level][slot];
+		Timer<E> timer = head.next;
+		head.clear();
+		while (timer != head) {
+			Timer<E> next = timer.next;
+			timer.prev = null;
+			timer.next = null;
+			insert(timer, dueTick(timer.deadline));
+			timer = next;
+		}
+	}
+
+	private void rebuild(long target, List<E> expired) {
+		List<Timer<E>> timers = new ArrayList<Timer<E>>(size);
+		for (Timer<E>[] level : buckets) {
+			for (Timer<E> head : level) {
+				for (Timer<E> t = head.next; t != head; t = t.next) {
+					timers.add(t);
+				}
+				head.clear();
+			}
+		}
+		current = target;
+		size = 0;
+		for (Timer<E> timer : timers) {
+			timer.prev = null;
+			timer.next = null;
+			if (dueTick(timer.deadline) <= current) {
+				expired.add(timer.element);
+			} else {
+				insert(timer, dueTick(timer.deadline));
+				size++;
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER CLASSES
+	// ---------------------------------------------------------------------
+
+	/**
+	 * A scheduled element, also used as the sentinel of the buckets.
+	 */
+	static final class Timer<E> {
+		final E element;
+		final long deadline;
+		Timer<E> prev;
+		Timer<E> next;
+
+		Timer(E element, long deadline) {
+			this.element = element;
+			this.deadline = deadline;
+		}
+
+		static <E> Timer<E> head() {
+			Timer<E> head = new Timer<E>(null, 0);
+			head.clear();
+			return head;
+		}
+
+		boolean isLinked() {
+			return next != null;
+		}
+
+		void linkLast(Timer<E> head) {
+			prev = head.prev;
+			next = head;
+			head.prev.next = this;
+			head.prev = this;
+		}
+
+		void unlink() {
+			prev.next = next;
+			next.prev = prev;
+			prev = null;
+			next = null;
+		}
+
+		void clear() {
+			prev = this;
+			next = this;
+		}
+	}
+
+}
@@ -0,0 +1,302 @@
+package com.aug3.sys.cache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache using the W-TinyLFU policy, which takes into account how
+ * often keys are used and not only how recently. Unlike a pure LRU cache, a
+ * scan over many keys used only once, such as a bulk export, does not flush
+ * the working set.
+ *
+ * New entries first go to a small LRU <em>window</em> (1% of the capacity)
+ * that absorbs bursts. When an entry leaves the window, it has to win a
+ * frequency contest against the entry the main area would evict: a
+ * <code>FrequencySketch</code> estimates how often each of them was requested,
+ * and the least popular one is dropped. The main area is a segmented LRU: an
+ * entry starts in the <em>probation</em> segment and is promoted to the
+ * <em>protected</em> segment (80% of the main area) when it is hit again.
+ *
+ * All methods are synchronized, as reads also reorder the queues.
+ *
+ * @author xial
+ *
+ * @param <K> key of the cached object
+ * @param <V> the cached object
+ */
+public class TinyLFUCache<K, V> extends AbstractCache<K, V> {
+
+	static final int DEFAULT_CAPACITY = 100;
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	private final Map<K, Node<K, V>> map;
+	private final FrequencySketch sketch;
+	private final StatsCounter stats = new StatsCounter();
+	private final int capacity;
+	private final int maxWindow;
+	private final int maxProtected;
+
+	private final Node<K, V> window = Node.head();
+	private final Node<K, V> probation = Node.head();
+	private final Node<K, V> protectedQueue = Node.head();
+	private int windowSize;
+	private int protectedSize;
+
+	// ---------------------------------------------------------------------
+	// CONSTRUCTORS
+	// ---------------------------------------------------------------------
+
+	public TinyLFUCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            the maximum number of entries held by the cache
+	 */
+	public TinyLFUCache(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive: "
+					+ capacity);
+		}
+		this.capacity = capacity;
+		maxWindow = Math.max(1, capacity / 100);
+		maxProtected = (int) ((capacity - maxWindow) * 0.8);
+		map = new HashMap<K, Node<K, V>>(capacity * 4 / 3 + 1);
+		sketch = new FrequencySketch(capacity);
+	}
+
+	// ---------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ---------------------------------------------------------------------
+
+	@Override
+	public synchronized V get(K key) {
+		sketch.increment(key);
+		Node<K, V> node = map.get(key);
+		if (node == null) {
+			stats.recordMisses(1);
+			return null;
+		}
+		stats.recordHits(1);
+		onHit(node);
+		return node.value;
+	}
+
+	@Override
+	public synchronized V put(K key, V value) {
+		sketch.increment(key);
+		Node<K, V> node = map.get(key);
+		if (node != null) {
+			V old = node.value;
+			node.value = value;
+			onHit(node);
+			return old;
+		}
+		node = new Node<K, V>(key, value);
+		map.put(key, node);
+		node.queue = WINDOW;
+		node.linkLast(window);
+		windowSize++;
+		if (windowSize > maxWindow) {
+			Node<K, V> candidate = window.next;
+			candidate.unlink();
+			windowSize--;
+			candidate.queue = PROBATION;
+			candidate.linkLast(probation);
+			if (map.size() > capacity) {
+				evict(candidate);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized V remove(K key) {
+		Node<K, V> node = map.remove(key);
+		if (node == null) {
+			return null;
+		}
+		unlink(node);
+		return node.value;
+	}
+
+	@Override
+	public synchronized boolean containsKey(K key) {
+		return map.containsKey(key);
+	}
+
+	@Override
+	public synchronized void flush() {
+		map.clear();
+		window.clear();
+		probation.clear();
+		protectedQueue.clear();
+		windowSize = 0;
+		protectedSize = 0;
+		sketch.clear();
+	}
+
+	// the bulk operations take the lock once for all the keys
+
+	@Override
+	public synchronized Map<K, V> getAll(Collection<? extends K> keys) {
+		return super.getAll(keys);
+	}
+
+	@Override
+	public synchronized void putAll(Map<? extends K, ? extends V> map) {
+		super.putAll(map);
+	}
+
+	@Override
+	public synchronized void removeAll(Collection<? extends K> keys) {
+		super.removeAll(keys);
+	}
+
+	@Override
+	public synchronized CacheStats getStats() {
+		return stats.snapshot(map.size(), map.size());
+	}
+
+	/**
+	 * @return the number of entries currently in the cache.
+	 */
+	public synchronized int size() {
+		return map.size();
+	}
+
+	/**
+	 * @return the maximum number of entries the cache will hold.
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return a copy of the entries currently in the cache. It does not count
+	 *         as reading them.
+	 */
+	public synchronized Map<K, V> entries() {
+		Map<K, V> entries = new HashMap<K, V>(map.size() * 4 / 3 + 1);
+		for (Node<K, V> node : map.values()) {
+			entries.put(node.key, node.value);
+		}
+		return entries;
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	private void onHit(Node<K, V> node) {
+		switch (node.queue) {
+		case WINDOW:
+			node.moveToLast(window);
+			break;
+		case PROBATION:
+			node.unlink();
+			node.queue = PROTECTED;
+			node.linkLast(protectedQueue);
+			protectedSize++;
+			if (protectedSize > maxProtected) {
+				// demote the least recently used protected entry
+				Node<K, V> demoted = protectedQueue.next;
+				demoted.unlink();
+				protectedSize--;
+				demoted.queue = PROBATION;
+				demoted.linkLast(probation);
+			}
+			break;
+		default:
+			node.moveToLast(protectedQueue);
+		}
+	}
+
+	/**
+	 * Drops either the candidate that just left the window or the main
+	 * area's victim, whichever has been requested less often.
+	 */
+	private void evict(Node<K, V> candidate) {
+		Node<K, V> victim = probation.next;
+		if (victim == candidate) {
+			// the candidate is the only probationary entry
+			victim = protectedQueue.next != protectedQueue ? protectedQueue.next
+					: candidate;
+		}
+		Node<K, V> loser = victim;
+		if (victim != candidate
+				&& sketch.frequency(candidate.key) <= sketch
+						.frequency(victim.key)) {
+			loser = candidate;
+		}
+		map.remove(loser.key);
+		unlink(loser);
+		stats.recordEviction();
+	}
+
+	private void unlink(Node<K, V> node) {
+		node.unlink();
+		if (node.queue == WINDOW) {
+			windowSize--;
+		} else if (node.queue == PROTECTED) {
+			protectedSize--;
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER CLASSES
+	// ---------------------------------------------------------------------
+
+	/**
+	 * An entry, also used as the sentinel of the circular queues.
+	 */
+	private static final class Node<K, V> {
+		final K key;
+		V value;
+		int queue;
+		Node<K, V> prev;
+		Node<K, V> next;
+
+		Node(K key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+
+		static <K, V> Node<K, V> head() {
+			Node<K, V> head = new Node<K, V>(null, null);
+			head.prev = head;
+			head.next = head;
+			return head;
+		}
+
+		void linkLast(Node<K, V> head) {
+			prev = head.prev;
+			next = head;
+			head.prev.next = this;
+			head.prev = this;
+		}
+
+		void unlink() {
+			prev.next = next;
+			next.prev = prev;
+			prev = null;
+			next = null;
+		}
+
+		void moveToLast(Node<K, V> head) {
+			unlink();
+			linkLast(head);
+		}
+
+		void clear() {
+			prev = this;
+			next = this;
+		}
+	}
+
+}
@@ -0,0 +1,25 @@
+package com.aug3.sys.cache;
+
+/**
+ * Computes the weight of a cache entry, usually an estimate of its size in
+ * bytes. Caches bounded by weight evict entries until the total weight of
+ * their entries fits the configured maximum.
+ * 
+ * The weight of an entry is computed once, when it is put in the cache, so
+ * values should not grow after they have been cached.
+ * 
+ * @author xial
+ * 
+ * @param <K>
+ *            key of the cached object
+ * @param <V>
+ *            the cached object
+ */
+public interface Weigher<K, V> {
+
+	/**
+	 * @return the weight of the entry, zero or more.
+	 */
+	int weigh(K key, V value);
+
+}
@@ -0,0 +1,125 @@
+package com.aug3.sys.cache.codec;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A compressing codec deciding from what size to compress by watching how
+ * well and how fast the values compress, instead of using a fixed threshold.
+ *
+ * Encoded values are sorted by size into classes of powers of two. For each
+ * class, the codec keeps a moving average of the compression ratio and of the
+ * time spent compressing per byte. Values of a class are compressed as long
+ * as the time spent per byte saved stays within the <em>budget</em>, and the
+ * values save at least 5%. Values that do not compress well, such as images
+ * or encrypted data, are thus soon stored as they are, while mid-size values
+ * that compress well are compressed even below the usual threshold. A class
+ * that is not worth compressing still has one value in 64 compressed, so the
+ * codec notices when the values change.
+ *
+ * The values are stored as by the <code>CompressingCodec</code>, so both
+ * codecs read each other's values. The averages are updated without locking:
+ * samples recorded concurrently may be lost, which only slows the learning.
+ *
+ * @author xial
+ *
+ * @param <V>
+ *            the cached object
+ */
+public class AdaptiveCompressingCodec<V> extends CompressingCodec<V> {
+
+	/** the values of a class compressed before deciding */
+	static final int WARM_UP = 8;
+	/** one value in so many is compressed in the classes not worth it */
+	static final int SAMPLE_EVERY = 64;
+	/** the smallest saving worth compressing for */
+	static final double MIN_SAVING = 0.05;
+
+	private final Bucket[] buckets = new Bucket[32];
+	private final double budget;
+
+	/**
+	 * @param codec
+	 *            turns the values into bytes
+	 * @param compression
+	 *            the compression algorithm
+	 * @param minLength
+	 *            the size in bytes below which values are never compressed
+	 * @param budget
+	 *            the most nanoseconds to spend compressing per byte saved
+	 */
+	public AdaptiveCompressingCodec(ValueCodec<V> codec,
+			Compression compression, int minLength, double budget) {
+		super(codec, minLength, compression);
+		if (budget <= 0) {
+			throw new IllegalArgumentException("budget must be positive: "
+					+ budget);
+		}
+		this.budget = budget;
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new Bucket();
+		}
+	}
+
+	/**
+	 * @return the smallest size in bytes of the values currently compressed,
+	 *         sampling aside, or -1 if none is.
+	 */
+	public int getEffectiveThreshold() {
+		for (int i = 0; i < buckets.length; i++) {
+			int size = 1 << i;
+			if (size * 2 > getThreshold()
+					&& (buckets[i].samples < WARM_UP || buckets[i]
+							.isWorth(budget))) {
+				return Math.max(size, getThreshold());
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	protected boolean shouldCompress(int length) {
+		if (length < getThreshold()) {
+			return false;
+		}
+		Bucket bucket = bucketOf(length);
+		return bucket.samples < WARM_UP || bucket.isWorth(budget)
+				|| bucket.skipped.incrementAndGet() % SAMPLE_EVERY == 0;
+	}
+
+	@Override
+	protected void compressed(int length, int compressedLength, long nanos) {
+		bucketOf(length).record((double) compressedLength / length,
+				(double) nanos / length);
+	}
+
+	private Bucket bucketOf(int length) {
+		return buckets[31 - Integer.numberOfLeadingZeros(Math.max(length, 1))];
+	}
+
+	/**
+	 * What was observed of the values of a size class.
+	 */
+	private static final class Bucket {
+
+		volatile int samples;
+		volatile double ratio;
+		volatile double nanosPerByte;
+		final AtomicInteger skipped = new AtomicInteger();
+
+		void record(double sampleRatio, double sampleNanos) {
+			// a plain average while warming up, then a moving one
+			int n = Math.min(samples + 1, WARM_UP);
+			ratio += (sampleRatio - ratio) / n;
+			nanosPerByte += (sampleNanos - nanosPerByte) / n;
+			if (samples < WARM_UP) {
+				samples++;
+			}
+		}
+
+		boolean isWorth(double budget) {
+			double saving = 1 - ratio;
+			return saving >= MIN_SAVING && nanosPerByte / saving <= budget;
+		}
+	}
+
+}
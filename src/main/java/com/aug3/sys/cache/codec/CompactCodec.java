@@ -0,0 +1,424 @@
+package com.aug3.sys.cache.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.aug3.sys.CommonException;
+import com.aug3.sys.CommonRuntimeException;
+import com.aug3.sys.cfg.ValueSet;
+import com.aug3.sys.util.ObjectIO;
+
+/**
+ * A compact binary codec for the values usually cached in this framework:
+ * strings, boxed primitives, dates, byte arrays, the common map, list and set
+ * classes, <code>Properties</code> and <code>ValueSet</code>, nested in any
+ * way. Each value is written as a one-byte tag followed by its content, with
+ * variable-length integers and UTF-8 strings, so the output is several times
+ * smaller and faster to produce than Java serialization, which writes class
+ * descriptors and field names.
+ * 
+ * Any other value, including subclasses of the supported classes, sorted maps
+ * with a comparator and properties with defaults, falls back to Java
+ * serialization through <code>ObjectIO</code>. Bytes produced by plain Java
+ * serialization are also decoded, so values cached before switching to this
+ * codec can still be read.
+ * 
+ * The exact class of maps, lists and sets is kept.
+ * 
+ * @author xial
+ * 
+ * @param <V>
+ *            the cached object
+ */
+public class CompactCodec<V> implements ValueCodec<V> {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** first byte of the output, also telling it from a serialized stream */
+	private static final int VERSION = 1;
+
+	private static final int NULL = 0;
+	private static final int STRING = 1;
+	private static final int INTEGER = 2;
+	private static final int LONG = 3;
+	private static final int TRUE = 4;
+	private static final int FALSE = 5;
+	private static final int DOUBLE = 6;
+	private static final int FLOAT = 7;
+	private static final int SHORT = 8;
+	private static final int BYTE = 9;
+	private static final int CHARACTER = 10;
+	private static final int DATE = 11;
+	private static final int BYTES = 12;
+	private static final int HASH_MAP = 13;
+	private static final int LINKED_HASH_MAP = 14;
+	private static final int CONCURRENT_HASH_MAP = 15;
+	private static final int TREE_MAP = 16;
+	private static final int PROPERTIES = 17;
+	private static final int ARRAY_LIST = 18;
+	private static final int LINKED_LIST = 19;
+	private static final int HASH_SET = 20;
+	private static final int LINKED_HASH_SET = 21;
+	private static final int VALUE_SET = 22;
+	private static final int SERIALIZED = 23;
+
+	@Override
+	public byte[] encode(V value) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(VERSION);
+			write(out, value);
+			out.flush();
+		} catch (IOException e) {
+			throw new CommonRuntimeException("failed to encode "
+					+ value.getClass().getName(), e);
+		}
+		return bytes.toByteArray();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V decode(byte[] bytes) {
+		try {
+			if (bytes.length > 1 && bytes[0] == (byte) 0xac
+					&& bytes[1] == (byte) 0xed) {
+				// a Java serialization stream
+				return (V) ObjectIO.fromByteArray(bytes);
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					bytes));
+			int version = in.readUnsignedByte();
+			if (version != VERSION) {
+				throw new IOException("unknown format version " + version);
+			}
+			return (V) read(in);
+		} catch (IOException e) {
+			throw new CommonRuntimeException("failed to decode value", e);
+		} catch (CommonException e) {
+			throw new CommonRuntimeException("failed to decode value", e);
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// ENCODING
+	// ---------------------------------------------------------------------
+
+	private void write(DataOutput out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+			return;
+		}
+		Class<?> type = value.getClass();
+		if (type == String.class) {
+			out.writeByte(STRING);
+			writeString(out, (String) value);
+		} else if (type == Integer.class) {
+			out.writeByte(INTEGER);
+			writeVarLong(out, zigZag((Integer) value));
+		} else if (type == Long.class) {
+			out.writeByte(LONG);
+			writeVarLong(out, zigZag((Long) value));
+		} else if (type == Boolean.class) {
+			out.writeByte(((Boolean) value) ? TRUE : FALSE);
+		} else if (type == Double.class) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (type == Float.class) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) value);
+		} else if (type == Short.class) {
+			out.writeByte(SHORT);
+			out.writeShort((Short) value);
+		} else if (type == Byte.class) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte) value);
+		} else if (type == Character.class) {
+			out.writeByte(CHARACTER);
+			out.writeChar((Character) value);
+		} else if (type == Date.class) {
+			out.writeByte(DATE);
+			out.writeLong(((Date) value).getTime());
+		} else if (type == byte[].class) {
+			out.writeByte(BYTES);
+			writeBytes(out, (byte[]) value);
+		} else if (type == HashMap.class) {
+			writeMap(out, HASH_MAP, (Map<?, ?>) value);
+		} else if (type == LinkedHashMap.class) {
+			writeMap(out, LINKED_HASH_MAP, (Map<?, ?>) value);
+		} else if (type == ConcurrentHashMap.class) {
+			writeMap(out, CONCURRENT_HASH_MAP, (Map<?, ?>) value);
+		} else if (type == TreeMap.class
+				&& ((TreeMap<?, ?>) value).comparator() == null) {
+			writeMap(out, TREE_MAP, (Map<?, ?>) value);
+		} else if (type == Properties.class && isPlain((Properties) value)) {
+			writeMap(out, PROPERTIES, (Map<?, ?>) value);
+		} else if (type == ArrayList.class) {
+			writeCollection(out, ARRAY_LIST, (Collection<?>) value);
+		} else if (type == LinkedList.class) {
+			writeCollection(out, LINKED_LIST, (Collection<?>) value);
+		} else if (type == HashSet.class) {
+			writeCollection(out, HASH_SET, (Collection<?>) value);
+		} else if (type == LinkedHashSet.class) {
+			writeCollection(out, LINKED_HASH_SET, (Collection<?>) value);
+		} else if (type == ValueSet.class) {
+			writeValueSet(out, (ValueSet) value);
+		} else {
+			out.writeByte(SERIALIZED);
+			try {
+				writeBytes(out, ObjectIO.toByteArray(value));
+			} catch (CommonException e) {
+				throw new CommonRuntimeException("failed to serialize "
+						+ type.getName(), e);
+			}
+		}
+	}
+
+	private void writeMap(DataOutput out, int tag, Map<?, ?> map)
+			throws IOException {
+		out.writeByte(tag);
+		writeVarLong(out, map.size());
+		for (Map.Entry<?, ?> e : map.entrySet()) {
+			write(out, e.getKey());
+			write(out, e.getValue());
+		}
+	}
+
+	private void writeCollection(DataOutput out, int tag,
+			Collection<?> collection) throws IOException {
+		out.writeByte(tag);
+		writeVarLong(out, collection.size());
+		for (Object element : collection) {
+			write(out, element);
+		}
+	}
+
+	/**
+	 * Writes the values in their order, with their names and descriptions,
+	 * followed by the reset and update sets.
+	 */
+	private void writeValueSet(DataOutput out, ValueSet valueSet)
+			throws IOException {
+		out.writeByte(VALUE_SET);
+		write(out, valueSet.getConfigTypeName());
+		List<String> names = valueSet.getAllNames();
+		List<Object> values = valueSet.getAllValues();
+		writeVarLong(out, names.size());
+		for (int i = 0; i < names.size(); i++) {
+			String name = names.get(i);
+			write(out, name);
+			write(out, values.get(i));
+			write(out, valueSet.getDescription(name));
+		}
+		writeCollection(out, HASH_SET, valueSet.getResetSet());
+		writeCollection(out, HASH_SET, valueSet.getUpdateSet());
+	}
+
+	/**
+	 * @return true if the properties have no defaults and only string keys
+	 *         and values.
+	 */
+	private static boolean isPlain(Properties props) {
+		if (props.stringPropertyNames().size() != props.size()) {
+			return false;
+		}
+		for (Map.Entry<Object, Object> e : props.entrySet()) {
+			if (!(e.getKey() instanceof String)
+					|| !(e.getValue() instanceof String)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void writeString(DataOutput out, String s)
+			throws IOException {
+		writeBytes(out, s.getBytes(UTF8));
+	}
+
+	private static void writeBytes(DataOutput out, byte[] bytes)
+			throws IOException {
+		writeVarLong(out, bytes.length);
+		out.write(bytes);
+	}
+
+	/** seven bits per byte, the high bit telling whether more follow */
+	private static void writeVarLong(DataOutput out, long value)
+			throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.writeByte((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/** maps small negative numbers to small positive ones */
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	// ---------------------------------------------------------------------
+	// DECODING
+	// ---------------------------------------------------------------------
+
+	private Object read(DataInput in) throws IOException, CommonException {
+		int tag = in.readUnsignedByte();
+		switch (tag) {
+		case NULL:
+			return null;
+		case STRING:
+			return new String(readBytes(in), UTF8);
+		case INTEGER:
+			return Integer.valueOf((int) unZigZag(readVarLong(in)));
+		case LONG:
+			return Long.valueOf(unZigZag(readVarLong(in)));
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case DOUBLE:
+			return Double.valueOf(in.readDouble());
+		case FLOAT:
+			return Float.valueOf(in.readFloat());
+		case SHORT:
+			return Short.valueOf(in.readShort());
+		case BYTE:
+			return Byte.valueOf(in.readByte());
+		case CHARACTER:
+			return Character.valueOf(in.readChar());
+		case DATE:
+			return new Date(in.readLong());
+		case BYTES:
+			return readBytes(in);
+		case HASH_MAP: {
+			int size = readSize(in);
+			return readMap(in, size, new HashMap<Object, Object>(
+					capacity(size)));
+		}
+		case LINKED_HASH_MAP: {
+			int size = readSize(in);
+			return readMap(in, size, new LinkedHashMap<Object, Object>(
+					capacity(size)));
+		}
+		case CONCURRENT_HASH_MAP: {
+			int size = readSize(in);
+			return readMap(in, size, new ConcurrentHashMap<Object, Object>(
+					capacity(size)));
+		}
+		case TREE_MAP:
+			return readMap(in, readSize(in), new TreeMap<Object, Object>());
+		case PROPERTIES:
+			return readMap(in, readSize(in), new Properties());
+		case ARRAY_LIST: {
+			int size = readSize(in);
+			return readCollection(in, size, new ArrayList<Object>(size));
+		}
+		case LINKED_LIST:
+			return readCollection(in, readSize(in), new LinkedList<Object>());
+		case HASH_SET: {
+			int size = readSize(in);
+			return readCollection(in, size, new HashSet<Object>(
+					capacity(size)));
+		}
+		case LINKED_HASH_SET: {
+			int size = readSize(in);
+			return readCollection(in, size, new LinkedHashSet<Object>(
+					capacity(size)));
+		}
+		case VALUE_SET:
+			return readValueSet(in);
+		case SERIALIZED:
+			return ObjectIO.fromByteArray(readBytes(in));
+		default:
+			throw new IOException("unknown tag " + tag);
+		}
+	}
+
+	private Map<Object, Object> readMap(DataInput in, int size,
+			Map<Object, Object> map) throws IOException, CommonException {
+		for (int i = 0; i < size; i++) {
+			Object key = read(in);
+			map.put(key, read(in));
+		}
+		return map;
+	}
+
+	private Collection<Object> readCollection(DataInput in, int size,
+			Collection<Object> collection) throws IOException,
+			CommonException {
+		for (int i = 0; i < size; i++) {
+			collection.add(read(in));
+		}
+		return collection;
+	}
+
+	@SuppressWarnings("unchecked")
+	private ValueSet readValueSet(DataInput in) throws IOException,
+			CommonException {
+		ValueSet valueSet = new ValueSet((String) read(in));
+		int size = readSize(in);
+		for (int i = 0; i < size; i++) {
+			String name = (String) read(in);
+			Object value = read(in);
+			valueSet.putValue(name, value, (String) read(in));
+		}
+		valueSet.getResetSet().addAll((Set<String>) read(in));
+		valueSet.getUpdateSet().addAll((Set<String>) read(in));
+		return valueSet;
+	}
+
+	private static byte[] readBytes(DataInput in) throws IOException {
+		byte[] bytes = new byte[readSize(in)];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static int readSize(DataInput in) throws IOException {
+		long size = readVarLong(in);
+		if (size < 0 || size > Integer.MAX_VALUE) {
+			throw new IOException("invalid size " + size);
+		}
+		return (int) size;
+	}
+
+	private static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("malformed variable-length number");
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static int capacity(int size) {
+		return Math.max(16, (int) (size / 0.75f) + 1);
+	}
+
+}
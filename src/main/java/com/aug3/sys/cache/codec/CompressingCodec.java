@@ -0,0 +1,95 @@
+package com.aug3.sys.cache.codec;
+
+/**
+ * A codec compressing the output of another codec once it exceeds a size
+ * threshold. Each value starts with a byte telling how it was compressed, so
+ * the threshold and algorithm can be changed without invalidating the values
+ * already stored. A value is stored uncompressed when compression does not
+ * make it smaller.
+ * 
+ * Subclasses can decide which values to compress by overriding
+ * <code>shouldCompress</code>, and learn from the outcome through
+ * <code>compressed</code>.
+ * 
+ * @author xial
+ * 
+ * @param <V>
+ *            the cached object
+ */
+public class CompressingCodec<V> implements ValueCodec<V> {
+
+	private final ValueCodec<V> codec;
+	private final int threshold;
+	private final Compression compression;
+
+	/**
+	 * @param codec
+	 *            turns the values into bytes
+	 * @param threshold
+	 *            the size in bytes from which encoded values are compressed
+	 * @param compression
+	 *            the compression algorithm
+	 */
+	public CompressingCodec(ValueCodec<V> codec, int threshold,
+			Compression compression) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException(
+					"threshold cannot be negative: " + threshold);
+		}
+		this.codec = codec;
+		this.threshold = threshold;
+		this.compression = compression;
+	}
+
+	@Override
+	public byte[] encode(V value) {
+		byte[] data = codec.encode(value);
+		if (compression != Compression.NONE && shouldCompress(data.length)) {
+			long start = System.nanoTime();
+			byte[] compressed = compression.compress(data);
+			compressed(data.length, compressed.length, System.nanoTime()
+					- start);
+			if (compressed.length < data.length) {
+				return withHeader(compression, compressed);
+			}
+		}
+		return withHeader(Compression.NONE, data);
+	}
+
+	@Override
+	public V decode(byte[] bytes) {
+		Compression used = Compression.forId(bytes[0]);
+		return codec.decode(used.decompress(bytes, 1));
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * @return true if an encoded value of this length is to be compressed,
+	 *         by default if it reaches the threshold.
+	 */
+	protected boolean shouldCompress(int length) {
+		return length >= threshold;
+	}
+
+	/**
+	 * Called after each compression, with the time it took in nanoseconds.
+	 * Does nothing by default.
+	 */
+	protected void compressed(int length, int compressedLength, long nanos) {
+	}
+
+	private static byte[] withHeader(Compression compression, byte[] data) {
+		byte[] bytes = new byte[data.length + 1];
+		bytes[0] = (byte) compression.getId();
+		System.arraycopy(data, 0, bytes, 1, data.length);
+		return bytes;
+	}
+
+}
@@ -0,0 +1,179 @@
+package com.aug3.sys.cache.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import com.aug3.sys.CommonRuntimeException;
+
+/**
+ * The compression algorithms a <code>CompressingCodec</code> can use. Each has
+ * a fixed id, written in the header of the compressed values, so values
+ * compressed with any of them can be read whatever the algorithm configured.
+ * An algorithm is only to be configured once all the readers know it, as older
+ * readers fail on the ids they do not know.
+ * 
+ * The deflater and inflater of <code>DEFLATE</code> are kept per thread and
+ * reset between values, rather than created and ended for each value.
+ * 
+ * @author xial
+ */
+public enum Compression {
+
+	/** values are stored as they are */
+	NONE(0) {
+		byte[] compress(byte[] data) {
+			return data;
+		}
+
+		byte[] decompress(byte[] data, int offset) {
+			byte[] copy = new byte[data.length - offset];
+			System.arraycopy(data, offset, copy, 0, copy.length);
+			return copy;
+		}
+	},
+
+	/** zlib, fast and usually compressing text 3 to 5 times */
+	DEFLATE(1) {
+		// kept for the life of the thread: ending them is left to the GC
+		private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+			protected Deflater initialValue() {
+				return new Deflater(Deflater.BEST_SPEED);
+			}
+		};
+
+		private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+			protected Inflater initialValue() {
+				return new Inflater();
+			}
+		};
+
+		byte[] compress(byte[] data) {
+			Deflater deflater = deflaters.get();
+			try {
+				deflater.setInput(data);
+				deflater.finish();
+				ByteArrayOutputStream out = new ByteArrayOutputStream(
+						data.length / 2 + 16);
+				byte[] buffer = new byte[4096];
+				while (!deflater.finished()) {
+					out.write(buffer, 0, deflater.deflate(buffer));
+				}
+				return out.toByteArray();
+			} finally {
+				deflater.reset();
+			}
+		}
+
+		byte[] decompress(byte[] data, int offset) {
+			Inflater inflater = inflaters.get();
+			try {
+				inflater.setInput(data, offset, data.length - offset);
+				ByteArrayOutputStream out = new ByteArrayOutputStream(
+						data.length * 4);
+				byte[] buffer = new byte[4096];
+				while (!inflater.finished()) {
+					int n = inflater.inflate(buffer);
+					if (n == 0 && inflater.needsInput()) {
+						throw new CommonRuntimeException(
+								"truncated compressed value");
+					}
+					out.write(buffer, 0, n);
+				}
+				return out.toByteArray();
+			} catch (DataFormatException e) {
+				throw new CommonRuntimeException(
+						"failed to decompress value", e);
+			} finally {
+				inflater.reset();
+			}
+		}
+	},
+
+	/** deflate with the gzip framing, readable by other tools */
+	GZIP(2) {
+		byte[] compress(byte[] data) {
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream(
+						data.length / 2 + 32);
+				GZIPOutputStream gzip = new GZIPOutputStream(out);
+				gzip.write(data);
+				gzip.close();
+				return out.toByteArray();
+			} catch (IOException e) {
+				throw new CommonRuntimeException("failed to compress value",
+						e);
+			}
+		}
+
+		byte[] decompress(byte[] data, int offset) {
+			try {
+				GZIPInputStream gzip = new GZIPInputStream(
+						new ByteArrayInputStream(data, offset, data.length
+								- offset));
+				ByteArrayOutputStream out = new ByteArrayOutputStream(
+						data.length * 4);
+				byte[] buffer = new byte[4096];
+				int n;
+				while ((n = gzip.read(buffer)) > 0) {
+					out.write(buffer, 0, n);
+				}
+				return out.toByteArray();
+			} catch (IOException e) {
+				throw new CommonRuntimeException(
+						"failed to decompress value", e);
+			}
+		}
+	},
+
+	/**
+	 * LZF, a byte-oriented LZ77 several times faster than deflate and
+	 * compressing less, for values read and written often. The stream is
+	 * preceded by the length of the data.
+	 */
+	LZF(3) {
+		byte[] compress(byte[] data) {
+			return Lzf.compress(data);
+		}
+
+		byte[] decompress(byte[] data, int offset) {
+			return Lzf.decompress(data, offset);
+		}
+	};
+
+	private final int id;
+
+	private Compression(int id) {
+		this.id = id;
+	}
+
+	int getId() {
+		return id;
+	}
+
+	abstract byte[] compress(byte[] data);
+
+	/**
+	 * @return the data starting at the offset, decompressed.
+	 */
+	abstract byte[] decompress(byte[] data, int offset);
+
+	/**
+	 * @return the algorithm with the given id.
+	 */
+	static Compression forId(int id) {
+		for (Compression compression : values()) {
+			if (compression.id == id) {
+				return compression;
+			}
+		}
+		throw new CommonRuntimeException("unknown compression " + id
+				+ ", written by a newer release");
+	}
+
+}
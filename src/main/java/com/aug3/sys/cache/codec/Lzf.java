@@ -0,0 +1,147 @@
+package com.aug3.sys.cache.codec;
+
+import com.aug3.sys.CommonRuntimeException;
+
+/**
+ * The LZF compression of <code>Compression.LZF</code>, in the format of
+ * liblzf, preceded by the length of the data on 4 bytes.
+ *
+ * The data is a sequence of chunks, each starting with a control byte. Below
+ * 32, the control byte is followed by that many literal bytes plus one.
+ * Otherwise it is a back reference: its top 3 bits are the length of the
+ * match minus 2 (7 meaning that the next byte adds to it), and its low 5 bits
+ * and the following byte are the distance of the match minus 1, up to 8 KB.
+ * Matches are found through a table of the last position of each hashed
+ * 3-byte sequence, so compression is a single pass.
+ *
+ * @author xial
+ */
+final class Lzf {
+
+	private static final int HASH_BITS = 14;
+	private static final int MAX_LITERAL = 32;
+	private static final int MAX_OFFSET = 1 << 13;
+	private static final int MAX_MATCH = 264;
+
+	private Lzf() {
+	}
+
+	static byte[] compress(byte[] in) {
+		int length = in.length;
+		// the worst case: all literals, a control byte every 32 of them
+		byte[] out = new byte[4 + length + length / MAX_LITERAL + 1];
+		writeLength(out, length);
+		int op = 4;
+		int[] table = new int[1 << HASH_BITS];
+		int literals = 0;
+		int ip = 0;
+		while (ip + 2 < length) {
+			int h = hash(in, ip);
+			int ref = table[h] - 1;
+			table[h] = ip + 1;
+			int offset = ip - ref - 1;
+			if (ref >= 0 && offset < MAX_OFFSET && in[ref] == in[ip]
+					&& in[ref + 1] == in[ip + 1] && in[ref + 2] == in[ip + 2]) {
+				int max = Math.min(MAX_MATCH, length - ip);
+				int len = 3;
+				while (len < max && in[ref + len] == in[ip + len]) {
+					len++;
+				}
+				op = writeLiterals(in, ip - literals, literals, out, op);
+				literals = 0;
+				len -= 2;
+				if (len < 7) {
+					out[op++] = (byte) ((len << 5) | (offset >> 8));
+				} else {
+					out[op++] = (byte) ((7 << 5) | (offset >> 8));
+					out[op++] = (byte) (len - 7);
+				}
+				out[op++] = (byte) offset;
+				ip += len + 2;
+			} else {
+				literals++;
+				ip++;
+			}
+		}
+		literals += length - ip;
+		op = writeLiterals(in, length - literals, literals, out, op);
+		byte[] compressed = new byte[op];
+		System.arraycopy(out, 0, compressed, 0, op);
+		return compressed;
+	}
+
+	/**
+	 * @return the data starting at the offset, decompressed.
+	 */
+	static byte[] decompress(byte[] in, int offset) {
+		if (in.length - offset < 4) {
+			throw new CommonRuntimeException("truncated compressed value");
+		}
+		int length = ((in[offset] & 0xff) << 24)
+				| ((in[offset + 1] & 0xff) << 16)
+				| ((in[offset + 2] & 0xff) << 8) | (in[offset + 3] & 0xff);
+		if (length < 0) {
+			throw new CommonRuntimeException("invalid compressed value");
+		}
+		byte[] out = new byte[length];
+		int ip = offset + 4;
+		int op = 0;
+		try {
+			while (op < length) {
+				int ctrl = in[ip++] & 0xff;
+				if (ctrl < MAX_LITERAL) {
+					int len = ctrl + 1;
+					System.arraycopy(in, ip, out, op, len);
+					ip += len;
+					op += len;
+				} else {
+					int len = ctrl >> 5;
+					if (len == 7) {
+						len += in[ip++] & 0xff;
+					}
+					len += 2;
+					int ref = op - ((ctrl & 0x1f) << 8) - (in[ip++] & 0xff) - 1;
+					if (ref < 0 || op + len > length) {
+						throw new CommonRuntimeException(
+								"invalid compressed value");
+					}
+					// byte by byte, as the match may overlap what it copies
+					for (int i = 0; i < len; i++) {
+						out[op++] = out[ref++];
+					}
+				}
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new CommonRuntimeException("truncated compressed value", e);
+		}
+		return out;
+	}
+
+	private static int hash(byte[] in, int i) {
+		int v = ((in[i] & 0xff) << 16) | ((in[i + 1] & 0xff) << 8)
+				| (in[i + 2] & 0xff);
+		// multiplicative hashing, keeping the well mixed top bits
+		return (v * 0x9e3779b1) >>> (32 - HASH_BITS);
+	}
+
+	private static int writeLiterals(byte[] in, int from, int count,
+			byte[] out, int op) {
+		while (count > 0) {
+			int run = Math.min(count, MAX_LITERAL);
+			out[op++] = (byte) (run - 1);
+			System.arraycopy(in, from, out, op, run);
+			op += run;
+			from += run;
+			count -= run;
+		}
+		return op;
+	}
+
+	private static void writeLength(byte[] out, int length) {
+		out[0] = (byte) (length >>> 24);
+		out[1] = (byte) (length >>> 16);
+		out[2] = (byte) (length >>> 8);
+		out[3] = (byte) length;
+	}
+
+}
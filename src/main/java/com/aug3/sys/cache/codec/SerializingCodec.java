@@ -0,0 +1,38 @@
+package com.aug3.sys.cache.codec;
+
+import com.aug3.sys.CommonException;
+import com.aug3.sys.CommonRuntimeException;
+import com.aug3.sys.util.ObjectIO;
+
+/**
+ * A codec using Java serialization through <code>ObjectIO</code>. It handles
+ * any <code>Serializable</code> value, at the cost of size and speed.
+ * 
+ * @author xial
+ * 
+ * @param <V>
+ *            the cached object
+ */
+public class SerializingCodec<V> implements ValueCodec<V> {
+
+	@Override
+	public byte[] encode(V value) {
+		try {
+			return ObjectIO.toByteArray(value);
+		} catch (CommonException e) {
+			throw new CommonRuntimeException("failed to serialize "
+					+ value.getClass().getName(), e);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V decode(byte[] bytes) {
+		try {
+			return (V) ObjectIO.fromByteArray(bytes);
+		} catch (CommonException e) {
+			throw new CommonRuntimeException("failed to deserialize value", e);
+		}
+	}
+
+}
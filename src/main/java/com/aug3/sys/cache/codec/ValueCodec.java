@@ -0,0 +1,26 @@
+package com.aug3.sys.cache.codec;
+
+/**
+ * Turns cached values into bytes and back, for caches that keep their values
+ * outside of the Java heap or in another process.
+ * 
+ * Codecs must be thread-safe.
+ * 
+ * @author xial
+ * 
+ * @param <V>
+ *            the cached object
+ */
+public interface ValueCodec<V> {
+
+	/**
+	 * @return the serialized form of the value, never null.
+	 */
+	byte[] encode(V value);
+
+	/**
+	 * @return the value serialized in the bytes.
+	 */
+	V decode(byte[] bytes);
+
+}
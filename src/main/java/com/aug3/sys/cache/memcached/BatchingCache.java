@@ -0,0 +1,365 @@
+package com.aug3.sys.cache.memcached;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.aug3.sys.cache.AbstractCache;
+import com.aug3.sys.cache.CacheStats;
+import com.aug3.sys.cache.ICache;
+
+/**
+ * A cache in front of a remote cache, memcached by default, sending the gets
+ * of concurrent threads for different keys as one multi-get, so that a busy
+ * process makes one round trip where it made dozens.
+ *
+ * The first get opens a batch, which the gets of the other threads join. The
+ * batch is sent once it holds <em>maxBatch</em> keys, or when the
+ * <em>window</em> has passed since it was opened, and each thread takes its
+ * value from the result. A get arriving while no other batch is being sent
+ * opens a batch that is sent at once, so that a quiet process does not wait
+ * for the window: batches only form under load. Writes, removals and bulk
+ * reads go to the remote cache as they are.
+ *
+ * The sizes of the batches and the latency the wait added to each get are
+ * recorded in histograms of powers of two, exposed through JMX by a
+ * <code>BatchingMgr</code> to tune the window and the batch size. The NIO
+ * client already sends the gets queued on a busy connection together, so the
+ * cache is mostly of use with the danga client, whose gets each take a
+ * connection of the pool.
+ *
+ * Since the cache has a no-argument constructor, it can be selected as the
+ * base cache of a <code>SmartCache</code>; it is then configured by the
+ * properties <code>memcached.batch.*</code> of
+ * <code>memcached.properties</code> and registered as "memcached".
+ *
+ * @see MemCachedConfig
+ *
+ * @author xial
+ *
+ * @param <V>
+ *            the cached object
+ */
+public class BatchingCache<V> extends AbstractCache<String, V> {
+
+	/** the number of buckets of the histograms */
+	public static final int BUCKETS = 16;
+
+	private final ICache<String, V> remote;
+	private final long windowNanos;
+	private final int maxBatch;
+
+	private final Object lock = new Object();
+	/** the batch gets join, null if none is open */
+	private Batch<V> open;
+	private final AtomicInteger sending = new AtomicInteger();
+
+	private final AtomicLongArray batchSizes = new AtomicLongArray(BUCKETS);
+	private final AtomicLongArray addedLatencies = new AtomicLongArray(BUCKETS);
+
+	// ---------------------------------------------------------------------
+	// CONSTRUCTORS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * Creates a batching cache in front of memcached, configured by
+	 * <code>memcached.properties</code>, which also selects the memcached
+	 * client.
+	 */
+	public BatchingCache() {
+		this(new MemCachedConfig());
+	}
+
+	private BatchingCache(MemCachedConfig config) {
+		this(config.isNio() ? new NioMemCachedAdapter<V>()
+				: new MemCachedAdapter<V>(), config.getBatchWindow() * 1000L,
+				config.getBatchSize());
+		BatchingMgr.register("memcached", this);
+	}
+
+	/**
+	 * @param remote
+	 *            the cache the batches are sent to
+	 * @param windowNanos
+	 *            how long a batch waits for other gets, in nanoseconds
+	 * @param maxBatch
+	 *            the number of keys sending a batch at once
+	 */
+	public BatchingCache(ICache<String, V> remote, long windowNanos,
+			int maxBatch) {
+		if (windowNanos < 0 || maxBatch <= 0) {
+			throw new IllegalArgumentException("invalid window " + windowNanos
+					+ " ns or batch size " + maxBatch);
+		}
+		this.remote = remote;
+		this.windowNanos = windowNanos;
+		this.maxBatch = maxBatch;
+	}
+
+	// ---------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ---------------------------------------------------------------------
+
+	@Override
+	public V get(String key) {
+		long joined = System.nanoTime();
+		Batch<V> batch;
+		boolean leader = false;
+		boolean full = false;
+		synchronized (lock) {
+			if (open == null) {
+				open = new Batch<V>(Thread.currentThread(), joined);
+				leader = true;
+			}
+			batch = open;
+			batch.keys.add(key);
+			if (batch.keys.size() >= maxBatch) {
+				batch.full = true;
+				open = null;
+				full = true;
+			}
+		}
+		if (leader) {
+			send(batch);
+		} else {
+			if (full) {
+				LockSupport.unpark(batch.leader);
+			}
+			if (!batch.await()) {
+				// interrupted: read the key alone
+				return remote.get(key);
+			}
+		}
+		addedLatencies.incrementAndGet(latencyBucket(batch.sent - joined));
+		return batch.valueOf(key);
+	}
+
+	@Override
+	public Map<String, V> getAll(Collection<? extends String> keys) {
+		return remote.getAll(keys);
+	}
+
+	@Override
+	public V put(String key, V value) {
+		return remote.put(key, value);
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ? extends V> map) {
+		remote.putAll(map);
+	}
+
+	@Override
+	public V remove(String key) {
+		return remote.remove(key);
+	}
+
+	@Override
+	public void removeAll(Collection<? extends String> keys) {
+		remote.removeAll(keys);
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return remote.containsKey(key);
+	}
+
+	@Override
+	public void flush() {
+		remote.flush();
+	}
+
+	@Override
+	public CacheStats getStats() {
+		return remote.getStats();
+	}
+
+	/**
+	 * @return how long a batch waits for other gets, in nanoseconds.
+	 */
+	public long getWindowNanos() {
+		return windowNanos;
+	}
+
+	public int getMaxBatch() {
+		return maxBatch;
+	}
+
+	/**
+	 * @return the number of batches of each size, bucket <em>i</em> counting
+	 *         the batches of 2<sup>i</sup> to 2<sup>i+1</sup> - 1 keys.
+	 */
+	public long[] getBatchSizes() {
+		return toArray(batchSizes);
+	}
+
+	/**
+	 * @return the number of gets for each latency added by the wait, bucket
+	 *         0 counting the gets delayed less than a microsecond and bucket
+	 *         <em>i</em> those delayed 2<sup>i-1</sup> to 2<sup>i</sup>
+	 *         microseconds.
+	 */
+	public long[] getAddedLatencies() {
+		return toArray(addedLatencies);
+	}
+
+	/**
+	 * @return the range of sizes of the bucket, such as "4-7".
+	 */
+	public static String batchSizeLabel(int bucket) {
+		if (bucket == 0) {
+			return "1";
+		}
+		if (bucket == BUCKETS - 1) {
+			return ">=" + (1L << bucket);
+		}
+		return (1L << bucket) + "-" + ((1L << (bucket + 1)) - 1);
+	}
+
+	/**
+	 * @return the range of latencies of the bucket, such as "128-256us".
+	 */
+	public static String addedLatencyLabel(int bucket) {
+		if (bucket == 0) {
+			return "<1us";
+		}
+		if (bucket == BUCKETS - 1) {
+			return ">=" + (1L << (bucket - 1)) + "us";
+		}
+		return (1L << (bucket - 1)) + "-" + (1L << bucket) + "us";
+	}
+
+	public String toString() {
+		return "BatchingCache[window=" + windowNanos / 1000 + "us, maxBatch="
+				+ maxBatch + "]";
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * Waits for the batch to fill up or the window to pass, unless no other
+	 * batch is being sent, then sends it.
+	 */
+	private void send(Batch<V> batch) {
+		if (sending.get() > 0) {
+			long deadline = batch.opened + windowNanos;
+			long remaining;
+			while (!batch.isFull()
+					&& (remaining = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, remaining);
+			}
+		}
+		List<String> keys;
+		synchronized (lock) {
+			if (open == batch) {
+				open = null;
+			}
+			batchSizes.incrementAndGet(sizeBucket(batch.keys.size()));
+			keys = new ArrayList<String>(new LinkedHashSet<String>(batch.keys));
+		}
+		sending.incrementAndGet();
+		batch.sent = System.nanoTime();
+		try {
+			if (keys.size() == 1) {
+				String key = keys.get(0);
+				V value = remote.get(key);
+				batch.complete(value == null ? null : Collections
+						.singletonMap(key, value));
+			} else {
+				batch.complete(remote.getAll(keys));
+			}
+		} catch (RuntimeException e) {
+			batch.fail(e);
+			throw e;
+		} finally {
+			sending.decrementAndGet();
+		}
+	}
+
+	private static int sizeBucket(int size) {
+		return Math.min(31 - Integer.numberOfLeadingZeros(size), BUCKETS - 1);
+	}
+
+	private static int latencyBucket(long nanos) {
+		long micros = Math.max(nanos, 0) / 1000;
+		return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+	}
+
+	private static long[] toArray(AtomicLongArray histogram) {
+		long[] counts = new long[histogram.length()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = histogram.get(i);
+		}
+		return counts;
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER CLASSES
+	// ---------------------------------------------------------------------
+
+	/**
+	 * The keys of the gets sent together, and their values once sent.
+	 */
+	private static final class Batch<V> {
+
+		final Thread leader;
+		final long opened;
+		/** guarded by the lock of the cache until the batch is closed */
+		final List<String> keys = new ArrayList<String>();
+		volatile boolean full;
+		volatile long sent;
+
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Map<String, V> values;
+		private volatile RuntimeException failure;
+
+		Batch(Thread leader, long opened) {
+			this.leader = leader;
+			this.opened = opened;
+		}
+
+		boolean isFull() {
+			return full;
+		}
+
+		void complete(Map<String, V> found) {
+			values = found;
+			done.countDown();
+		}
+
+		void fail(RuntimeException e) {
+			failure = e;
+			done.countDown();
+		}
+
+		/**
+		 * @return false if interrupted before the batch was sent.
+		 */
+		boolean await() {
+			try {
+				done.await();
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		V valueOf(String key) {
+			if (failure != null) {
+				throw failure;
+			}
+			return values == null ? null : values.get(key);
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+package com.aug3.sys.cache.memcached;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An MBean exposing the batches of a <code>BatchingCache</code>, registered
+ * in the platform MBean server under
+ * <code>com.aug3.sys.cache:type=Batching,name=<em>name</em></code>;
+ * registering a name again replaces the previous cache.
+ * 
+ * @author xial
+ */
+public class BatchingMgr implements BatchingMgrMBean {
+
+	private static final Logger LOG = Logger.getLogger(BatchingMgr.class);
+
+	private final BatchingCache<?> cache;
+
+	public BatchingMgr(BatchingCache<?> cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Registers the MBean of a cache. Failures are logged, as monitoring must
+	 * not keep the cache from being used.
+	 */
+	public static void register(String name, BatchingCache<?> cache) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = objectName(name);
+			synchronized (BatchingMgr.class) {
+				if (server.isRegistered(objectName)) {
+					server.unregisterMBean(objectName);
+				}
+				server.registerMBean(new BatchingMgr(cache), objectName);
+			}
+		} catch (JMException e) {
+			LOG.warn("failed to register the batches of cache " + name, e);
+		}
+	}
+
+	public static void unregister(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = objectName(name);
+			synchronized (BatchingMgr.class) {
+				if (server.isRegistered(objectName)) {
+					server.unregisterMBean(objectName);
+				}
+			}
+		} catch (JMException e) {
+			LOG.warn("failed to unregister the batches of cache " + name, e);
+		}
+	}
+
+	static ObjectName objectName(String name) throws JMException {
+		return new ObjectName("com.aug3.sys.cache:type=Batching,name="
+				+ ObjectName.quote(name));
+	}
+
+	@Override
+	public long getWindowMicros() {
+		return cache.getWindowNanos() / 1000;
+	}
+
+	@Override
+	public int getMaxBatch() {
+		return cache.getMaxBatch();
+	}
+
+	@Override
+	public long getBatchCount() {
+		long count = 0;
+		for (long batches : cache.getBatchSizes()) {
+			count += batches;
+		}
+		return count;
+	}
+
+	@Override
+	public String getBatchSizeHistogram() {
+		long[] sizes = cache.getBatchSizes();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < sizes.length; i++) {
+			if (sizes[i] == 0) {
+				continue;
+			}
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(BatchingCache.batchSizeLabel(i)).append('=').append(
+					sizes[i]);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String getAddedLatencyHistogram() {
+		long[] latencies = cache.getAddedLatencies();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < latencies.length; i++) {
+			if (latencies[i] == 0) {
+				continue;
+			}
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(BatchingCache.addedLatencyLabel(i)).append('=').append(
+					latencies[i]);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,36 @@
+package com.aug3.sys.cache.memcached;
+
+/**
+ * Manager bean exposing how a <code>BatchingCache</code> batches its gets.
+ * 
+ * @author xial
+ */
+public interface BatchingMgrMBean {
+
+	/**
+	 * @return the microseconds a batch waits for other gets
+	 */
+	long getWindowMicros();
+
+	/**
+	 * @return the number of gets sending a batch before the end of the window
+	 */
+	int getMaxBatch();
+
+	/**
+	 * @return the number of batches sent
+	 */
+	long getBatchCount();
+
+	/**
+	 * @return the number of gets per batch, such as "1=120, 4-7=35"
+	 */
+	String getBatchSizeHistogram();
+
+	/**
+	 * @return the latency the batching added to the gets, such as
+	 *         "&lt;1us=120, 128-256us=35"
+	 */
+	String getAddedLatencyHistogram();
+
+}
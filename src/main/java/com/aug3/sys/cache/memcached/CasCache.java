@@ -0,0 +1,71 @@
+package com.aug3.sys.cache.memcached;
+
+import com.aug3.sys.cache.ICache;
+
+/**
+ * A cache shared by several processes whose values can be updated atomically,
+ * such as memcached with its gets and cas commands.
+ *
+ * An update reads the value of the key with its version, computes the new
+ * value and stores it only if the value was not changed in between; otherwise
+ * it starts over, a bounded number of times. The functions may therefore be
+ * called several times, and should have no side effects. An update that keeps
+ * losing to other writers fails with a <code>CommonRuntimeException</code>
+ * rather than overwriting them.
+ *
+ * @author xial
+ *
+ * @param <V>
+ *            the cached object
+ */
+public interface CasCache<V> extends ICache<String, V> {
+
+	/**
+	 * Replaces the value of the key by the one computed from it, null meaning
+	 * absent. A null result removes the key; memcached has no conditional
+	 * delete, so the removal overwrites any concurrent update.
+	 *
+	 * @return the new value.
+	 */
+	V compute(String key, Updater<V> updater);
+
+	/**
+	 * Stores the value if the key is absent, or else the value merged with the
+	 * current one.
+	 *
+	 * @return the new value.
+	 */
+	V merge(String key, V value, Merger<V> merger);
+
+	/**
+	 * Stores the value if the key is absent.
+	 *
+	 * @return the current value of the key, or null if the value was stored.
+	 */
+	V putIfAbsent(String key, V value);
+
+	/**
+	 * Computes the new value of a key from its current one.
+	 */
+	public interface Updater<V> {
+
+		/**
+		 * @param current
+		 *            the current value, null if the key is absent
+		 * @return the new value, null to remove the key
+		 */
+		V update(V current);
+	}
+
+	/**
+	 * Merges a value into the current value of a key.
+	 */
+	public interface Merger<V> {
+
+		/**
+		 * @return the merged value, null to remove the key
+		 */
+		V merge(V current, V value);
+	}
+
+}
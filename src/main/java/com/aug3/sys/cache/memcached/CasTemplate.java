@@ -0,0 +1,129 @@
+package com.aug3.sys.cache.memcached;
+
+import java.util.Random;
+
+import com.aug3.sys.CommonRuntimeException;
+
+/**
+ * The atomic updates of a <code>CasCache</code>, written once on top of the
+ * gets, add and cas commands of a memcached client.
+ *
+ * An update that lost to another writer is retried after a random pause of
+ * up to a few milliseconds, growing with the attempts, so that the writers of
+ * a contended key do not keep colliding.
+ *
+ * @author xial
+ *
+ * @param <V>
+ *            the cached object
+ */
+abstract class CasTemplate<V> {
+
+	/** the longest pause between two attempts, in milliseconds */
+	static final int MAX_PAUSE = 32;
+
+	private static final Random random = new Random();
+
+	private final int retries;
+
+	/**
+	 * @param retries
+	 *            the number of times an update is tried again after losing to
+	 *            another writer
+	 */
+	CasTemplate(int retries) {
+		if (retries < 0) {
+			throw new IllegalArgumentException("negative retries: " + retries);
+		}
+		this.retries = retries;
+	}
+
+	/**
+	 * @return the value of the key with its cas unique, or null if it is not
+	 *         found.
+	 */
+	abstract CasValue<V> gets(String key);
+
+	/**
+	 * @return true if the value was stored, the key being absent.
+	 */
+	abstract boolean add(String key, V value);
+
+	/**
+	 * @return true if the value was stored, the key being unchanged since it
+	 *         was read with that cas unique.
+	 */
+	abstract boolean cas(String key, V value, long cas);
+
+	abstract boolean delete(String key);
+
+	/**
+	 * @see CasCache#compute(String, CasCache.Updater)
+	 */
+	V compute(String key, CasCache.Updater<V> updater) {
+		for (int attempt = 0; attempt <= retries; attempt++) {
+			pause(attempt);
+			CasValue<V> current = gets(key);
+			V value = updater.update(current == null ? null : current
+					.getValue());
+			if (value == null) {
+				if (current != null) {
+					delete(key);
+				}
+				return null;
+			}
+			if (current == null ? add(key, value) : cas(key, value, current
+					.getCas())) {
+				return value;
+			}
+		}
+		throw giveUp(key);
+	}
+
+	/**
+	 * @see CasCache#merge(String, Object, CasCache.Merger)
+	 */
+	V merge(String key, final V value, final CasCache.Merger<V> merger) {
+		return compute(key, new CasCache.Updater<V>() {
+			public V update(V current) {
+				return current == null ? value : merger.merge(current, value);
+			}
+		});
+	}
+
+	/**
+	 * @see CasCache#putIfAbsent(String, Object)
+	 */
+	V putIfAbsent(String key, V value) {
+		for (int attempt = 0; attempt <= retries; attempt++) {
+			pause(attempt);
+			if (add(key, value)) {
+				return null;
+			}
+			// unless it was removed in between
+			CasValue<V> current = gets(key);
+			if (current != null) {
+				return current.getValue();
+			}
+		}
+		throw giveUp(key);
+	}
+
+	private static void pause(int attempt) {
+		if (attempt == 0) {
+			return;
+		}
+		try {
+			Thread.sleep(random.nextInt(Math.min(1 << attempt, MAX_PAUSE)));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CommonRuntimeException("interrupted while updating", e);
+		}
+	}
+
+	private CommonRuntimeException giveUp(String key) {
+		return new CommonRuntimeException("gave up updating " + key
+				+ " after " + (retries + 1) + " attempts");
+	}
+
+}
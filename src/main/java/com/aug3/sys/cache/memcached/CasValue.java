@@ -0,0 +1,34 @@
+package com.aug3.sys.cache.memcached;
+
+/**
+ * A value read from memcached with its cas unique, the version to give back
+ * to the cas command that replaces it.
+ *
+ * @author xial
+ *
+ * @param <T>
+ *            the value
+ */
+public final class CasValue<T> {
+
+	private final T value;
+	private final long cas;
+
+	public CasValue(T value, long cas) {
+		this.value = value;
+		this.cas = cas;
+	}
+
+	public T getValue() {
+		return value;
+	}
+
+	public long getCas() {
+		return cas;
+	}
+
+	public String toString() {
+		return "CasValue[value=" + value + ", cas=" + cas + "]";
+	}
+
+}
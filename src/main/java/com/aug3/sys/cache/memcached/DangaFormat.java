@@ -0,0 +1,149 @@
+package com.aug3.sys.cache.memcached;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.log4j.Logger;
+
+import com.aug3.sys.CommonException;
+import com.aug3.sys.util.ObjectIO;
+
+/**
+ * The flags and formats the danga client stores the values it serializes
+ * itself in, so that the <code>NioMemCachedClient</code> can share values
+ * with the adapters of the danga client that have no codec.
+ *
+ * The danga client stores the boxed primitives, strings, dates and byte
+ * arrays in a format of their own, marked by a flag per type, and the other
+ * values Java serialized. Values beyond its compression threshold are
+ * gzipped. The nio client reads them all as Java serialized bytes, and stores
+ * Java serialized bytes under the flag of the danga serialization, which the
+ * danga client reads whatever the type of the value.
+ *
+ * @author xial
+ */
+final class DangaFormat {
+
+	private static final Logger LOG = Logger.getLogger(DangaFormat.class);
+
+	/** the flag of the values the danga client gzipped */
+	static final int COMPRESSED = 2;
+
+	/** the flag of the values the danga client Java serialized */
+	static final int SERIALIZED = 8;
+
+	// the flags of the types the danga client stores in a format of their own
+	private static final int BYTE = 1;
+	private static final int INTEGER = 4;
+	private static final int CHARACTER = 16;
+	private static final int STRING = 32;
+	private static final int STRING_BUFFER = 64;
+	private static final int FLOAT = 128;
+	private static final int SHORT = 256;
+	private static final int DOUBLE = 512;
+	private static final int DATE = 1024;
+	private static final int STRING_BUILDER = 2048;
+	private static final int BYTE_ARRAY = NioMemCachedClient.BYTE_ARRAY_FLAGS;
+	private static final int BOOLEAN = 8192;
+	private static final int LONG = 16384;
+
+	private DangaFormat() {
+	}
+
+	/**
+	 * @return the value stored by the danga client Java serialized, or null
+	 *         if it cannot be read.
+	 */
+	static byte[] toSerialized(int flags, byte[] data) {
+		try {
+			if ((flags & COMPRESSED) != 0) {
+				data = gunzip(data);
+			}
+			if ((flags & SERIALIZED) != 0) {
+				return data;
+			}
+			Object value = decode(flags & ~COMPRESSED, data);
+			return value == null ? null : ObjectIO.toByteArray(value);
+		} catch (IOException e) {
+			LOG.warn("failed reading a value of the danga client: "
+					+ e.getMessage());
+		} catch (CommonException e) {
+			LOG.warn("failed reading a value of the danga client: "
+					+ e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * @return the value of a type the danga client stores in a format of its
+	 *         own, null for other flags.
+	 */
+	private static Object decode(int flags, byte[] data) throws IOException {
+		switch (flags) {
+		case BYTE:
+			return Byte.valueOf((byte) toLong(data, 1));
+		case BOOLEAN:
+			return Boolean.valueOf(toLong(data, 1) == 1);
+		case INTEGER:
+			return Integer.valueOf((int) toLong(data, 4));
+		case LONG:
+			return Long.valueOf(toLong(data, 8));
+		case CHARACTER:
+			return Character.valueOf((char) toLong(data, 4));
+		case SHORT:
+			return Short.valueOf((short) toLong(data, 4));
+		case FLOAT:
+			return Float.valueOf(Float.intBitsToFloat((int) toLong(data, 4)));
+		case DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(toLong(data, 8)));
+		case DATE:
+			return new Date(toLong(data, 8));
+		case STRING:
+			return new String(data, "UTF-8");
+		case STRING_BUFFER:
+			return new StringBuffer(new String(data, "UTF-8"));
+		case STRING_BUILDER:
+			return new StringBuilder(new String(data, "UTF-8"));
+		case BYTE_ARRAY:
+			return data;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return the big-endian number in the first <em>length</em> bytes.
+	 */
+	private static long toLong(byte[] data, int length) throws IOException {
+		if (data.length < length) {
+			throw new IOException("expected " + length + " bytes, got "
+					+ data.length);
+		}
+		long value = 0;
+		for (int i = 0; i < length; i++) {
+			value = value << 8 | data[i] & 0xff;
+		}
+		return value;
+	}
+
+	private static byte[] gunzip(byte[] data) throws IOException {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					data.length * 2);
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,263 @@
+package com.aug3.sys.cache.memcached;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.aug3.sys.cache.AbstractCache;
+import com.aug3.sys.cache.CacheStats;
+import com.aug3.sys.cache.ConcurrentLRUCache;
+import com.aug3.sys.cache.HotKeyDetector;
+import com.aug3.sys.cache.ICache;
+
+/**
+ * A cache in front of a remote cache, memcached by default, keeping a local
+ * replica of the few keys read so often that they would saturate the server
+ * holding them.
+ *
+ * Every read is recorded by a <code>HotKeyDetector</code>, which samples them
+ * over a sliding window. Once a key is hot, it is read from the remote cache
+ * at most once per <em>time to live</em> by this process, the replica serving
+ * the reads in between; once it cools down, its reads go to the remote cache
+ * again. Unlike a <code>NearCache</code>, the other keys are not copied, so
+ * the local memory only grows with the number of hot keys.
+ *
+ * Writes and removals go to the remote cache and update the replica of this
+ * process. The replicas of the other processes are not told, so the time to
+ * live, a second by default, bounds how stale a hot key can get.
+ *
+ * The hot keys are exposed through JMX by a <code>HotKeyMgr</code>. Since the
+ * cache has a no-argument constructor, it can be selected as the base cache
+ * of a <code>SmartCache</code>; it is then configured by the properties
+ * <code>memcached.hotkeys.*</code> of <code>memcached.properties</code> and
+ * registered as "memcached".
+ *
+ * @see MemCachedConfig
+ *
+ * @author xial
+ *
+ * @param <V>
+ *            the cached object
+ */
+public class HotKeyCache<V> extends AbstractCache<String, V> {
+
+	/** the steps the window of the detector slides by */
+	static final int PANES = 10;
+
+	private final ICache<String, V> remote;
+	private final HotKeyDetector detector;
+	private final ConcurrentLRUCache<String, Replica<V>> replicas;
+	private final long timeToLive;
+
+	private final AtomicLong replicaHits = new AtomicLong();
+
+	// ---------------------------------------------------------------------
+	// CONSTRUCTORS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * Creates a hot-key cache in front of memcached, configured by
+	 * <code>memcached.properties</code>, which also selects the memcached
+	 * client.
+	 */
+	public HotKeyCache() {
+		this(new MemCachedConfig());
+	}
+
+	private HotKeyCache(MemCachedConfig config) {
+		this(config.isNio() ? new NioMemCachedAdapter<V>()
+				: new MemCachedAdapter<V>(), new HotKeyDetector(config
+				.getHotKeyExpectedKeys(), config.getHotKeyWindow() * 1000L,
+				PANES, config.getHotKeySampleRate(), (long) config
+						.getHotKeyThreshold()
+						* config.getHotKeyWindow(), config.getHotKeyMax()),
+				config.getHotKeyTimeToLive());
+		HotKeyMgr.register("memcached", this);
+	}
+
+	/**
+	 * @param remote
+	 *            the cache shared by all processes
+	 * @param detector
+	 *            finds the hot keys
+	 * @param timeToLive
+	 *            how long the replica of a hot key may be used, in
+	 *            milliseconds
+	 */
+	public HotKeyCache(ICache<String, V> remote, HotKeyDetector detector,
+			long timeToLive) {
+		if (timeToLive <= 0) {
+			throw new IllegalArgumentException(
+					"time to live must be positive: " + timeToLive);
+		}
+		this.remote = remote;
+		this.detector = detector;
+		this.replicas = new ConcurrentLRUCache<String, Replica<V>>(detector
+				.getMaxHotKeys());
+		this.timeToLive = timeToLive;
+	}
+
+	// ---------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ---------------------------------------------------------------------
+
+	@Override
+	public V get(String key) {
+		if (!detector.record(key)) {
+			return remote.get(key);
+		}
+		long now = System.currentTimeMillis();
+		Replica<V> replica = replicas.get(key);
+		if (replica != null && now < replica.expires) {
+			replicaHits.incrementAndGet();
+			return replica.value;
+		}
+		V value = remote.get(key);
+		replicate(key, value, now);
+		return value;
+	}
+
+	/**
+	 * Serves the hot keys from their replica and fetches the other keys from
+	 * the remote cache in one bulk call.
+	 */
+	@Override
+	public Map<String, V> getAll(Collection<? extends String> keys) {
+		Map<String, V> values = new HashMap<String, V>();
+		List<String> missing = new ArrayList<String>();
+		List<String> hot = new ArrayList<String>();
+		long now = System.currentTimeMillis();
+		for (String key : keys) {
+			if (!detector.record(key)) {
+				missing.add(key);
+				continue;
+			}
+			Replica<V> replica = replicas.get(key);
+			if (replica != null && now < replica.expires) {
+				values.put(key, replica.value);
+			} else {
+				missing.add(key);
+				hot.add(key);
+			}
+		}
+		replicaHits.addAndGet(values.size());
+		if (missing.isEmpty()) {
+			return values;
+		}
+		Map<String, V> fetched = remote.getAll(missing);
+		for (String key : hot) {
+			replicate(key, fetched.get(key), now);
+		}
+		values.putAll(fetched);
+		return values;
+	}
+
+	@Override
+	public V put(String key, V value) {
+		V old = remote.put(key, value);
+		if (detector.isHot(key)) {
+			replicate(key, value, System.currentTimeMillis());
+		} else {
+			replicas.remove(key);
+		}
+		return old;
+	}
+
+	@Override
+	public V remove(String key) {
+		replicas.remove(key);
+		return remote.remove(key);
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		Replica<V> replica = replicas.get(key);
+		if (replica != null && System.currentTimeMillis() < replica.expires) {
+			return true;
+		}
+		return remote.containsKey(key);
+	}
+
+	@Override
+	public void flush() {
+		replicas.flush();
+		remote.flush();
+	}
+
+	/**
+	 * @return the hot keys with their estimated reads in the window of the
+	 *         detector, hottest first.
+	 */
+	public Map<Object, Long> getHotKeys() {
+		return detector.getHotKeys();
+	}
+
+	public HotKeyDetector getDetector() {
+		return detector;
+	}
+
+	/**
+	 * @return the number of reads served by the replicas of the hot keys.
+	 */
+	public long getReplicaHitCount() {
+		return replicaHits.get();
+	}
+
+	/**
+	 * Forgets the hot keys and drops their replicas, leaving the remote cache
+	 * untouched.
+	 */
+	public void clearHotKeys() {
+		detector.clear();
+		replicas.flush();
+	}
+
+	/**
+	 * @return the statistics of the remote cache, the reads served by the
+	 *         replicas counted as hits.
+	 */
+	@Override
+	public CacheStats getStats() {
+		CacheStats stats = remote.getStats();
+		return new CacheStats(stats.getHitCount() + replicaHits.get(), stats
+				.getMissCount(), stats.getLoadSuccessCount(), stats
+				.getLoadFailureCount(), stats.getTotalLoadTime(), stats
+				.getEvictionCount(), stats.getSize(), stats.getWeightedSize(),
+				stats.getLoadLatencies());
+	}
+
+	public String toString() {
+		return "HotKeyCache[hotKeys=" + detector.getHotKeys().keySet()
+				+ ", replicaHits=" + replicaHits + "]";
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	private void replicate(String key, V value, long now) {
+		if (value == null) {
+			replicas.remove(key);
+		} else {
+			replicas.put(key, new Replica<V>(value, now + timeToLive));
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER CLASSES
+	// ---------------------------------------------------------------------
+
+	private static final class Replica<V> {
+		final V value;
+		final long expires;
+
+		Replica(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+}
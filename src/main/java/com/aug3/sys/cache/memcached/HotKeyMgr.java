@@ -0,0 +1,99 @@
+package com.aug3.sys.cache.memcached;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An MBean exposing the hot keys of a <code>HotKeyCache</code>, registered in
+ * the platform MBean server under
+ * <code>com.aug3.sys.cache:type=HotKeys,name=<em>name</em></code>;
+ * registering a name again replaces the previous cache.
+ * 
+ * @author xial
+ */
+public class HotKeyMgr implements HotKeyMgrMBean {
+
+	private static final Logger LOG = Logger.getLogger(HotKeyMgr.class);
+
+	private final HotKeyCache<?> cache;
+
+	public HotKeyMgr(HotKeyCache<?> cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Registers the MBean of a cache. Failures are logged, as monitoring must
+	 * not keep the cache from being used.
+	 */
+	public static void register(String name, HotKeyCache<?> cache) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = objectName(name);
+			synchronized (HotKeyMgr.class) {
+				if (server.isRegistered(objectName)) {
+					server.unregisterMBean(objectName);
+				}
+				server.registerMBean(new HotKeyMgr(cache), objectName);
+			}
+		} catch (JMException e) {
+			LOG.warn("failed to register the hot keys of cache " + name, e);
+		}
+	}
+
+	public static void unregister(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = objectName(name);
+			synchronized (HotKeyMgr.class) {
+				if (server.isRegistered(objectName)) {
+					server.unregisterMBean(objectName);
+				}
+			}
+		} catch (JMException e) {
+			LOG.warn("failed to unregister the hot keys of cache " + name, e);
+		}
+	}
+
+	static ObjectName objectName(String name) throws JMException {
+		return new ObjectName("com.aug3.sys.cache:type=HotKeys,name="
+				+ ObjectName.quote(name));
+	}
+
+	@Override
+	public String[] getHotKeys() {
+		Map<Object, Long> hotKeys = cache.getHotKeys();
+		String[] keys = new String[hotKeys.size()];
+		int i = 0;
+		for (Map.Entry<Object, Long> e : hotKeys.entrySet()) {
+			keys[i++] = e.getKey() + "=" + e.getValue();
+		}
+		return keys;
+	}
+
+	@Override
+	public int getHotKeyCount() {
+		return cache.getHotKeys().size();
+	}
+
+	@Override
+	public long getWindowSeconds() {
+		return cache.getDetector().getWindowMillis() / 1000;
+	}
+
+	@Override
+	public long getReplicaHitCount() {
+		return cache.getReplicaHitCount();
+	}
+
+	@Override
+	public void clearHotKeys() {
+		cache.clearHotKeys();
+	}
+
+}
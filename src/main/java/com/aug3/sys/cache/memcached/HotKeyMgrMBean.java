@@ -0,0 +1,33 @@
+package com.aug3.sys.cache.memcached;
+
+/**
+ * Manager bean exposing the hot keys of a <code>HotKeyCache</code>.
+ * 
+ * @author xial
+ */
+public interface HotKeyMgrMBean {
+
+	/**
+	 * @return the hot keys, hottest first, such as "CONFIG=1200", with their
+	 *         estimated reads in the window
+	 */
+	String[] getHotKeys();
+
+	int getHotKeyCount();
+
+	/**
+	 * @return the length of the window the reads are counted over, in seconds
+	 */
+	long getWindowSeconds();
+
+	/**
+	 * @return the number of reads served by the replicas of the hot keys
+	 */
+	long getReplicaHitCount();
+
+	/**
+	 * forgets the hot keys and drops their replicas
+	 */
+	void clearHotKeys();
+
+}
@@ -1,9 +1,21 @@
 package com.aug3.sys.cache.memcached;
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import com.aug3.sys.cache.ICache;
+import com.aug3.sys.CommonRuntimeException;
+import com.aug3.sys.cache.AbstractCache;
+import com.aug3.sys.cache.CacheMgr;
+import com.aug3.sys.cache.CacheStats;
+import com.aug3.sys.cache.StatsCounter;
+import com.aug3.sys.cache.codec.ValueCodec;
 import com.danga.MemCached.MemCachedClient;
+import com.danga.MemCached.MemcachedItem;
 
 /**
  * This adapter allows one to use an memcached client within the ICache
@@ -15,6 +27,40 @@ import com.danga.MemCached.MemCachedClient;
  * a value in one instance of the cache makes it visible in <em>all</em>
  * instances of the cache.
  * 
+ * The adapter is thread-safe and does not synchronize: the memcached client
+ * takes a connection from the <code>SockIOPool</code> for each operation, so
+ * as many operations run in parallel as the pool has connections.
+ * 
+ * By default <code>put</code> and <code>remove</code> make a single round trip
+ * and return null rather than the previous value. Callers that need the
+ * previous value create the adapter with <code>returnPrevious</code> set, at
+ * the cost of an extra <code>get</code> per call; the previous value is then
+ * not read atomically with the write.
+ * 
+ * <code>compute</code>, <code>merge</code> and <code>putIfAbsent</code> update
+ * the values atomically with the gets, add and cas commands of the client,
+ * which does not tell a miss from a failure: a server that fails while they
+ * run makes them give up, as if they kept losing to other writers. When no
+ * server is available for the key at all, they fail at once with a
+ * <code>CommonRuntimeException</code> saying so, without retrying.
+ * 
+ * Values can be encoded by a <code>ValueCodec</code>, such as the compact
+ * binary codec, and compressed from a size threshold, before being handed to
+ * the client as byte arrays. Both are set by <code>memcached.properties</code>
+ * or per adapter through its constructor. By default the client serializes
+ * the values itself, since the processes of older releases sharing the
+ * servers cannot read the byte arrays of a codec. Values stored by the
+ * client's own serialization are still read with a codec.
+ * 
+ * With ketama hashing (see <code>MemCachedPoolMgr</code>), the adapter asks
+ * the <code>MemCachedRouter</code> for the server of each key and uses the
+ * client of that server's pool. When all the servers are down, reads miss and
+ * writes are dropped without waiting on a connection.
+ * 
+ * All adapters share one client, so they share their statistics as well,
+ * exposed through JMX as the cache named "memcached". The size of the cache is
+ * not known.
+ * 
  * Our MemCached requires the following to work:
  * <ol>
  * <li>java_memcached-release_2.0.1.jar must be in the class_path</li>
@@ -31,78 +77,320 @@ import com.danga.MemCached.MemCachedClient;
  * 
  * @param <V>
  */
-public class MemCachedAdapter<V> implements ICache<String, V> {
+public class MemCachedAdapter<V> extends AbstractCache<String, V> implements
+		CasCache<V> {
+
+	private static MemCachedConfig config = new MemCachedConfig();
+
+	private static MemCachedClient cache;
+
+	/** the clients of the pools of the servers, with ketama hashing */
+	private static final ConcurrentMap<String, MemCachedClient> clients = new ConcurrentHashMap<String, MemCachedClient>();
+
+	private static final StatsCounter stats = new StatsCounter();
 
 	static {
 		MemCachedPoolMgr poolMgr = new MemCachedPoolMgr();
 		poolMgr.reset();
+
+		cache = new MemCachedClient();
+		configure(cache);
+
+		CacheMgr.register("memcached", new MemCachedAdapter<Object>());
 	}
 
-	private static MemCachedClient cache = new MemCachedClient();
+	/** the router of the adapter, null for the one of the pool manager */
+	private final MemCachedRouter router;
+	private final boolean returnPrevious;
+	private final ValueCodec<V> codec;
+	private final CasTemplate<V> updates;
 
 	public MemCachedAdapter() {
+		this(false);
+	}
+
+	/**
+	 * @param returnPrevious
+	 *            whether <code>put</code> and <code>remove</code> fetch and
+	 *            return the previous value
+	 */
+	public MemCachedAdapter(boolean returnPrevious) {
+		this(returnPrevious, config.<V> createCodec());
+	}
 
-		// enable compress
-		// compress if data exceed 64k
-		cache.setCompressEnable(true);
-		cache.setCompressThreshold(64 * 1024);
+	/**
+	 * @param returnPrevious
+	 *            whether <code>put</code> and <code>remove</code> fetch and
+	 *            return the previous value
+	 * @param codec
+	 *            encodes the values, or null to let the memcached client
+	 *            serialize them
+	 */
+	public MemCachedAdapter(boolean returnPrevious, ValueCodec<V> codec) {
+		this(null, returnPrevious, codec);
+	}
+
+	/**
+	 * @param router
+	 *            routes the keys to the pools of the servers, named by
+	 *            <code>MemCachedPoolMgr.poolName</code>, or null for the
+	 *            pools configured by <code>memcached.properties</code>
+	 * @param returnPrevious
+	 *            whether <code>put</code> and <code>remove</code> fetch and
+	 *            return the previous value
+	 * @param codec
+	 *            encodes the values, or null to let the memcached client
+	 *            serialize them
+	 */
+	MemCachedAdapter(MemCachedRouter router, boolean returnPrevious,
+			ValueCodec<V> codec) {
+		this.router = router;
+		this.returnPrevious = returnPrevious;
+		this.codec = codec;
+		this.updates = new CasTemplate<V>(config.getCasRetries()) {
+			CasValue<V> gets(String key) {
+				MemcachedItem item = updateClient(key).gets(key);
+				return item == null || item.getValue() == null ? null
+						: new CasValue<V>(decode(item.getValue()), item
+								.getCasUnique());
+			}
+
+			boolean add(String key, V value) {
+				return updateClient(key).add(key, encode(value));
+			}
+
+			boolean cas(String key, V value, long cas) {
+				return updateClient(key).cas(key, encode(value), cas);
+			}
+
+			boolean delete(String key) {
+				return MemCachedAdapter.this.delete(key);
+			}
+		};
 	}
 
 	@Override
 	public V get(String key) {
-		synchronized (cache) {
-			return (V) cache.get(key);
+		MemCachedClient client = client(key);
+		V value = client == null ? null : decode(client.get(key));
+		if (value == null) {
+			stats.recordMisses(1);
+		} else {
+			stats.recordHits(1);
 		}
+		return value;
 	}
 
+	/**
+	 * @return the previous value if the adapter was created with
+	 *         <code>returnPrevious</code>, null otherwise.
+	 */
 	@Override
 	public V put(String key, V value) {
-		synchronized (cache) {
-			V o = (V) cache.get(key);
-			cache.set(key, value);
-			return o;
+		MemCachedClient client = client(key);
+		if (client == null) {
+			return null;
 		}
+		V o = returnPrevious ? decode(client.get(key)) : null;
+		client.set(key, encode(value));
+		return o;
 	}
 
+	/**
+	 * @return the previous value if the adapter was created with
+	 *         <code>returnPrevious</code>, null otherwise.
+	 */
 	@Override
 	public V remove(String key) {
-		synchronized (cache) {
-			V o = (V) cache.get(key);
-			cache.delete(key);
-			return o;
+		MemCachedClient client = client(key);
+		if (client == null) {
+			return null;
 		}
+		V o = returnPrevious ? decode(client.get(key)) : null;
+		client.delete(key);
+		return o;
 	}
 
+	/**
+	 * Fetches all the keys in one multi-get, so in one round trip per server
+	 * holding some of them.
+	 */
 	@Override
-	public boolean containsKey(String key) {
-		synchronized (cache) {
-			return cache.keyExists(key);
+	public Map<String, V> getAll(Collection<? extends String> keys) {
+		Map<String, V> values = new HashMap<String, V>();
+		if (keys.isEmpty()) {
+			return values;
 		}
+		MemCachedRouter router = router();
+		if (router == null) {
+			decodeAll(cache.getMulti(keys.toArray(new String[keys.size()])),
+					values);
+		} else {
+			for (Map.Entry<String, List<String>> e : router.routeAll(keys)
+					.entrySet()) {
+				List<String> serverKeys = e.getValue();
+				decodeAll(serverClient(e.getKey()).getMulti(
+						serverKeys.toArray(new String[serverKeys.size()])),
+						values);
+			}
+		}
+		stats.recordHits(values.size());
+		stats.recordMisses(keys.size() - values.size());
+		return values;
+	}
+
+	/**
+	 * @return the statistics of all the adapters, the size being unknown.
+	 */
+	@Override
+	public CacheStats getStats() {
+		return stats.snapshot(-1, -1);
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		MemCachedClient client = client(key);
+		return client != null && client.keyExists(key);
+	}
+
+	public V compute(String key, Updater<V> updater) {
+		return updates.compute(key, updater);
+	}
+
+	public V merge(String key, V value, Merger<V> merger) {
+		return updates.merge(key, value, merger);
+	}
+
+	public V putIfAbsent(String key, V value) {
+		return updates.putIfAbsent(key, value);
 	}
 
 	public boolean set(String key, V value, long expireSeconds) {
-		synchronized (cache) {
-			return cache.set(key, value, new Date(System.currentTimeMillis()
-					+ expireSeconds * 1000));
-		}
+		MemCachedClient client = client(key);
+		return client != null
+				&& client.set(key, encode(value), new Date(System
+						.currentTimeMillis()
+						+ expireSeconds * 1000));
 	}
 
+	/**
+	 * Stores the value in a single round trip, whatever the mode of the
+	 * adapter.
+	 * 
+	 * @return true if the value was stored.
+	 */
 	public boolean set(String key, V value) {
-		synchronized (cache) {
-			return cache.set(key, value);
-		}
+		MemCachedClient client = client(key);
+		return client != null && client.set(key, encode(value));
 	}
 
+	/**
+	 * Removes the key in a single round trip, whatever the mode of the
+	 * adapter.
+	 * 
+	 * @return true if the key was found and removed.
+	 */
+	public boolean delete(String key) {
+		MemCachedClient client = client(key);
+		return client != null && client.delete(key);
+	}
+
+	/**
+	 * @return the client of the default pool, which is not used with ketama
+	 *         hashing.
+	 */
 	public MemCachedClient getCacheClient() {
 		return cache;
 	}
 
+	/**
+	 * Flushes all the servers, or only the live ones with ketama hashing.
+	 */
 	@Override
 	public void flush() {
-		synchronized (cache) {
+		MemCachedRouter router = router();
+		if (router == null) {
 			cache.flushAll();
+			return;
+		}
+		for (String server : router.getLiveServers()) {
+			serverClient(server).flushAll();
+		}
+	}
+
+	/**
+	 * @return the client of the server holding the key, or null if all the
+	 *         servers are down.
+	 */
+	private MemCachedClient client(String key) {
+		MemCachedRouter router = router();
+		if (router == null) {
+			return cache;
+		}
+		String server = router.route(key);
+		return server == null ? null : serverClient(server);
+	}
+
+	/**
+	 * @return the client of the key for an atomic update, which cannot be
+	 *         dropped like a plain write when all the servers are down.
+	 */
+	private MemCachedClient updateClient(String key) {
+		MemCachedClient client = client(key);
+		if (client == null) {
+			throw new CommonRuntimeException(
+					"no memcached server available to update " + key);
+		}
+		return client;
+	}
+
+	/**
+	 * @return the router of the keys, or null if the default pool routes
+	 *         them.
+	 */
+	private MemCachedRouter router() {
+		return router == null ? MemCachedPoolMgr.getRouter() : router;
+	}
+
+	private static MemCachedClient serverClient(String server) {
+		MemCachedClient client = clients.get(server);
+		if (client == null) {
+			client = new MemCachedClient(MemCachedPoolMgr.poolName(server));
+			configure(client);
+			MemCachedClient other = clients.putIfAbsent(server, client);
+			if (other != null) {
+				client = other;
+			}
 		}
+		return client;
+	}
 
+	private static void configure(MemCachedClient client) {
+		// the client only compresses the values it serializes itself
+		client.setCompressEnable(config.getCodec() == null);
+		client.setCompressThreshold(config.getCompressThreshold());
+	}
+
+	private void decodeAll(Map<String, Object> found, Map<String, V> values) {
+		if (found != null) {
+			for (Map.Entry<String, Object> e : found.entrySet()) {
+				if (e.getValue() != null) {
+					values.put(e.getKey(), decode(e.getValue()));
+				}
+			}
+		}
+	}
+
+	private Object encode(V value) {
+		return codec == null || value == null ? value : codec.encode(value);
+	}
+
+	@SuppressWarnings("unchecked")
+	private V decode(Object stored) {
+		if (codec != null && stored instanceof byte[]) {
+			return codec.decode((byte[]) stored);
+		}
+		return (V) stored;
 	}
 
 }
@@ -3,6 +3,11 @@ package com.aug3.sys.cache.memcached;
 import java.util.Arrays;
 import java.util.Properties;
 
+import com.aug3.sys.CommonRuntimeException;
+import com.aug3.sys.cache.codec.AdaptiveCompressingCodec;
+import com.aug3.sys.cache.codec.CompressingCodec;
+import com.aug3.sys.cache.codec.Compression;
+import com.aug3.sys.cache.codec.ValueCodec;
 import com.aug3.sys.properties.LazyPropLoader;
 
 /**
@@ -38,6 +43,141 @@ import com.aug3.sys.properties.LazyPropLoader;
  * <td>maximum number of connections to use</td>
  * <td>50</td>
  * </tr>
+ * <tr>
+ * <td>memcached.near.size</td>
+ * <td>maximum number of entries a <code>NearCache</code> keeps locally</td>
+ * <td>1000</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.near.ttl</td>
+ * <td>seconds a <code>NearCache</code> may use a local copy</td>
+ * <td>30</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.hotkeys.threshold</td>
+ * <td>reads per second making a key hot in a <code>HotKeyCache</code></td>
+ * <td>200</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.hotkeys.window</td>
+ * <td>seconds the reads of a key are counted over</td>
+ * <td>10</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.hotkeys.sample</td>
+ * <td>one read in so many is counted</td>
+ * <td>8</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.hotkeys.max</td>
+ * <td>the most keys hot at once</td>
+ * <td>32</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.hotkeys.keys</td>
+ * <td>distinct keys read in a window, sizing the sketches counting them</td>
+ * <td>10000</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.hotkeys.ttl</td>
+ * <td>milliseconds the local replica of a hot key may be used</td>
+ * <td>1000</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.codec</td>
+ * <td>the <code>ValueCodec</code> class encoding the values, such as
+ * <code>com.aug3.sys.cache.codec.CompactCodec</code>, or <code>none</code> to
+ * let the memcached client serialize them</td>
+ * <td>none</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.compress.threshold</td>
+ * <td>size in bytes from which values are compressed</td>
+ * <td>65536</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.compress.algorithm</td>
+ * <td>none, deflate, gzip or lzf</td>
+ * <td>deflate</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.compress.adaptive</td>
+ * <td>true to let an <code>AdaptiveCompressingCodec</code> decide which
+ * values to compress, instead of the threshold</td>
+ * <td>false</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.compress.min</td>
+ * <td>size in bytes below which adaptive compression leaves values alone</td>
+ * <td>512</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.compress.budget</td>
+ * <td>nanoseconds adaptive compression may spend per byte saved</td>
+ * <td>50</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.hashing</td>
+ * <td><code>ketama</code> to route keys with a <code>MemCachedRouter</code>,
+ * which ejects dead servers, or <code>pool</code> to leave it to the
+ * <code>SockIOPool</code></td>
+ * <td>pool</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.health.interval</td>
+ * <td>milliseconds between two probes of the servers, with ketama hashing</td>
+ * <td>1000</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.health.failures</td>
+ * <td>failed probes in a row after which a server is ejected, and successful
+ * ones after which it rejoins</td>
+ * <td>3</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.health.timeout</td>
+ * <td>connect and read timeout of a probe, and connect timeout of the
+ * connections, in milliseconds</td>
+ * <td>500</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.client</td>
+ * <td><code>nio</code> for the non-blocking <code>NioMemCachedClient</code>,
+ * which always uses ketama hashing, or <code>danga</code> for the client of
+ * the <code>SockIOPool</code></td>
+ * <td>danga</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.nio.selectors</td>
+ * <td>selector threads of the nio client</td>
+ * <td>2</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.nio.connections</td>
+ * <td>connections of the nio client to each server</td>
+ * <td>1</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.nio.timeout</td>
+ * <td>milliseconds the nio client waits for a server to answer</td>
+ * <td>1000</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.batch.window</td>
+ * <td>microseconds a <code>BatchingCache</code> waits for concurrent gets
+ * to send together</td>
+ * <td>200</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.batch.size</td>
+ * <td>gets sending a batch before the end of the window</td>
+ * <td>32</td>
+ * </tr>
+ * <tr>
+ * <td>memcached.cas.retries</td>
+ * <td>times an atomic update losing to another writer is tried again</td>
+ * <td>10</td>
+ * </tr>
  * </table>
  * 
  * @author xial
@@ -50,13 +190,74 @@ public class MemCachedConfig {
 	private static final String WEIGHTS = "memcached.servers.weight";
 	private static final String MIN_CONNECTIONS = "memcached.connections.min";
 	private static final String MAX_CONNECTIONS = "memcached.connections.max";
+	private static final String NEAR_CACHE_SIZE = "memcached.near.size";
+	private static final String NEAR_CACHE_TTL = "memcached.near.ttl";
+	private static final String HOT_KEY_THRESHOLD = "memcached.hotkeys.threshold";
+	private static final String HOT_KEY_WINDOW = "memcached.hotkeys.window";
+	private static final String HOT_KEY_SAMPLE = "memcached.hotkeys.sample";
+	private static final String HOT_KEY_MAX = "memcached.hotkeys.max";
+	private static final String HOT_KEY_KEYS = "memcached.hotkeys.keys";
+	private static final String HOT_KEY_TTL = "memcached.hotkeys.ttl";
+	private static final String CODEC = "memcached.codec";
+	private static final String COMPRESS_THRESHOLD = "memcached.compress.threshold";
+	private static final String COMPRESS_ALGORITHM = "memcached.compress.algorithm";
+	private static final String COMPRESS_ADAPTIVE = "memcached.compress.adaptive";
+	private static final String COMPRESS_MIN = "memcached.compress.min";
+	private static final String COMPRESS_BUDGET = "memcached.compress.budget";
+	private static final String HASHING = "memcached.hashing";
+	private static final String HEALTH_INTERVAL = "memcached.health.interval";
+	private static final String HEALTH_FAILURES = "memcached.health.failures";
+	private static final String HEALTH_TIMEOUT = "memcached.health.timeout";
+	private static final String CLIENT = "memcached.client";
+	private static final String NIO_SELECTORS = "memcached.nio.selectors";
+	private static final String NIO_CONNECTIONS = "memcached.nio.connections";
+	private static final String NIO_TIMEOUT = "memcached.nio.timeout";
+	private static final String BATCH_WINDOW = "memcached.batch.window";
+	private static final String BATCH_SIZE = "memcached.batch.size";
+	private static final String CAS_RETRIES = "memcached.cas.retries";
 
 	// default values
 	private static final String SERVERS_DEFAULT = "localhost";
 	private static final int MIN_CONNECTIONS_DEFAULT = 5;
 	private static final int MAX_CONNECTIONS_DEFAULT = 50;
+	private static final int NEAR_CACHE_SIZE_DEFAULT = 1000;
+	private static final int NEAR_CACHE_TTL_DEFAULT = 30;
+	private static final int HOT_KEY_THRESHOLD_DEFAULT = 200;
+	private static final int HOT_KEY_WINDOW_DEFAULT = 10;
+	private static final int HOT_KEY_SAMPLE_DEFAULT = 8;
+	private static final int HOT_KEY_MAX_DEFAULT = 32;
+	private static final int HOT_KEY_KEYS_DEFAULT = 10000;
+	private static final int HOT_KEY_TTL_DEFAULT = 1000;
+	private static final String CODEC_NONE = "none";
+	private static final int COMPRESS_THRESHOLD_DEFAULT = 64 * 1024;
+	private static final String COMPRESS_ALGORITHM_DEFAULT = "deflate";
+	private static final int COMPRESS_MIN_DEFAULT = 512;
+	private static final int COMPRESS_BUDGET_DEFAULT = 50;
+	private static final String HASHING_KETAMA = "ketama";
+	private static final int HEALTH_INTERVAL_DEFAULT = 1000;
+	private static final int HEALTH_FAILURES_DEFAULT = 3;
+	private static final int HEALTH_TIMEOUT_DEFAULT = 500;
+	private static final String CLIENT_NIO = "nio";
+	private static final int NIO_SELECTORS_DEFAULT = 2;
+	private static final int NIO_CONNECTIONS_DEFAULT = 1;
+	private static final int NIO_TIMEOUT_DEFAULT = 1000;
+	private static final int BATCH_WINDOW_DEFAULT = 200;
+	private static final int BATCH_SIZE_DEFAULT = 32;
+	private static final int CAS_RETRIES_DEFAULT = 10;
+
+	private final Properties config;
 
-	private Properties config = new LazyPropLoader(CONFIG_RESOURCE);
+	public MemCachedConfig() {
+		this(new LazyPropLoader(CONFIG_RESOURCE));
+	}
+
+	/**
+	 * @param config
+	 *            the properties to use instead of memcached.properties
+	 */
+	MemCachedConfig(Properties config) {
+		this.config = config;
+	}
 
 	String[] getServers() {
 		String servers = config.getProperty(SERVERS, SERVERS_DEFAULT);
@@ -104,6 +305,153 @@ public class MemCachedConfig {
 		return getInt(MAX_CONNECTIONS, MAX_CONNECTIONS_DEFAULT);
 	}
 
+	int getNearCacheSize() {
+		return getInt(NEAR_CACHE_SIZE, NEAR_CACHE_SIZE_DEFAULT);
+	}
+
+	int getNearCacheTimeToLive() {
+		return getInt(NEAR_CACHE_TTL, NEAR_CACHE_TTL_DEFAULT);
+	}
+
+	int getHotKeyThreshold() {
+		return getInt(HOT_KEY_THRESHOLD, HOT_KEY_THRESHOLD_DEFAULT);
+	}
+
+	int getHotKeyWindow() {
+		return getInt(HOT_KEY_WINDOW, HOT_KEY_WINDOW_DEFAULT);
+	}
+
+	int getHotKeySampleRate() {
+		return getInt(HOT_KEY_SAMPLE, HOT_KEY_SAMPLE_DEFAULT);
+	}
+
+	int getHotKeyMax() {
+		return getInt(HOT_KEY_MAX, HOT_KEY_MAX_DEFAULT);
+	}
+
+	int getHotKeyExpectedKeys() {
+		return getInt(HOT_KEY_KEYS, HOT_KEY_KEYS_DEFAULT);
+	}
+
+	int getHotKeyTimeToLive() {
+		return getInt(HOT_KEY_TTL, HOT_KEY_TTL_DEFAULT);
+	}
+
+	/**
+	 * @return the class name of the value codec, or null if the memcached
+	 *         client serializes the values itself.
+	 */
+	String getCodec() {
+		String codec = config.getProperty(CODEC, CODEC_NONE).trim();
+		return CODEC_NONE.equalsIgnoreCase(codec) ? null : codec;
+	}
+
+	int getCompressThreshold() {
+		return getInt(COMPRESS_THRESHOLD, COMPRESS_THRESHOLD_DEFAULT);
+	}
+
+	Compression getCompression() {
+		return Compression.valueOf(config.getProperty(COMPRESS_ALGORITHM,
+				COMPRESS_ALGORITHM_DEFAULT).trim().toUpperCase());
+	}
+
+	boolean isAdaptiveCompression() {
+		return Boolean.valueOf(config.getProperty(COMPRESS_ADAPTIVE, "false")
+				.trim());
+	}
+
+	int getCompressMin() {
+		return getInt(COMPRESS_MIN, COMPRESS_MIN_DEFAULT);
+	}
+
+	int getCompressBudget() {
+		return getInt(COMPRESS_BUDGET, COMPRESS_BUDGET_DEFAULT);
+	}
+
+	/**
+	 * @return true if the keys are routed by a <code>MemCachedRouter</code>.
+	 */
+	boolean isKetama() {
+		return HASHING_KETAMA.equalsIgnoreCase(config.getProperty(HASHING, "")
+				.trim());
+	}
+
+	int getHealthInterval() {
+		return getInt(HEALTH_INTERVAL, HEALTH_INTERVAL_DEFAULT);
+	}
+
+	int getHealthFailures() {
+		return getInt(HEALTH_FAILURES, HEALTH_FAILURES_DEFAULT);
+	}
+
+	int getHealthTimeout() {
+		return getInt(HEALTH_TIMEOUT, HEALTH_TIMEOUT_DEFAULT);
+	}
+
+	/**
+	 * @return true if the <code>NioMemCachedClient</code> is used instead of
+	 *         the danga client.
+	 */
+	boolean isNio() {
+		return CLIENT_NIO.equalsIgnoreCase(config.getProperty(CLIENT, "")
+				.trim());
+	}
+
+	int getNioSelectors() {
+		return getInt(NIO_SELECTORS, NIO_SELECTORS_DEFAULT);
+	}
+
+	int getNioConnections() {
+		return getInt(NIO_CONNECTIONS, NIO_CONNECTIONS_DEFAULT);
+	}
+
+	int getNioTimeout() {
+		return getInt(NIO_TIMEOUT, NIO_TIMEOUT_DEFAULT);
+	}
+
+	/**
+	 * @return the window of the batches of gets, in microseconds.
+	 */
+	int getBatchWindow() {
+		return getInt(BATCH_WINDOW, BATCH_WINDOW_DEFAULT);
+	}
+
+	int getBatchSize() {
+		return getInt(BATCH_SIZE, BATCH_SIZE_DEFAULT);
+	}
+
+	int getCasRetries() {
+		return getInt(CAS_RETRIES, CAS_RETRIES_DEFAULT);
+	}
+
+	/**
+	 * @return the configured codec, compressing if configured to, or null if
+	 *         the memcached client serializes the values itself. The codec
+	 *         writes the compression header even without compression, so that
+	 *         the algorithm can be changed without losing the stored values.
+	 */
+	@SuppressWarnings("unchecked")
+	<V> ValueCodec<V> createCodec() {
+		String className = getCodec();
+		if (className == null) {
+			return null;
+		}
+		ValueCodec<V> codec;
+		try {
+			codec = (ValueCodec<V>) Class.forName(className).newInstance();
+		} catch (Exception e) {
+			throw new CommonRuntimeException("failed creating memcached codec "
+					+ className, e);
+		}
+		Compression compression = getCompression();
+		if (compression != Compression.NONE && isAdaptiveCompression()) {
+			return new AdaptiveCompressingCodec<V>(codec, compression,
+					getCompressMin(), getCompressBudget());
+		}
+		return new CompressingCodec<V>(codec, getCompressThreshold(),
+				compression);
+	}
+
 	private int getInt(String property, int defaultValue) {
 		String val = config.getProperty(property);
 		return (val != null) ? Integer.parseInt(val) : defaultValue;
@@ -119,6 +467,21 @@ public class MemCachedConfig {
 		props.append("weights=" + Arrays.toString(getWeights()) + "\n");
 		props.append("conn(min)=" + getMinConnections() + "\n");
 		props.append("conn(max)=" + getMaxConnections() + "\n");
+		props.append("near(size)=" + getNearCacheSize() + "\n");
+		props.append("near(ttl)=" + getNearCacheTimeToLive() + "\n");
+		props.append("hotkeys=" + getHotKeyThreshold() + " reads/s over "
+				+ getHotKeyWindow() + " s, ttl " + getHotKeyTimeToLive()
+				+ " ms\n");
+		props.append("codec=" + getCodec() + "\n");
+		props.append("compress=" + getCompression() + " from "
+				+ (isAdaptiveCompression() ? getCompressMin()
+						+ " bytes, adaptive\n" : getCompressThreshold()
+						+ " bytes\n"));
+		props.append("hashing=" + (isKetama() ? "ketama" : "pool") + "\n");
+		props.append("client=" + (isNio() ? "nio" : "danga") + "\n");
+		props.append("batch=" + getBatchSize() + " gets or "
+				+ getBatchWindow() + " us\n");
+		props.append("cas(retries)=" + getCasRetries() + "\n");
 		return props.toString();
 	}
 
@@ -0,0 +1,663 @@
+package com.aug3.sys.cache.memcached;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A non-blocking connection of the <code>NioMemCachedClient</code> to a
+ * memcached server, speaking the text protocol.
+ *
+ * Operations are queued by any thread and written by the thread of the
+ * selector owning the connection, without waiting for the replies of the
+ * previous ones: the server answers in order, so the replies are matched to
+ * the operations in flight by their position. The gets queued next to each
+ * other are sent as a single multi-get.
+ *
+ * When the server cannot be reached or stops answering, the connection fails
+ * all its operations, and fails the new ones right away for a second before
+ * connecting again, so that callers do not pile up behind a dead server.
+ *
+ * @author xial
+ */
+final class MemCachedConnection {
+
+	private static final Logger LOG = Logger
+			.getLogger(MemCachedConnection.class);
+
+	/** keys of a coalesced multi-get at most */
+	static final int MAX_BATCH = 100;
+
+	/** how long operations fail fast after the server could not be reached */
+	static final long RETRY_DELAY = 1000;
+
+	private final String server;
+	private final InetSocketAddress address;
+	private final NioMemCachedClient.Worker worker;
+	private final long timeout;
+
+	/** the operations not yet written, queued by any thread */
+	private final Queue<Op<?>> pending = new ConcurrentLinkedQueue<Op<?>>();
+
+	// the rest is only used by the thread of the worker
+
+	private final LinkedList<Reply> inFlight = new LinkedList<Reply>();
+	private final LinkedList<ByteBuffer> out = new LinkedList<ByteBuffer>();
+	private ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+	private SocketChannel channel;
+	private SelectionKey key;
+	private boolean connected;
+	private long failedAt;
+
+	/** the header of a value whose data is still to be read */
+	private String valueKey;
+	private int valueFlags;
+	private long valueCas;
+	private int valueLength = -1;
+
+	// ---------------------------------------------------------------------
+	// CONSTRUCTORS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * @param timeout
+	 *            milliseconds after which a server that has not answered is
+	 *            considered dead
+	 */
+	MemCachedConnection(String server, NioMemCachedClient.Worker worker,
+			long timeout) {
+		this.server = server;
+		int colon = server.lastIndexOf(':');
+		String host = colon < 0 ? server : server.substring(0, colon);
+		int port = colon < 0 ? 11211 : Integer.parseInt(server
+				.substring(colon + 1));
+		this.address = new InetSocketAddress(host, port);
+		this.worker = worker;
+		this.timeout = timeout;
+	}
+
+	// ---------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ---------------------------------------------------------------------
+
+	String getServer() {
+		return server;
+	}
+
+	/**
+	 * Queues the operation, from any thread.
+	 */
+	void submit(Op<?> op) {
+		pending.add(op);
+		worker.ready(this);
+	}
+
+	/**
+	 * Writes the queued operations, connecting first if needed. Called by the
+	 * worker.
+	 */
+	void process() {
+		if (channel == null) {
+			if (pending.isEmpty()) {
+				return;
+			}
+			if (System.currentTimeMillis() - failedAt < RETRY_DELAY) {
+				failPending(new IOException("memcached server " + server
+						+ " is unreachable"));
+				return;
+			}
+			connect();
+		}
+		if (!connected) {
+			// written once connected
+			return;
+		}
+		try {
+			for (Reply reply : coalesce(pending, MAX_BATCH)) {
+				reply.sent = System.currentTimeMillis();
+				out.add(ByteBuffer.wrap(reply.command()));
+				inFlight.add(reply);
+			}
+			flush();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Handles the readiness of the channel. Called by the worker.
+	 */
+	void handle(SelectionKey selected) {
+		try {
+			if (selected.isConnectable()) {
+				channel.finishConnect();
+				connected = true;
+				key.interestOps(SelectionKey.OP_READ);
+				process();
+				return;
+			}
+			if (selected.isReadable()) {
+				read();
+			}
+			if (key != null && key.isValid() && selected.isWritable()) {
+				flush();
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Fails the connection if the server has not answered the oldest
+	 * operation in time. Called by the worker.
+	 */
+	void checkTimeout(long now) {
+		Reply oldest = inFlight.peek();
+		if (oldest != null && now - oldest.sent > timeout) {
+			fail(new IOException("memcached server " + server
+					+ " did not answer within " + timeout + "ms"));
+		}
+	}
+
+	/**
+	 * Fails the operations and closes the channel. Called by the worker.
+	 */
+	void close() {
+		closeChannel();
+		failPending(new IOException("memcached client closed"));
+	}
+
+	/**
+	 * Takes the queued operations in order, sending each run of gets as
+	 * multi-gets of at most <em>maxBatch</em> keys. Gets are not moved across
+	 * other operations, so a get following a set of the same key sees it.
+	 */
+	static List<Reply> coalesce(Queue<Op<?>> pending, int maxBatch) {
+		List<Reply> replies = new ArrayList<Reply>();
+		Batch batch = null;
+		Op<?> op;
+		while ((op = pending.poll()) != null) {
+			if (op instanceof GetOp) {
+				if (batch == null || batch.size() >= maxBatch) {
+					batch = new Batch();
+					replies.add(batch);
+				}
+				batch.add((GetOp) op);
+			} else {
+				batch = null;
+				replies.add(op);
+			}
+		}
+		return replies;
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	private void connect() {
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			if (channel.connect(address)) {
+				connected = true;
+				key = channel.register(worker.selector, SelectionKey.OP_READ,
+						this);
+			} else {
+				key = channel.register(worker.selector,
+						SelectionKey.OP_CONNECT, this);
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void flush() throws IOException {
+		while (!out.isEmpty()) {
+			ByteBuffer buffer = out.getFirst();
+			channel.write(buffer);
+			if (buffer.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+			out.removeFirst();
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void read() throws IOException {
+		if (valueLength + 2 > in.capacity()) {
+			grow(valueLength + 2);
+		} else if (!in.hasRemaining()) {
+			grow(in.capacity() * 2);
+		}
+		if (channel.read(in) < 0) {
+			throw new IOException("memcached server " + server
+					+ " closed the connection");
+		}
+		in.flip();
+		try {
+			parse();
+		} finally {
+			in.compact();
+		}
+	}
+
+	private void parse() throws IOException {
+		while (true) {
+			if (valueLength >= 0) {
+				if (in.remaining() < valueLength + 2) {
+					return;
+				}
+				byte[] data = new byte[valueLength];
+				in.get(data);
+				in.position(in.position() + 2);
+				inFlight.getFirst().value(valueKey, valueFlags, valueCas, data);
+				valueLength = -1;
+				continue;
+			}
+			String line = readLine();
+			if (line == null) {
+				return;
+			}
+			Reply head = inFlight.peek();
+			if (head == null) {
+				throw new IOException("unexpected reply from " + server
+						+ ": " + line);
+			}
+			if (line.startsWith("VALUE ")) {
+				String[] words = line.split(" ");
+				if (words.length < 4) {
+					throw new IOException("malformed reply from " + server
+							+ ": " + line);
+				}
+				valueKey = words[1];
+				valueFlags = Integer.parseInt(words[2]);
+				valueLength = Integer.parseInt(words[3]);
+				// only the replies to gets have one
+				valueCas = words.length > 4 ? Long.parseLong(words[4]) : 0;
+			} else if (head.line(line)) {
+				inFlight.removeFirst();
+			}
+		}
+	}
+
+	/** @return the next line without its \r\n, or null if incomplete */
+	private String readLine() throws UnsupportedEncodingException {
+		for (int i = in.position(); i + 1 < in.limit(); i++) {
+			if (in.get(i) == '\r' && in.get(i + 1) == '\n') {
+				byte[] line = new byte[i - in.position()];
+				in.get(line);
+				in.position(i + 2);
+				return new String(line, "US-ASCII");
+			}
+		}
+		return null;
+	}
+
+	private void grow(int capacity) {
+		ByteBuffer bigger = ByteBuffer.allocate(capacity);
+		in.flip();
+		bigger.put(in);
+		in = bigger;
+	}
+
+	private void fail(IOException e) {
+		LOG.warn("connection to memcached server " + server + " failed: "
+				+ e.getMessage());
+		failedAt = System.currentTimeMillis();
+		closeChannel();
+		Reply reply;
+		while ((reply = inFlight.poll()) != null) {
+			reply.fail(e);
+		}
+		failPending(e);
+	}
+
+	private void failPending(IOException e) {
+		Op<?> op;
+		while ((op = pending.poll()) != null) {
+			op.fail(e);
+		}
+	}
+
+	private void closeChannel() {
+		if (channel != null) {
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing left to release
+			}
+		}
+		channel = null;
+		key = null;
+		connected = false;
+		out.clear();
+		in.clear();
+		valueLength = -1;
+	}
+
+	/**
+	 * @param serialized
+	 *            whether the value is read Java serialized, whatever way the
+	 *            danga client stored it, rather than as a byte array
+	 * @return the data of a value, or null if it cannot be read that way.
+	 */
+	private static byte[] stored(int flags, byte[] data, boolean serialized) {
+		if (serialized) {
+			return DangaFormat.toSerialized(flags, data);
+		}
+		// a value the danga client serialized itself cannot be decoded
+		return flags == 0 || flags == NioMemCachedClient.BYTE_ARRAY_FLAGS ? data
+				: null;
+	}
+
+	private static byte[] ascii(String s) {
+		try {
+			return s.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER CLASSES
+	// ---------------------------------------------------------------------
+
+	/**
+	 * What was written to the server and waits for its reply.
+	 */
+	abstract static class Reply {
+
+		/** when it was written */
+		long sent;
+
+		abstract byte[] command();
+
+		/**
+		 * Handles a line of the reply, other than a value.
+		 *
+		 * @return true if the reply is complete.
+		 */
+		abstract boolean line(String line) throws IOException;
+
+		void value(String key, int flags, long cas, byte[] data)
+				throws IOException {
+			throw new IOException("unexpected value of " + key);
+		}
+
+		abstract void fail(Throwable failure);
+	}
+
+	/**
+	 * An operation, which is its own future.
+	 */
+	abstract static class Op<T> extends Reply implements Future<T> {
+
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile T value;
+		private volatile Throwable failure;
+
+		void complete(T result) {
+			if (done.getCount() > 0) {
+				value = result;
+				done.countDown();
+			}
+		}
+
+		@Override
+		void fail(Throwable cause) {
+			if (done.getCount() > 0) {
+				failure = cause;
+				done.countDown();
+			}
+		}
+
+		/**
+		 * An operation written to the server cannot be taken back.
+		 */
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return false;
+		}
+
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		public T get() throws InterruptedException, ExecutionException {
+			done.await();
+			return result();
+		}
+
+		public T get(long timeout, TimeUnit unit) throws InterruptedException,
+				ExecutionException, TimeoutException {
+			if (!done.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return result();
+		}
+
+		private T result() throws ExecutionException {
+			if (failure != null) {
+				throw new ExecutionException(failure);
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * Gets the value of a key, always sent as part of a <code>Batch</code>.
+	 */
+	static final class GetOp extends Op<byte[]> {
+
+		final String key;
+		final boolean serialized;
+
+		/**
+		 * @param serialized
+		 *            whether the value is read Java serialized, as the danga
+		 *            client reads it
+		 */
+		GetOp(String key, boolean serialized) {
+			this.key = key;
+			this.serialized = serialized;
+		}
+
+		@Override
+		byte[] command() {
+			return ascii("get " + key + "\r\n");
+		}
+
+		@Override
+		boolean line(String line) throws IOException {
+			throw new IOException("a get is only sent in a batch");
+		}
+	}
+
+	/**
+	 * Gets the value of a key with its cas unique. Never batched, as a
+	 * multi-get of other keys has no use for the cas uniques.
+	 */
+	static final class GetsOp extends Op<CasValue<byte[]>> {
+
+		final String key;
+		final boolean serialized;
+
+		/**
+		 * @param serialized
+		 *            whether the value is read Java serialized, as the danga
+		 *            client reads it
+		 */
+		GetsOp(String key, boolean serialized) {
+			this.key = key;
+			this.serialized = serialized;
+		}
+
+		@Override
+		byte[] command() {
+			return ascii("gets " + key + "\r\n");
+		}
+
+		@Override
+		void value(String key, int flags, long cas, byte[] data) {
+			// a value that cannot be read cannot be replaced without
+			// decoding it, so it is as good as a miss
+			byte[] value = stored(flags, data, serialized);
+			complete(value == null ? null : new CasValue<byte[]>(value, cas));
+		}
+
+		@Override
+		boolean line(String line) {
+			if ("END".equals(line)) {
+				complete(null);
+			} else {
+				fail(new IOException("gets: " + line));
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A storage, delete or flush command, succeeding with the given reply.
+	 * Error replies fail it, other replies complete it with false.
+	 */
+	static final class CommandOp extends Op<Boolean> {
+
+		private final String command;
+		private final byte[] data;
+		private final String success;
+
+		/**
+		 * @param data
+		 *            the data block of a storage command, null for others
+		 */
+		CommandOp(String command, byte[] data, String success) {
+			this.command = command;
+			this.data = data;
+			this.success = success;
+		}
+
+		@Override
+		byte[] command() {
+			byte[] line = ascii(command + "\r\n");
+			if (data == null) {
+				return line;
+			}
+			byte[] bytes = new byte[line.length + data.length + 2];
+			System.arraycopy(line, 0, bytes, 0, line.length);
+			System.arraycopy(data, 0, bytes, line.length, data.length);
+			bytes[bytes.length - 2] = '\r';
+			bytes[bytes.length - 1] = '\n';
+			return bytes;
+		}
+
+		@Override
+		boolean line(String line) {
+			if (line.equals(success)) {
+				complete(Boolean.TRUE);
+			} else if (line.endsWith("ERROR") || line.startsWith("CLIENT_ERROR")
+					|| line.startsWith("SERVER_ERROR")) {
+				fail(new IOException(command + ": " + line));
+			} else {
+				complete(Boolean.FALSE);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Gets queued next to each other, sent as one multi-get.
+	 */
+	static final class Batch extends Reply {
+
+		private final Map<String, List<GetOp>> ops = new HashMap<String, List<GetOp>>();
+		private final StringBuilder keys = new StringBuilder();
+		private int size;
+
+		void add(GetOp op) {
+			List<GetOp> keyOps = ops.get(op.key);
+			if (keyOps == null) {
+				keyOps = new ArrayList<GetOp>(1);
+				ops.put(op.key, keyOps);
+				keys.append(' ').append(op.key);
+			}
+			keyOps.add(op);
+			size++;
+		}
+
+		int size() {
+			return size;
+		}
+
+		/** @return the distinct keys, in the order they were added */
+		String keys() {
+			return keys.toString().trim();
+		}
+
+		@Override
+		byte[] command() {
+			return ascii("get" + keys + "\r\n");
+		}
+
+		@Override
+		void value(String key, int flags, long cas, byte[] data) {
+			List<GetOp> keyOps = ops.remove(key);
+			if (keyOps == null) {
+				return;
+			}
+			// values that cannot be read are misses
+			for (GetOp op : keyOps) {
+				op.complete(stored(flags, data, op.serialized));
+			}
+		}
+
+		@Override
+		boolean line(String line) {
+			if ("END".equals(line)) {
+				for (List<GetOp> keyOps : ops.values()) {
+					for (GetOp op : keyOps) {
+						op.complete(null);
+					}
+				}
+			} else {
+				fail(new IOException("get: " + line));
+			}
+			return true;
+		}
+
+		@Override
+		void fail(Throwable failure) {
+			for (List<GetOp> keyOps : ops.values()) {
+				for (GetOp op : keyOps) {
+					op.fail(failure);
+				}
+			}
+		}
+	}
+
+}
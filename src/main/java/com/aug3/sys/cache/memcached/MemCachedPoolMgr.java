@@ -6,17 +6,52 @@ import com.danga.MemCached.SockIOPool;
  * An MBean for managing the memcached pool. It can reset the system, 
  * as well as print the current configuration being used by the pool.
  * 
+ * With ketama hashing, each server gets a pool of its own, named after it,
+ * and a <code>MemCachedRouter</code> picks the pool of each key.
+ * 
  * @author xial
  */
 public class MemCachedPoolMgr implements MemCachedPoolMgrMBean {
 
+	private static volatile MemCachedRouter router;
+
+	/**
+	 * @return the router of the keys, or null if the pool routes them.
+	 */
+	static MemCachedRouter getRouter() {
+		return router;
+	}
+
+	/**
+	 * @return the name of the pool of a server, with ketama hashing.
+	 */
+	static String poolName(String server) {
+		return "memcached:" + server;
+	}
+
 	@Override
 	public void reset() {
+		MemCachedConfig config = new MemCachedConfig();
+		synchronized (MemCachedPoolMgr.class) {
+			if (router != null) {
+				router.stopHealthChecks();
+				for (String server : router.getServers()) {
+					SockIOPool pool = SockIOPool.getInstance(poolName(server));
+					if (pool.isInitialized()) {
+						pool.shutDown();
+					}
+				}
+				router = null;
+			}
+			if (config.isKetama()) {
+				resetRouted(config);
+				return;
+			}
+		}
 		SockIOPool pool = SockIOPool.getInstance();
 		if (pool.isInitialized()) {
 			pool.shutDown();
 		}
-		MemCachedConfig config = new MemCachedConfig();
 		pool.setServers(config.getServers());
 		pool.setWeights(config.getWeights());
 		pool.setInitConn(config.getMinConnections());
@@ -40,6 +75,40 @@ public class MemCachedPoolMgr implements MemCachedPoolMgrMBean {
 		pool.initialize();
 	}
 
+	@Override
+	public String liveServers() {
+		MemCachedRouter current = router;
+		return current == null ? "routed by the pool" : current.toString();
+	}
+
+	/**
+	 * Creates one pool per server, without failover since the router moves
+	 * the keys of dead servers, and starts probing the servers.
+	 */
+	private void resetRouted(MemCachedConfig config) {
+		String[] servers = config.getServers();
+		MemCachedRouter newRouter = new MemCachedRouter(servers, config
+				.getWeights());
+		for (String server : newRouter.getServers()) {
+			SockIOPool pool = SockIOPool.getInstance(poolName(server));
+			if (pool.isInitialized()) {
+				pool.shutDown();
+			}
+			pool.setServers(new String[] { server });
+			pool.setInitConn(config.getMinConnections());
+			pool.setMinConn(config.getMinConnections());
+			pool.setMaxConn(config.getMaxConnections());
+			pool.setMaxIdle(1000 * 60 * 60 * 6);
+			pool.setFailover(false);
+			pool.setSocketConnectTO(config.getHealthTimeout());
+			pool.initialize();
+		}
+		newRouter.startHealthChecks(new MemCachedRouter.VersionProbe(config
+				.getHealthTimeout()), config.getHealthInterval(), config
+				.getHealthFailures());
+		router = newRouter;
+	}
+
 	@Override
 	public String currentConfig() {
 		MemCachedConfig config = new MemCachedConfig();
@@ -17,4 +17,9 @@ public interface MemCachedPoolMgrMBean {
 	 */
 	String currentConfig();
 
+	/**
+	 * @return the servers keys are routed to, with ketama hashing
+	 */
+	String liveServers();
+
 }
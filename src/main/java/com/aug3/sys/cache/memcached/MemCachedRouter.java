@@ -0,0 +1,415 @@
+package com.aug3.sys.cache.memcached;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.aug3.sys.CommonRuntimeException;
+
+/**
+ * Maps keys to memcached servers with ketama consistent hashing, and keeps
+ * dead servers out of the mapping.
+ *
+ * Each server is placed at 160 points per unit of weight on a ring of 32-bit
+ * hashes, the points being derived from its address only. A key belongs to
+ * the first point following the MD5 hash of the key. Since the points of a
+ * server do not depend on the other servers, adding or removing a server only
+ * moves the keys of that server: about 1/n of the keys instead of nearly all
+ * of them with modulo hashing.
+ *
+ * Once health checks are started, every server is probed at a fixed interval
+ * on a background thread. A server failing the given number of probes in a row
+ * is ejected from the ring, so that requests go to the next server instead of
+ * waiting for socket timeouts, and it rejoins the ring after as many
+ * successful probes. The keys of an ejected server are then cold on the server
+ * they moved to, and those written meanwhile are stale on it once it rejoins;
+ * entries should have a time to live for that reason.
+ *
+ * The router is thread-safe. Routing reads an immutable ring and takes no
+ * lock.
+ *
+ * @author xial
+ */
+public class MemCachedRouter {
+
+	private static final Logger LOG = Logger.getLogger(MemCachedRouter.class);
+
+	/** points of a server per unit of weight, 4 per MD5 digest */
+	static final int POINTS_PER_WEIGHT = 160;
+
+	/** probes the servers of all the routers */
+	private static final ScheduledExecutorService prober = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "memcached-health");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private static final ThreadLocal<MessageDigest> md5 = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new CommonRuntimeException("MD5 is not available", e);
+			}
+		}
+	};
+
+	private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+	private volatile Ring ring;
+	private ScheduledFuture<?> healthChecks;
+
+	// ---------------------------------------------------------------------
+	// CONSTRUCTORS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * @param servers
+	 *            the addresses of the servers, host:port
+	 * @param weights
+	 *            the weight of each server, or null to weigh them all 1
+	 */
+	public MemCachedRouter(String[] servers, Integer[] weights) {
+		if (weights != null && weights.length != servers.length) {
+			throw new IllegalArgumentException(servers.length
+					+ " servers but " + weights.length + " weights");
+		}
+		for (int i = 0; i < servers.length; i++) {
+			int weight = weights == null ? 1 : weights[i].intValue();
+			if (weight <= 0) {
+				throw new IllegalArgumentException("weight of " + servers[i]
+						+ " must be positive: " + weight);
+			}
+			String server = servers[i].trim();
+			nodes.put(server, new Node(server, weight));
+		}
+		rebuild();
+	}
+
+	// ---------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * @return the live server the key belongs to, or null if all servers are
+	 *         down.
+	 */
+	public String route(String key) {
+		return ring.route(hash(key));
+	}
+
+	/**
+	 * @return the keys grouped by the live server they belong to. Keys are
+	 *         left out if all servers are down.
+	 */
+	public Map<String, List<String>> routeAll(Collection<? extends String> keys) {
+		Ring current = ring;
+		Map<String, List<String>> routes = new HashMap<String, List<String>>();
+		for (String key : keys) {
+			String server = current.route(hash(key));
+			if (server == null) {
+				continue;
+			}
+			List<String> serverKeys = routes.get(server);
+			if (serverKeys == null) {
+				serverKeys = new ArrayList<String>();
+				routes.put(server, serverKeys);
+			}
+			serverKeys.add(key);
+		}
+		return routes;
+	}
+
+	/**
+	 * @return all the configured servers, dead or alive.
+	 */
+	public synchronized List<String> getServers() {
+		return new ArrayList<String>(nodes.keySet());
+	}
+
+	/**
+	 * @return the servers currently in the ring.
+	 */
+	public List<String> getLiveServers() {
+		return ring.live;
+	}
+
+	/**
+	 * Takes the server out of the ring, until it passes the health checks
+	 * again.
+	 */
+	public synchronized void eject(String server) {
+		Node node = node(server);
+		if (node.alive) {
+			node.alive = false;
+			node.successes = 0;
+			rebuild();
+			LOG.warn("ejected memcached server " + server);
+		}
+	}
+
+	/**
+	 * Puts the server back in the ring.
+	 */
+	public synchronized void rejoin(String server) {
+		Node node = node(server);
+		if (!node.alive) {
+			node.alive = true;
+			node.failures = 0;
+			rebuild();
+			LOG.info("memcached server " + server + " rejoined");
+		}
+	}
+
+	/**
+	 * Probes all the servers every <em>interval</em> milliseconds, replacing
+	 * the health checks previously started.
+	 *
+	 * @param threshold
+	 *            the number of failed probes in a row after which a server is
+	 *            ejected, and of successful ones after which it rejoins
+	 */
+	public synchronized void startHealthChecks(final Probe probe,
+			long interval, final int threshold) {
+		if (threshold <= 0) {
+			throw new IllegalArgumentException("threshold must be positive: "
+					+ threshold);
+		}
+		stopHealthChecks();
+		healthChecks = prober.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for (String server : getServers()) {
+					boolean alive;
+					try {
+						alive = probe.isAlive(server);
+					} catch (RuntimeException e) {
+						LOG.warn("failed probing memcached server " + server, e);
+						alive = false;
+					}
+					record(server, alive, threshold);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stopHealthChecks() {
+		if (healthChecks != null) {
+			healthChecks.cancel(false);
+			healthChecks = null;
+		}
+	}
+
+	public String toString() {
+		return "live=" + getLiveServers() + " of " + getServers();
+	}
+
+	/**
+	 * @return the ketama hash of the key: the first 4 bytes of its MD5
+	 *         digest, as an unsigned little-endian integer.
+	 */
+	static long hash(String key) {
+		return point(digest(key), 0);
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	private synchronized void record(String server, boolean alive,
+			int threshold) {
+		Node node = nodes.get(server);
+		if (alive) {
+			node.failures = 0;
+			if (!node.alive && ++node.successes >= threshold) {
+				rejoin(server);
+			}
+		} else {
+			node.successes = 0;
+			if (node.alive && ++node.failures >= threshold) {
+				eject(server);
+			}
+		}
+	}
+
+	private Node node(String server) {
+		Node node = nodes.get(server);
+		if (node == null) {
+			throw new IllegalArgumentException("unknown memcached server "
+					+ server);
+		}
+		return node;
+	}
+
+	/** builds the ring of the live servers, called with the lock held */
+	private void rebuild() {
+		TreeMap<Long, String> points = new TreeMap<Long, String>();
+		List<String> live = new ArrayList<String>();
+		for (Node node : nodes.values()) {
+			if (!node.alive) {
+				continue;
+			}
+			live.add(node.server);
+			int digests = node.weight * POINTS_PER_WEIGHT / 4;
+			for (int i = 0; i < digests; i++) {
+				byte[] digest = digest(node.server + "-" + i);
+				for (int j = 0; j < 4; j++) {
+					Long point = Long.valueOf(point(digest, j));
+					// on a collision, the first server keeps the point
+					if (!points.containsKey(point)) {
+						points.put(point, node.server);
+					}
+				}
+			}
+		}
+		ring = new Ring(points, live);
+	}
+
+	private static byte[] digest(String value) {
+		MessageDigest digest = md5.get();
+		digest.reset();
+		try {
+			return digest.digest(value.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new CommonRuntimeException("UTF-8 is not supported", e);
+		}
+	}
+
+	private static long point(byte[] digest, int i) {
+		return ((long) (digest[3 + i * 4] & 0xff) << 24)
+				| ((long) (digest[2 + i * 4] & 0xff) << 16)
+				| ((long) (digest[1 + i * 4] & 0xff) << 8)
+				| (digest[i * 4] & 0xff);
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER CLASSES
+	// ---------------------------------------------------------------------
+
+	/**
+	 * Tells whether a server is up.
+	 */
+	public interface Probe {
+
+		/**
+		 * @return true if the server answers. It must not block for long.
+		 */
+		boolean isAlive(String server);
+
+	}
+
+	/**
+	 * Probes a server with the <code>version</code> command of the memcached
+	 * text protocol.
+	 */
+	public static class VersionProbe implements Probe {
+
+		private final int timeout;
+
+		/**
+		 * @param timeout
+		 *            the connect and read timeout in milliseconds
+		 */
+		public VersionProbe(int timeout) {
+			this.timeout = timeout;
+		}
+
+		public boolean isAlive(String server) {
+			int colon = server.lastIndexOf(':');
+			String host = colon < 0 ? server : server.substring(0, colon);
+			int port = colon < 0 ? 11211 : Integer.parseInt(server
+					.substring(colon + 1));
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(host, port), timeout);
+				socket.setSoTimeout(timeout);
+				OutputStream out = socket.getOutputStream();
+				out.write("version\r\n".getBytes("US-ASCII"));
+				out.flush();
+				String line = new BufferedReader(new InputStreamReader(socket
+						.getInputStream(), "US-ASCII")).readLine();
+				return line != null && line.startsWith("VERSION");
+			} catch (IOException e) {
+				return false;
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// nothing left to release
+				}
+			}
+		}
+	}
+
+	private static final class Node {
+		final String server;
+		final int weight;
+		boolean alive = true;
+		int failures;
+		int successes;
+
+		Node(String server, int weight) {
+			this.server = server;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * The sorted points of the live servers.
+	 */
+	private static final class Ring {
+		final long[] points;
+		final String[] servers;
+		final List<String> live;
+
+		Ring(TreeMap<Long, String> sorted, List<String> live) {
+			points = new long[sorted.size()];
+			servers = new String[sorted.size()];
+			int i = 0;
+			for (Map.Entry<Long, String> e : sorted.entrySet()) {
+				points[i] = e.getKey().longValue();
+				servers[i] = e.getValue();
+				i++;
+			}
+			this.live = Collections.unmodifiableList(live);
+		}
+
+		String route(long hash) {
+			if (points.length == 0) {
+				return null;
+			}
+			int i = Arrays.binarySearch(points, hash);
+			if (i < 0) {
+				i = -i - 1;
+				if (i == points.length) {
+					i = 0;
+				}
+			}
+			return servers[i];
+		}
+	}
+
+}
@@ -0,0 +1,477 @@
+package com.aug3.sys.cache.memcached;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.aug3.sys.action.AbstractAction;
+import com.aug3.sys.cache.AbstractCache;
+import com.aug3.sys.cache.CacheStats;
+import com.aug3.sys.cache.ConcurrentLRUCache;
+import com.aug3.sys.cache.ICache;
+import com.aug3.sys.cfg.ConfigConstants;
+import com.aug3.sys.cfg.ConfigException;
+import com.aug3.sys.cfg.UpdateNotification;
+import com.aug3.sys.cfg.UpdateNotifier;
+
+/**
+ * A two-level cache keeping a small local copy of the entries read from a
+ * remote cache, memcached by default, so that repeated reads of the same keys
+ * do not each pay a network round trip.
+ * 
+ * The local tier is a bounded <code>ConcurrentLRUCache</code> whose entries
+ * live for a short time. Writes and removals go to the remote cache and are
+ * broadcast through the <code>UpdateNotifier</code>, so that the other near
+ * caches, in this process or the others, drop their copy of the key.
+ * Notifications can be lost or disabled, so the time to live bounds how stale
+ * a local copy can get. The near caches of a process share one callback,
+ * which only holds them weakly, so a near cache no longer used can be
+ * collected without being closed.
+ * 
+ * When the remote cache is a <code>CasCache</code>, as the memcached adapters
+ * are, <code>compute</code>, <code>merge</code> and <code>putIfAbsent</code>
+ * update it atomically, then update the local tier and tell the other
+ * processes as a write does.
+ * 
+ * Local and remote hits are counted separately. Since the cache has a
+ * no-argument constructor, it can be selected as the base cache of a
+ * <code>SmartCache</code>; it is then sized by the properties
+ * <code>memcached.near.size</code> and <code>memcached.near.ttl</code> of
+ * <code>memcached.properties</code>.
+ * 
+ * @see MemCachedConfig
+ * 
+ * @author xial
+ * 
+ * @param <V>
+ *            the cached object
+ */
+public class NearCache<V> extends AbstractCache<String, V> implements
+		CasCache<V> {
+
+	private static final Logger LOG = Logger.getLogger(NearCache.class);
+
+	/** the callback token of the invalidation notifications */
+	static final String CALLBACK_TOKEN = "near-cache";
+
+	/** the near caches told of the notifications, weakly held */
+	private static final Map<NearCache<?>, Boolean> listeners = new WeakHashMap<NearCache<?>, Boolean>();
+	/** guarded by the listeners */
+	private static boolean callbackAdded;
+
+	/** tells the notifications published by this cache from the others */
+	private final String sourceId = UUID.randomUUID().toString();
+
+	private final ICache<String, V> remote;
+	private final ConcurrentLRUCache<String, LocalEntry<V>> local;
+	private final long timeToLive;
+
+	private final AtomicLong localHits = new AtomicLong();
+	private final AtomicLong remoteHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	// ---------------------------------------------------------------------
+	// CONSTRUCTORS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * Creates a near cache in front of memcached, configured by
+	 * <code>memcached.properties</code>, which also selects the memcached
+	 * client.
+	 */
+	public NearCache() {
+		this(new MemCachedConfig());
+	}
+
+	private NearCache(MemCachedConfig config) {
+		this(config.isNio() ? new NioMemCachedAdapter<V>()
+				: new MemCachedAdapter<V>(), config);
+	}
+
+	private NearCache(ICache<String, V> remote, MemCachedConfig config) {
+		this(remote, config.getNearCacheSize(),
+				config.getNearCacheTimeToLive() * 1000L);
+	}
+
+	/**
+	 * @param remote
+	 *            the cache shared by all processes
+	 * @param localCapacity
+	 *            the maximum number of entries kept locally
+	 * @param timeToLive
+	 *            how long a local copy may be used, in milliseconds
+	 */
+	public NearCache(ICache<String, V> remote, int localCapacity,
+			long timeToLive) {
+		if (timeToLive <= 0) {
+			throw new IllegalArgumentException(
+					"time to live must be positive: " + timeToLive);
+		}
+		this.remote = remote;
+		this.local = new ConcurrentLRUCache<String, LocalEntry<V>>(
+				localCapacity);
+		this.timeToLive = timeToLive;
+
+		listen(this);
+		try {
+			UpdateNotifier.start();
+		} catch (ConfigException e) {
+			LOG.warn("near cache invalidation disabled, local entries will "
+					+ "only expire: " + e.getMessage());
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ---------------------------------------------------------------------
+
+	@Override
+	public V get(String key) {
+		LocalEntry<V> entry = local.get(key);
+		long now = System.currentTimeMillis();
+		if (entry != null && now < entry.expires) {
+			localHits.incrementAndGet();
+			return entry.value;
+		}
+		V value = remote.get(key);
+		if (value == null) {
+			misses.incrementAndGet();
+			if (entry != null) {
+				local.remove(key);
+			}
+			return null;
+		}
+		remoteHits.incrementAndGet();
+		local.put(key, new LocalEntry<V>(value, now + timeToLive));
+		return value;
+	}
+
+	/**
+	 * Serves what it can from the local tier and fetches the other keys from
+	 * the remote cache in one bulk call.
+	 */
+	@Override
+	public Map<String, V> getAll(Collection<? extends String> keys) {
+		Map<String, V> values = new HashMap<String, V>();
+		List<String> missing = new ArrayList<String>();
+		long now = System.currentTimeMillis();
+		for (String key : keys) {
+			LocalEntry<V> entry = local.get(key);
+			if (entry != null && now < entry.expires) {
+				values.put(key, entry.value);
+			} else {
+				missing.add(key);
+			}
+		}
+		localHits.addAndGet(values.size());
+		if (missing.isEmpty()) {
+			return values;
+		}
+		Map<String, V> fetched = remote.getAll(missing);
+		for (String key : missing) {
+			V value = fetched.get(key);
+			if (value == null) {
+				local.remove(key);
+			} else {
+				local.put(key, new LocalEntry<V>(value, now + timeToLive));
+				values.put(key, value);
+			}
+		}
+		remoteHits.addAndGet(fetched.size());
+		misses.addAndGet(missing.size() - fetched.size());
+		return values;
+	}
+
+	@Override
+	public V put(String key, V value) {
+		V old = remote.put(key, value);
+		local.put(key, new LocalEntry<V>(value, System.currentTimeMillis()
+				+ timeToLive));
+		publish(key);
+		return old;
+	}
+
+	@Override
+	public V remove(String key) {
+		local.remove(key);
+		V old = remote.remove(key);
+		publish(key);
+		return old;
+	}
+
+	/**
+	 * @throws UnsupportedOperationException
+	 *             if the remote cache is not a <code>CasCache</code>
+	 */
+	public V compute(String key, Updater<V> updater) {
+		return updated(key, remoteCas().compute(key, updater));
+	}
+
+	/**
+	 * @throws UnsupportedOperationException
+	 *             if the remote cache is not a <code>CasCache</code>
+	 */
+	public V merge(String key, V value, Merger<V> merger) {
+		return updated(key, remoteCas().merge(key, value, merger));
+	}
+
+	/**
+	 * @throws UnsupportedOperationException
+	 *             if the remote cache is not a <code>CasCache</code>
+	 */
+	public V putIfAbsent(String key, V value) {
+		V current = remoteCas().putIfAbsent(key, value);
+		if (current != null) {
+			local.put(key, new LocalEntry<V>(current, System
+					.currentTimeMillis()
+					+ timeToLive));
+			return current;
+		}
+		updated(key, value);
+		return null;
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		LocalEntry<V> entry = local.get(key);
+		if (entry != null && System.currentTimeMillis() < entry.expires) {
+			return true;
+		}
+		return remote.containsKey(key);
+	}
+
+	/**
+	 * Flushes both tiers, and the near caches of the other processes.
+	 */
+	@Override
+	public void flush() {
+		local.flush();
+		remote.flush();
+		publish(null);
+	}
+
+	/**
+	 * Drops the local copy of the key, if any, leaving the remote cache
+	 * untouched.
+	 */
+	public void invalidate(String key) {
+		local.remove(key);
+	}
+
+	/**
+	 * Drops all the local copies, leaving the remote cache untouched.
+	 */
+	public void invalidateAll() {
+		local.flush();
+	}
+
+	/**
+	 * @return the number of reads served by the local tier.
+	 */
+	public long getLocalHitCount() {
+		return localHits.get();
+	}
+
+	/**
+	 * @return the number of reads served by the remote cache.
+	 */
+	public long getRemoteHitCount() {
+		return remoteHits.get();
+	}
+
+	/**
+	 * @return the number of reads found in neither tier.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the share of all reads served by the local tier.
+	 */
+	public double getLocalHitRate() {
+		long local = localHits.get();
+		return ratio(local, local + remoteHits.get() + misses.get());
+	}
+
+	/**
+	 * @return the share of the reads missing the local tier that were served
+	 *         by the remote cache.
+	 */
+	public double getRemoteHitRate() {
+		long remote = remoteHits.get();
+		return ratio(remote, remote + misses.get());
+	}
+
+	/**
+	 * @return the statistics of the near cache, a hit being served by either
+	 *         tier. Evictions and size are those of the local tier.
+	 */
+	@Override
+	public CacheStats getStats() {
+		CacheStats localStats = local.getStats();
+		return new CacheStats(localHits.get() + remoteHits.get(), misses
+				.get(), 0, 0, 0, localStats.getEvictionCount(), localStats
+				.getSize(), localStats.getWeightedSize(),
+				new long[CacheStats.LATENCY_BUCKETS]);
+	}
+
+	public String toString() {
+		return "NearCache[localHits=" + localHits + ", remoteHits="
+				+ remoteHits + ", misses=" + misses + "]";
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	@SuppressWarnings("unchecked")
+	private CasCache<V> remoteCas() {
+		if (!(remote instanceof CasCache<?>)) {
+			throw new UnsupportedOperationException(remote.getClass()
+					.getName()
+					+ " cannot be updated atomically");
+		}
+		return (CasCache<V>) remote;
+	}
+
+	/**
+	 * Keeps the new value of the key in the local tier, or drops it if the
+	 * key was removed, and tells the other processes.
+	 * 
+	 * @return the new value.
+	 */
+	private V updated(String key, V value) {
+		if (value == null) {
+			local.remove(key);
+		} else {
+			local.put(key, new LocalEntry<V>(value, System
+					.currentTimeMillis()
+					+ timeToLive));
+		}
+		publish(key);
+		return value;
+	}
+
+	/**
+	 * Tells the other near caches to drop their copy of the key, or of all
+	 * keys when the key is null.
+	 */
+	private void publish(String key) {
+		UpdateNotification notification = invalidation(key);
+		try {
+			UpdateNotifier.publish(notification);
+		} catch (ConfigException e) {
+			LOG.warn("failed to publish near cache invalidation of " + key
+					+ ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the notification telling the other near caches to drop their
+	 *         copy of the key, or of all keys when the key is null.
+	 */
+	UpdateNotification invalidation(String key) {
+		UpdateNotification notification = new UpdateNotification();
+		notification.setCallbackToken(CALLBACK_TOKEN);
+		notification.setCustomLongVal1(UpdateNotification.CACHE_CHANGE_CODE);
+		notification.setCustomStrVal1(key);
+		notification.setCustomStrVal2(sourceId);
+		return notification;
+	}
+
+	/**
+	 * Drops the local copy of the key named by the custom string value 1 of
+	 * the notification, or all local copies if there is none. Notifications
+	 * published by this cache are ignored, its own writes having already
+	 * updated the local tier.
+	 */
+	void onNotification(UpdateNotification notification) {
+		if (notification == null
+				|| sourceId.equals(notification.getCustomStrVal2())) {
+			return;
+		}
+		String key = notification.getCustomStrVal1();
+		if (key == null) {
+			invalidateAll();
+		} else {
+			invalidate(key);
+		}
+	}
+
+	/**
+	 * Adds the cache to the ones told of the notifications, registering the
+	 * callback of the process with the first.
+	 */
+	private static void listen(NearCache<?> cache) {
+		synchronized (listeners) {
+			listeners.put(cache, Boolean.TRUE);
+			if (callbackAdded) {
+				return;
+			}
+			callbackAdded = true;
+		}
+		UpdateNotification matcher = new UpdateNotification();
+		matcher.setCallbackToken(CALLBACK_TOKEN);
+		UpdateNotifier.addCallback(matcher, new InvalidateAction(),
+				ConfigConstants.UPDATE_NOTIFY_CALLBACK_PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Tells the near caches still in use of the notification.
+	 */
+	static void dispatch(UpdateNotification notification) {
+		List<NearCache<?>> caches;
+		synchronized (listeners) {
+			caches = new ArrayList<NearCache<?>>(listeners.keySet());
+		}
+		for (NearCache<?> cache : caches) {
+			cache.onNotification(notification);
+		}
+	}
+
+	/**
+	 * @return the number of near caches told of the notifications.
+	 */
+	static int listenerCount() {
+		synchronized (listeners) {
+			return listeners.size();
+		}
+	}
+
+	private static double ratio(long count, long total) {
+		return total == 0 ? 0.0 : (double) count / total;
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER CLASSES
+	// ---------------------------------------------------------------------
+
+	private static final class LocalEntry<V> {
+		final V value;
+		final long expires;
+
+		LocalEntry(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	private static class InvalidateAction extends AbstractAction {
+
+		@SuppressWarnings("rawtypes")
+		public Object perform(Map parms) {
+			dispatch((UpdateNotification) parms
+					.get(UpdateNotifier.NOTIFICATION));
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,366 @@
+package com.aug3.sys.cache.memcached;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+import com.aug3.sys.cache.AbstractCache;
+import com.aug3.sys.cache.CacheMgr;
+import com.aug3.sys.cache.CacheStats;
+import com.aug3.sys.cache.codec.SerializingCodec;
+import com.aug3.sys.cache.codec.ValueCodec;
+
+/**
+ * This adapter allows one to use the <code>NioMemCachedClient</code> within
+ * the ICache framework, in place of the <code>MemCachedAdapter</code>. It is
+ * selected by <code>memcached.client=nio</code> in
+ * <code>memcached.properties</code>, which configures both adapters, and
+ * since it has a no-argument constructor it can also be named as the base
+ * cache of a <code>SmartCache</code>.
+ *
+ * Calls do not hold a connection while waiting: the operations of all threads
+ * are pipelined on a few connections, and concurrent gets are sent as
+ * multi-gets. <code>putAll</code> and <code>removeAll</code> send all their
+ * operations before waiting for the first reply. The async methods return at
+ * once.
+ *
+ * A call waits for its reply at most the timeout of the client. A get that
+ * times out or whose server cannot be reached is a miss, and a write is
+ * dropped; the failure is logged. <code>put</code> and <code>remove</code>
+ * return null rather than the previous value.
+ *
+ * Values are encoded by the codec configured in
+ * <code>memcached.properties</code>. If it is <code>none</code>, they are
+ * Java serialized and stored the way the danga client stores the values it
+ * serializes itself, so that the adapter shares them with the
+ * <code>MemCachedAdapter</code> without a codec: it reads the values that
+ * adapter stored, and that adapter reads its values. The adapters created
+ * without a client share one, and their statistics, exposed through JMX as
+ * the cache named "memcached.nio".
+ *
+ * <code>compute</code>, <code>merge</code> and <code>putIfAbsent</code> update
+ * the values atomically with the gets, add and cas commands. A server that
+ * cannot be reached makes them give up, as if they kept losing to other
+ * writers.
+ *
+ * @see MemCachedConfig
+ *
+ * @author xial
+ *
+ * @param <V>
+ */
+public class NioMemCachedAdapter<V> extends AbstractCache<String, V>
+		implements CasCache<V> {
+
+	private static final Logger LOG = Logger
+			.getLogger(NioMemCachedAdapter.class);
+
+	private static MemCachedConfig config = new MemCachedConfig();
+
+	private static NioMemCachedClient sharedClient;
+
+	private final NioMemCachedClient client;
+	private final ValueCodec<V> codec;
+	private final CasTemplate<V> updates;
+
+	/**
+	 * Creates an adapter of the client configured by
+	 * <code>memcached.properties</code>.
+	 */
+	public NioMemCachedAdapter() {
+		this(sharedClient(), config.<V> createCodec());
+	}
+
+	/**
+	 * @param codec
+	 *            encodes the values, or null for the Java serialization in
+	 *            the format of the danga client
+	 */
+	public NioMemCachedAdapter(NioMemCachedClient client, ValueCodec<V> codec) {
+		this.client = codec == null ? client.serializing() : client;
+		this.codec = codec == null ? new SerializingCodec<V>() : codec;
+		this.updates = new CasTemplate<V>(config.getCasRetries()) {
+			CasValue<V> gets(String key) {
+				CasValue<byte[]> stored = await(
+						NioMemCachedAdapter.this.client.gets(key), null);
+				return stored == null ? null : new CasValue<V>(
+						decode(stored.getValue()), stored.getCas());
+			}
+
+			boolean add(String key, V value) {
+				return await(NioMemCachedAdapter.this.client.add(key,
+						NioMemCachedAdapter.this.codec.encode(value), 0),
+						Boolean.FALSE).booleanValue();
+			}
+
+			boolean cas(String key, V value, long cas) {
+				return await(NioMemCachedAdapter.this.client.cas(key,
+						NioMemCachedAdapter.this.codec.encode(value), cas, 0),
+						Boolean.FALSE).booleanValue();
+			}
+
+			boolean delete(String key) {
+				return NioMemCachedAdapter.this.delete(key);
+			}
+		};
+	}
+
+	@Override
+	public V get(String key) {
+		V value = decode(await(client.get(key), null));
+		if (value == null) {
+			client.stats.recordMisses(1);
+		} else {
+			client.stats.recordHits(1);
+		}
+		return value;
+	}
+
+	/**
+	 * @return null, the previous value is not fetched.
+	 */
+	@Override
+	public V put(String key, V value) {
+		set(key, value);
+		return null;
+	}
+
+	/**
+	 * @return null, the previous value is not fetched.
+	 */
+	@Override
+	public V remove(String key) {
+		delete(key);
+		return null;
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return await(client.get(key), null) != null;
+	}
+
+	@Override
+	public void flush() {
+		client.flushAll();
+	}
+
+	@Override
+	public Map<String, V> getAll(Collection<? extends String> keys) {
+		Map<String, V> values = new HashMap<String, V>();
+		if (keys.isEmpty()) {
+			return values;
+		}
+		Map<String, byte[]> found = await(client.getMulti(keys), null);
+		if (found != null) {
+			decodeAll(found, values);
+		}
+		client.stats.recordHits(values.size());
+		client.stats.recordMisses(keys.size() - values.size());
+		return values;
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ? extends V> map) {
+		List<Future<Boolean>> writes = new ArrayList<Future<Boolean>>(map
+				.size());
+		for (Map.Entry<? extends String, ? extends V> e : map.entrySet()) {
+			writes.add(client.set(e.getKey(), codec.encode(e.getValue()), 0));
+		}
+		for (Future<Boolean> write : writes) {
+			await(write, Boolean.FALSE);
+		}
+	}
+
+	@Override
+	public void removeAll(Collection<? extends String> keys) {
+		List<Future<Boolean>> deletes = new ArrayList<Future<Boolean>>(keys
+				.size());
+		for (String key : keys) {
+			deletes.add(client.delete(key));
+		}
+		for (Future<Boolean> delete : deletes) {
+			await(delete, Boolean.FALSE);
+		}
+	}
+
+	public V compute(String key, Updater<V> updater) {
+		return updates.compute(key, updater);
+	}
+
+	public V merge(String key, V value, Merger<V> merger) {
+		return updates.merge(key, value, merger);
+	}
+
+	public V putIfAbsent(String key, V value) {
+		return updates.putIfAbsent(key, value);
+	}
+
+	/**
+	 * @return the statistics of all the adapters of the client, the size
+	 *         being unknown.
+	 */
+	@Override
+	public CacheStats getStats() {
+		return client.stats.snapshot(-1, -1);
+	}
+
+	/**
+	 * @return true if the value was stored.
+	 */
+	public boolean set(String key, V value, long expireSeconds) {
+		return await(client.set(key, codec.encode(value), expireSeconds),
+				Boolean.FALSE).booleanValue();
+	}
+
+	/**
+	 * @return true if the value was stored.
+	 */
+	public boolean set(String key, V value) {
+		return set(key, value, 0);
+	}
+
+	/**
+	 * @return true if the key was found and removed.
+	 */
+	public boolean delete(String key) {
+		return await(client.delete(key), Boolean.FALSE).booleanValue();
+	}
+
+	/**
+	 * @return the future value of the key, null if it is not found. The
+	 *         future fails if the server of the key cannot be reached.
+	 */
+	public Future<V> getAsync(String key) {
+		return new DecodingFuture<byte[], V>(client.get(key)) {
+			V decode(byte[] stored) {
+				V value = NioMemCachedAdapter.this.decode(stored);
+				if (value == null) {
+					client.stats.recordMisses(1);
+				} else {
+					client.stats.recordHits(1);
+				}
+				return value;
+			}
+		};
+	}
+
+	/**
+	 * @return the future values of the keys found.
+	 */
+	public Future<Map<String, V>> getAllAsync(
+			final Collection<? extends String> keys) {
+		return new DecodingFuture<Map<String, byte[]>, Map<String, V>>(client
+				.getMulti(keys)) {
+			Map<String, V> decode(Map<String, byte[]> found) {
+				Map<String, V> values = new HashMap<String, V>();
+				decodeAll(found, values);
+				client.stats.recordHits(values.size());
+				client.stats.recordMisses(keys.size() - values.size());
+				return values;
+			}
+		};
+	}
+
+	/**
+	 * @return true in the future if the value was stored.
+	 */
+	public Future<Boolean> setAsync(String key, V value, long expireSeconds) {
+		return client.set(key, codec.encode(value), expireSeconds);
+	}
+
+	/**
+	 * @return true in the future if the key was found and removed.
+	 */
+	public Future<Boolean> deleteAsync(String key) {
+		return client.delete(key);
+	}
+
+	public NioMemCachedClient getClient() {
+		return client;
+	}
+
+	private static synchronized NioMemCachedClient sharedClient() {
+		if (sharedClient == null) {
+			sharedClient = new NioMemCachedClient(config);
+			CacheMgr.register("memcached.nio", new NioMemCachedAdapter<Object>(
+					sharedClient, null));
+		}
+		return sharedClient;
+	}
+
+	/**
+	 * @return the result of the operation, or <em>otherwise</em> if it failed
+	 *         or timed out.
+	 */
+	private <T> T await(Future<T> future, T otherwise) {
+		try {
+			return future.get(client.getTimeout(), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			LOG.warn("memcached operation failed: "
+					+ e.getCause().getMessage());
+		} catch (TimeoutException e) {
+			LOG.warn("memcached operation timed out after "
+					+ client.getTimeout() + "ms");
+		}
+		return otherwise;
+	}
+
+	private void decodeAll(Map<String, byte[]> found, Map<String, V> values) {
+		for (Map.Entry<String, byte[]> e : found.entrySet()) {
+			V value = decode(e.getValue());
+			if (value != null) {
+				values.put(e.getKey(), value);
+			}
+		}
+	}
+
+	private V decode(byte[] stored) {
+		return stored == null ? null : codec.decode(stored);
+	}
+
+	/**
+	 * Decodes the result of an operation once it is done.
+	 */
+	private abstract static class DecodingFuture<S, T> implements Future<T> {
+
+		private final Future<S> stored;
+
+		DecodingFuture(Future<S> stored) {
+			this.stored = stored;
+		}
+
+		abstract T decode(S value);
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return stored.cancel(mayInterruptIfRunning);
+		}
+
+		public boolean isCancelled() {
+			return stored.isCancelled();
+		}
+
+		public boolean isDone() {
+			return stored.isDone();
+		}
+
+		public T get() throws InterruptedException, ExecutionException {
+			return decode(stored.get());
+		}
+
+		public T get(long timeout, TimeUnit unit) throws InterruptedException,
+				ExecutionException, TimeoutException {
+			return decode(stored.get(timeout, unit));
+		}
+	}
+
+}
@@ -0,0 +1,504 @@
+package com.aug3.sys.cache.memcached;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import com.aug3.sys.CommonRuntimeException;
+import com.aug3.sys.cache.StatsCounter;
+import com.aug3.sys.cache.memcached.MemCachedConnection.CommandOp;
+import com.aug3.sys.cache.memcached.MemCachedConnection.GetOp;
+import com.aug3.sys.cache.memcached.MemCachedConnection.GetsOp;
+import com.aug3.sys.cache.memcached.MemCachedConnection.Op;
+
+/**
+ * A memcached client doing non-blocking I/O on a few selector threads,
+ * instead of holding a socket of the pool for the whole of each call. It
+ * stores byte arrays; <code>NioMemCachedAdapter</code> puts it behind the
+ * <code>ICache</code> interface.
+ *
+ * Every operation returns a <code>Future</code> at once. Each server has a
+ * fixed number of connections, each owned by one selector thread, and the
+ * operations of a connection are pipelined: they are written without waiting
+ * for the replies of the previous ones. The gets queued on a connection while
+ * it was busy are sent as a single multi-get, so many threads reading at the
+ * same time make few round trips. The connection of a key is chosen by the
+ * key, so the operations on one key are run in the order they were issued.
+ *
+ * Keys are routed with ketama consistent hashing by a
+ * <code>MemCachedRouter</code>, on the key as given, the way
+ * <code>MemCachedAdapter</code> routes them, and are URL-encoded the way the
+ * danga client does only when sent. Values are stored with the flags the
+ * danga client gives byte arrays, so that the adapters of both clients with
+ * the same codec read each other's values, provided the danga client is
+ * configured with ketama hashing as well. The client returned by
+ * <code>serializing</code> stores Java serialized values under the flags of
+ * the danga serialization instead, and reads the values the danga client
+ * serialized itself, for the adapters without a codec.
+ *
+ * A server that does not answer within the timeout has its connections
+ * closed and its operations failed, and is reconnected after a second.
+ *
+ * @author xial
+ */
+public class NioMemCachedClient {
+
+	private static final Logger LOG = Logger
+			.getLogger(NioMemCachedClient.class);
+
+	/** the flags the danga client marks byte arrays with */
+	static final int BYTE_ARRAY_FLAGS = 4096;
+
+	/** relative expiry times are at most 30 days in the protocol */
+	private static final long MAX_RELATIVE_EXPIRY = 60 * 60 * 24 * 30;
+
+	private final MemCachedRouter router;
+	private final Map<String, MemCachedConnection[]> connections;
+	private final Worker[] workers;
+	private final long timeout;
+
+	/** whether values are Java serialized, as the danga client stores them */
+	private final boolean serialized;
+
+	/** shared by the adapters of the client */
+	final StatsCounter stats;
+
+	// ---------------------------------------------------------------------
+	// CONSTRUCTORS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * Creates the client configured by <code>memcached.properties</code>, and
+	 * starts the health checks of its router.
+	 */
+	NioMemCachedClient(MemCachedConfig config) {
+		this(config.getServers(), config.getWeights(), config
+				.getNioSelectors(), config.getNioConnections(), config
+				.getNioTimeout());
+		router.startHealthChecks(new MemCachedRouter.VersionProbe(config
+				.getHealthTimeout()), config.getHealthInterval(), config
+				.getHealthFailures());
+	}
+
+	/**
+	 * @param servers
+	 *            the addresses of the servers, host:port
+	 * @param weights
+	 *            the weight of each server, or null to weigh them all 1
+	 * @param selectors
+	 *            the number of selector threads
+	 * @param connectionsPerServer
+	 *            the number of connections to each server
+	 * @param timeout
+	 *            milliseconds after which a server that has not answered is
+	 *            considered dead
+	 */
+	public NioMemCachedClient(String[] servers, Integer[] weights,
+			int selectors, int connectionsPerServer, long timeout) {
+		if (selectors <= 0 || connectionsPerServer <= 0) {
+			throw new IllegalArgumentException(
+					"selectors and connections must be positive");
+		}
+		this.router = new MemCachedRouter(servers, weights);
+		this.connections = new HashMap<String, MemCachedConnection[]>();
+		this.timeout = timeout;
+		this.serialized = false;
+		this.stats = new StatsCounter();
+		workers = new Worker[selectors];
+		try {
+			for (int i = 0; i < selectors; i++) {
+				workers[i] = new Worker("memcached-nio-" + i, timeout);
+			}
+		} catch (IOException e) {
+			throw new CommonRuntimeException("failed opening a selector", e);
+		}
+		int next = 0;
+		for (String server : router.getServers()) {
+			MemCachedConnection[] serverConnections = new MemCachedConnection[connectionsPerServer];
+			for (int i = 0; i < connectionsPerServer; i++) {
+				Worker worker = workers[next++ % selectors];
+				serverConnections[i] = new MemCachedConnection(server, worker,
+						timeout);
+				worker.connections.add(serverConnections[i]);
+			}
+			connections.put(server, serverConnections);
+		}
+		for (Worker worker : workers) {
+			worker.start();
+		}
+	}
+
+	/**
+	 * A view of the client sharing its connections and statistics.
+	 */
+	private NioMemCachedClient(NioMemCachedClient client, boolean serialized) {
+		this.router = client.router;
+		this.connections = client.connections;
+		this.workers = client.workers;
+		this.timeout = client.timeout;
+		this.serialized = serialized;
+		this.stats = client.stats;
+	}
+
+	// ---------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * @return the future value of the key, null if it is not found. The
+	 *         future fails if the server of the key cannot be reached.
+	 */
+	public Future<byte[]> get(String key) {
+		GetOp op = new GetOp(encodeKey(key), serialized);
+		submit(key, op, null);
+		return op;
+	}
+
+	/**
+	 * Gets the keys with one multi-get per connection holding some of them,
+	 * the gets of other threads being possibly sent along.
+	 *
+	 * @return the future values of the keys found. The keys of the servers
+	 *         that could not be reached are left out.
+	 */
+	public Future<Map<String, byte[]>> getMulti(Collection<? extends String> keys) {
+		Map<String, GetOp> ops = new LinkedHashMap<String, GetOp>();
+		for (String key : keys) {
+			if (!ops.containsKey(key)) {
+				GetOp op = new GetOp(encodeKey(key), serialized);
+				ops.put(key, op);
+				submit(key, op, null);
+			}
+		}
+		return new MultiGetFuture(ops);
+	}
+
+	/**
+	 * @param expireSeconds
+	 *            the time to live of the value in seconds, 0 for none
+	 * @return true in the future if the value was stored.
+	 */
+	public Future<Boolean> set(String key, byte[] value, long expireSeconds) {
+		return store("set", key, value, expireSeconds, "");
+	}
+
+	/**
+	 * @return the future value of the key with its cas unique, null if it is
+	 *         not found. The future fails if the server of the key cannot be
+	 *         reached.
+	 */
+	public Future<CasValue<byte[]>> gets(String key) {
+		GetsOp op = new GetsOp(encodeKey(key), serialized);
+		submit(key, op, null);
+		return op;
+	}
+
+	/**
+	 * @return true in the future if the value was stored, the key being
+	 *         absent.
+	 */
+	public Future<Boolean> add(String key, byte[] value, long expireSeconds) {
+		return store("add", key, value, expireSeconds, "");
+	}
+
+	/**
+	 * @param cas
+	 *            the cas unique the value was read with
+	 * @return true in the future if the value was stored, the key being
+	 *         unchanged since it was read.
+	 */
+	public Future<Boolean> cas(String key, byte[] value, long cas,
+			long expireSeconds) {
+		return store("cas", key, value, expireSeconds, " " + cas);
+	}
+
+	/**
+	 * @return true in the future if the key was found and deleted.
+	 */
+	public Future<Boolean> delete(String key) {
+		CommandOp op = new CommandOp("delete " + encodeKey(key), null,
+				"DELETED");
+		submit(key, op, Boolean.FALSE);
+		return op;
+	}
+
+	/**
+	 * Flushes the live servers.
+	 *
+	 * @return true if all of them were flushed within the timeout.
+	 */
+	public boolean flushAll() {
+		List<CommandOp> ops = new ArrayList<CommandOp>();
+		for (String server : router.getLiveServers()) {
+			CommandOp op = new CommandOp("flush_all", null, "OK");
+			connections.get(server)[0].submit(op);
+			ops.add(op);
+		}
+		boolean flushed = true;
+		for (CommandOp op : ops) {
+			try {
+				flushed &= op.get(timeout, TimeUnit.MILLISECONDS)
+						.booleanValue();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (Exception e) {
+				LOG.warn("failed flushing memcached: " + e.getMessage());
+				flushed = false;
+			}
+		}
+		return flushed;
+	}
+
+	public MemCachedRouter getRouter() {
+		return router;
+	}
+
+	/**
+	 * @return the milliseconds after which an operation is given up.
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @return the client storing Java serialized values under the flags the
+	 *         danga client gives the values it serializes itself, and reading
+	 *         the values the danga client stored whatever their type as Java
+	 *         serialized values. It shares the connections of this client.
+	 */
+	public NioMemCachedClient serializing() {
+		return serialized ? this : new NioMemCachedClient(this, true);
+	}
+
+	/**
+	 * Stops the health checks and the selector threads, failing the pending
+	 * operations, of this client and of its serializing view.
+	 */
+	public void close() {
+		router.stopHealthChecks();
+		for (Worker worker : workers) {
+			worker.shutdown();
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * Queues the operation on the connection of the key, or completes it with
+	 * <em>otherwise</em> if all the servers are down. The key is the one
+	 * given by the caller, not its encoded form, for the danga client to
+	 * route it to the same server.
+	 */
+	private <T> void submit(String key, Op<T> op, T otherwise) {
+		String server = router.route(key);
+		if (server == null) {
+			op.complete(otherwise);
+			return;
+		}
+		MemCachedConnection[] serverConnections = connections.get(server);
+		serverConnections[(key.hashCode() & 0x7fffffff)
+				% serverConnections.length].submit(op);
+	}
+
+	/**
+	 * Sends a storage command, <em>suffix</em> ending its line.
+	 */
+	private Future<Boolean> store(String command, String key, byte[] value,
+			long expireSeconds, String suffix) {
+		int flags = serialized ? DangaFormat.SERIALIZED : BYTE_ARRAY_FLAGS;
+		CommandOp op = new CommandOp(command + " " + encodeKey(key) + " "
+				+ flags + " " + exptime(expireSeconds) + " "
+				+ value.length + suffix, value, "STORED");
+		submit(key, op, Boolean.FALSE);
+		return op;
+	}
+
+	private static long exptime(long expireSeconds) {
+		if (expireSeconds <= MAX_RELATIVE_EXPIRY) {
+			return expireSeconds;
+		}
+		// a Unix time
+		return System.currentTimeMillis() / 1000 + expireSeconds;
+	}
+
+	/**
+	 * @return the key URL-encoded, as the danga client sends it.
+	 */
+	static String encodeKey(String key) {
+		try {
+			return URLEncoder.encode(key, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new CommonRuntimeException("UTF-8 is not supported", e);
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER CLASSES
+	// ---------------------------------------------------------------------
+
+	/**
+	 * A selector thread, running the I/O of its connections.
+	 */
+	static final class Worker extends Thread {
+
+		final Selector selector;
+		final List<MemCachedConnection> connections = new ArrayList<MemCachedConnection>();
+		private final Queue<MemCachedConnection> ready = new ConcurrentLinkedQueue<MemCachedConnection>();
+		private final AtomicBoolean woken = new AtomicBoolean();
+		private final long timeout;
+		private volatile boolean closed;
+
+		Worker(String name, long timeout) throws IOException {
+			super(name);
+			setDaemon(true);
+			this.selector = Selector.open();
+			this.timeout = timeout;
+		}
+
+		/**
+		 * Has the connection write its queued operations, waking the
+		 * selector once for all the operations queued meanwhile.
+		 */
+		void ready(MemCachedConnection connection) {
+			ready.add(connection);
+			if (woken.compareAndSet(false, true)) {
+				selector.wakeup();
+			}
+		}
+
+		void shutdown() {
+			closed = true;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				// wakes up often enough to notice the servers not answering
+				long checkInterval = Math.max(1, Math.min(timeout / 2, 100));
+				while (!closed) {
+					selector.select(checkInterval);
+					woken.set(false);
+					MemCachedConnection connection;
+					while ((connection = ready.poll()) != null) {
+						connection.process();
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys()
+							.iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (key.isValid()) {
+							((MemCachedConnection) key.attachment())
+									.handle(key);
+						}
+					}
+					long now = System.currentTimeMillis();
+					for (MemCachedConnection c : connections) {
+						c.checkTimeout(now);
+					}
+				}
+			} catch (IOException e) {
+				LOG.error("memcached selector failed", e);
+			} catch (RuntimeException e) {
+				LOG.error("memcached selector failed", e);
+			} finally {
+				for (MemCachedConnection c : connections) {
+					c.close();
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// closing anyway
+				}
+			}
+		}
+	}
+
+	/**
+	 * The values of the gets of several keys.
+	 */
+	private static final class MultiGetFuture implements
+			Future<Map<String, byte[]>> {
+
+		private final Map<String, GetOp> ops;
+
+		MultiGetFuture(Map<String, GetOp> ops) {
+			this.ops = ops;
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return false;
+		}
+
+		public boolean isDone() {
+			for (GetOp op : ops.values()) {
+				if (!op.isDone()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public Map<String, byte[]> get() throws InterruptedException {
+			Map<String, byte[]> values = new HashMap<String, byte[]>();
+			for (Map.Entry<String, GetOp> e : ops.entrySet()) {
+				try {
+					put(values, e.getKey(), e.getValue().get());
+				} catch (ExecutionException failed) {
+					// the server of the key is down
+				}
+			}
+			return values;
+		}
+
+		public Map<String, byte[]> get(long timeout, TimeUnit unit)
+				throws InterruptedException, TimeoutException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			Map<String, byte[]> values = new HashMap<String, byte[]>();
+			for (Map.Entry<String, GetOp> e : ops.entrySet()) {
+				try {
+					put(values, e.getKey(), e.getValue().get(
+							Math.max(0, deadline - System.nanoTime()),
+							TimeUnit.NANOSECONDS));
+				} catch (ExecutionException failed) {
+					// the server of the key is down
+				}
+			}
+			return values;
+		}
+
+		private static void put(Map<String, byte[]> values, String key,
+				byte[] value) {
+			if (value != null) {
+				values.put(key, value);
+			}
+		}
+	}
+
+}
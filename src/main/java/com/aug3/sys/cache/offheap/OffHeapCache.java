@@ -0,0 +1,442 @@
+package com.aug3.sys.cache.offheap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.aug3.sys.CommonRuntimeException;
+import com.aug3.sys.cache.AbstractCache;
+import com.aug3.sys.cache.CacheStats;
+import com.aug3.sys.cache.StatsCounter;
+import com.aug3.sys.cache.codec.CompactCodec;
+import com.aug3.sys.cache.codec.ValueCodec;
+import com.aug3.sys.properties.LazyPropLoader;
+
+/**
+ * A cache keeping its values serialized outside of the Java heap, so that
+ * large caches do not lengthen garbage collections. Only the keys and a small
+ * index entry per value stay on the heap.
+ * 
+ * Values are encoded by a <code>ValueCodec</code>, a compact binary codec by
+ * default, and stored in fixed-size blocks of a <code>SlabStore</code>. When
+ * the memory is full, or the maximum number of entries is reached, the least
+ * recently used entries are evicted. A value larger than the whole memory is
+ * not cached.
+ * 
+ * When a file is configured, the memory is mapped to it and the index is saved
+ * next to it, in a file with the <code>.index</code> suffix, when the cache is
+ * closed, which happens at the latest when the JVM shuts down. The next cache
+ * opened on the same file starts with the saved entries. The index is deleted
+ * once loaded, so a cache that was not closed properly starts empty.
+ * 
+ * Each get returns a new copy of the value. Since the cache can be created
+ * through its class name, by <code>SmartCacheConfig</code> or
+ * <code>AppProp</code>, the no-argument and capacity constructors read their
+ * settings from the class resource <code>offheapcache.properties</code>:
+ * <table>
+ * <tr>
+ * <th>property</th>
+ * <th>description</th>
+ * <th>default</th>
+ * </tr>
+ * <tr>
+ * <td>offheap.size.mb</td>
+ * <td>memory used for values, in megabytes. Direct memory is limited by the
+ * JVM option -XX:MaxDirectMemorySize.</td>
+ * <td>64</td>
+ * </tr>
+ * <tr>
+ * <td>offheap.block.size</td>
+ * <td>size in bytes of the blocks values are stored in</td>
+ * <td>256</td>
+ * </tr>
+ * <tr>
+ * <td>offheap.codec</td>
+ * <td>the <code>ValueCodec</code> class encoding the values</td>
+ * <td>com.aug3.sys.cache.codec.CompactCodec</td>
+ * </tr>
+ * <tr>
+ * <td>offheap.file</td>
+ * <td>the file the memory is mapped to, to keep the entries across restarts.
+ * If it is already used by another cache, direct memory is used instead.</td>
+ * <td>none</td>
+ * </tr>
+ * </table>
+ * 
+ * @author xial
+ * 
+ * @param <V>
+ *            the cached object
+ */
+public class OffHeapCache<V> extends AbstractCache<String, V> {
+
+	private static final Logger LOG = Logger.getLogger(OffHeapCache.class);
+
+	private static final String CONFIG_RESOURCE = "/offheapcache.properties";
+	private static final String MEMORY_SIZE = "offheap.size.mb";
+	private static final String DEFAULT_MEMORY_SIZE = "64";
+	private static final String BLOCK_SIZE = "offheap.block.size";
+	private static final String DEFAULT_BLOCK_SIZE = "256";
+	private static final String CODEC = "offheap.codec";
+	private static final String DEFAULT_CODEC = CompactCodec.class.getName();
+	private static final String FILE = "offheap.file";
+	private static final String INDEX_SUFFIX = ".index";
+	private static final int INDEX_MAGIC = 0x0ff4ea90;
+
+	private static final LazyPropLoader config = new LazyPropLoader(
+			CONFIG_RESOURCE);
+
+	private final LinkedHashMap<String, Entry> index;
+	private final SlabStore store;
+	private final ValueCodec<V> codec;
+	private final int capacity;
+	private final File file;
+	private final StatsCounter stats = new StatsCounter();
+	private boolean closed;
+
+	// ---------------------------------------------------------------------
+	// CONSTRUCTORS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * Creates a cache configured by <code>offheapcache.properties</code> and
+	 * only bounded by its memory.
+	 */
+	public OffHeapCache() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a cache configured by <code>offheapcache.properties</code>.
+	 * 
+	 * @param capacity
+	 *            the maximum number of entries held by the cache
+	 */
+	public OffHeapCache(int capacity) {
+		this(capacity, Long.parseLong(config.getProperty(MEMORY_SIZE,
+				DEFAULT_MEMORY_SIZE).trim()) << 20, Integer.parseInt(config
+				.getProperty(BLOCK_SIZE, DEFAULT_BLOCK_SIZE).trim()),
+				configuredFile(), OffHeapCache.<V> configuredCodec());
+	}
+
+	/**
+	 * @param capacity
+	 *            the maximum number of entries held by the cache
+	 * @param memory
+	 *            the memory used for values, in bytes
+	 * @param blockSize
+	 *            the size of the blocks values are stored in
+	 * @param file
+	 *            the file to map the memory to, or null to use direct memory
+	 * @param codec
+	 *            turns the values into bytes
+	 */
+	public OffHeapCache(int capacity, long memory, int blockSize, File file,
+			ValueCodec<V> codec) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive: "
+					+ capacity);
+		}
+		this.capacity = capacity;
+		this.codec = codec;
+		index = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+		SlabStore mapped = null;
+		if (file != null) {
+			try {
+				mapped = new SlabStore(memory, blockSize, file);
+			} catch (IOException e) {
+				LOG.warn("unable to map off-heap cache to " + file
+						+ ", using direct memory: " + e.getMessage());
+			}
+		}
+		if (mapped != null) {
+			store = mapped;
+			this.file = file;
+			loadIndex();
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					close();
+				}
+			});
+		} else {
+			store = new SlabStore(memory, blockSize);
+			this.file = null;
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ---------------------------------------------------------------------
+
+	@Override
+	public V get(String key) {
+		byte[] bytes;
+		synchronized (this) {
+			Entry entry = index.get(key);
+			if (entry == null || closed) {
+				stats.recordMisses(1);
+				return null;
+			}
+			stats.recordHits(1);
+			bytes = store.read(entry.blocks, entry.length);
+		}
+		return codec.decode(bytes);
+	}
+
+	/**
+	 * Stores a copy of the value. Later changes to the value are not seen by
+	 * the cache. A null value removes the key.
+	 */
+	@Override
+	public V put(String key, V value) {
+		if (value == null) {
+			return remove(key);
+		}
+		byte[] bytes = codec.encode(value);
+		int needed = store.blocksFor(bytes.length);
+		byte[] old;
+		synchronized (this) {
+			if (closed) {
+				return null;
+			}
+			old = release(index.remove(key));
+			if (needed > store.blockCount()) {
+				LOG.warn("value of " + key + " is too large for the cache: "
+						+ bytes.length + " bytes");
+			} else {
+				Iterator<Entry> eldest = index.values().iterator();
+				while (store.freeBlocks() < needed || index.size() >= capacity) {
+					store.release(eldest.next().blocks);
+					eldest.remove();
+					stats.recordEviction();
+				}
+				int[] blocks = store.allocate(needed);
+				store.write(blocks, bytes);
+				index.put(key, new Entry(bytes.length, blocks));
+			}
+		}
+		return old == null ? null : codec.decode(old);
+	}
+
+	@Override
+	public V remove(String key) {
+		byte[] old;
+		synchronized (this) {
+			if (closed) {
+				return null;
+			}
+			old = release(index.remove(key));
+		}
+		return old == null ? null : codec.decode(old);
+	}
+
+	@Override
+	public synchronized boolean containsKey(String key) {
+		return !closed && index.containsKey(key);
+	}
+
+	@Override
+	public synchronized void flush() {
+		index.clear();
+		store.reset(new BitSet());
+	}
+
+	/**
+	 * @return the statistics of the cache, its weighted size being
+	 *         <code>usedBytes</code>.
+	 */
+	@Override
+	public synchronized CacheStats getStats() {
+		return stats.snapshot(index.size(), usedBytes());
+	}
+
+	/**
+	 * @return the number of entries currently in the cache.
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * @return the number of bytes of memory used by the entries, counting
+	 *         whole blocks.
+	 */
+	public synchronized long usedBytes() {
+		return (long) (store.blockCount() - store.freeBlocks())
+				* store.blockSize();
+	}
+
+	/**
+	 * @return the memory available for values, in bytes.
+	 */
+	public long memory() {
+		return (long) store.blockCount() * store.blockSize();
+	}
+
+	/**
+	 * Saves the index of a cache mapped to a file and releases the file. The
+	 * cache is then always empty. Called when the JVM shuts down.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (file != null) {
+			saveIndex();
+		}
+		store.close();
+		index.clear();
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	/**
+	 * Frees the blocks of a removed entry.
+	 * 
+	 * @return the bytes the entry held, or null if there was no entry.
+	 */
+	private byte[] release(Entry entry) {
+		if (entry == null) {
+			return null;
+		}
+		byte[] bytes = store.read(entry.blocks, entry.length);
+		store.release(entry.blocks);
+		return bytes;
+	}
+
+	/**
+	 * Saves the entries, least recently used first, so that the order is kept
+	 * when they are loaded again.
+	 */
+	private void saveIndex() {
+		File indexFile = new File(file.getPath() + INDEX_SUFFIX);
+		File tmp = new File(file.getPath() + INDEX_SUFFIX + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(INDEX_MAGIC);
+				out.writeInt(store.blockSize());
+				out.writeInt(store.blockCount());
+				out.writeInt(index.size());
+				for (Map.Entry<String, Entry> e : index.entrySet()) {
+					Entry entry = e.getValue();
+					out.writeUTF(e.getKey());
+					out.writeInt(entry.length);
+					out.writeInt(entry.blocks.length);
+					for (int block : entry.blocks) {
+						out.writeInt(block);
+					}
+				}
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(indexFile)) {
+				indexFile.delete();
+				if (!tmp.renameTo(indexFile)) {
+					throw new IOException("unable to rename " + tmp);
+				}
+			}
+		} catch (IOException e) {
+			LOG.error("failed to save off-heap cache index for " + file, e);
+			tmp.delete();
+		}
+	}
+
+	private void loadIndex() {
+		File indexFile = new File(file.getPath() + INDEX_SUFFIX);
+		if (!indexFile.exists()) {
+			return;
+		}
+		BitSet used = new BitSet(store.blockCount());
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(indexFile)));
+			try {
+				if (in.readInt() != INDEX_MAGIC
+						|| in.readInt() != store.blockSize()
+						|| in.readInt() != store.blockCount()) {
+					throw new IOException("index does not match the cache size");
+				}
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					String key = in.readUTF();
+					int length = in.readInt();
+					int[] blocks = new int[in.readInt()];
+					if (blocks.length != store.blocksFor(length)) {
+						throw new IOException("invalid entry " + key);
+					}
+					for (int j = 0; j < blocks.length; j++) {
+						blocks[j] = in.readInt();
+						if (blocks[j] < 0 || blocks[j] >= store.blockCount()
+								|| used.get(blocks[j])) {
+							throw new IOException("invalid entry " + key);
+						}
+						used.set(blocks[j]);
+					}
+					index.put(key, new Entry(length, blocks));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			LOG.warn("discarding off-heap cache index " + indexFile + ": "
+					+ e.getMessage());
+			index.clear();
+			used.clear();
+		}
+		store.reset(used);
+		// until the cache is closed properly, the data no longer matches it
+		indexFile.delete();
+		LOG.info("loaded " + index.size() + " off-heap cache entries from "
+				+ file);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> ValueCodec<V> configuredCodec() {
+		String className = config.getProperty(CODEC, DEFAULT_CODEC).trim();
+		try {
+			return (ValueCodec<V>) Class.forName(className).newInstance();
+		} catch (Exception e) {
+			throw new CommonRuntimeException("failed creating off-heap codec "
+					+ className, e);
+		}
+	}
+
+	private static File configuredFile() {
+		String path = config.getProperty(FILE);
+		return path == null || path.trim().length() == 0 ? null : new File(
+				path.trim());
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER CLASSES
+	// ---------------------------------------------------------------------
+
+	/** where a value is stored */
+	private static final class Entry {
+		final int length;
+		final int[] blocks;
+
+		Entry(int length, int[] blocks) {
+			this.length = length;
+			this.blocks = blocks;
+		}
+	}
+
+}
@@ -0,0 +1,223 @@
+package com.aug3.sys.cache.offheap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.BitSet;
+
+/**
+ * Memory outside of the Java heap, carved into fixed-size blocks. The memory
+ * is made of a few large slabs, either direct buffers or regions of a
+ * memory-mapped file, since a single buffer cannot exceed 2GB. A value is
+ * stored in as many blocks as it needs, which do not have to be contiguous, so
+ * the store never has to be compacted.
+ * 
+ * This class is not thread-safe.
+ * 
+ * @author xial
+ */
+class SlabStore {
+
+	private static final int MAX_SLAB_SIZE = 1 << 30;
+
+	private final ByteBuffer[] slabs;
+	private final int blockSize;
+	private final int blocksPerSlab;
+	private final int blockCount;
+	private final int[] free;
+	private int freeCount;
+
+	private RandomAccessFile file;
+	private FileLock lock;
+
+	/**
+	 * Allocates the store in direct buffers.
+	 */
+	SlabStore(long memory, int blockSize) {
+		this.blockSize = blockSize;
+		blockCount = blockCount(memory, blockSize);
+		blocksPerSlab = MAX_SLAB_SIZE / blockSize;
+		slabs = new ByteBuffer[(blockCount + blocksPerSlab - 1) / blocksPerSlab];
+		for (int i = 0; i < slabs.length; i++) {
+			slabs[i] = ByteBuffer.allocateDirect(slabBlocks(i) * blockSize);
+		}
+		free = new int[blockCount];
+		reset(new BitSet());
+	}
+
+	/**
+	 * Maps the store to a file, which is locked until the store is closed so
+	 * that no other cache writes to it.
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be mapped or is used by another cache.
+	 */
+	SlabStore(long memory, int blockSize, File path) throws IOException {
+		this.blockSize = blockSize;
+		blockCount = blockCount(memory, blockSize);
+		blocksPerSlab = MAX_SLAB_SIZE / blockSize;
+		slabs = new ByteBuffer[(blockCount + blocksPerSlab - 1) / blocksPerSlab];
+		file = new RandomAccessFile(path, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			try {
+				lock = channel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				lock = null;
+			}
+			if (lock == null) {
+				throw new IOException(path + " is used by another cache");
+			}
+			file.setLength((long) blockCount * blockSize);
+			for (int i = 0; i < slabs.length; i++) {
+				slabs[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i
+						* blocksPerSlab * blockSize, slabBlocks(i) * blockSize);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		free = new int[blockCount];
+		reset(new BitSet());
+	}
+
+	// ---------------------------------------------------------------------
+	// PACKAGE METHODS
+	// ---------------------------------------------------------------------
+
+	int blockSize() {
+		return blockSize;
+	}
+
+	int blockCount() {
+		return blockCount;
+	}
+
+	int freeBlocks() {
+		return freeCount;
+	}
+
+	/**
+	 * @return the number of blocks needed to store that many bytes.
+	 */
+	int blocksFor(int length) {
+		return (length + blockSize - 1) / blockSize;
+	}
+
+	/**
+	 * @return n free blocks, which must be available.
+	 */
+	int[] allocate(int n) {
+		if (n > freeCount) {
+			throw new IllegalStateException("only " + freeCount
+					+ " free blocks, " + n + " needed");
+		}
+		int[] blocks = new int[n];
+		for (int i = 0; i < n; i++) {
+			blocks[i] = free[--freeCount];
+		}
+		return blocks;
+	}
+
+	void release(int[] blocks) {
+		for (int block : blocks) {
+			free[freeCount++] = block;
+		}
+	}
+
+	/**
+	 * Marks all the blocks as free except the used ones.
+	 */
+	void reset(BitSet used) {
+		freeCount = 0;
+		// pushed in reverse order so that the first blocks are used first
+		for (int block = blockCount - 1; block >= 0; block--) {
+			if (!used.get(block)) {
+				free[freeCount++] = block;
+			}
+		}
+	}
+
+	void write(int[] blocks, byte[] data) {
+		int offset = 0;
+		for (int block : blocks) {
+			int length = Math.min(blockSize, data.length - offset);
+			ByteBuffer slab = position(block);
+			slab.put(data, offset, length);
+			offset += length;
+		}
+	}
+
+	byte[] read(int[] blocks, int length) {
+		byte[] data = new byte[length];
+		int offset = 0;
+		for (int block : blocks) {
+			int n = Math.min(blockSize, length - offset);
+			ByteBuffer slab = position(block);
+			slab.get(data, offset, n);
+			offset += n;
+		}
+		return data;
+	}
+
+	boolean isMapped() {
+		return file != null;
+	}
+
+	/**
+	 * Writes the mapped slabs to the file and releases it. Direct buffers are
+	 * freed once the store is garbage collected.
+	 */
+	void close() {
+		if (file == null) {
+			return;
+		}
+		for (ByteBuffer slab : slabs) {
+			if (slab != null) {
+				((MappedByteBuffer) slab).force();
+			}
+		}
+		try {
+			if (lock != null) {
+				lock.release();
+			}
+			file.close();
+		} catch (IOException e) {
+			// nothing left to do with the file
+		}
+		file = null;
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	private ByteBuffer position(int block) {
+		ByteBuffer slab = slabs[block / blocksPerSlab];
+		slab.clear();
+		slab.position((block % blocksPerSlab) * blockSize);
+		return slab;
+	}
+
+	private int slabBlocks(int slab) {
+		return Math.min(blocksPerSlab, blockCount - slab * blocksPerSlab);
+	}
+
+	private static int blockCount(long memory, int blockSize) {
+		if (blockSize <= 0 || blockSize > MAX_SLAB_SIZE) {
+			throw new IllegalArgumentException("invalid block size: "
+					+ blockSize);
+		}
+		long count = memory / blockSize;
+		if (count <= 0 || count > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("invalid memory size: " + memory);
+		}
+		return (int) count;
+	}
+
+}
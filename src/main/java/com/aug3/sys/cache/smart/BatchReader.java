@@ -0,0 +1,28 @@
+package com.aug3.sys.cache.smart;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A Reader that can fetch many values at once, e.g. with a single query, so
+ * that <code>SmartCache.getAll</code> does not call the reader once per missing
+ * key.
+ * 
+ * @author xial
+ * 
+ * @param <T>
+ *            the type of object that the Reader fetches
+ */
+public interface BatchReader<T> extends Reader<T> {
+
+	/**
+	 * Fetches or creates the data corresponding to each of the uris.
+	 * 
+	 * @param uris
+	 *            URIs describing the data to be fetched.
+	 * @return the objects corresponding to the URIs. URIs without data can be
+	 *         left out or mapped to null.
+	 */
+	Map<String, T> fetchAll(Collection<String> uris);
+
+}
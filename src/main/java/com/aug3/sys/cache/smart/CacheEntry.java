@@ -0,0 +1,50 @@
+package com.aug3.sys.cache.smart;
+
+import java.io.Serializable;
+
+import com.aug3.sys.cache.CacheSnapshot;
+
+/**
+ * The holder a SmartCache stores in its underlying cache. Besides the value,
+ * it records when the value was written and last read so that the expiry
+ * policy can be applied whatever the underlying ICache is.
+ *
+ * Entries are serializable so they can be kept in a distributed cache. Note
+ * that distributed caches hand out copies, so access times recorded on them
+ * are only seen by the reading JVM.
+ *
+ * @author xial
+ *
+ * @param <V>
+ *            the cached object
+ */
+@SuppressWarnings("serial")
+class CacheEntry<V> implements Serializable, CacheSnapshot.Owned {
+
+	private final V value;
+	private final long writeTime;
+	private volatile long accessTime;
+
+	CacheEntry(V value, long now) {
+		this.value = value;
+		this.writeTime = now;
+		this.accessTime = now;
+	}
+
+	V getValue() {
+		return value;
+	}
+
+	long getWriteTime() {
+		return writeTime;
+	}
+
+	long getAccessTime() {
+		return accessTime;
+	}
+
+	void touch(long now) {
+		accessTime = now;
+	}
+
+}
@@ -0,0 +1,132 @@
+package com.aug3.sys.cache.smart;
+
+/**
+ * The time-based policies applied by a SmartCache to its entries. All
+ * durations are in milliseconds, and a duration of zero disables the
+ * corresponding policy.
+ *
+ * <ul>
+ * <li><em>expire after write</em>: an entry is reloaded once this much time
+ * has passed since it was loaded or put.</li>
+ * <li><em>expire after access</em>: an entry is reloaded once it has not been
+ * read for this long.</li>
+ * <li><em>refresh after write</em>: once an entry is this old, the next read
+ * still returns it but triggers a background reload through the reader.</li>
+ * <li><em>expire absent after write</em>: when the reader finds nothing for a
+ * key, the absence is remembered for this long, so the reader is not called
+ * again for that key meanwhile. It is usually much shorter than the expiry of
+ * values. With zero, absent results are not cached.</li>
+ * </ul>
+ *
+ * Refresh is meant to be shorter than expiry, so that popular entries are
+ * reloaded ahead of time and never expire under a reader.
+ *
+ * @author xial
+ */
+public class ExpiryPolicy {
+
+	/** entries never expire nor get refreshed */
+	public static final ExpiryPolicy NONE = new ExpiryPolicy(0, 0, 0, 0);
+
+	private final long expireAfterWrite;
+	private final long expireAfterAccess;
+	private final long refreshAfterWrite;
+	private final long expireAbsentAfterWrite;
+
+	/**
+	 * @param expireAfterWrite
+	 *            time to live since the entry was written, 0 for none
+	 * @param expireAfterAccess
+	 *            time to idle since the entry was last read, 0 for none
+	 * @param refreshAfterWrite
+	 *            age after which reads trigger a background reload, 0 for none
+	 */
+	public ExpiryPolicy(long expireAfterWrite, long expireAfterAccess,
+			long refreshAfterWrite) {
+		this(expireAfterWrite, expireAfterAccess, refreshAfterWrite, 0);
+	}
+
+	/**
+	 * @param expireAfterWrite
+	 *            time to live since the entry was written, 0 for none
+	 * @param expireAfterAccess
+	 *            time to idle since the entry was last read, 0 for none
+	 * @param refreshAfterWrite
+	 *            age after which reads trigger a background reload, 0 for none
+	 * @param expireAbsentAfterWrite
+	 *            how long a key the reader found nothing for is known to be
+	 *            absent, 0 to not cache absent results
+	 */
+	public ExpiryPolicy(long expireAfterWrite, long expireAfterAccess,
+			long refreshAfterWrite, long expireAbsentAfterWrite) {
+		if (expireAfterWrite < 0 || expireAfterAccess < 0
+				|| refreshAfterWrite < 0 || expireAbsentAfterWrite < 0) {
+			throw new IllegalArgumentException(
+					"expiry durations cannot be negative");
+		}
+		this.expireAfterWrite = expireAfterWrite;
+		this.expireAfterAccess = expireAfterAccess;
+		this.refreshAfterWrite = refreshAfterWrite;
+		this.expireAbsentAfterWrite = expireAbsentAfterWrite;
+	}
+
+	public long getExpireAfterWrite() {
+		return expireAfterWrite;
+	}
+
+	public long getExpireAfterAccess() {
+		return expireAfterAccess;
+	}
+
+	public long getRefreshAfterWrite() {
+		return refreshAfterWrite;
+	}
+
+	public long getExpireAbsentAfterWrite() {
+		return expireAbsentAfterWrite;
+	}
+
+	/**
+	 * @return true if the entry should no longer be served at time
+	 *         <em>now</em>.
+	 */
+	boolean isExpired(CacheEntry<?> entry, long now) {
+		if (expireAfterWrite > 0
+				&& now - entry.getWriteTime() >= expireAfterWrite) {
+			return true;
+		}
+		return expireAfterAccess > 0
+				&& now - entry.getAccessTime() >= expireAfterAccess;
+	}
+
+	/**
+	 * @return true if the entry is old enough to be reloaded in the
+	 *         background.
+	 */
+	boolean needsRefresh(CacheEntry<?> entry, long now) {
+		return refreshAfterWrite > 0
+				&& now - entry.getWriteTime() >= refreshAfterWrite;
+	}
+
+	/**
+	 * @return true if reads have to record their time on the entry.
+	 */
+	boolean tracksAccess() {
+		return expireAfterAccess > 0;
+	}
+
+	/**
+	 * @return true if keys the reader found nothing for are remembered.
+	 */
+	boolean cachesAbsent() {
+		return expireAbsentAfterWrite > 0;
+	}
+
+	public String toString() {
+		return "expireAfterWrite=" + expireAfterWrite + "ms, expireAfterAccess="
+				+ expireAfterAccess + "ms, refreshAfterWrite="
+				+ refreshAfterWrite + "ms, expireAbsentAfterWrite="
+				+ expireAbsentAfterWrite + "ms";
+	}
+
+}
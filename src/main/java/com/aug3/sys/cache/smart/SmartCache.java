@@ -1,7 +1,43 @@
 package com.aug3.sys.cache.smart;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.aug3.sys.CommonRuntimeException;
+import com.aug3.sys.cache.AbstractCache;
+import com.aug3.sys.cache.CacheMgr;
+import com.aug3.sys.cache.CacheSnapshot;
+import com.aug3.sys.cache.CacheStats;
+import com.aug3.sys.cache.ConcurrentLRUCache;
 import com.aug3.sys.cache.ICache;
-import com.aug3.sys.cache.LRUCache;
+import com.aug3.sys.cache.StatsCounter;
 
 /**
  * SmartCaches are caches that know how to get data after a miss happens so the
@@ -37,13 +73,69 @@ import com.aug3.sys.cache.LRUCache;
  * <tr>
  * <td>scache.basecache.<em>cacheid</em></td>
  * <td>The class of the underlying cache to be used</td>
- * <td>com.hp.sys.cache.LRUCache</td>
+ * <td>com.aug3.sys.cache.ConcurrentLRUCache</td>
  * </tr>
  * <tr>
  * <td>scache.reader.<em>cacheid</em></td>
  * <td>The reader associated with the cache. F.</td>
  * <td>com.hp.sys.cache.smart.NullReader</td>
  * </tr>
+ * <tr>
+ * <td>scache.expire.write.<em>cacheid</em></td>
+ * <td>Seconds after which a loaded entry expires</td>
+ * <td>0 (never)</td>
+ * </tr>
+ * <tr>
+ * <td>scache.expire.access.<em>cacheid</em></td>
+ * <td>Seconds after which an entry that was not read expires</td>
+ * <td>0 (never)</td>
+ * </tr>
+ * <tr>
+ * <td>scache.refresh.write.<em>cacheid</em></td>
+ * <td>Seconds after which a read reloads the entry in the background</td>
+ * <td>0 (never)</td>
+ * </tr>
+ * <tr>
+ * <td>scache.expire.absent.<em>cacheid</em></td>
+ * <td>Seconds during which a key the reader found nothing for is not looked
+ * up again</td>
+ * <td>0 (absent results are not cached)</td>
+ * </tr>
+ * <tr>
+ * <td>scache.absent.size.<em>cacheid</em></td>
+ * <td>The maximum number of absent keys remembered</td>
+ * <td>1000</td>
+ * </tr>
+ * <tr>
+ * <td>scache.snapshot.file.<em>cacheid</em></td>
+ * <td>The file the entries are saved to at shutdown and restored from at
+ * startup</td>
+ * <td>none (not saved)</td>
+ * </tr>
+ * <tr>
+ * <td>scache.snapshot.interval.<em>cacheid</em></td>
+ * <td>Seconds between two saves of the entries, besides the one at
+ * shutdown</td>
+ * <td>0 (only at shutdown)</td>
+ * </tr>
+ * <tr>
+ * <td>scache.stale.size.<em>cacheid</em></td>
+ * <td>The number of last known good values kept to serve when the reader
+ * fails</td>
+ * <td>0 (failures are thrown)</td>
+ * </tr>
+ * <tr>
+ * <td>scache.stale.maxage.<em>cacheid</em></td>
+ * <td>Seconds after its load beyond which a value is no longer served when
+ * the reader fails</td>
+ * <td>0 (no limit)</td>
+ * </tr>
+ * <tr>
+ * <td>scache.stale.backoff.<em>cacheid</em></td>
+ * <td>Milliseconds during which a key is not loaded again after the reader
+ * failed on it, doubled on each failure in a row</td>
+ * <td>1000</td>
+ * </tr>
  * </table>
  * 
  * For example, suppose you want to have a SmartCache that fetches user data
@@ -62,16 +154,141 @@ import com.aug3.sys.cache.LRUCache;
  * </verbatim> and now you have a cache which will automatically fetch all users
  * for you.
  * 
+ * Concurrent misses on the same key are collapsed into a single call to the
+ * reader: the first thread loads the value while the others wait for its
+ * result. If the reader fails, every waiting thread receives the failure.
+ * 
+ * The underlying cache is also read and written by the threads refreshing
+ * entries and running the asynchronous loads, so it must be thread-safe,
+ * which is why the default one is a <code>ConcurrentLRUCache</code>. A cache
+ * like <code>LRUCache</code> should only be given to a smart cache that is
+ * neither refreshed nor read asynchronously, by one thread.
+ * 
+ * Entries are stored in the underlying cache wrapped with their write and
+ * access times, and an optional <code>ExpiryPolicy</code> decides when they
+ * expire. With refresh-after-write, an entry past its refresh age is still
+ * returned while a background thread reloads it, so readers of popular keys
+ * never wait on the reader.
+ * 
+ * A key the reader returns null for is normally looked up again on every
+ * read. If the policy caches absent results, the key is instead remembered as
+ * absent, apart from the underlying cache, in a bounded LRU set, and reads
+ * return null without calling the reader until the absence expires or the key
+ * is put. Such reads count as hits.
+ * 
+ * <code>getAll</code> reads all the keys from the underlying cache in one bulk
+ * call and loads only the missing ones. If the reader is a
+ * <code>BatchReader</code>, they are loaded with a single call to it.
+ * 
+ * The statistics count hits and misses on the smart cache, and time the calls
+ * to the reader, a batch counting as one load. Evictions and size are those
+ * of the underlying cache. A smart cache created from its cache identifier is
+ * exposed through JMX as the cache named "smart.<em>cacheid</em>".
+ * 
+ * <code>getAsync</code> and <code>getAllAsync</code> return futures instead
+ * of blocking on the reader, so that a caller can start several loads and
+ * wait for all of them. Their loads run on a bounded executor shared by all
+ * smart caches, sized by <code>scache.loader.threads</code> and
+ * <code>scache.loader.queue</code>, and time out after
+ * <code>scache.load.timeout.<em>cacheid</em></code> milliseconds. A load that
+ * fails or times out falls back on the expired value of the key, if the
+ * underlying cache still holds one.
+ * 
+ * With <code>warmStart</code>, the entries are saved to a
+ * <code>CacheSnapshot</code> at shutdown and read back when the cache is
+ * created, so that a restarted process does not reload everything from the
+ * readers at once. Restored values are only decoded when their key is first
+ * missed, and take the place of the reader call, unless they have expired or
+ * a <code>VersionedReader</code> reports that their source changed since they
+ * were loaded. Restoring needs an underlying cache that can list its entries,
+ * see <code>CacheSnapshot.entriesOf</code>. An underlying cache shared with
+ * other users, such as the <code>SystemCache</code>, is given the prefix of
+ * the keys of the smart cache, so that only those are saved; the snapshot of
+ * the <code>SystemCache</code> itself leaves them out.
+ * 
+ * With <code>serveStaleOnError</code>, the last value loaded or put for each
+ * key is also kept in a bounded LRU shadow, which outlives the entries
+ * evicted from or expired in the underlying cache. When the reader fails on
+ * a key, <code>get</code> and <code>getAll</code> serve the expired value of
+ * the key, or else its shadow, instead of throwing, provided it is not older
+ * than the maximum staleness. The key is then not loaded again for a backoff
+ * delay, doubled on each failure in a row up to five minutes, its stale value
+ * being served meanwhile, so that a failing source is not hammered by every
+ * read. Removing a key forgets its shadow. <code>getStaleCount</code> counts
+ * the stale values served, also by the futures of the asynchronous reads.
+ * 
  * @author xial
  */
-public class SmartCache<V> implements ICache<String, V> {
+public class SmartCache<V> extends AbstractCache<String, V> {
+
+	private static final Logger LOG = Logger.getLogger(SmartCache.class);
+
+	private static final int REFRESH_THREADS = 4;
+	private static final int REFRESH_QUEUE_SIZE = 1000;
+
+	/** the longest a key is not loaded again after failures */
+	static final long MAX_RETRY_BACKOFF = 5 * 60 * 1000;
+
+	/** runs the refresh-ahead loads of all smart caches */
+	private static final Executor refresher = createExecutor("refresh",
+			REFRESH_THREADS, REFRESH_QUEUE_SIZE);
+
+	/** runs the asynchronous loads of the smart caches by default */
+	private static final Executor defaultLoader = createLoader();
+
+	/** cancels the asynchronous loads that take too long */
+	private static final ScheduledExecutorService timer = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "smartcache-timer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
 
 	private final Reader<? extends V> reader;
-	private final ICache<String, V> cache;
+	private final ICache<String, CacheEntry<V>> cache;
+	private final ExpiryPolicy policy;
+	private final StatsCounter stats = new StatsCounter();
+
+	/** when keys known to be absent expire, null if absence is not cached */
+	private final ConcurrentLRUCache<String, Long> absent;
+
+	/** loads in progress, so that concurrent misses share one reader call */
+	private final ConcurrentMap<String, FutureTask<CacheEntry<V>>> loading = new ConcurrentHashMap<String, FutureTask<CacheEntry<V>>>();
+
+	private volatile Executor loader = defaultLoader;
+	private volatile long loadTimeout;
+
+	/** entries read from a snapshot and not restored yet, null if none */
+	private volatile ConcurrentMap<Object, CacheSnapshot.Entry> restorable;
+	/** the beginning of the keys saved to the snapshot, null for all */
+	private volatile String snapshotPrefix;
+	/** saves the entries, only weakly referenced by the snapshot */
+	private volatile CacheSnapshot.Source snapshotSource;
+
+	/** the last value of the keys, null unless stale values are served */
+	private volatile ConcurrentLRUCache<String, CacheEntry<V>> lastKnownGood;
+	/** when the keys the reader failed on may be loaded again */
+	private volatile ConcurrentLRUCache<String, Backoff> backoffs;
+	private volatile long maxStaleness;
+	private volatile long retryBackoff;
+	private final AtomicLong staleServed = new AtomicLong();
 
 	public SmartCache(SmartCacheConfig<V> config, String cacheId) {
-		cache = config.getCache(cacheId);
-		reader = config.getReader(cacheId);
+		this(config.getCache(cacheId), config.getReader(cacheId), config
+				.getExpiryPolicy(cacheId), config.getAbsentCapacity(cacheId));
+		loadTimeout = config.getLoadTimeout(cacheId);
+		CacheSnapshot snapshot = config.getSnapshot(cacheId);
+		if (snapshot != null) {
+			warmStart(snapshot, config.getSnapshotInterval(cacheId));
+		}
+		int staleCapacity = config.getStaleCapacity(cacheId);
+		if (staleCapacity > 0) {
+			serveStaleOnError(staleCapacity, config.getMaxStaleness(cacheId),
+					config.getRetryBackoff(cacheId));
+		}
+		CacheMgr.registerInstance("smart." + cacheId, this);
 	}
 
 	/**
@@ -89,39 +306,1332 @@ public class SmartCache<V> implements ICache<String, V> {
 	}
 
 	public SmartCache(ICache<String, V> cacheImpl, Reader<? extends V> r) {
-		cache = cacheImpl;
+		this(cacheImpl, r, ExpiryPolicy.NONE);
+	}
+
+	/**
+	 * @param cacheImpl
+	 *            the underlying cache. It will hold the values wrapped in
+	 *            entries recording their write and access times.
+	 * @param r
+	 *            the reader used on a miss
+	 * @param expiryPolicy
+	 *            when entries expire or get refreshed
+	 */
+	public SmartCache(ICache<String, V> cacheImpl, Reader<? extends V> r,
+			ExpiryPolicy expiryPolicy) {
+		this(cacheImpl, r, expiryPolicy,
+				SmartCacheConfig.DEFAULT_ABSENT_SIZE);
+	}
+
+	/**
+	 * @param cacheImpl
+	 *            the underlying cache. It will hold the values wrapped in
+	 *            entries recording their write and access times.
+	 * @param r
+	 *            the reader used on a miss
+	 * @param expiryPolicy
+	 *            when entries expire or get refreshed
+	 * @param absentCapacity
+	 *            the maximum number of keys remembered as absent, if the
+	 *            policy caches absent results
+	 */
+	@SuppressWarnings("unchecked")
+	public SmartCache(ICache<String, V> cacheImpl, Reader<? extends V> r,
+			ExpiryPolicy expiryPolicy, int absentCapacity) {
+		cache = (ICache) cacheImpl;
 		reader = r;
+		policy = expiryPolicy;
+		absent = policy.cachesAbsent() ? new ConcurrentLRUCache<String, Long>(
+				absentCapacity) : null;
 	}
 
 	public SmartCache(Reader<? extends V> r) {
-		this(new LRUCache<String, V>(), r);
+		this(new ConcurrentLRUCache<String, V>(), r);
 	}
 
 	public boolean containsKey(String key) {
-		return cache.containsKey(key);
+		CacheEntry<V> entry = cached(key);
+		return entry != null
+				&& !policy.isExpired(entry, System.currentTimeMillis());
 	}
 
 	public V get(String key) {
-		V val = cache.get(key);
-		if (val == null) {
-			val = reader.fetch(key);
-			cache.put(key, val);
+		long now = System.currentTimeMillis();
+		CacheEntry<V> entry = cached(key);
+		if (isFresh(entry, now)) {
+			stats.recordHits(1);
+			return hit(key, entry, now);
+		}
+		if (isAbsent(key, now)) {
+			stats.recordHits(1);
+			return null;
+		}
+		stats.recordMisses(1);
+		if (lastKnownGood == null) {
+			return load(key).getValue();
+		}
+		if (isBackingOff(key, now)) {
+			V stale = staleValue(key, entry, now);
+			if (stale != null) {
+				staleServed.incrementAndGet();
+				return stale;
+			}
+		}
+		try {
+			return load(key).getValue();
+		} catch (RuntimeException e) {
+			V stale = staleValue(key, entry, now);
+			if (stale == null) {
+				throw e;
+			}
+			backOff(key, now, e);
+			staleServed.incrementAndGet();
+			return stale;
+		}
+	}
+
+	/**
+	 * Returns the value of the key without waiting for the reader. A fresh
+	 * value, or a key known to be absent, gives a future that is already done;
+	 * otherwise the value is loaded on the loader executor, sharing the load
+	 * of the key already in progress if there is one.
+	 * 
+	 * When the load fails or times out and the underlying cache still holds
+	 * an expired value of the key, or stale values are served and the key has
+	 * one, the future returns that value. Otherwise
+	 * it fails with the cause of the failure, a <code>TimeoutException</code>
+	 * for a load that timed out, or a <code>RejectedExecutionException</code>
+	 * when the loader is saturated. Cancelling the future has no effect, as
+	 * the load may be shared.
+	 */
+	public Future<V> getAsync(String key) {
+		long now = System.currentTimeMillis();
+		CacheEntry<V> entry = cached(key);
+		if (isFresh(entry, now)) {
+			stats.recordHits(1);
+			return new CompletedFuture<V>(hit(key, entry, now), null);
+		}
+		if (isAbsent(key, now)) {
+			stats.recordHits(1);
+			return new CompletedFuture<V>(null, null);
 		}
-		return val;
+		stats.recordMisses(1);
+		return new LoadFuture<V>(key, loadAsync(key), fallBackValue(key,
+				entry, now), staleServed);
+	}
+
+	/**
+	 * The asynchronous version of <code>getAll</code>. The missing keys are
+	 * loaded on the loader executor, in one batch if the reader is a
+	 * <code>BatchReader</code> and in parallel otherwise. Keys whose load
+	 * fails are served their expired value if there is one, as with
+	 * <code>getAsync</code>; the future fails if any other key fails.
+	 */
+	public Future<Map<String, V>> getAllAsync(Collection<? extends String> keys) {
+		long now = System.currentTimeMillis();
+		Map<String, CacheEntry<V>> entries = cachedAll(keys);
+		Map<String, V> values = new HashMap<String, V>();
+		List<String> missing = new ArrayList<String>();
+		for (String key : keys) {
+			CacheEntry<V> entry = entries.get(key);
+			if (isFresh(entry, now)) {
+				values.put(key, hit(key, entry, now));
+			} else if (!isAbsent(key, now)) {
+				missing.add(key);
+			}
+		}
+		stats.recordHits(keys.size() - missing.size());
+		stats.recordMisses(missing.size());
+
+		Map<String, Future<V>> pending = new HashMap<String, Future<V>>();
+		if (reader instanceof BatchReader<?> && missing.size() > 1) {
+			Future<Map<String, Future<CacheEntry<V>>>> batch = loadAllAsync(missing);
+			for (String key : missing) {
+				pending.put(key, new LoadFuture<V>(key, new BatchEntry<V>(
+						batch, key), fallBackValue(key, entries.get(key), now),
+						staleServed));
+			}
+		} else {
+			for (String key : missing) {
+				pending.put(key, new LoadFuture<V>(key, loadAsync(key),
+						fallBackValue(key, entries.get(key), now), staleServed));
+			}
+		}
+		return new AllFuture<V>(values, pending);
+	}
+
+	/**
+	 * @return the values of the keys, loading the missing ones. Keys the
+	 *         reader returns null for, or known to be absent, are left out.
+	 */
+	@Override
+	public Map<String, V> getAll(Collection<? extends String> keys) {
+		long now = System.currentTimeMillis();
+		Map<String, CacheEntry<V>> entries = cachedAll(keys);
+		Map<String, V> values = new HashMap<String, V>();
+		List<String> missing = new ArrayList<String>();
+		for (String key : keys) {
+			CacheEntry<V> entry = entries.get(key);
+			if (isFresh(entry, now)) {
+				values.put(key, hit(key, entry, now));
+			} else if (!isAbsent(key, now)) {
+				missing.add(key);
+			}
+		}
+		stats.recordHits(keys.size() - missing.size());
+		stats.recordMisses(missing.size());
+		if (missing.isEmpty()) {
+			return values;
+		}
+		if (lastKnownGood != null) {
+			return loadAllOrStale(missing, entries, values, now);
+		}
+		for (Map.Entry<String, CacheEntry<V>> e : loadAll(missing).entrySet()) {
+			if (e.getValue().getValue() != null) {
+				values.put(e.getKey(), e.getValue().getValue());
+			}
+		}
+		return values;
 	}
 
 	public V put(String key, V value) {
-		return cache.put(key, value);
+		clearAbsent(key);
+		clearRestorable(key);
+		CacheEntry<V> entry = new CacheEntry<V>(value, System
+				.currentTimeMillis());
+		remember(key, entry);
+		CacheEntry<V> previous = entryOf(shared().put(key, entry));
+		return valueOf(previous);
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ? extends V> map) {
+		long now = System.currentTimeMillis();
+		Map<String, CacheEntry<V>> entries = new HashMap<String, CacheEntry<V>>();
+		for (Map.Entry<? extends String, ? extends V> e : map.entrySet()) {
+			CacheEntry<V> entry = new CacheEntry<V>(e.getValue(), now);
+			entries.put(e.getKey(), entry);
+			clearAbsent(e.getKey());
+			clearRestorable(e.getKey());
+			remember(e.getKey(), entry);
+		}
+		cache.putAll(entries);
 	}
 
 	public V remove(String key) {
-		return cache.remove(key);
+		clearAbsent(key);
+		clearRestorable(key);
+		forget(key);
+		CacheEntry<V> previous = entryOf(shared().remove(key));
+		return valueOf(previous);
+	}
+
+	@Override
+	public void removeAll(Collection<? extends String> keys) {
+		for (String key : keys) {
+			clearAbsent(key);
+			clearRestorable(key);
+			forget(key);
+		}
+		cache.removeAll(keys);
 	}
 
 	@Override
 	public void flush() {
 		cache.flush();
+		if (absent != null) {
+			absent.flush();
+		}
+		restorable = null;
+		ConcurrentLRUCache<String, CacheEntry<V>> good = lastKnownGood;
+		if (good != null) {
+			good.flush();
+			backoffs.flush();
+		}
+	}
+
+	/**
+	 * Removes the keys starting with the prefix, for instance those loaded
+	 * from a source that changed. The keys are found in the entries of the
+	 * underlying cache, see <code>CacheSnapshot.entriesOf</code>, and in those
+	 * the smart cache keeps itself. An underlying cache that cannot list its
+	 * entries is flushed instead.
+	 */
+	public void removePrefixed(String prefix) {
+		Map<String, CacheEntry<V>> entries = CacheSnapshot.entriesOf(cache);
+		if (entries == null) {
+			flush();
+			return;
+		}
+		Collection<String> keys = new HashSet<String>();
+		addPrefixed(keys, entries.keySet(), prefix);
+		if (absent != null) {
+			addPrefixed(keys, absent.entries().keySet(), prefix);
+		}
+		Map<Object, CacheSnapshot.Entry> saved = restorable;
+		if (saved != null) {
+			addPrefixed(keys, saved.keySet(), prefix);
+		}
+		ConcurrentLRUCache<String, CacheEntry<V>> good = lastKnownGood;
+		if (good != null) {
+			addPrefixed(keys, good.entries().keySet(), prefix);
+			addPrefixed(keys, backoffs.entries().keySet(), prefix);
+		}
+		removeAll(keys);
+	}
+
+	/**
+	 * Keeps the last value of up to <em>capacity</em> keys, to serve when the
+	 * reader fails on them.
+	 * 
+	 * @param maxStaleness
+	 *            the age in milliseconds beyond which a value is not served,
+	 *            0 for no limit
+	 * @param retryBackoff
+	 *            the time in milliseconds a key is not loaded again after a
+	 *            failure, doubled on each failure in a row
+	 */
+	public void serveStaleOnError(int capacity, long maxStaleness,
+			long retryBackoff) {
+		if (capacity <= 0 || maxStaleness < 0 || retryBackoff < 0) {
+			throw new IllegalArgumentException("invalid capacity " + capacity
+					+ ", staleness " + maxStaleness + " or backoff "
+					+ retryBackoff);
+		}
+		this.maxStaleness = maxStaleness;
+		this.retryBackoff = retryBackoff;
+		backoffs = new ConcurrentLRUCache<String, Backoff>(capacity);
+		lastKnownGood = new ConcurrentLRUCache<String, CacheEntry<V>>(capacity);
+	}
+
+	/**
+	 * @return the number of stale values served because the reader failed.
+	 */
+	public long getStaleCount() {
+		return staleServed.get();
+	}
+
+	/**
+	 * Restores the entries saved in the snapshot, lazily, and saves the
+	 * entries to it when the JVM shuts down and every <em>interval</em>
+	 * milliseconds if it is positive.
+	 */
+	public void warmStart(CacheSnapshot snapshot, long interval) {
+		warmStart(snapshot, interval, null);
+	}
+
+	/**
+	 * Restores and saves only the keys starting with the prefix, for an
+	 * underlying cache that also holds the entries of others.
+	 * 
+	 * @see #warmStart(CacheSnapshot, long)
+	 */
+	public void warmStart(CacheSnapshot snapshot, long interval,
+			String keyPrefix) {
+		if (CacheSnapshot.entriesOf(cache) == null) {
+			LOG.warn("cannot save the entries of " + cache.getClass().getName()
+					+ " to " + snapshot.getFile());
+			return;
+		}
+		snapshotPrefix = keyPrefix;
+		Map<Object, CacheSnapshot.Entry> entries = snapshot.read();
+		if (keyPrefix != null) {
+			// left by a snapshot saved without the prefix
+			for (Iterator<Object> it = entries.keySet().iterator(); it
+					.hasNext();) {
+				if (!isSnapshotKey(it.next())) {
+					it.remove();
+				}
+			}
+		}
+		if (!entries.isEmpty()) {
+			restorable = new ConcurrentHashMap<Object, CacheSnapshot.Entry>(
+					entries);
+		}
+		snapshotSource = new CacheSnapshot.Source() {
+			public Collection<CacheSnapshot.Entry> entries() {
+				return snapshotEntries();
+			}
+		};
+		snapshot.saveOnShutdown(snapshotSource, interval);
+	}
+
+	/**
+	 * @return the statistics of the smart cache, with the evictions and size
+	 *         of the underlying cache.
+	 */
+	@Override
+	public CacheStats getStats() {
+		CacheStats base = cache.getStats();
+		return stats.snapshot(base.getEvictionCount(), base.getSize(), base
+				.getWeightedSize());
+	}
+
+	public ExpiryPolicy getExpiryPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @param executor
+	 *            runs the loads of <code>getAsync</code> and
+	 *            <code>getAllAsync</code>. It should be bounded, and reject
+	 *            loads when it is saturated.
+	 */
+	public void setLoader(Executor executor) {
+		loader = executor;
+	}
+
+	/**
+	 * @param millis
+	 *            the time after which an asynchronous load is cancelled,
+	 *            counted from when it is queued, 0 for none
+	 */
+	public void setLoadTimeout(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException(
+					"load timeout cannot be negative: " + millis);
+		}
+		loadTimeout = millis;
+	}
+
+	public long getLoadTimeout() {
+		return loadTimeout;
+	}
+
+	/**
+	 * Fetches the value through the reader and stores it in the underlying
+	 * cache. If another thread is already loading the same key, waits for that
+	 * load instead of calling the reader again.
+	 * 
+	 * @param key
+	 *            the URI of the value to load
+	 * @return the loaded entry
+	 */
+	CacheEntry<V> load(String key) {
+		FutureTask<CacheEntry<V>> task = newLoad(key);
+		FutureTask<CacheEntry<V>> inFlight = loading.putIfAbsent(key, task);
+		if (inFlight == null) {
+			inFlight = task;
+			try {
+				task.run();
+			} finally {
+				loading.remove(key, task);
+			}
+		}
+		return waitFor(key, inFlight);
+	}
+
+	/**
+	 * Loads the keys, with a single call to the reader if it is a
+	 * <code>BatchReader</code>. Keys already being loaded by other threads
+	 * are waited for rather than fetched again.
+	 */
+	Map<String, CacheEntry<V>> loadAll(List<String> keys) {
+		Map<String, CacheEntry<V>> loaded = new HashMap<String, CacheEntry<V>>();
+		if (!(reader instanceof BatchReader<?>)) {
+			for (String key : keys) {
+				loaded.put(key, load(key));
+			}
+			return loaded;
+		}
+		for (Map.Entry<String, Future<CacheEntry<V>>> e : startAll(keys)
+				.entrySet()) {
+			loaded.put(e.getKey(), waitFor(e.getKey(), e.getValue()));
+		}
+		return loaded;
+	}
+
+	/**
+	 * Loads the keys with a single call to the batch reader, except those
+	 * already being loaded by others, whose loads are returned rather than
+	 * waited for. A batch run by the loader must not wait: a load it waits
+	 * for may be queued behind it on the same executor.
+	 * 
+	 * @return the loads of the keys, done for those of the batch
+	 */
+	private Map<String, Future<CacheEntry<V>>> startAll(List<String> keys) {
+		Map<String, Future<CacheEntry<V>>> loads = new HashMap<String, Future<CacheEntry<V>>>();
+		Map<String, BatchLoad<V>> owned = new LinkedHashMap<String, BatchLoad<V>>();
+		for (String key : keys) {
+			BatchLoad<V> task = new BatchLoad<V>();
+			FutureTask<CacheEntry<V>> other = loading.putIfAbsent(key, task);
+			if (other == null) {
+				owned.put(key, task);
+			}
+			loads.put(key, other == null ? task : other);
+		}
+		if (!owned.isEmpty()) {
+			try {
+				fetchAll(owned);
+			} finally {
+				for (Map.Entry<String, BatchLoad<V>> e : owned.entrySet()) {
+					loading.remove(e.getKey(), e.getValue());
+				}
+			}
+		}
+		return loads;
+	}
+
+	/**
+	 * Reloads the entry in the background, unless a load of that key is
+	 * already under way. The current entry keeps being served meanwhile.
+	 */
+	void refresh(final String key) {
+		if (loading.containsKey(key)) {
+			return;
+		}
+		final FutureTask<CacheEntry<V>> task = newLoad(key);
+		if (loading.putIfAbsent(key, task) != null) {
+			return;
+		}
+		try {
+			refresher.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+						task.get();
+					} catch (Exception e) {
+						LOG.warn("background refresh failed for " + key, e);
+					} finally {
+						loading.remove(key, task);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// too many refreshes queued, a later read will try again
+			loading.remove(key, task);
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// HELPER METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Fetches the keys through the batch reader, stores them, and hands the
+	 * result or the failure to the threads waiting for them.
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<String, CacheEntry<V>> fetchAll(Map<String, BatchLoad<V>> owned) {
+		Map<String, CacheEntry<V>> entries = new HashMap<String, CacheEntry<V>>();
+		try {
+			List<String> keys = new ArrayList<String>(owned.size());
+			for (String key : owned.keySet()) {
+				CacheEntry<V> restored = restore(key);
+				if (restored != null) {
+					entries.put(key, restored);
+				} else {
+					keys.add(key);
+				}
+			}
+			if (!keys.isEmpty()) {
+				Map<String, ? extends V> fetched;
+				long start = System.nanoTime();
+				boolean loaded = false;
+				try {
+					fetched = ((BatchReader<? extends V>) reader)
+							.fetchAll(keys);
+					loaded = true;
+				} finally {
+					recordLoad(loaded, System.nanoTime() - start);
+				}
+				long now = System.currentTimeMillis();
+				for (String key : keys) {
+					entries.put(key, new CacheEntry<V>(fetched.get(key), now));
+				}
+			}
+			storeAll(entries);
+		} catch (RuntimeException e) {
+			fail(owned, e);
+			throw e;
+		} catch (Error e) {
+			fail(owned, e);
+			throw e;
+		}
+		for (Map.Entry<String, BatchLoad<V>> e : owned.entrySet()) {
+			e.getValue().complete(entries.get(e.getKey()));
+		}
+		return entries;
+	}
+
+	private static <V> void fail(Map<String, BatchLoad<V>> owned, Throwable t) {
+		for (BatchLoad<V> task : owned.values()) {
+			task.fail(t);
+		}
+	}
+
+	private FutureTask<CacheEntry<V>> newLoad(final String key) {
+		return new FutureTask<CacheEntry<V>>(new Callable<CacheEntry<V>>() {
+			public CacheEntry<V> call() {
+				CacheEntry<V> restored = restore(key);
+				if (restored != null) {
+					store(key, restored);
+					return restored;
+				}
+				V val;
+				long start = System.nanoTime();
+				boolean loaded = false;
+				try {
+					val = reader.fetch(key);
+					loaded = true;
+				} finally {
+					recordLoad(loaded, System.nanoTime() - start);
+				}
+				CacheEntry<V> entry = new CacheEntry<V>(val, System
+						.currentTimeMillis());
+				store(key, entry);
+				return entry;
+			}
+		});
+	}
+
+	/**
+	 * Starts loading the key on the loader executor, unless a load of that
+	 * key is already under way.
+	 */
+	private Future<CacheEntry<V>> loadAsync(String key) {
+		FutureTask<CacheEntry<V>> inFlight = loading.get(key);
+		if (inFlight != null) {
+			return inFlight;
+		}
+		FutureTask<CacheEntry<V>> task = newLoad(key);
+		inFlight = loading.putIfAbsent(key, task);
+		if (inFlight != null) {
+			return inFlight;
+		}
+		return submit(task, key);
+	}
+
+	/**
+	 * Starts loading the keys in one batch on the loader executor. The keys
+	 * already being loaded are joined by the futures of their entries, from
+	 * the caller's thread.
+	 */
+	private Future<Map<String, Future<CacheEntry<V>>>> loadAllAsync(
+			final List<String> keys) {
+		return submit(new FutureTask<Map<String, Future<CacheEntry<V>>>>(
+				new Callable<Map<String, Future<CacheEntry<V>>>>() {
+					public Map<String, Future<CacheEntry<V>>> call() {
+						return startAll(keys);
+					}
+				}), null);
+	}
+
+	/**
+	 * Runs the task on the loader and schedules its cancellation after the
+	 * load timeout, which is itself cancelled once the task is done.
+	 * 
+	 * @param key
+	 *            the key the task is registered under in
+	 *            <code>loading</code>, null if it is not
+	 */
+	private <T> Future<T> submit(final FutureTask<T> task, final String key) {
+		long timeout = loadTimeout;
+		final ScheduledFuture<?> timeoutTask = timeout > 0 ? timer.schedule(
+				new Runnable() {
+					public void run() {
+						// forget the load first, the next miss must not join it
+						if (key != null) {
+							loading.remove(key, task);
+						}
+						task.cancel(true);
+					}
+				}, timeout, TimeUnit.MILLISECONDS) : null;
+		try {
+			loader.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						if (timeoutTask != null) {
+							timeoutTask.cancel(false);
+						}
+						if (key != null) {
+							loading.remove(key, task);
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			if (timeoutTask != null) {
+				timeoutTask.cancel(false);
+			}
+			if (key != null) {
+				loading.remove(key, task);
+			}
+			// releases the threads that joined the load meanwhile
+			task.cancel(false);
+			return new CompletedFuture<T>(null, e);
+		}
+		return task;
+	}
+
+	/**
+	 * @return the entry of the key in the underlying cache, or null if it
+	 *         holds none. A value that is not an entry, put in a shared cache
+	 *         by someone else, is a miss and gets replaced when the key is
+	 *         loaded.
+	 */
+	private CacheEntry<V> cached(String key) {
+		ICache<String, ?> base = cache;
+		return entryOf(base.get(key));
+	}
+
+	/**
+	 * @return the entries of the keys in the underlying cache, leaving out the
+	 *         values that are not entries.
+	 */
+	private Map<String, CacheEntry<V>> cachedAll(Collection<? extends String> keys) {
+		ICache<String, ?> base = cache;
+		Map<String, CacheEntry<V>> entries = new HashMap<String, CacheEntry<V>>();
+		for (Map.Entry<String, ?> e : base.getAll(keys).entrySet()) {
+			CacheEntry<V> entry = entryOf(e.getValue());
+			if (entry != null) {
+				entries.put(e.getKey(), entry);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * @return the underlying cache typed for the values of others it may hold,
+	 *         so that the previous values it returns are not cast to entries.
+	 */
+	@SuppressWarnings("unchecked")
+	private ICache<String, Object> shared() {
+		ICache<String, ?> base = cache;
+		return (ICache<String, Object>) base;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> CacheEntry<V> entryOf(Object value) {
+		return value instanceof CacheEntry<?> ? (CacheEntry<V>) value : null;
+	}
+
+	/**
+	 * @return true if the entry holds a value that has not expired.
+	 */
+	private boolean isFresh(CacheEntry<V> entry, long now) {
+		return entry != null && entry.getValue() != null
+				&& !policy.isExpired(entry, now);
+	}
+
+	/**
+	 * Records the read of a fresh entry, refreshing it if it is old enough.
+	 */
+	private V hit(String key, CacheEntry<V> entry, long now) {
+		if (policy.tracksAccess()) {
+			entry.touch(now);
+		}
+		if (policy.needsRefresh(entry, now)) {
+			refresh(key);
+		}
+		return entry.getValue();
+	}
+
+	/**
+	 * Waits, uninterruptibly, for a load to finish and rethrows its failure
+	 * if there was one.
+	 */
+	private CacheEntry<V> waitFor(String key, Future<CacheEntry<V>> load) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return load.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					}
+					if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw new CommonRuntimeException("failed loading " + key,
+							cause);
+				} catch (CancellationException e) {
+					// an asynchronous load that timed out or was rejected
+					throw new CommonRuntimeException("failed loading " + key
+							+ ", the load was cancelled", e);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Stores a loaded entry. A null value is stored as is, unless absent
+	 * results are cached: the key is then removed from the underlying cache
+	 * and remembered as absent.
+	 */
+	private void store(String key, CacheEntry<V> entry) {
+		remember(key, entry);
+		if (absent != null && entry.getValue() == null) {
+			cache.remove(key);
+			absent.put(key, entry.getWriteTime()
+					+ policy.getExpireAbsentAfterWrite());
+		} else {
+			cache.put(key, entry);
+			clearAbsent(key);
+		}
+	}
+
+	private void storeAll(Map<String, CacheEntry<V>> entries) {
+		if (absent == null) {
+			for (Map.Entry<String, CacheEntry<V>> e : entries.entrySet()) {
+				remember(e.getKey(), e.getValue());
+			}
+			cache.putAll(entries);
+			return;
+		}
+		Map<String, CacheEntry<V>> present = new HashMap<String, CacheEntry<V>>();
+		List<String> missing = new ArrayList<String>();
+		for (Map.Entry<String, CacheEntry<V>> e : entries.entrySet()) {
+			CacheEntry<V> entry = e.getValue();
+			remember(e.getKey(), entry);
+			if (entry.getValue() == null) {
+				missing.add(e.getKey());
+				absent.put(e.getKey(), entry.getWriteTime()
+						+ policy.getExpireAbsentAfterWrite());
+			} else {
+				present.put(e.getKey(), entry);
+				clearAbsent(e.getKey());
+			}
+		}
+		cache.putAll(present);
+		if (!missing.isEmpty()) {
+			cache.removeAll(missing);
+		}
+	}
+
+	/**
+	 * @return true if the reader found nothing for the key recently.
+	 */
+	private boolean isAbsent(String key, long now) {
+		if (absent == null) {
+			return false;
+		}
+		Long expires = absent.get(key);
+		if (expires == null) {
+			return false;
+		}
+		if (now < expires) {
+			return true;
+		}
+		absent.remove(key);
+		return false;
+	}
+
+	private void clearAbsent(String key) {
+		// checked first so that the common case takes no lock
+		if (absent != null && absent.containsKey(key)) {
+			absent.remove(key);
+		}
+	}
+
+	/**
+	 * @return the entry of the key read from the snapshot, or null if there
+	 *         is none or if it is no longer valid.
+	 */
+	@SuppressWarnings("unchecked")
+	private CacheEntry<V> restore(String key) {
+		Map<Object, CacheSnapshot.Entry> entries = restorable;
+		CacheSnapshot.Entry saved = entries == null ? null : entries
+				.remove(key);
+		if (saved == null) {
+			return null;
+		}
+		CacheEntry<V> entry;
+		try {
+			entry = new CacheEntry<V>((V) saved.getValue(), saved.getTime());
+		} catch (RuntimeException e) {
+			LOG.warn("failed to restore " + key + " from the snapshot", e);
+			return null;
+		}
+		if (policy.isExpired(entry, System.currentTimeMillis())) {
+			return null;
+		}
+		if (reader instanceof VersionedReader<?>
+				&& ((VersionedReader<?>) reader).lastModified(key) > entry
+						.getWriteTime()) {
+			return null;
+		}
+		return entry;
+	}
+
+	private boolean isSnapshotKey(Object key) {
+		String prefix = snapshotPrefix;
+		return prefix == null
+				|| (key instanceof String && ((String) key).startsWith(prefix));
+	}
+
+	private void clearRestorable(String key) {
+		Map<Object, CacheSnapshot.Entry> entries = restorable;
+		if (entries != null) {
+			entries.remove(key);
+		}
+	}
+
+	/**
+	 * @return the entries to save, including those read from the snapshot
+	 *         that have not been restored yet.
+	 */
+	Collection<CacheSnapshot.Entry> snapshotEntries() {
+		long now = System.currentTimeMillis();
+		List<CacheSnapshot.Entry> saved = new ArrayList<CacheSnapshot.Entry>();
+		// the underlying cache may hold the entries of others
+		Map<?, ?> listed = CacheSnapshot.entriesOf(cache);
+		for (Map.Entry<?, ?> e : listed.entrySet()) {
+			if (!isSnapshotKey(e.getKey())
+					|| !(e.getValue() instanceof CacheEntry<?>)) {
+				continue;
+			}
+			CacheEntry<?> entry = (CacheEntry<?>) e.getValue();
+			if (entry.getValue() != null && !policy.isExpired(entry, now)) {
+				saved.add(new CacheSnapshot.Entry(e.getKey(),
+						entry.getValue(), entry.getWriteTime()));
+			}
+		}
+		Map<Object, CacheSnapshot.Entry> entries = restorable;
+		if (entries != null) {
+			saved.addAll(entries.values());
+		}
+		return saved;
+	}
+
+	/**
+	 * Loads the missing keys, serving the stale value of those whose load
+	 * fails or is backing off. The failure is thrown if a key has none.
+	 */
+	private Map<String, V> loadAllOrStale(List<String> missing,
+			Map<String, CacheEntry<V>> entries, Map<String, V> values, long now) {
+		List<String> keys = new ArrayList<String>(missing.size());
+		for (String key : missing) {
+			V stale = isBackingOff(key, now) ? staleValue(key, entries
+					.get(key), now) : null;
+			if (stale == null) {
+				keys.add(key);
+			} else {
+				staleServed.incrementAndGet();
+				values.put(key, stale);
+			}
+		}
+		if (keys.isEmpty()) {
+			return values;
+		}
+		try {
+			for (Map.Entry<String, CacheEntry<V>> e : loadAll(keys).entrySet()) {
+				if (e.getValue().getValue() != null) {
+					values.put(e.getKey(), e.getValue().getValue());
+				}
+			}
+			return values;
+		} catch (RuntimeException e) {
+			// some keys may have been loaded before the failure
+			Map<String, V> stale = new HashMap<String, V>();
+			for (String key : keys) {
+				CacheEntry<V> current = cached(key);
+				if (isFresh(current, now) && current != entries.get(key)) {
+					values.put(key, current.getValue());
+					continue;
+				}
+				V value = staleValue(key, entries.get(key), now);
+				if (value == null) {
+					throw e;
+				}
+				stale.put(key, value);
+			}
+			for (String key : stale.keySet()) {
+				backOff(key, now, e);
+			}
+			staleServed.addAndGet(stale.size());
+			values.putAll(stale);
+			return values;
+		}
+	}
+
+	/**
+	 * @return the value to serve if the load of the key fails: its expired
+	 *         value, or else its last known good value if stale values are
+	 *         served.
+	 */
+	private V fallBackValue(String key, CacheEntry<V> entry, long now) {
+		V expired = valueOf(entry);
+		return expired != null || lastKnownGood == null ? expired
+				: staleValue(key, entry, now);
+	}
+
+	/**
+	 * @return the expired value of the key, or else its last known good value,
+	 *         or null if neither is recent enough.
+	 */
+	private V staleValue(String key, CacheEntry<V> expired, long now) {
+		if (isServable(expired, now)) {
+			return expired.getValue();
+		}
+		ConcurrentLRUCache<String, CacheEntry<V>> good = lastKnownGood;
+		CacheEntry<V> entry = good == null ? null : good.get(key);
+		return isServable(entry, now) ? entry.getValue() : null;
+	}
+
+	private boolean isServable(CacheEntry<V> entry, long now) {
+		return entry != null
+				&& entry.getValue() != null
+				&& (maxStaleness == 0 || now - entry.getWriteTime() <= maxStaleness);
+	}
+
+	private boolean isBackingOff(String key, long now) {
+		ConcurrentLRUCache<String, Backoff> current = backoffs;
+		if (current == null) {
+			return false;
+		}
+		Backoff backoff = current.get(key);
+		return backoff != null && now < backoff.retryAt;
+	}
+
+	/**
+	 * Keeps the key from being loaded again for a while, twice as long as
+	 * after its previous failure.
+	 */
+	private void backOff(String key, long now, RuntimeException e) {
+		Backoff previous = backoffs.get(key);
+		int failures = previous == null ? 1 : previous.failures + 1;
+		long delay = Math.min(retryBackoff << Math.min(failures - 1, 20),
+				MAX_RETRY_BACKOFF);
+		backoffs.put(key, new Backoff(failures, now + delay));
+		LOG.warn("serving the stale value of " + key + ", retrying in "
+				+ delay + " ms: " + e);
+	}
+
+	/**
+	 * Keeps the value as the last known good one of the key, or forgets it if
+	 * the key is gone, and lets the key be loaded again at once.
+	 */
+	private void remember(String key, CacheEntry<V> entry) {
+		ConcurrentLRUCache<String, CacheEntry<V>> good = lastKnownGood;
+		if (good == null) {
+			return;
+		}
+		if (entry.getValue() != null) {
+			good.put(key, entry);
+		} else {
+			good.remove(key);
+		}
+		backoffs.remove(key);
+	}
+
+	private static void addPrefixed(Collection<String> keys,
+			Collection<?> candidates, String prefix) {
+		for (Object key : candidates) {
+			// a shared underlying cache may hold keys of other types
+			if (key instanceof String && ((String) key).startsWith(prefix)) {
+				keys.add((String) key);
+			}
+		}
+	}
+
+	private void forget(String key) {
+		ConcurrentLRUCache<String, CacheEntry<V>> good = lastKnownGood;
+		if (good != null) {
+			good.remove(key);
+			backoffs.remove(key);
+		}
+	}
+
+	private void recordLoad(boolean loaded, long loadTime) {
+		if (loaded) {
+			stats.recordLoadSuccess(loadTime);
+		} else {
+			stats.recordLoadFailure(loadTime);
+		}
+	}
+
+	private static <V> V valueOf(CacheEntry<V> entry) {
+		return entry == null ? null : entry.getValue();
+	}
+
+	/**
+	 * A load of one key done as part of a batch, completed by the thread
+	 * calling the batch reader rather than run.
+	 */
+	private static final class BatchLoad<V> extends FutureTask<CacheEntry<V>> {
+
+		BatchLoad() {
+			super(new Callable<CacheEntry<V>>() {
+				public CacheEntry<V> call() {
+					throw new IllegalStateException("batch loads are not run");
+				}
+			});
+		}
+
+		void complete(CacheEntry<V> entry) {
+			set(entry);
+		}
+
+		void fail(Throwable t) {
+			setException(t);
+		}
+	}
+
+	/**
+	 * When a key failing to load may be loaded again.
+	 */
+	private static final class Backoff {
+		final int failures;
+		final long retryAt;
+
+		Backoff(int failures, long retryAt) {
+			this.failures = failures;
+			this.retryAt = retryAt;
+		}
+	}
+
+	/**
+	 * The value of a key being loaded, falling back on its expired or last
+	 * known good value if the load fails.
+	 */
+	private static final class LoadFuture<V> implements Future<V> {
+
+		private final String key;
+		private final Future<CacheEntry<V>> load;
+		private final V stale;
+		private final AtomicLong staleServed;
+
+		LoadFuture(String key, Future<CacheEntry<V>> load, V stale,
+				AtomicLong staleServed) {
+			this.key = key;
+			this.load = load;
+			this.stale = stale;
+			this.staleServed = staleServed;
+		}
+
+		public V get() throws InterruptedException, ExecutionException {
+			try {
+				return valueOf(load.get());
+			} catch (ExecutionException e) {
+				return fallBack(e.getCause());
+			} catch (CancellationException e) {
+				return fallBack(timedOut());
+			}
+		}
+
+		public V get(long timeout, TimeUnit unit) throws InterruptedException,
+				ExecutionException, TimeoutException {
+			try {
+				return valueOf(load.get(timeout, unit));
+			} catch (ExecutionException e) {
+				return fallBack(e.getCause());
+			} catch (CancellationException e) {
+				return fallBack(timedOut());
+			} catch (TimeoutException e) {
+				if (stale != null) {
+					staleServed.incrementAndGet();
+					return stale;
+				}
+				throw e;
+			}
+		}
+
+		/** the load may be shared with other callers, so it is not cancelled */
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return false;
+		}
+
+		public boolean isDone() {
+			return load.isDone();
+		}
+
+		private V fallBack(Throwable cause) throws ExecutionException {
+			if (stale == null) {
+				throw new ExecutionException(cause);
+			}
+			LOG.warn("serving the expired value of " + key + ": " + cause);
+			staleServed.incrementAndGet();
+			return stale;
+		}
+
+		private TimeoutException timedOut() {
+			return new TimeoutException("the load of " + key
+					+ " timed out or was rejected");
+		}
+	}
+
+	/**
+	 * The entry of one key out of a batch load, which may be the load of the
+	 * key already under way when the batch ran.
+	 */
+	private static final class BatchEntry<V> implements
+			Future<CacheEntry<V>> {
+
+		private final Future<Map<String, Future<CacheEntry<V>>>> batch;
+		private final String key;
+
+		BatchEntry(Future<Map<String, Future<CacheEntry<V>>>> batch,
+				String key) {
+			this.batch = batch;
+			this.key = key;
+		}
+
+		public CacheEntry<V> get() throws InterruptedException,
+				ExecutionException {
+			return batch.get().get(key).get();
+		}
+
+		public CacheEntry<V> get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException,
+				TimeoutException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			return batch.get(timeout, unit).get(key).get(
+					deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return batch.isCancelled();
+		}
+
+		public boolean isDone() {
+			try {
+				return batch.isDone() && batch.get().get(key).isDone();
+			} catch (Exception e) {
+				// the batch failed or was cancelled
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * The values of several keys, some known and some being loaded. Keys
+	 * loaded as null are left out.
+	 */
+	private static final class AllFuture<V> implements Future<Map<String, V>> {
+
+		private final Map<String, V> values;
+		private final Map<String, Future<V>> pending;
+
+		AllFuture(Map<String, V> values, Map<String, Future<V>> pending) {
+			this.values = values;
+			this.pending = pending;
+		}
+
+		public Map<String, V> get() throws InterruptedException,
+				ExecutionException {
+			Map<String, V> all = new HashMap<String, V>(values);
+			for (Map.Entry<String, Future<V>> e : pending.entrySet()) {
+				V value = e.getValue().get();
+				if (value != null) {
+					all.put(e.getKey(), value);
+				}
+			}
+			return all;
+		}
+
+		public Map<String, V> get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException,
+				TimeoutException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			Map<String, V> all = new HashMap<String, V>(values);
+			for (Map.Entry<String, Future<V>> e : pending.entrySet()) {
+				V value = e.getValue().get(deadline - System.nanoTime(),
+						TimeUnit.NANOSECONDS);
+				if (value != null) {
+					all.put(e.getKey(), value);
+				}
+			}
+			return all;
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return false;
+		}
+
+		public boolean isDone() {
+			for (Future<V> future : pending.values()) {
+				if (!future.isDone()) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A future that is done from the start.
+	 */
+	private static final class CompletedFuture<T> implements Future<T> {
+
+		private final T value;
+		private final Throwable failure;
+
+		CompletedFuture(T value, Throwable failure) {
+			this.value = value;
+			this.failure = failure;
+		}
+
+		public T get() throws ExecutionException {
+			if (failure != null) {
+				throw new ExecutionException(failure);
+			}
+			return value;
+		}
+
+		public T get(long timeout, TimeUnit unit) throws ExecutionException {
+			return get();
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return false;
+		}
+
+		public boolean isDone() {
+			return true;
+		}
+	}
+
+	private static Executor createLoader() {
+		SmartCacheConfig<Object> config = new SmartCacheConfig<Object>();
+		return createExecutor("loader", config.getLoaderThreads(), config
+				.getLoaderQueueSize());
+	}
+
+	private static Executor createExecutor(final String name, int threads,
+			int queueSize) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+				threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(queueSize),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
 
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "smartcache-" + name + "-"
+								+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
 	}
 
 }
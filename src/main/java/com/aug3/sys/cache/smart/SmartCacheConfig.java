@@ -1,9 +1,11 @@
 package com.aug3.sys.cache.smart;
 
+import java.io.File;
 import java.util.Properties;
 
+import com.aug3.sys.cache.CacheSnapshot;
+import com.aug3.sys.cache.ConcurrentLRUCache;
 import com.aug3.sys.cache.ICache;
-import com.aug3.sys.cache.LRUCache;
 import com.aug3.sys.properties.LazyPropLoader;
 
 /**
@@ -11,6 +13,33 @@ import com.aug3.sys.properties.LazyPropLoader;
  * resource <code>smartcache.properties</code>. It uses an underlying
  * class-level configure map so that we only load the data once.
  * 
+ * The underlying cache is created with its no-argument constructor, unless
+ * <code>scache.basecache.size.<em>cacheid</em></code> is defined, in which case
+ * its constructor taking the capacity is used.
+ * 
+ * When <code>scache.expire.absent.<em>cacheid</em></code> is set, up to
+ * <code>scache.absent.size.<em>cacheid</em></code> keys the reader found
+ * nothing for are remembered, 1000 by default.
+ * 
+ * The asynchronous loads of all the smart caches share an executor of
+ * <code>scache.loader.threads</code> threads (8 by default) queuing up to
+ * <code>scache.loader.queue</code> loads (1000 by default). Those of a cache
+ * are cancelled after <code>scache.load.timeout.<em>cacheid</em></code>
+ * milliseconds, or never if it is not set.
+ * 
+ * The entries of a cache are saved to
+ * <code>scache.snapshot.file.<em>cacheid</em></code> at shutdown, and every
+ * <code>scache.snapshot.interval.<em>cacheid</em></code> seconds if it is set.
+ * Snapshots written with another <code>scache.snapshot.stamp</code>, usually
+ * the release of the application, are discarded.
+ * 
+ * When <code>scache.stale.size.<em>cacheid</em></code> is set, the last value
+ * of that many keys is kept and served when the reader fails, unless it is
+ * older than <code>scache.stale.maxage.<em>cacheid</em></code> seconds; the
+ * key is then not loaded again for
+ * <code>scache.stale.backoff.<em>cacheid</em></code> milliseconds, 1000 by
+ * default, doubled on each failure in a row.
+ * 
  * @author xial
  * @param <V>
  */
@@ -18,8 +47,27 @@ public class SmartCacheConfig<V> {
 
 	private static final String CONFIG_RESOURCE = "/smartcache.properties";
 	private static final String BASE_CACHE_PREFIX = "scache.basecache.";
+	private static final String BASE_CACHE_SIZE_PREFIX = "scache.basecache.size.";
 	private static final String BASE_READER_PREFIX = "scache.reader.";
-	private static final String DEFAULT_CACHE = LRUCache.class
+	private static final String EXPIRE_WRITE_PREFIX = "scache.expire.write.";
+	private static final String EXPIRE_ACCESS_PREFIX = "scache.expire.access.";
+	private static final String REFRESH_WRITE_PREFIX = "scache.refresh.write.";
+	private static final String EXPIRE_ABSENT_PREFIX = "scache.expire.absent.";
+	private static final String ABSENT_SIZE_PREFIX = "scache.absent.size.";
+	private static final String LOAD_TIMEOUT_PREFIX = "scache.load.timeout.";
+	private static final String LOADER_THREADS = "scache.loader.threads";
+	private static final String LOADER_QUEUE = "scache.loader.queue";
+	private static final String SNAPSHOT_FILE_PREFIX = "scache.snapshot.file.";
+	private static final String SNAPSHOT_INTERVAL_PREFIX = "scache.snapshot.interval.";
+	private static final String SNAPSHOT_STAMP = "scache.snapshot.stamp";
+	private static final String STALE_SIZE_PREFIX = "scache.stale.size.";
+	private static final String STALE_MAXAGE_PREFIX = "scache.stale.maxage.";
+	private static final String STALE_BACKOFF_PREFIX = "scache.stale.backoff.";
+	static final int DEFAULT_ABSENT_SIZE = 1000;
+	static final int DEFAULT_LOADER_THREADS = 8;
+	static final int DEFAULT_LOADER_QUEUE = 1000;
+	static final long DEFAULT_RETRY_BACKOFF = 1000;
+	private static final String DEFAULT_CACHE = ConcurrentLRUCache.class
 			.getCanonicalName();
 	private static final String DEFAULT_READER = NullReader.class
 			.getCanonicalName();
@@ -43,6 +91,11 @@ public class SmartCacheConfig<V> {
 	public ICache<String, V> getCache(String cacheId) {
 		String cacheClassName = config.getProperty(BASE_CACHE_PREFIX + cacheId,
 				DEFAULT_CACHE);
+		String size = config.getProperty(BASE_CACHE_SIZE_PREFIX + cacheId);
+		if (size != null) {
+			return (ICache<String, V>) getInstance(cacheClassName, Integer
+					.parseInt(size.trim()));
+		}
 		return (ICache<String, V>) getInstance(cacheClassName);
 	}
 
@@ -52,6 +105,117 @@ public class SmartCacheConfig<V> {
 		return (Reader<V>) getInstance(readerClassName);
 	}
 
+	/**
+	 * Builds the expiry policy of the cache from its
+	 * <code>scache.expire.write</code>, <code>scache.expire.access</code>,
+	 * <code>scache.refresh.write</code> and <code>scache.expire.absent</code>
+	 * properties, all in seconds.
+	 */
+	public ExpiryPolicy getExpiryPolicy(String cacheId) {
+		long expireAfterWrite = getSeconds(EXPIRE_WRITE_PREFIX + cacheId);
+		long expireAfterAccess = getSeconds(EXPIRE_ACCESS_PREFIX + cacheId);
+		long refreshAfterWrite = getSeconds(REFRESH_WRITE_PREFIX + cacheId);
+		long expireAbsentAfterWrite = getSeconds(EXPIRE_ABSENT_PREFIX
+				+ cacheId);
+		if (expireAfterWrite == 0 && expireAfterAccess == 0
+				&& refreshAfterWrite == 0 && expireAbsentAfterWrite == 0) {
+			return ExpiryPolicy.NONE;
+		}
+		return new ExpiryPolicy(expireAfterWrite * 1000,
+				expireAfterAccess * 1000, refreshAfterWrite * 1000,
+				expireAbsentAfterWrite * 1000);
+	}
+
+	/**
+	 * @return the maximum number of absent keys the cache remembers.
+	 */
+	public int getAbsentCapacity(String cacheId) {
+		String size = config.getProperty(ABSENT_SIZE_PREFIX + cacheId);
+		return size != null ? Integer.parseInt(size.trim())
+				: DEFAULT_ABSENT_SIZE;
+	}
+
+	/**
+	 * @return the time in milliseconds after which an asynchronous load of
+	 *         the cache is cancelled, 0 for none.
+	 */
+	public long getLoadTimeout(String cacheId) {
+		String val = config.getProperty(LOAD_TIMEOUT_PREFIX + cacheId);
+		return (val != null) ? Long.parseLong(val.trim()) : 0;
+	}
+
+	/**
+	 * @return the number of threads running the asynchronous loads.
+	 */
+	public int getLoaderThreads() {
+		String val = config.getProperty(LOADER_THREADS);
+		return (val != null) ? Integer.parseInt(val.trim())
+				: DEFAULT_LOADER_THREADS;
+	}
+
+	/**
+	 * @return the number of asynchronous loads that can wait for a thread
+	 *         before new ones are rejected.
+	 */
+	public int getLoaderQueueSize() {
+		String val = config.getProperty(LOADER_QUEUE);
+		return (val != null) ? Integer.parseInt(val.trim())
+				: DEFAULT_LOADER_QUEUE;
+	}
+
+	/**
+	 * @return the snapshot the entries of the cache are saved to, or null if
+	 *         they are not saved.
+	 */
+	public CacheSnapshot getSnapshot(String cacheId) {
+		String file = config.getProperty(SNAPSHOT_FILE_PREFIX + cacheId);
+		if (file == null || file.trim().length() == 0) {
+			return null;
+		}
+		return new CacheSnapshot(new File(file.trim()), config
+				.getProperty(SNAPSHOT_STAMP));
+	}
+
+	/**
+	 * @return the time in milliseconds between two saves of the entries of
+	 *         the cache, 0 to only save them at shutdown.
+	 */
+	public long getSnapshotInterval(String cacheId) {
+		return getSeconds(SNAPSHOT_INTERVAL_PREFIX + cacheId) * 1000;
+	}
+
+	/**
+	 * @return the number of keys whose last value is served when the reader
+	 *         fails, 0 to throw the failures.
+	 */
+	public int getStaleCapacity(String cacheId) {
+		String size = config.getProperty(STALE_SIZE_PREFIX + cacheId);
+		return size != null ? Integer.parseInt(size.trim()) : 0;
+	}
+
+	/**
+	 * @return the age in milliseconds beyond which a value is not served when
+	 *         the reader fails, 0 for no limit.
+	 */
+	public long getMaxStaleness(String cacheId) {
+		return getSeconds(STALE_MAXAGE_PREFIX + cacheId) * 1000;
+	}
+
+	/**
+	 * @return the time in milliseconds a key is not loaded again after the
+	 *         reader failed on it.
+	 */
+	public long getRetryBackoff(String cacheId) {
+		String val = config.getProperty(STALE_BACKOFF_PREFIX + cacheId);
+		return (val != null) ? Long.parseLong(val.trim())
+				: DEFAULT_RETRY_BACKOFF;
+	}
+
+	private long getSeconds(String property) {
+		String val = config.getProperty(property);
+		return (val != null) ? Long.parseLong(val.trim()) : 0;
+	}
+
 	private Object getInstance(String className) {
 		try {
 			Class<?> clazz = Class.forName(className);
@@ -63,4 +227,14 @@ public class SmartCacheConfig<V> {
 
 	}
 
+	private Object getInstance(String className, int capacity) {
+		try {
+			Class<?> clazz = Class.forName(className);
+			return clazz.getConstructor(int.class).newInstance(capacity);
+		} catch (Exception e) {
+			throw new RuntimeException("failed creating instance for class "
+					+ className + " with capacity " + capacity, e);
+		}
+	}
+
 }
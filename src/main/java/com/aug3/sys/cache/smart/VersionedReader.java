@@ -0,0 +1,24 @@
+package com.aug3.sys.cache.smart;
+
+/**
+ * A Reader that can tell when the source of a value last changed, so that a
+ * SmartCache restoring its entries from a snapshot only keeps those that are
+ * still up to date. Entries restored for a plain Reader are only checked
+ * against the expiry policy.
+ * 
+ * @author xial
+ * 
+ * @param <T>
+ *            the type of object that the Reader fetches
+ */
+public interface VersionedReader<T> extends Reader<T> {
+
+	/**
+	 * @param uri
+	 *            URI describing the data
+	 * @return the time in milliseconds the data last changed, or 0 if it is
+	 *         not known. It must be cheaper than fetching the data.
+	 */
+	long lastModified(String uri);
+
+}
@@ -2,6 +2,8 @@ package com.aug3.sys.cfg;
 
 import java.util.Map;
 
+import com.aug3.sys.cache.CacheMgr;
+
 /**
  * CacheValueGetter is a decorator for ValueGetters that adds caching
  * functionality. The cache will also register itself for callbacks, so that it
@@ -23,12 +25,17 @@ class CacheValueGetter implements ValueGetter {
 	// ----------------------------------------------------------------------
 
 	CacheValueGetter(ValueGetter reader) {
-		this.valuesetCache = new MonitoringMap<String, Object>();
-		this.reader = reader;
+		this(reader, new MonitoringMap<String, Object>());
 	}
 
 	CacheValueGetter(ValueGetter reader, int cacheSize) {
-		this.valuesetCache = new MonitoringMap<String, Object>(cacheSize);
+		this(reader, new MonitoringMap<String, Object>(cacheSize));
+	}
+
+	private CacheValueGetter(ValueGetter reader,
+			MonitoringMap<String, Object> cache) {
+		CacheMgr.registerInstance("cfg.values", cache);
+		this.valuesetCache = cache;
 		this.reader = reader;
 	}
 
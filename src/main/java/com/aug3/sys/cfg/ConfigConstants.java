@@ -73,6 +73,11 @@ public interface ConfigConstants {
 	static final String CONFIG_CACHE_ENABLE = "cfg.cache.enable";
 	static final String CONFIG_CACHE_SIZE = "cfg.cache.size";
 	static final int CONFIG_DEFAULT_CACHE_SIZE = 20;
+	// estimated size in bytes of the cached value sets, 0 for no bound
+	static final String CONFIG_CACHE_MAX_WEIGHT = "cfg.cache.maxweight";
+	// entries cached per organization, the cache size then being the overflow
+	// shared by all; 0 for a single cache
+	static final String CONFIG_CACHE_ORG_SIZE = "cfg.cache.org.size";
 
 	// number of retry for config manager API
 	static final String CONFIG_NUM_RETRY = "config.mum.retry";
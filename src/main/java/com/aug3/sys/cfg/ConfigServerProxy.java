@@ -6,6 +6,9 @@ import com.aug3.sys.AppContext;
 import com.aug3.sys.CommonException;
 import com.aug3.sys.CommonRuntimeException;
 import com.aug3.sys.action.AbstractAction;
+import com.aug3.sys.cache.CacheMgr;
+import com.aug3.sys.cache.ICache;
+import com.aug3.sys.cache.PartitionedCache;
 import com.aug3.sys.log.MLogger;
 import com.aug3.sys.properties.BootProperties;
 import com.aug3.sys.rmi.ServiceLocator;
@@ -37,7 +40,7 @@ public class ConfigServerProxy implements ConfigServer {
 	// ---------------------------------------------------------------------
 
 	private ConfigMgr remoteServer;
-	private Map<String, Object> valueSetCache;
+	private ICache<String, Object> valueSetCache;
 	private String currentServerUrl;
 	private boolean serverUpdateNotifDisabled = false;
 
@@ -53,7 +56,24 @@ public class ConfigServerProxy implements ConfigServer {
 		int cacheSize = BootProperties.getInstance().getProperty(
 				ConfigConstants.CONFIG_CACHE_SIZE,
 				ConfigConstants.CONFIG_DEFAULT_CACHE_SIZE);
-		valueSetCache = new MonitoringMap<String, Object>(cacheSize);
+		int cacheMaxWeight = BootProperties.getInstance().getProperty(
+				ConfigConstants.CONFIG_CACHE_MAX_WEIGHT, 0);
+		int orgCacheSize = BootProperties.getInstance().getProperty(
+				ConfigConstants.CONFIG_CACHE_ORG_SIZE, 0);
+		if (orgCacheSize > 0) {
+			// one organization cannot evict the value sets of the others
+			PartitionedCache<String, Object> cache = new MonitoringPartitionedCache(
+					new OrgPartitioner(), orgCacheSize, cacheSize);
+			cache.register("cfg.server");
+			valueSetCache = cache;
+		} else {
+			MonitoringMap<String, Object> cache = cacheMaxWeight > 0 ? new MonitoringMap<String, Object>(
+					cacheSize, cacheMaxWeight)
+					: new MonitoringMap<String, Object>(cacheSize);
+			// one cache per thread, added up under one name
+			CacheMgr.registerInstance("cfg.server", cache);
+			valueSetCache = cache;
+		}
 		reconnect();
 		UpdateNotifier.addCallback(new UpdateNotification(),
 				new UpdateAction(),
@@ -194,7 +214,7 @@ public class ConfigServerProxy implements ConfigServer {
 	 * server of the currently assigned appserver.
 	 */
 	public void reset() {
-		valueSetCache.clear();
+		valueSetCache.flush();
 		reconnect();
 	}
 
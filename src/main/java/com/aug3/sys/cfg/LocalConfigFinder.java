@@ -1,11 +1,15 @@
 package com.aug3.sys.cfg;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import com.aug3.sys.AppSystem;
 import com.aug3.sys.CommonException;
-import com.aug3.sys.cache.memcached.MemCachedAdapter;
+import com.aug3.sys.CommonRuntimeException;
+import com.aug3.sys.cache.CacheMgr;
+import com.aug3.sys.cache.memcached.CasCache;
+import com.aug3.sys.cache.memcached.NearCache;
 import com.aug3.sys.log.MLogger;
 import com.aug3.sys.properties.BootProperties;
 
@@ -20,6 +24,12 @@ import com.aug3.sys.properties.BootProperties;
  * member of the group and instantiate local versions of <code>configinfo</code>
  * and the elector code to improve performance.
  * 
+ * The members of a group update <code>configinfo</code> atomically: only the
+ * entries a member changed since it last read the shared copy are written,
+ * with a compare-and-set, and an entry another member changed in the meantime
+ * is left as that member set it. Concurrent registrations and elections are
+ * thus not lost, and the finder sees the server actually elected.
+ * 
  * @author xial
  */
 public class LocalConfigFinder {
@@ -55,7 +65,12 @@ public class LocalConfigFinder {
 	// INSTANCE FIELDS
 	// ---------------------------------------------------------------------
 
+	/** shared by all finders, created on first use */
+	private static NearCache<Map<String, String>> distributedCache;
+
 	private Map<String, String> configInfo;
+	/** the shared config info as this finder last read or wrote it */
+	private Map<String, String> published = new HashMap<String, String>();
 	private BootProperties bootProps = BootProperties.getInstance();
 	private Elector elector;
 
@@ -98,7 +113,7 @@ public class LocalConfigFinder {
 	 */
 	private LocalConfigFinder() throws CommonException {
 
-		getConfigInfo();
+		configInfo = getConfigInfo();
 
 		if (isServer()) {
 			LOG.info("configured to be a config server");
@@ -129,6 +144,11 @@ public class LocalConfigFinder {
 		if ((url == null) || (url.equals(NULL_VALUE))) {
 			url = elector.electNewServer();
 			updateConfigInfo();
+			// another member may have won the election meanwhile
+			String elected = configInfo.get(Elector.CONFIG_URL_KEY);
+			if (elected != null && !elected.equals(NULL_VALUE)) {
+				url = elected;
+			}
 		}
 		return url;
 	}
@@ -158,12 +178,53 @@ public class LocalConfigFinder {
 		return isServerProp.equalsIgnoreCase("true");
 	}
 
+	/**
+	 * Writes the entries changed since the shared config info was last read
+	 * or written, unless another member changed them meanwhile, then reads
+	 * back the entries of the other members.
+	 * 
+	 * @return false if the shared config info could not be updated.
+	 */
 	private boolean updateConfigInfo() {
-		if (!SINGLETON_CONFIG_GROUP.equals(bootProps
+		if (SINGLETON_CONFIG_GROUP.equals(bootProps
 				.getProperty(CONFIG_GROUP_PROP))) {
-			MemCachedAdapter<Map<String, String>> distributedCache = new MemCachedAdapter<Map<String, String>>();
-			distributedCache.put(CACHE_KEY_CONFIG_INFO, configInfo);
+			return true;
 		}
+		final Map<String, String> seen = published;
+		final Map<String, String> changes = new HashMap<String, String>();
+		for (Map.Entry<String, String> e : configInfo.entrySet()) {
+			if (!e.getValue().equals(seen.get(e.getKey()))) {
+				changes.put(e.getKey(), e.getValue());
+			}
+		}
+		Map<String, String> shared;
+		try {
+			shared = getDistributedCache().compute(CACHE_KEY_CONFIG_INFO,
+					new CasCache.Updater<Map<String, String>>() {
+						public Map<String, String> update(
+								Map<String, String> current) {
+							Map<String, String> next = new HashMap<String, String>();
+							if (current != null) {
+								next.putAll(current);
+							}
+							for (Map.Entry<String, String> e : changes
+									.entrySet()) {
+								String other = next.get(e.getKey());
+								if (other == null
+										|| other.equals(seen.get(e.getKey()))) {
+									next.put(e.getKey(), e.getValue());
+								}
+							}
+							return next;
+						}
+					});
+		} catch (CommonRuntimeException e) {
+			LOG.warn("could not update the shared config info: "
+					+ e.getMessage());
+			return false;
+		}
+		configInfo.putAll(shared);
+		published = new HashMap<String, String>(shared);
 		return true;
 	}
 
@@ -172,10 +233,23 @@ public class LocalConfigFinder {
 				.getProperty(CONFIG_GROUP_PROP))) {
 			return new ConcurrentHashMap<String, String>();
 		} else {
-			MemCachedAdapter<Map<String, String>> distributedCache = new MemCachedAdapter<Map<String, String>>();
-			return distributedCache.get(CACHE_KEY_CONFIG_INFO) == null ? new ConcurrentHashMap<String, String>()
-					: distributedCache.get(CACHE_KEY_CONFIG_INFO);
+			Map<String, String> cached = getDistributedCache().get(
+					CACHE_KEY_CONFIG_INFO);
+			if (cached == null) {
+				return new ConcurrentHashMap<String, String>();
+			}
+			// copied, as the near cache shares its local copy
+			published = new HashMap<String, String>(cached);
+			return new ConcurrentHashMap<String, String>(cached);
+		}
+	}
+
+	private static synchronized NearCache<Map<String, String>> getDistributedCache() {
+		if (distributedCache == null) {
+			distributedCache = new NearCache<Map<String, String>>();
+			CacheMgr.register("cfg.near", distributedCache);
 		}
+		return distributedCache;
 	}
 
 }
@@ -1,11 +1,12 @@
 package com.aug3.sys.cfg;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import com.aug3.sys.CommonRuntimeException;
 import com.aug3.sys.action.AbstractAction;
+import com.aug3.sys.cache.DefaultWeigher;
 import com.aug3.sys.cache.LRUCache;
 
 /**
@@ -14,6 +15,9 @@ import com.aug3.sys.cache.LRUCache;
  * an update callback and removes data when the associated key value has been
  * updated.
  * 
+ * The map can also be bounded by the estimated size in bytes of its entries,
+ * as value sets differ widely in size.
+ * 
  * @author xial
  */
 @SuppressWarnings("serial")
@@ -31,15 +35,18 @@ public class MonitoringMap<K, V> extends LRUCache<K, V> {
 
 	public MonitoringMap(int size) {
 		super(size);
-		UpdateNotifier.addCallback(new UpdateNotification(),
-				new MapUpdateAction(),
-				ConfigConstants.UPDATE_NOTIFY_CALLBACK_PRIORITY_NORMAL);
-		try {
-			UpdateNotifier.start();
-		} catch (ConfigException e) {
-			throw new CommonRuntimeException(
-					"unable to start monitoring cache update listener", e);
-		}
+		register();
+	}
+
+	/**
+	 * @param size
+	 *            the maximum number of entries
+	 * @param maxWeight
+	 *            the maximum estimated size of the entries in bytes
+	 */
+	public MonitoringMap(int size, long maxWeight) {
+		super(size, maxWeight, new DefaultWeigher());
+		register();
 	}
 
 	// testing purposes only, so we don't try to connect to the update notifier
@@ -58,23 +65,59 @@ public class MonitoringMap<K, V> extends LRUCache<K, V> {
 		return super.put(key, value);
 	}
 
+	public synchronized V put(K key, V value, long timeToLive) {
+		return super.put(key, value, timeToLive);
+	}
+
+	// reads may remove expired entries
+	public synchronized boolean containsKey(Object key) {
+		return super.containsKey(key);
+	}
+
+	public synchronized void cleanUp() {
+		super.cleanUp();
+	}
+
+	public synchronized V remove(Object key) {
+		return super.remove(key);
+	}
+
+	public synchronized long weightedSize() {
+		return super.weightedSize();
+	}
+
 	// ----------------------------------------------------------------------
 	// HELPER METHODS
 	// ----------------------------------------------------------------------
 
+	private void register() {
+		UpdateNotifier.addCallback(new UpdateNotification(),
+				new MapUpdateAction(),
+				ConfigConstants.UPDATE_NOTIFY_CALLBACK_PRIORITY_NORMAL);
+		try {
+			UpdateNotifier.start();
+		} catch (ConfigException e) {
+			throw new CommonRuntimeException(
+					"unable to start monitoring cache update listener", e);
+		}
+	}
+
 	/**
 	 * Removes all entries whose key starts with the prefix passed as a
 	 * parameter. We do this so that when a value set is updated, all
 	 * key-related entries are also removed.
 	 */
 	void removePrefixedEntries(String prefix) {
-		Set<K> mapKeys = keySet();
-		for (Iterator<K> it = mapKeys.iterator(); it.hasNext();) {
-			String mapKey = (String) it.next();
-			if (mapKey.startsWith(prefix)) {
-				it.remove();
+		// removed through remove() so that the weight is kept up to date
+		List<K> prefixed = new ArrayList<K>();
+		for (K key : keySet()) {
+			if (((String) key).startsWith(prefix)) {
+				prefixed.add(key);
 			}
 		}
+		for (K key : prefixed) {
+			remove(key);
+		}
 	}
 
 	/**
@@ -84,7 +127,8 @@ public class MonitoringMap<K, V> extends LRUCache<K, V> {
 
 		if (notification == null) {
 			clear();
-		} else if (notification.getCustomLongVal1() != UpdateNotification.SERVER_CHANGE_CODE) {
+		} else if (notification.getCustomLongVal1() != UpdateNotification.SERVER_CHANGE_CODE
+				&& notification.getCustomLongVal1() != UpdateNotification.CACHE_CHANGE_CODE) {
 			String key = notification.getCustomStrVal1();
 			if (key == null) {
 				clear();
@@ -0,0 +1,86 @@
+package com.aug3.sys.cfg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.aug3.sys.CommonRuntimeException;
+import com.aug3.sys.action.AbstractAction;
+import com.aug3.sys.cache.PartitionedCache;
+import com.aug3.sys.cache.Partitioner;
+
+/**
+ * A partitioned cache that monitors update notifications the way a
+ * <code>MonitoringMap</code> does, removing the entries whose key starts with
+ * the key of the notification.
+ *
+ * The partitions and the overflow pool are plain caches: the cache registers a
+ * single callback, which holds the lock of the cache while it removes the
+ * entries, so that the counts of the partitions are only changed under that
+ * lock.
+ *
+ * @author xial
+ */
+class MonitoringPartitionedCache extends PartitionedCache<String, Object> {
+
+	/**
+	 * @see PartitionedCache#PartitionedCache(Partitioner, int, int)
+	 */
+	MonitoringPartitionedCache(Partitioner<? super String> partitioner,
+			int defaultQuota, int overflowCapacity) {
+		super(partitioner, defaultQuota, overflowCapacity);
+		UpdateNotifier.addCallback(new UpdateNotification(),
+				new CacheUpdateAction(),
+				ConfigConstants.UPDATE_NOTIFY_CALLBACK_PRIORITY_NORMAL);
+		try {
+			UpdateNotifier.start();
+		} catch (ConfigException e) {
+			throw new CommonRuntimeException(
+					"unable to start monitoring cache update listener", e);
+		}
+	}
+
+	/**
+	 * Clears the cache (or just the entries of a key) for a particular
+	 * message.
+	 */
+	synchronized void clearCache(UpdateNotification notification) {
+
+		if (notification == null) {
+			flush();
+		} else if (notification.getCustomLongVal1() != UpdateNotification.SERVER_CHANGE_CODE
+				&& notification.getCustomLongVal1() != UpdateNotification.CACHE_CHANGE_CODE) {
+			String prefix = notification.getCustomStrVal1();
+			if (prefix == null) {
+				flush();
+			} else {
+				List<String> prefixed = new ArrayList<String>();
+				for (String key : keys()) {
+					if (key.startsWith(prefix)) {
+						prefixed.add(key);
+					}
+				}
+				removeAll(prefixed);
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER CLASSES
+	// ---------------------------------------------------------------------
+
+	private class CacheUpdateAction extends AbstractAction {
+
+		/**
+		 * Removes the entries of the key of the update notification, or all
+		 * of them.
+		 */
+		public Object perform(Map parms) {
+			UpdateNotification notification = (UpdateNotification) parms
+					.get(UpdateNotifier.NOTIFICATION);
+			clearCache(notification);
+			return null;
+		}
+	}
+
+}
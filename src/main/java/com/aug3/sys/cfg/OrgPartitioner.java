@@ -0,0 +1,28 @@
+package com.aug3.sys.cfg;
+
+import com.aug3.sys.cache.Partitioner;
+
+/**
+ * Partitions the cache of the configuration server proxy by organization,
+ * read from the cache keys made by <code>ValueSetLookupInfo</code>: the
+ * configuration type, the key separator twice, the organization and, for a
+ * single value, "#" and the value key.
+ * 
+ * @author xial
+ */
+class OrgPartitioner implements Partitioner<String> {
+
+	private static final String ORG_SEP = ConfigConstants.KEY_SEP
+			+ ConfigConstants.KEY_SEP;
+
+	public String partitionOf(String key) {
+		int start = key.indexOf(ORG_SEP);
+		if (start < 0) {
+			return null;
+		}
+		start += ORG_SEP.length();
+		int end = key.indexOf('#', start);
+		return key.substring(start, end < 0 ? key.length() : end);
+	}
+
+}
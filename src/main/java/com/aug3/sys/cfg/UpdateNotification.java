@@ -36,6 +36,7 @@ public class UpdateNotification implements Serializable {
 
 	public static final long CONFIG_CHANGE_CODE = 1111;
 	public static final long SERVER_CHANGE_CODE = 2222;
+	public static final long CACHE_CHANGE_CODE = 3333;
 
 	// ==========================================================================
 	// private members
@@ -98,6 +99,26 @@ public class UpdateNotification implements Serializable {
 		return true;
 	}
 
+	/**
+	 * Given a callback registration, check whether this notification should
+	 * invoke the callback. Cache changes are published on every write of a
+	 * near cache, so a cache change naming a callback token only invokes the
+	 * callbacks registered with a matcher of that token, and not those
+	 * registered without a matcher or without a token, which would otherwise
+	 * reload their configuration at each write.
+	 * 
+	 * @param matcher
+	 *            the matcher the callback was registered with, or null
+	 * @return whether the callback should be invoked.
+	 */
+	boolean reaches(UpdateNotification matcher) {
+		if (customLongVal1 == CACHE_CHANGE_CODE && null != callbackToken) {
+			return null != matcher && null != matcher.callbackToken
+					&& matcher.match(this);
+		}
+		return null == matcher || matcher.match(this);
+	}
+
 	// ==========================================================================
 	// member accessors
 	// ==========================================================================
@@ -250,9 +250,9 @@ public class UpdateNotifier_JMS extends UpdateNotifier implements
 			for (Callback callback : callbacks) {
 
 				// match the message with the registered matcher, if one exists.
-				// messages without matchers will always match
-				if ((null != un) && (callback.matcher != null)
-						&& (!callback.matcher.match(un))) {
+				// messages without matchers will always match, except the
+				// cache changes
+				if ((null != un) && (!un.reaches(callback.matcher))) {
 					continue;
 				}
 				callback.callback.perform(args);
@@ -1,12 +1,17 @@
 package com.aug3.sys.properties;
 
+import java.io.File;
 import java.util.Map;
 import java.util.Properties;
 
 import org.apache.log4j.Logger;
 
+import com.aug3.sys.cache.CacheMgr;
+import com.aug3.sys.cache.CacheSnapshot;
 import com.aug3.sys.cache.ICache;
 import com.aug3.sys.cache.smart.SmartCache;
+import com.aug3.sys.cache.smart.SmartCacheConfig;
+import com.aug3.sys.util.StringUtil;
 
 /**
  * This class provides access to a two-tiered property system. Properties are
@@ -44,11 +49,33 @@ import com.aug3.sys.cache.smart.SmartCache;
  * </tr>
  * <tr>
  * <td>dtconfig.props.cache.class</td>
- * <td>the cache class to be used, either local or memcached</td>
+ * <td>the cache class to be used, either local, memcached or off-heap
+ * (com.aug3.sys.cache.offheap.OffHeapCache, configured by
+ * offheapcache.properties)</td>
  * <td>local</td>
  * </tr>
  * </table>
  * 
+ * Cached property sets can be given a time to live, so that changes written by
+ * other processes are picked up without a flush. The expiry and refresh
+ * policies are read from <code>smartcache.properties</code> under the cache
+ * identifier <code>app-props</code>, e.g.
+ * <code>scache.refresh.write.app-props=60</code>, as are the load timeout and
+ * the serving of stale property sets when their files cannot be read. A
+ * property set none of whose files exist, e.g. of an unknown organization,
+ * has no properties; with <code>scache.expire.absent.app-props</code> it is
+ * remembered as absent instead of being looked up on every read. The
+ * cache of each AppProp is exposed through JMX as the cache named
+ * "smart.app-props.<em>name</em>".
+ * 
+ * With a local cache, the property sets can also be saved at shutdown and
+ * restored at startup, if <code>scache.snapshot.file.app-props</code> is
+ * defined in <code>smartcache.properties</code>. Each AppProp uses that file
+ * name followed by its own name, e.g. <code>app-props.snapshot.appconfig</code>,
+ * and only saves its own property sets, the system cache being shared. A
+ * restored property set is dropped if one of its files changed since it was
+ * read.
+ * 
  * @author xial
  */
 public class AppProp {
@@ -88,8 +115,29 @@ public class AppProp {
 	public AppProp(String appPropName, String basedir, String cacheType) {
 		name = appPropName;
 		ICache<String, Properties> underlyingCache = getCacheImpl(cacheType);
-		cache = new SmartCache<Properties>(underlyingCache, new PropReader(
-				basedir));
+		String cacheId = PropConstants.PROPS_CACHE_KEY_NAMESPACE;
+		SmartCacheConfig<Properties> config = new SmartCacheConfig<Properties>();
+		SmartCache<Properties> smartCache = new SmartCache<Properties>(
+				underlyingCache, new PropReader(basedir), config
+						.getExpiryPolicy(cacheId), config
+						.getAbsentCapacity(cacheId));
+		smartCache.setLoadTimeout(config.getLoadTimeout(cacheId));
+		int staleCapacity = config.getStaleCapacity(cacheId);
+		if (staleCapacity > 0) {
+			smartCache.serveStaleOnError(staleCapacity, config
+					.getMaxStaleness(cacheId), config.getRetryBackoff(cacheId));
+		}
+		CacheSnapshot snapshot = config.getSnapshot(cacheId);
+		if (snapshot != null) {
+			smartCache.warmStart(new CacheSnapshot(new File(snapshot.getFile()
+					.getPath()
+					+ "." + appPropName), snapshot.getStamp()), config
+					.getSnapshotInterval(cacheId), CacheKey
+					.prefixOf(appPropName));
+		}
+		CacheMgr.registerInstance("smart." + cacheId + "." + appPropName,
+				smartCache);
+		cache = smartCache;
 		writer = new PropWriter(basedir);
 	}
 
@@ -100,8 +148,13 @@ public class AppProp {
 	 * @param c
 	 */
 	AppProp(String appPropName, ICache<String, Properties> c) {
+		this(appPropName, c, null);
+	}
+
+	AppProp(String appPropName, ICache<String, Properties> c, PropWriter w) {
 		name = appPropName;
 		cache = c;
+		writer = w;
 	}
 
 	// ---------------------------------------------------------------------
@@ -114,18 +167,22 @@ public class AppProp {
 	 *            -- organization
 	 * @param propName
 	 *            -- the name of the property to get
+	 * @return the value of the property, or null if it is not defined or none
+	 *         of the files of the levels exist
 	 */
 	public String get(String level1, String level2, String propName) {
 		validateNotNull("property name", propName);
 		CacheKey key = new CacheKey(name, level1, level2);
 		Properties propSet = cache.get(key.toString());
-		return propSet.getProperty(propName);
+		return propSet == null ? null : propSet.getProperty(propName);
 	}
 
 	/**
-	 * Writes the value of the property into a file and flushes the cache to
-	 * keep it coherent. This is an expensive operation as all values will be
-	 * flushed from the cache and will need to be reloaded.
+	 * Writes the value of the property into a file and removes the property
+	 * sets the file is part of from the cache to keep it coherent: the set of
+	 * the levels, and if level2 is empty or "default", the sets of all the
+	 * level2 of level1, which inherit the file. With a cache that cannot list
+	 * its keys, the latter means flushing the cache.
 	 * 
 	 * This operation will block if another process is attempting to set a
 	 * property in the same file.
@@ -144,14 +201,14 @@ public class AppProp {
 		validateNotNull("value", value);
 		CacheKey key = new CacheKey(name, level1, level2);
 		writer.write(key, propName, value);
-		cache.flush();
+		invalidate(key);
 	}
 
 	public void putAll(String level1, String level2, Map<String, String> vals) {
 		validateNotNull("value map", vals);
 		CacheKey key = new CacheKey(name, level1, level2);
 		writer.writeAll(key, vals);
-		cache.flush();
+		invalidate(key);
 	}
 
 	// ----------------------------------------------------------------------
@@ -171,6 +228,27 @@ public class AppProp {
 		}
 	}
 
+	/**
+	 * Removes the property sets read from the file of the key.
+	 */
+	private void invalidate(CacheKey key) {
+		String level1 = key.getLevel1();
+		String level2 = key.getLevel2();
+		if (StringUtil.isBlank(level1)
+				|| !(StringUtil.isBlank(level2) || "default".equals(level2))) {
+			cache.remove(key.toString());
+			return;
+		}
+		// a file shared by the sets of level1
+		String sets = CacheKey.prefixOf(name) + level1;
+		cache.remove(sets);
+		if (cache instanceof SmartCache<?>) {
+			((SmartCache<?>) cache).removePrefixed(sets + ":");
+		} else {
+			cache.flush();
+		}
+	}
+
 	private void validateNotNull(String msg, Object val) {
 		if (val == null) {
 			throw new IllegalArgumentException(msg + " cannot be null.");
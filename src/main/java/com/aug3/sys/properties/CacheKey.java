@@ -51,6 +51,14 @@ class CacheKey implements Serializable {
 	// GENERAL METHODS
 	// ---------------------------------------------------------------------
 
+	/**
+	 * @return the beginning of the keys of all levels of the file, e.g.
+	 *         "app-props:appconfig:"
+	 */
+	static String prefixOf(String fbasename) {
+		return NAMESPACE + ":" + fbasename + ":";
+	}
+
 	public String getBasename() {
 		return keyvals[1];
 	}
@@ -10,7 +10,7 @@ import java.util.Properties;
 
 import org.apache.log4j.Logger;
 
-import com.aug3.sys.cache.smart.Reader;
+import com.aug3.sys.cache.smart.VersionedReader;
 
 /**
  * This very nice class builds and creates a Property instance with the
@@ -27,9 +27,16 @@ import com.aug3.sys.cache.smart.Reader;
  * where level1, level2 and name(e.g. appconfig) are retrieved from the fetch
  * URI.
  * 
+ * A URI none of whose files exist, such as one of an unknown organization
+ * when there is no shared file either, has no properties: the reader returns
+ * null for it, so that the smart cache can remember it as absent.
+ * 
+ * The modification time of a URI is the latest one of those files and of their
+ * directories, so that adding or deleting a file is noticed as well.
+ * 
  * @author xial
  */
-class PropReader implements Reader<Properties> {
+class PropReader implements VersionedReader<Properties> {
 
 	private static final Logger LOG = Logger.getLogger(PropReader.class);
 
@@ -50,21 +57,52 @@ class PropReader implements Reader<Properties> {
 	 *            "app-props:appconfig:companyA"
 	 * 
 	 * @return a Properties instance populated according to the rules in this
-	 *         class description.
+	 *         class description, or null if none of the files exist.
 	 */
 	@Override
 	public Properties fetch(String uri) {
-		CacheKey key = new CacheKey(uri);
-		List<String> files = BootProperties.getInstance().getProperty(
-				PropConstants.APP_PROPS_PATH_ENABLE, true) ? createEnabledPathList(key)
-				: createPathList(key);
+		List<String> files = new ArrayList<String>(3);
+		for (String path : createCandidateList(new CacheKey(uri))) {
+			addIfAccessible(files, path);
+		}
+		if (files.isEmpty()) {
+			return null;
+		}
 		Properties props = createPropertiesFromList(files);
 		return props;
 	}
 
+	/**
+	 * @return the latest modification time of the files the properties of
+	 *         the URI are built from, or of their directories.
+	 */
+	@Override
+	public long lastModified(String uri) {
+		long lastModified = 0;
+		for (String path : createCandidateList(new CacheKey(uri))) {
+			File f = new File(path);
+			lastModified = Math.max(lastModified, f.lastModified());
+			File dir = f.getParentFile();
+			if (dir != null) {
+				lastModified = Math.max(lastModified, dir.lastModified());
+			}
+		}
+		return lastModified;
+	}
+
 	// ---------------------------------------------------------------------
 	// HELPER METHODS
 	// ---------------------------------------------------------------------
+	/**
+	 * @return the paths of the files the properties of the key may be read
+	 *         from, whether they exist or not.
+	 */
+	private List<String> createCandidateList(CacheKey key) {
+		return BootProperties.getInstance().getProperty(
+				PropConstants.APP_PROPS_PATH_ENABLE, true) ? createEnabledPathList(key)
+				: createPathList(key);
+	}
+
 	/**
 	 * If the configure properties file is always the same for different company
 	 */
@@ -74,11 +112,10 @@ class PropReader implements Reader<Properties> {
 				PropConstants.APP_PROPS_PATH, "/");
 		String path = enabledpath.equals("/") ? EnvProperties.getInstance()
 				.getAppHome() : enabledpath + File.separator;
-		List<String> paths = new ArrayList<String>(1);
-		addIfAccessible(paths, path + fname);
+		List<String> paths = new ArrayList<String>(2);
+		paths.add(path + fname);
 		if (key.getLevel2() != null) {
-			addIfAccessible(paths, path + key.getLevel2() + File.separator
-					+ fname);
+			paths.add(path + key.getLevel2() + File.separator + fname);
 		}
 		return paths;
 	}
@@ -86,7 +123,7 @@ class PropReader implements Reader<Properties> {
 	/**
 	 * Creates a list with the paths associated with the key. The paths are
 	 * listed in ascending order of specificity (default, level1 and then
-	 * level2). The files returned from the list exist and are readable.
+	 * level2). The files may not exist.
 	 * 
 	 * @param key
 	 *            the key for which we want the files
@@ -98,11 +135,10 @@ class PropReader implements Reader<Properties> {
 		String path = basedir + File.separator + key.getLevel1() != null ? (key
 				.getLevel1() + File.separator) : "";
 		List<String> paths = new ArrayList<String>(3);
-		addIfAccessible(paths, path + "default" + File.separator + fname);
-		addIfAccessible(paths, path + fname);
+		paths.add(path + "default" + File.separator + fname);
+		paths.add(path + fname);
 		if (key.getLevel2() != null) {
-			addIfAccessible(paths, path + key.getLevel2() + File.separator
-					+ fname);
+			paths.add(path + key.getLevel2() + File.separator + fname);
 		}
 		return paths;
 	}
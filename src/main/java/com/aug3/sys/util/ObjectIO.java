@@ -16,6 +16,8 @@ import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
 import com.aug3.sys.CommonException;
+import com.aug3.sys.CommonRuntimeException;
+import com.aug3.sys.cache.codec.CompactCodec;
 
 /**
  * This class contains utilities to transform Java object to and from serialized
@@ -25,6 +27,8 @@ import com.aug3.sys.CommonException;
  */
 public class ObjectIO {
 
+	private static final CompactCodec<Object> compactCodec = new CompactCodec<Object>();
+
 	/**
 	 * 
 	 * Returns an deep clone object with the given original object. The object
@@ -142,6 +146,46 @@ public class ObjectIO {
 		}
 	}
 
+	/**
+	 * Converts an object into a compact byte array. Strings, boxed
+	 * primitives, the common collections, <code>Properties</code> and
+	 * <code>ValueSet</code> are written in a binary form several times smaller
+	 * than Java serialization; other objects are serialized.
+	 * 
+	 * @param obj
+	 *            the object to be converted
+	 * @return byte[] converted byte array
+	 * @throws CommonException
+	 * @see CompactCodec
+	 */
+	public static byte[] toCompactByteArray(Object obj) throws CommonException {
+		try {
+			return compactCodec.encode(obj);
+		} catch (CommonRuntimeException e) {
+			throw new CommonException("failed to convert object to byte array",
+					e);
+		}
+	}
+
+	/**
+	 * Converts a byte array produced by <code>toCompactByteArray</code>, or by
+	 * <code>toByteArray</code>, back into an object.
+	 * 
+	 * @param bytes
+	 *            the compact byte array
+	 * @return Object the converted object
+	 * @throws CommonException
+	 */
+	public static Object fromCompactByteArray(byte[] bytes)
+			throws CommonException {
+		try {
+			return compactCodec.decode(bytes);
+		} catch (CommonRuntimeException e) {
+			throw new CommonException("failed to convert byte array to object",
+					e);
+		}
+	}
+
 	/**
 	 * Pretty print an object as a string by recursing down all it's members
 	 * 
@@ -0,0 +1,115 @@
+package com.aug3.sys.cache;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures throughput of the system cache backing stores under contention:
+ * the previous <code>Collections.synchronizedMap(LRUCache)</code> against
+ * <code>ConcurrentLRUCache</code>, at 1 to 64 threads.
+ *
+ * Every thread runs the same mix of 90% reads and 10% writes over a skewed key
+ * set slightly larger than the cache. This is not a unit test; run it with
+ *
+ * <code>java com.aug3.sys.cache.CacheContentionBenchmark [opsPerThread]</code>
+ *
+ */
+public class CacheContentionBenchmark {
+
+	private static final int CAPACITY = 500;
+	private static final int KEY_SPACE = 1000;
+	private static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+
+	public static void main(String[] args) throws Exception {
+		int opsPerThread = args.length > 0 ? Integer.parseInt(args[0])
+				: 200000;
+		Integer[] keys = new Integer[KEY_SPACE];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = Integer.valueOf(i);
+		}
+
+		System.out.println("threads  synchronized LRUCache  ConcurrentLRUCache  (ops/ms)");
+		for (int threads : THREADS) {
+			// warm up both implementations before measuring
+			run(newSynchronized(), threads, opsPerThread / 4, keys);
+			run(newConcurrent(), threads, opsPerThread / 4, keys);
+			double sync = run(newSynchronized(), threads, opsPerThread, keys);
+			double conc = run(newConcurrent(), threads, opsPerThread, keys);
+			System.out.println(String.format("%7d  %22.0f  %18.0f", threads,
+					sync, conc));
+		}
+	}
+
+	private static ICache<Integer, Integer> newSynchronized() {
+		final Map<Integer, Integer> map = Collections
+				.synchronizedMap(new LRUCache<Integer, Integer>(CAPACITY));
+		return new AbstractCache<Integer, Integer>() {
+			public Integer get(Integer key) {
+				return map.get(key);
+			}
+
+			public Integer put(Integer key, Integer value) {
+				return map.put(key, value);
+			}
+
+			public Integer remove(Integer key) {
+				return map.remove(key);
+			}
+
+			public boolean containsKey(Integer key) {
+				return map.containsKey(key);
+			}
+
+			public void flush() {
+				map.clear();
+			}
+		};
+	}
+
+	private static ICache<Integer, Integer> newConcurrent() {
+		return new ConcurrentLRUCache<Integer, Integer>(CAPACITY, 64);
+	}
+
+	/**
+	 * @return throughput in operations per millisecond
+	 */
+	private static double run(final ICache<Integer, Integer> cache,
+			int threads, final int opsPerThread, final Integer[] keys)
+			throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int seed = t;
+			Thread thread = new Thread() {
+				public void run() {
+					Random random = new Random(seed);
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < opsPerThread; i++) {
+						// squaring a uniform value skews accesses to the low keys
+						double r = random.nextDouble();
+						Integer key = keys[(int) (r * r * keys.length)];
+						if (random.nextInt(10) == 0) {
+							cache.put(key, key);
+						} else if (cache.get(key) == null) {
+							cache.put(key, key);
+						}
+					}
+					done.countDown();
+				}
+			};
+			thread.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+		return (double) threads * opsPerThread / (elapsed / 1000000.0);
+	}
+
+}
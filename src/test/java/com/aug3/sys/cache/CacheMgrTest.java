@@ -0,0 +1,95 @@
+package com.aug3.sys.cache;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the cache MBean
+ *
+ *
+ */
+public class CacheMgrTest extends TestCase {
+
+	private static final String NAME = "test.cache";
+
+	protected void tearDown() {
+		CacheMgr.unregister(NAME);
+	}
+
+	public void testRegister() throws Exception {
+		ConcurrentLRUCache<String, String> cache = new ConcurrentLRUCache<String, String>(
+				10);
+		CacheMgr.register(NAME, cache);
+		cache.put("a", "one");
+		cache.get("a");
+		cache.get("b");
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = CacheMgr.objectName(NAME);
+		assertEquals(Long.valueOf(1), server.getAttribute(name, "HitCount"));
+		assertEquals(Long.valueOf(1), server.getAttribute(name, "MissCount"));
+		assertEquals(Long.valueOf(1), server.getAttribute(name, "Size"));
+
+		// registering the name again replaces the cache
+		CacheMgr.register(NAME, new ConcurrentLRUCache<String, String>(10));
+		assertEquals(Long.valueOf(0), server.getAttribute(name, "HitCount"));
+	}
+
+	/** the instances of a logical cache are added up under one name */
+	public void testRegisterInstances() throws Exception {
+		ConcurrentLRUCache<String, String> first = new ConcurrentLRUCache<String, String>(
+				10);
+		ConcurrentLRUCache<String, String> second = new ConcurrentLRUCache<String, String>(
+				10);
+		CacheMgr.registerInstance(NAME, first);
+		CacheMgr.registerInstance(NAME, second);
+		CacheMgr.registerInstance(NAME, second);
+		first.put("a", "one");
+		first.get("a");
+		second.put("a", "one");
+		second.get("a");
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = CacheMgr.objectName(NAME);
+		assertEquals(Long.valueOf(2), server.getAttribute(name, "HitCount"));
+		assertEquals(Long.valueOf(2), server.getAttribute(name, "Size"));
+
+		CacheMgr.unregisterInstance(NAME, first);
+		assertEquals(Long.valueOf(1), server.getAttribute(name, "HitCount"));
+		CacheMgr.unregisterInstance(NAME, second);
+		assertFalse(server.isRegistered(name));
+	}
+
+	public void testResetStats() {
+		ConcurrentLRUCache<String, String> cache = new ConcurrentLRUCache<String, String>(
+				10);
+		CacheMgr mgr = new CacheMgr(cache);
+		cache.put("a", "one");
+		cache.get("a");
+		assertEquals(1, mgr.getHitCount());
+		mgr.resetStats();
+		assertEquals(0, mgr.getHitCount());
+		cache.get("a");
+		assertEquals(1, mgr.getHitCount());
+		assertEquals(1, mgr.getSize());
+	}
+
+	public void testLoadLatencyHistogram() {
+		final StatsCounter counter = new StatsCounter();
+		counter.recordLoadSuccess(500000);
+		counter.recordLoadSuccess(5000000);
+		counter.recordLoadSuccess(6000000);
+		CacheMgr mgr = new CacheMgr(new MockICache() {
+			public CacheStats getStats() {
+				return counter.snapshot(-1, -1);
+			}
+		});
+		assertEquals("<1ms=1, 4-8ms=2", mgr.getLoadLatencyHistogram());
+		assertEquals(3.833, mgr.getAverageLoadPenalty(), 0.001);
+	}
+
+}
@@ -0,0 +1,120 @@
+package com.aug3.sys.cache;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays key traces against the local ICache implementations and prints
+ * their hit ratios, to help choose the cache class and size.
+ *
+ * A recorded trace is a text file with one key per line; only the first
+ * whitespace-separated token of a line is used, so access logs can often be
+ * replayed after a simple cut. Without a file, two synthetic traces are used:
+ * a Zipf-distributed workload, and the same workload interrupted by scans of
+ * keys that are never requested again, like a bulk export would do.
+ *
+ * This is not a unit test; run it with
+ *
+ * <code>java com.aug3.sys.cache.CacheSimulator [traceFile] [capacity...]</code>
+ *
+ */
+public class CacheSimulator {
+
+	private static final int[] DEFAULT_CAPACITIES = { 500, 2000, 5000 };
+
+	private static final int ZIPF_KEYS = 100000;
+	private static final double ZIPF_EXPONENT = 0.9;
+	private static final int REQUESTS = 1000000;
+	private static final int SCAN_EVERY = 50000;
+	private static final int SCAN_LENGTH = 20000;
+
+	public static void main(String[] args) throws IOException {
+		int[] capacities = DEFAULT_CAPACITIES;
+		if (args.length > 1) {
+			capacities = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				capacities[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+		if (args.length > 0) {
+			simulate(args[0], readTrace(args[0]), capacities);
+		} else {
+			simulate("zipf(" + ZIPF_EXPONENT + ")", zipfTrace(false),
+					capacities);
+			simulate("zipf(" + ZIPF_EXPONENT + ") with scans", zipfTrace(true),
+					capacities);
+		}
+	}
+
+	private static void simulate(String name, String[] trace, int[] capacities) {
+		System.out.println(name + ", " + trace.length + " requests");
+		System.out.println(" capacity  LRUCache  ConcurrentLRUCache  TinyLFUCache  (hit %)");
+		for (int capacity : capacities) {
+			double lru = hitRatio(new LRUCache<String, String>(capacity), trace);
+			double clock = hitRatio(new ConcurrentLRUCache<String, String>(
+					capacity), trace);
+			double tinyLfu = hitRatio(new TinyLFUCache<String, String>(
+					capacity), trace);
+			System.out.println(String.format("%9d  %8.2f  %18.2f  %12.2f",
+					capacity, lru, clock, tinyLfu));
+		}
+		System.out.println();
+	}
+
+	private static double hitRatio(ICache<String, String> cache, String[] trace) {
+		int hits = 0;
+		for (String key : trace) {
+			if (cache.get(key) != null) {
+				hits++;
+			} else {
+				cache.put(key, key);
+			}
+		}
+		return 100.0 * hits / trace.length;
+	}
+
+	private static String[] readTrace(String file) throws IOException {
+		List<String> keys = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] tokens = line.trim().split("\\s+");
+				if (tokens[0].length() > 0) {
+					keys.add(tokens[0]);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return keys.toArray(new String[keys.size()]);
+	}
+
+	private static String[] zipfTrace(boolean withScans) {
+		double[] cumulative = new double[ZIPF_KEYS];
+		double sum = 0;
+		for (int i = 0; i < ZIPF_KEYS; i++) {
+			sum += 1.0 / Math.pow(i + 1, ZIPF_EXPONENT);
+			cumulative[i] = sum;
+		}
+		Random random = new Random(42);
+		String[] trace = new String[REQUESTS];
+		int scanned = 0;
+		for (int i = 0; i < REQUESTS; i++) {
+			if (withScans && i % SCAN_EVERY >= SCAN_EVERY - SCAN_LENGTH) {
+				trace[i] = "scan:" + (scanned++);
+			} else {
+				int index = Arrays.binarySearch(cumulative, random.nextDouble()
+						* sum);
+				trace[i] = "key:" + (index < 0 ? -index - 1 : index);
+			}
+		}
+		return trace;
+	}
+
+}
@@ -0,0 +1,164 @@
+package com.aug3.sys.cache;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the cache snapshot files
+ *
+ *
+ */
+public class CacheSnapshotTest extends TestCase {
+
+	private File file;
+
+	protected void setUp() throws Exception {
+		file = File.createTempFile("cache", ".snapshot");
+		file.delete();
+	}
+
+	protected void tearDown() {
+		file.delete();
+	}
+
+	public void testWriteAndRead() throws Exception {
+		Properties props = new Properties();
+		props.setProperty("host", "localhost");
+		CacheSnapshot snapshot = new CacheSnapshot(file, "1.0");
+		snapshot.write(entries("a", "text", 1000L, props));
+
+		Map<Object, CacheSnapshot.Entry> read = new CacheSnapshot(file, "1.0")
+				.read();
+		assertEquals(2, read.size());
+		assertEquals("text", read.get("a").getValue());
+		assertEquals(1000L, read.get("a").getTime());
+		assertEquals(props, read.get(1000L).getValue());
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+
+	public void testMissingFile() {
+		assertTrue(new CacheSnapshot(file, null).read().isEmpty());
+	}
+
+	/** a snapshot of another release is discarded */
+	public void testOtherStamp() throws Exception {
+		new CacheSnapshot(file, "1.0").write(entries("a", "text"));
+		assertTrue(new CacheSnapshot(file, "1.1").read().isEmpty());
+		assertEquals(1, new CacheSnapshot(file, "1.0").read().size());
+	}
+
+	public void testCorruptedFile() throws Exception {
+		new CacheSnapshot(file, "1.0").write(entries("a", "text", "b",
+				"other"));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(raf.length() - 12);
+			raf.write(raf.read() ^ 0xff);
+		} finally {
+			raf.close();
+		}
+		assertTrue(new CacheSnapshot(file, "1.0").read().isEmpty());
+	}
+
+	public void testTruncatedFile() throws Exception {
+		new CacheSnapshot(file, "1.0").write(entries("a", "text", "b",
+				"other"));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - 10);
+		} finally {
+			raf.close();
+		}
+		assertTrue(new CacheSnapshot(file, "1.0").read().isEmpty());
+	}
+
+	/** a corrupted length is rejected before its bytes are allocated */
+	public void testCorruptedLength() throws Exception {
+		new CacheSnapshot(file, "1.0").write(entries("a", "text"));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// the length of the first key, after the header and entry time
+			raf.seek(4 + 4 + 8 + 5 + 4 + 8);
+			raf.writeInt(Integer.MAX_VALUE - 8);
+		} finally {
+			raf.close();
+		}
+		assertTrue(new CacheSnapshot(file, "1.0").read().isEmpty());
+	}
+
+	/** entries that were never decoded are written back as they were */
+	public void testRewriteUndecodedEntries() throws Exception {
+		new CacheSnapshot(file, "1.0").write(entries("a", "text"));
+		CacheSnapshot snapshot = new CacheSnapshot(file, "1.0");
+		snapshot.write(new ArrayList<CacheSnapshot.Entry>(snapshot.read()
+				.values()));
+		assertEquals("text", snapshot.read().get("a").getValue());
+	}
+
+	/** a value that cannot be encoded is left out, not the whole snapshot */
+	public void testSkipUnencodableEntries() throws Exception {
+		CacheSnapshot snapshot = new CacheSnapshot(file, "1.0");
+		assertEquals(1, snapshot.write(entries("a", "text", "b", new Object())));
+		Map<Object, CacheSnapshot.Entry> read = snapshot.read();
+		assertEquals(1, read.size());
+		assertEquals("text", read.get("a").getValue());
+	}
+
+	/** the snapshots of one file are saved together by one task */
+	public void testSaveSnapshotsOfOneFileTogether() throws Exception {
+		CacheSnapshot.Source first = source(entries("a", "1"));
+		CacheSnapshot.Source second = source(entries("b", "2"));
+		new CacheSnapshot(file, "1.0").saveOnShutdown(first, 20);
+		new CacheSnapshot(file, "1.0").saveOnShutdown(second, 10000);
+		CacheSnapshot snapshot = new CacheSnapshot(file, "1.0");
+		for (int i = 0; i < 200 && snapshot.read().size() < 2; i++) {
+			Thread.sleep(10);
+		}
+		Map<Object, CacheSnapshot.Entry> read = snapshot.read();
+		assertEquals("1", read.get("a").getValue());
+		assertEquals("2", read.get("b").getValue());
+	}
+
+	public void testEntriesOf() {
+		ConcurrentLRUCache<String, String> concurrent = new ConcurrentLRUCache<String, String>();
+		concurrent.put("a", "1");
+		assertEquals("1", CacheSnapshot.entriesOf(concurrent).get("a"));
+		TinyLFUCache<String, String> tiny = new TinyLFUCache<String, String>();
+		tiny.put("a", "1");
+		assertEquals("1", CacheSnapshot.entriesOf(tiny).get("a"));
+		LRUCache<String, String> lru = new LRUCache<String, String>();
+		lru.put("a", "1");
+		assertEquals("1", CacheSnapshot.entriesOf(lru).get("a"));
+		new SystemCache().put("entriesOf", "1");
+		assertEquals("1", CacheSnapshot.entriesOf(new SystemCache()).get(
+				"entriesOf"));
+		assertEquals(0, concurrent.getStats().getRequestCount());
+		assertNull(CacheSnapshot.entriesOf(new MockICache()));
+	}
+
+	private static CacheSnapshot.Source source(
+			final Collection<CacheSnapshot.Entry> entries) {
+		return new CacheSnapshot.Source() {
+			public Collection<CacheSnapshot.Entry> entries() {
+				return entries;
+			}
+		};
+	}
+
+	private static List<CacheSnapshot.Entry> entries(Object... keysAndValues) {
+		List<CacheSnapshot.Entry> entries = new ArrayList<CacheSnapshot.Entry>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			entries.add(new CacheSnapshot.Entry(keysAndValues[i],
+					keysAndValues[i + 1], 1000L));
+		}
+		return entries;
+	}
+
+}
@@ -0,0 +1,91 @@
+package com.aug3.sys.cache;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the cache statistics
+ *
+ *
+ */
+public class CacheStatsTest extends TestCase {
+
+	public void testRates() {
+		CacheStats stats = newStats(3, 1);
+		assertEquals(4, stats.getRequestCount());
+		assertEquals(0.75, stats.getHitRate(), 0.0001);
+		assertEquals(0.25, stats.getMissRate(), 0.0001);
+		assertEquals(1.0, CacheStats.EMPTY.getHitRate(), 0.0001);
+		assertEquals(0.0, CacheStats.EMPTY.getMissRate(), 0.0001);
+	}
+
+	public void testLatencyBuckets() {
+		assertEquals(0, CacheStats.latencyBucket(999999));
+		assertEquals(1, CacheStats.latencyBucket(1000000));
+		assertEquals(2, CacheStats.latencyBucket(3000000));
+		assertEquals(3, CacheStats.latencyBucket(4000000));
+		assertEquals(CacheStats.LATENCY_BUCKETS - 1, CacheStats
+				.latencyBucket(3600L * 1000000000L));
+		assertEquals("<1ms", CacheStats.latencyBucketLabel(0));
+		assertEquals("4-8ms", CacheStats.latencyBucketLabel(3));
+		assertEquals(">=16384ms", CacheStats
+				.latencyBucketLabel(CacheStats.LATENCY_BUCKETS - 1));
+	}
+
+	public void testCounter() {
+		StatsCounter counter = new StatsCounter();
+		counter.recordHits(2);
+		counter.recordMisses(1);
+		counter.recordEviction();
+		counter.recordLoadSuccess(2000000);
+		counter.recordLoadFailure(4000000);
+		CacheStats stats = counter.snapshot(10, 20);
+		assertEquals(2, stats.getHitCount());
+		assertEquals(1, stats.getMissCount());
+		assertEquals(1, stats.getEvictionCount());
+		assertEquals(1, stats.getLoadSuccessCount());
+		assertEquals(1, stats.getLoadFailureCount());
+		assertEquals(3000000.0, stats.getAverageLoadPenalty(), 0.0001);
+		assertEquals(1, stats.getLoadLatencies()[2]);
+		assertEquals(1, stats.getLoadLatencies()[3]);
+		assertEquals(10, stats.getSize());
+		assertEquals(20, stats.getWeightedSize());
+	}
+
+	public void testConcurrentCounting() throws Exception {
+		final StatsCounter counter = new StatsCounter();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < 10000; j++) {
+						counter.recordHits(1);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(80000, counter.snapshot(0, 0).getHitCount());
+	}
+
+	public void testMinus() {
+		CacheStats stats = newStats(10, 4).minus(newStats(3, 1));
+		assertEquals(7, stats.getHitCount());
+		assertEquals(3, stats.getMissCount());
+	}
+
+	public void testPlus() {
+		CacheStats stats = newStats(10, 4).plus(newStats(3, 1));
+		assertEquals(13, stats.getHitCount());
+		assertEquals(5, stats.getMissCount());
+		assertEquals(-1, stats.plus(CacheStats.EMPTY).getSize());
+	}
+
+	private static CacheStats newStats(long hits, long misses) {
+		return new CacheStats(hits, misses, 0, 0, 0, 0, 0, 0,
+				new long[CacheStats.LATENCY_BUCKETS]);
+	}
+
+}
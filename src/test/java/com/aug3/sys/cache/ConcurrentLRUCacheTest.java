@@ -0,0 +1,211 @@
+package com.aug3.sys.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the concurrent LRU cache
+ *
+ *
+ */
+public class ConcurrentLRUCacheTest extends TestCase {
+
+	public void testGetPutRemove() {
+		ICache<String, String> cache = new ConcurrentLRUCache<String, String>(10);
+		assertNull(cache.put("a", "one"));
+		assertEquals("one", cache.get("a"));
+		assertTrue(cache.containsKey("a"));
+		assertEquals("one", cache.put("a", "uno"));
+		assertEquals("uno", cache.get("a"));
+		assertEquals("uno", cache.remove("a"));
+		assertNull(cache.get("a"));
+		assertFalse(cache.containsKey("a"));
+		assertNull(cache.remove("a"));
+	}
+
+	/** Checks to see if capacity is indeed respected. */
+	public void testSizeLimit() {
+		ConcurrentLRUCache<String, String> cache = new ConcurrentLRUCache<String, String>(
+				3);
+		cache.put("a", "one");
+		cache.put("b", "two");
+		cache.put("c", "three");
+		assertEquals(3, cache.size());
+		cache.put("d", "four");
+		assertEquals(3, cache.size());
+	}
+
+	/** the segments together hold no more than the capacity */
+	public void testCapacityNotDivisibleBySegments() {
+		ConcurrentLRUCache<Integer, Integer> cache = new ConcurrentLRUCache<Integer, Integer>(
+				103, 4);
+		for (int i = 0; i < 1000; i++) {
+			cache.put(i, i);
+		}
+		assertEquals(103, cache.size());
+	}
+
+	/** an entry read since the last sweep gets a second chance */
+	public void testRecentlyUsedSurvives() {
+		ICache<String, String> cache = new ConcurrentLRUCache<String, String>(3);
+		cache.put("a", "one");
+		cache.put("b", "two");
+		cache.put("c", "three");
+		cache.get("a");
+		cache.put("d", "four");
+		assertEquals("one", cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals("three", cache.get("c"));
+		assertEquals("four", cache.get("d"));
+	}
+
+	public void testRemoveThenRefill() {
+		ConcurrentLRUCache<String, String> cache = new ConcurrentLRUCache<String, String>(
+				3);
+		cache.put("a", "one");
+		cache.put("b", "two");
+		cache.put("c", "three");
+		cache.remove("b");
+		cache.put("d", "four");
+		assertEquals(3, cache.size());
+		assertEquals("one", cache.get("a"));
+		assertEquals("three", cache.get("c"));
+		assertEquals("four", cache.get("d"));
+	}
+
+	public void testFlush() {
+		ConcurrentLRUCache<String, String> cache = new ConcurrentLRUCache<String, String>(
+				100);
+		for (int i = 0; i < 100; i++) {
+			cache.put("key" + i, "value" + i);
+		}
+		cache.flush();
+		assertEquals(0, cache.size());
+		assertNull(cache.get("key1"));
+		cache.put("key1", "value1");
+		assertEquals("value1", cache.get("key1"));
+	}
+
+	/** hammers the cache from several threads and checks the bound holds */
+	public void testConcurrentAccessRespectsCapacity() throws Exception {
+		final ConcurrentLRUCache<Integer, Integer> cache = new ConcurrentLRUCache<Integer, Integer>(
+				256, 8);
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int seed = t;
+			threads[t] = new Thread() {
+				public void run() {
+					Random random = new Random(seed);
+					try {
+						for (int i = 0; i < 20000; i++) {
+							Integer key = Integer.valueOf(random.nextInt(2000));
+							if (random.nextInt(4) == 0) {
+								cache.put(key, key);
+							} else if (random.nextInt(50) == 0) {
+								cache.remove(key);
+							} else {
+								Integer value = cache.get(key);
+								if (value != null && !value.equals(key)) {
+									throw new AssertionError("wrong value for "
+											+ key);
+								}
+							}
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertTrue(cache.size() <= cache.capacity());
+	}
+
+	public void testBulkOperations() {
+		ICache<String, String> cache = new ConcurrentLRUCache<String, String>(10);
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("a", "one");
+		values.put("b", "two");
+		cache.putAll(values);
+		assertEquals(values, cache.getAll(Arrays.asList("a", "b", "c")));
+		cache.removeAll(Arrays.asList("a", "c"));
+		assertFalse(cache.containsKey("a"));
+		assertEquals("two", cache.get("b"));
+	}
+
+	public void testWeightLimit() {
+		ConcurrentLRUCache<String, String> cache = new ConcurrentLRUCache<String, String>(
+				100, 1, 10, new LengthWeigher());
+		cache.put("a", "1234");
+		cache.put("b", "1234");
+		assertEquals(8, cache.weightedSize());
+		cache.put("c", "1234");
+		assertEquals(2, cache.size());
+		assertNull(cache.get("a"));
+		assertEquals(8, cache.weightedSize());
+
+		// replacing a value adjusts the weight too
+		cache.put("b", "1234567");
+		assertEquals(7, cache.weightedSize());
+		assertEquals("1234567", cache.get("b"));
+		cache.remove("b");
+		assertEquals(0, cache.weightedSize());
+	}
+
+	public void testOverweightEntryKeptAlone() {
+		ConcurrentLRUCache<String, String> cache = new ConcurrentLRUCache<String, String>(
+				100, 1, 10, new LengthWeigher());
+		cache.put("a", "12");
+		cache.put("b", "123456789012");
+		assertEquals(1, cache.size());
+		assertEquals("123456789012", cache.get("b"));
+		cache.flush();
+		assertEquals(0, cache.weightedSize());
+	}
+
+	public void testWeightedSizeCountsEntriesWithoutWeigher() {
+		ConcurrentLRUCache<String, String> cache = new ConcurrentLRUCache<String, String>(
+				10);
+		cache.put("a", "one");
+		cache.put("b", "two");
+		assertEquals(2, cache.weightedSize());
+	}
+
+	public void testStats() {
+		ConcurrentLRUCache<String, String> cache = new ConcurrentLRUCache<String, String>(
+				2, 1);
+		cache.put("a", "one");
+		cache.put("b", "two");
+		cache.get("a");
+		cache.get("x");
+		cache.put("c", "three");
+		cache.getAll(Arrays.asList("a", "b", "c"));
+		CacheStats stats = cache.getStats();
+		assertEquals(3, stats.getHitCount());
+		assertEquals(2, stats.getMissCount());
+		assertEquals(1, stats.getEvictionCount());
+		assertEquals(2, stats.getSize());
+		assertEquals(2, stats.getWeightedSize());
+		assertEquals(0.6, stats.getHitRate(), 0.0001);
+	}
+
+	static class LengthWeigher implements Weigher<String, String> {
+		public int weigh(String key, String value) {
+			return value.length();
+		}
+	}
+
+}
@@ -0,0 +1,55 @@
+package com.aug3.sys.cache;
+
+import java.util.Properties;
+
+import com.aug3.sys.cfg.ValueSet;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the default size estimates
+ *
+ *
+ */
+public class DefaultWeigherTest extends TestCase {
+
+	public void testStringGrowsWithLength() {
+		long empty = DefaultWeigher.estimate("");
+		assertTrue(empty > 0);
+		assertEquals(empty + 2000, DefaultWeigher.estimate(new String(
+				new char[1000])));
+		assertEquals(0, DefaultWeigher.estimate(null));
+	}
+
+	public void testProperties() {
+		Properties small = new Properties();
+		small.setProperty("key", "value");
+		Properties large = new Properties();
+		for (int i = 0; i < 1000; i++) {
+			large.setProperty("key" + i, "value" + i);
+		}
+		long smallSize = DefaultWeigher.estimate(small);
+		assertTrue(smallSize > DefaultWeigher.estimate("keyvalue"));
+		assertTrue(DefaultWeigher.estimate(large) > 500 * smallSize);
+	}
+
+	public void testValueSet() {
+		ValueSet small = new ValueSet("type");
+		small.putValue("key", "value");
+		ValueSet large = new ValueSet("type");
+		for (int i = 0; i < 1000; i++) {
+			large.putValue("key" + i, "value" + i, "description " + i);
+		}
+		assertTrue(DefaultWeigher.estimate(small) > 0);
+		assertTrue(DefaultWeigher.estimate(large) > 100 * DefaultWeigher
+				.estimate(small));
+	}
+
+	public void testWeighCountsKeyAndValue() {
+		DefaultWeigher weigher = new DefaultWeigher();
+		assertEquals(DefaultWeigher.estimate("key")
+				+ DefaultWeigher.estimate("value"), weigher.weigh("key",
+				"value"));
+	}
+
+}
@@ -0,0 +1,48 @@
+package com.aug3.sys.cache;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the count-min frequency sketch
+ *
+ *
+ */
+public class FrequencySketchTest extends TestCase {
+
+	public void testIncrement() {
+		FrequencySketch sketch = new FrequencySketch(64);
+		assertEquals(0, sketch.frequency("a"));
+		sketch.increment("a");
+		sketch.increment("a");
+		sketch.increment("a");
+		assertEquals(3, sketch.frequency("a"));
+	}
+
+	public void testCountsSaturate() {
+		FrequencySketch sketch = new FrequencySketch(64);
+		for (int i = 0; i < 100; i++) {
+			sketch.increment("a");
+		}
+		assertEquals(15, sketch.frequency("a"));
+	}
+
+	/** counts are halved once enough events have been recorded */
+	public void testAging() {
+		FrequencySketch sketch = new FrequencySketch(16);
+		for (int i = 0; i < 8; i++) {
+			sketch.increment("hot");
+		}
+		for (int i = 0; i < 200; i++) {
+			sketch.increment("cold" + i);
+		}
+		assertTrue(sketch.frequency("hot") < 8);
+	}
+
+	public void testClear() {
+		FrequencySketch sketch = new FrequencySketch(16);
+		sketch.increment("a");
+		sketch.clear();
+		assertEquals(0, sketch.frequency("a"));
+	}
+
+}
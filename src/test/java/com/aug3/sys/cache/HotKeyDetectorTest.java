@@ -0,0 +1,83 @@
+package com.aug3.sys.cache;
+
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the hot key detector
+ *
+ *
+ */
+public class HotKeyDetectorTest extends TestCase {
+
+	public void testKeyBecomesHot() {
+		HotKeyDetector detector = new HotKeyDetector(64, 10000, 10, 1, 5, 4);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 4; i++) {
+			assertFalse(detector.sample("hot", now));
+			detector.sample("cold" + i, now);
+		}
+		assertTrue(detector.sample("hot", now));
+		assertTrue(detector.isHot("hot"));
+		assertFalse(detector.isHot("cold0"));
+		assertEquals(5, detector.estimate("hot"));
+	}
+
+	public void testSampling() {
+		HotKeyDetector detector = new HotKeyDetector(64, 10000, 10, 4, 100, 4);
+		for (int i = 0; i < 99; i++) {
+			detector.record("hot");
+		}
+		assertFalse(detector.isHot("hot"));
+		assertTrue(detector.record("hot"));
+		assertEquals(100, detector.estimate("hot"));
+	}
+
+	/** reads older than the window are forgotten */
+	public void testWindowSlides() {
+		HotKeyDetector detector = new HotKeyDetector(64, 1000, 10, 1, 10, 4);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 10; i++) {
+			detector.sample("hot", now);
+		}
+		assertTrue(detector.isHot("hot"));
+		// half the window later, the reads still count
+		detector.sample("other", now + 500);
+		assertTrue(detector.isHot("hot"));
+		assertEquals(10, detector.estimate("hot"));
+		detector.sample("other", now + 1100);
+		assertFalse(detector.isHot("hot"));
+		assertEquals(0, detector.estimate("hot"));
+	}
+
+	public void testHottestKeysWin() {
+		HotKeyDetector detector = new HotKeyDetector(64, 10000, 10, 1, 2, 2);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 3; i++) {
+			detector.sample("a", now);
+			detector.sample("b", now);
+		}
+		// as hot as a and b is not enough
+		for (int i = 0; i < 3; i++) {
+			assertFalse(detector.sample("c", now));
+		}
+		assertTrue(detector.sample("c", now));
+		// c displaced one of a and b
+		assertEquals(2, detector.getHotKeys().size());
+		assertTrue(detector.isHot("c"));
+
+		Map<Object, Long> hotKeys = detector.getHotKeys();
+		assertEquals("c", hotKeys.keySet().iterator().next());
+		assertEquals(Long.valueOf(4), hotKeys.get("c"));
+	}
+
+	public void testClear() {
+		HotKeyDetector detector = new HotKeyDetector(64, 10000, 10, 1, 1, 4);
+		assertTrue(detector.record("a"));
+		detector.clear();
+		assertFalse(detector.isHot("a"));
+		assertEquals(0, detector.estimate("a"));
+	}
+
+}
@@ -1,5 +1,10 @@
 package com.aug3.sys.cache;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
 import com.aug3.sys.cache.ICache;
 import com.aug3.sys.cache.LRUCache;
 
@@ -38,4 +43,164 @@ public class LRUCacheTest extends TestCase {
 		assertNull(cache.get("c"));
 	}
 
+	public void testBulkOperations() {
+		ICache<String, String> cache = new LRUCache<String, String>(10);
+		cache.put("a", "one");
+		cache.put("b", "two");
+		Map<String, String> values = cache.getAll(Arrays.asList("a", "b", "c"));
+		assertEquals(2, values.size());
+		assertEquals("one", values.get("a"));
+		cache.removeAll(Arrays.asList("a", "c"));
+		assertFalse(cache.containsKey("a"));
+		cache.putAll(values);
+		assertEquals("one", cache.get("a"));
+	}
+
+	/** the least recently used entries go until the weight fits */
+	public void testWeightLimit() {
+		LRUCache<String, String> cache = new LRUCache<String, String>(100, 10,
+				new ConcurrentLRUCacheTest.LengthWeigher());
+		cache.put("a", "123");
+		cache.put("b", "123");
+		cache.put("c", "123");
+		cache.get("a");
+		assertEquals(9, cache.weightedSize());
+		cache.put("d", "123456");
+		assertEquals(9, cache.weightedSize());
+		assertNull(cache.get("b"));
+		assertNull(cache.get("c"));
+		assertEquals("123", cache.get("a"));
+		cache.remove("a");
+		assertEquals(6, cache.weightedSize());
+		cache.flush();
+		assertEquals(0, cache.weightedSize());
+	}
+
+	public void testStats() {
+		LRUCache<String, String> cache = new LRUCache<String, String>(2);
+		cache.put("a", "one");
+		cache.put("b", "two");
+		cache.put("c", "three");
+		cache.get("a");
+		cache.get("b");
+		CacheStats stats = cache.getStats();
+		assertEquals(1, stats.getHitCount());
+		assertEquals(1, stats.getMissCount());
+		assertEquals(1, stats.getEvictionCount());
+		assertEquals(2, stats.getSize());
+	}
+
+	/** entries evicted for capacity are subtracted from the weight */
+	public void testWeightAfterSizeEviction() {
+		LRUCache<String, String> cache = new LRUCache<String, String>(2, 100,
+				new ConcurrentLRUCacheTest.LengthWeigher());
+		cache.put("a", "1");
+		cache.put("b", "12");
+		cache.put("c", "123");
+		assertEquals(2, cache.size());
+		assertEquals(5, cache.weightedSize());
+	}
+
+	public void testTimeToLive() throws InterruptedException {
+		LRUCache<String, String> cache = new LRUCache<String, String>(10);
+		cache.put("short", "1", 50);
+		cache.put("long", "2", 60000);
+		cache.put("forever", "3");
+		assertEquals("1", cache.get("short"));
+		Thread.sleep(80);
+		assertNull(cache.get("short"));
+		assertFalse(cache.containsKey("short"));
+		assertEquals("2", cache.get("long"));
+		assertEquals("3", cache.get("forever"));
+
+		// a plain put drops the time to live
+		cache.put("short", "1", 50);
+		cache.put("short", "4");
+		Thread.sleep(80);
+		assertEquals("4", cache.get("short"));
+	}
+
+	/** expired entries go as the cache is used, even if not read */
+	public void testExpiredEntriesAreRemoved() throws InterruptedException {
+		LRUCache<String, String> cache = new LRUCache<String, String>(10);
+		Recorder recorder = new Recorder();
+		cache.addRemovalListener(recorder);
+		cache.put("a", "1", 50);
+		cache.put("b", "2", 50);
+		Thread.sleep(LRUCache.EXPIRY_TICK * 2 + 50);
+		cache.cleanUp();
+		assertEquals(0, cache.size());
+		assertEquals(2, recorder.causes.size());
+		assertEquals(RemovalCause.EXPIRED, recorder.causes.get(0));
+		assertTrue(recorder.causes.get(0).wasEvicted());
+	}
+
+	public void testRemovalListener() {
+		LRUCache<String, String> cache = new LRUCache<String, String>(2, 10,
+				new ConcurrentLRUCacheTest.LengthWeigher());
+		Recorder recorder = new Recorder();
+		cache.addRemovalListener(recorder);
+		cache.put("a", "1");
+		cache.put("a", "2");
+		cache.put("b", "3");
+		cache.put("c", "4");
+		cache.put("d", "1234567890");
+		cache.remove("d");
+		cache.remove("d");
+		cache.put("e", "5");
+		cache.flush();
+		assertEquals(Arrays.asList("a=1", "a=2", "b=3", "c=4", "d=1234567890",
+				"e=5"), recorder.entries);
+		assertEquals(Arrays.asList(RemovalCause.REPLACED, RemovalCause.EVICTED,
+				RemovalCause.EVICTED, RemovalCause.EVICTED,
+				RemovalCause.EXPLICIT, RemovalCause.CLEARED), recorder.causes);
+
+		cache.removeRemovalListener(recorder);
+		cache.put("f", "6");
+		cache.remove("f");
+		assertEquals(6, recorder.entries.size());
+	}
+
+	/** an evicted entry is told once the map no longer holds it */
+	public void testEvictionToldAfterRemoval() {
+		final List<String> seen = new ArrayList<String>();
+		final LRUCache<String, String> cache = new LRUCache<String, String>(1);
+		cache.addRemovalListener(new RemovalListener<String, String>() {
+			public void onRemoval(String key, String value, RemovalCause cause) {
+				seen.add(key + ":" + cache.containsKey(key) + ":"
+						+ cache.size());
+			}
+		});
+		cache.put("a", "1");
+		cache.put("b", "2");
+		assertEquals(Arrays.asList("a:false:1"), seen);
+	}
+
+	/** a subclass reacts to removals by overriding the hook */
+	public void testOnRemovalHook() {
+		final List<String> evicted = new ArrayList<String>();
+		LRUCache<String, String> cache = new LRUCache<String, String>(1) {
+			protected void onRemoval(String key, String value,
+					RemovalCause cause) {
+				if (cause.wasEvicted()) {
+					evicted.add(key);
+				}
+			}
+		};
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.remove("b");
+		assertEquals(Arrays.asList("a"), evicted);
+	}
+
+	private static class Recorder implements RemovalListener<String, String> {
+		final List<String> entries = new ArrayList<String>();
+		final List<RemovalCause> causes = new ArrayList<RemovalCause>();
+
+		public void onRemoval(String key, String value, RemovalCause cause) {
+			entries.add(key + "=" + value);
+			causes.add(cause);
+		}
+	}
+
 }
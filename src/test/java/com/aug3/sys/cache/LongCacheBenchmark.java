@@ -0,0 +1,136 @@
+package com.aug3.sys.cache;
+
+import java.util.Random;
+
+/**
+ * Measures lookups by numeric id: a <code>LRUCache&lt;Long, V&gt;</code>,
+ * boxing every key, against <code>LongLRUCache</code>, at several capacities.
+ *
+ * One thread runs a mix of 90% reads and 10% writes over a skewed set of ids
+ * twice as large as the cache, a miss being followed by a put as a lookup
+ * would. The heap each cache retains once full is measured too, between
+ * collections, so the figures are rough. This is not a unit test; run it with
+ *
+ * <code>java com.aug3.sys.cache.LongCacheBenchmark [ops]</code>
+ *
+ */
+public class LongCacheBenchmark {
+
+	private static final int[] CAPACITIES = { 1000, 10000, 100000, 1000000 };
+	private static final String VALUE = "value";
+
+	public static void main(String[] args) throws Exception {
+		int ops = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+
+		System.out.println("capacity  LRUCache (ops/ms, bytes/entry)  LongLRUCache (ops/ms, bytes/entry)");
+		for (int capacity : CAPACITIES) {
+			long[] ids = ids(capacity * 2);
+			// warm up both before measuring
+			run(new Boxed(capacity), ops / 4, ids);
+			run(new Primitive(capacity), ops / 4, ids);
+			double boxed = run(new Boxed(capacity), ops, ids);
+			double primitive = run(new Primitive(capacity), ops, ids);
+			System.out.println(String.format("%8d  %14.0f  %15d  %18.0f  %15d",
+					capacity, boxed, footprint(false, capacity, ids), primitive,
+					footprint(true, capacity, ids)));
+		}
+	}
+
+	/**
+	 * @return ids spread like database ids, increasing with gaps
+	 */
+	private static long[] ids(int count) {
+		Random random = new Random(count);
+		long[] ids = new long[count];
+		long id = 100000;
+		for (int i = 0; i < count; i++) {
+			id += 1 + random.nextInt(16);
+			ids[i] = id;
+		}
+		return ids;
+	}
+
+	/**
+	 * @return throughput in operations per millisecond
+	 */
+	private static double run(Lookup cache, int ops, long[] ids) {
+		Random random = new Random(1);
+		long begin = System.nanoTime();
+		for (int i = 0; i < ops; i++) {
+			// squaring a uniform value skews accesses to the low ids
+			double r = random.nextDouble();
+			long id = ids[(int) (r * r * ids.length)];
+			if (random.nextInt(10) == 0 || !cache.get(id)) {
+				cache.put(id);
+			}
+		}
+		long elapsed = System.nanoTime() - begin;
+		return ops / (elapsed / 1000000.0);
+	}
+
+	/**
+	 * @return the heap retained by a full cache, per entry
+	 */
+	private static long footprint(boolean primitive, int capacity, long[] ids) {
+		long before = usedMemory();
+		Lookup cache = primitive ? new Primitive(capacity) : new Boxed(
+				capacity);
+		for (int i = 0; i < capacity; i++) {
+			cache.put(ids[i]);
+		}
+		long used = usedMemory() - before;
+		// keep the cache reachable until measured
+		return cache.get(ids[0]) ? used / capacity : -1;
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER CLASSES
+	// ---------------------------------------------------------------------
+
+	private interface Lookup {
+		boolean get(long id);
+
+		void put(long id);
+	}
+
+	private static final class Boxed implements Lookup {
+		final LRUCache<Long, String> cache;
+
+		Boxed(int capacity) {
+			cache = new LRUCache<Long, String>(capacity);
+		}
+
+		public boolean get(long id) {
+			return cache.get(id) != null;
+		}
+
+		public void put(long id) {
+			cache.put(id, VALUE);
+		}
+	}
+
+	private static final class Primitive implements Lookup {
+		final LongLRUCache<String> cache;
+
+		Primitive(int capacity) {
+			cache = new LongLRUCache<String>(capacity);
+		}
+
+		public boolean get(long id) {
+			return cache.get(id) != null;
+		}
+
+		public void put(long id) {
+			cache.put(id, VALUE);
+		}
+	}
+
+}
@@ -0,0 +1,181 @@
+package com.aug3.sys.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the long-keyed LRU cache
+ *
+ *
+ */
+public class LongLRUCacheTest extends TestCase {
+
+	public void testGetPutRemove() {
+		LongLRUCache<String> cache = new LongLRUCache<String>(10);
+		assertNull(cache.put(1L, "one"));
+		assertEquals("one", cache.get(1L));
+		assertTrue(cache.containsKey(1L));
+		assertEquals("one", cache.put(1L, "uno"));
+		assertEquals("uno", cache.get(1L));
+		assertEquals("uno", cache.remove(1L));
+		assertNull(cache.get(1L));
+		assertFalse(cache.containsKey(1L));
+		assertNull(cache.remove(1L));
+	}
+
+	/** zero and negative ids are keys like any other */
+	public void testAnyKey() {
+		LongLRUCache<String> cache = new LongLRUCache<String>(10);
+		cache.put(0L, "zero");
+		cache.put(-1L, "minus one");
+		cache.put(Long.MIN_VALUE, "min");
+		assertEquals("zero", cache.get(0L));
+		assertEquals("minus one", cache.get(-1L));
+		assertEquals("min", cache.get(Long.MIN_VALUE));
+		assertNull(cache.get(1L));
+	}
+
+	public void testBoxedKeys() {
+		ICache<Long, String> cache = new LongLRUCache<String>(10);
+		cache.put(Long.valueOf(7), "seven");
+		assertEquals("seven", cache.get(Long.valueOf(7)));
+		assertTrue(cache.containsKey(Long.valueOf(7)));
+		assertEquals("seven", cache.remove(Long.valueOf(7)));
+		assertFalse(cache.containsKey(Long.valueOf(7)));
+	}
+
+	public void testNullValue() {
+		try {
+			new LongLRUCache<String>(10).put(1L, null);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/** Checks to see if capacity is indeed respected. */
+	public void testSizeLimit() {
+		LongLRUCache<String> cache = new LongLRUCache<String>(3);
+		cache.put(1L, "one");
+		cache.put(2L, "two");
+		cache.put(3L, "three");
+		assertEquals(3, cache.size());
+		cache.put(4L, "four");
+		assertEquals(3, cache.size());
+		assertEquals(1, cache.getStats().getEvictionCount());
+	}
+
+	/** an entry read since the last sweep gets a second chance */
+	public void testRecentlyUsedSurvives() {
+		LongLRUCache<String> cache = new LongLRUCache<String>(3);
+		cache.put(1L, "one");
+		cache.put(2L, "two");
+		cache.put(3L, "three");
+		// none referenced yet: one of them is evicted
+		cache.put(4L, "four");
+		List<Long> survivors = new ArrayList<Long>();
+		for (long key = 1; key <= 3; key++) {
+			if (cache.get(key) != null) {
+				survivors.add(key);
+			}
+		}
+		assertEquals(2, survivors.size());
+		// the entry left unread is the one evicted
+		cache.put(5L, "five");
+		assertNull(cache.get(4L));
+		for (long key : survivors) {
+			assertTrue(cache.containsKey(key));
+		}
+		assertEquals("five", cache.get(5L));
+	}
+
+	public void testFlush() {
+		LongLRUCache<String> cache = new LongLRUCache<String>(10);
+		for (long key = 0; key < 10; key++) {
+			cache.put(key, "v" + key);
+		}
+		cache.flush();
+		assertEquals(0, cache.size());
+		for (long key = 0; key < 10; key++) {
+			assertFalse(cache.containsKey(key));
+		}
+		cache.put(3L, "three");
+		assertEquals("three", cache.get(3L));
+	}
+
+	public void testStats() {
+		LongLRUCache<String> cache = new LongLRUCache<String>(10);
+		cache.put(1L, "one");
+		cache.get(1L);
+		cache.get(2L);
+		cache.get(Long.valueOf(1));
+		CacheStats stats = cache.getStats();
+		assertEquals(2, stats.getHitCount());
+		assertEquals(1, stats.getMissCount());
+		assertEquals(1, stats.getSize());
+		assertEquals(1, stats.getWeightedSize());
+	}
+
+	/**
+	 * random puts, gets and removes checked against a map, the removals
+	 * shifting entries back in the clusters
+	 */
+	public void testAgainstMap() {
+		LongLRUCache<Long> cache = new LongLRUCache<Long>(1000);
+		Map<Long, Long> expected = new HashMap<Long, Long>();
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			long key = random.nextInt(900);
+			switch (random.nextInt(3)) {
+			case 0:
+				Long value = Long.valueOf(i);
+				assertEquals(expected.put(key, value), cache.put(key, value));
+				break;
+			case 1:
+				assertEquals(expected.remove(key), cache.remove(key));
+				break;
+			default:
+				assertEquals(expected.get(key), cache.get(key));
+			}
+		}
+		assertEquals(expected.size(), cache.size());
+	}
+
+	/** once full, every put evicts exactly one entry */
+	public void testEvictionKeepsTableConsistent() {
+		LongLRUCache<Long> cache = new LongLRUCache<Long>(64);
+		Random random = new Random(7);
+		for (long key = 0; key < 10000; key++) {
+			cache.put(key * 31, Long.valueOf(key));
+			if (random.nextBoolean()) {
+				cache.get(random.nextInt((int) key + 1) * 31L);
+			}
+		}
+		assertEquals(64, cache.size());
+		assertEquals(10000 - 64, cache.getStats().getEvictionCount());
+		int found = 0;
+		for (long key = 0; key < 10000; key++) {
+			Long value = cache.get(key * 31);
+			if (value != null) {
+				assertEquals(key, value.longValue());
+				found++;
+			}
+		}
+		assertEquals(64, found);
+	}
+
+	public void testInvalidCapacity() {
+		try {
+			new LongLRUCache<String>(0);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+}
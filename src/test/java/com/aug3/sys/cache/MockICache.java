@@ -1,5 +1,8 @@
 package com.aug3.sys.cache;
 
+import java.util.Collection;
+import java.util.Map;
+
 import com.aug3.sys.cache.ICache;
 
 public class MockICache implements ICache<String, String> {
@@ -25,4 +28,20 @@ public class MockICache implements ICache<String, String> {
 		throw new UnsupportedOperationException("not implemented");
 	}
 
+	public Map<String, String> getAll(Collection<? extends String> keys) {
+		throw new UnsupportedOperationException("not implemented");
+	}
+
+	public void putAll(Map<? extends String, ? extends String> map) {
+		throw new UnsupportedOperationException("not implemented");
+	}
+
+	public void removeAll(Collection<? extends String> keys) {
+		throw new UnsupportedOperationException("not implemented");
+	}
+
+	public CacheStats getStats() {
+		throw new UnsupportedOperationException("not implemented");
+	}
+
 }
@@ -0,0 +1,168 @@
+package com.aug3.sys.cache;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the partitioned cache
+ *
+ *
+ */
+public class PartitionedCacheTest extends TestCase {
+
+	/** the partition is what comes before the colon */
+	private static final Partitioner<String> PREFIX = new Partitioner<String>() {
+		public String partitionOf(String key) {
+			int colon = key.indexOf(':');
+			return colon < 0 ? null : key.substring(0, colon);
+		}
+	};
+
+	private PartitionedCache<String, String> cache;
+
+	@Override
+	protected void setUp() throws Exception {
+		cache = new PartitionedCache<String, String>(PREFIX, 2, 2);
+	}
+
+	public void testPutGetRemove() {
+		cache.put("a:1", "one");
+		cache.put("plain", "two");
+		assertEquals("one", cache.get("a:1"));
+		assertEquals("two", cache.get("plain"));
+		assertTrue(cache.containsKey("a:1"));
+		assertEquals("one", cache.remove("a:1"));
+		assertNull(cache.get("a:1"));
+		assertEquals(Arrays.asList(PartitionedCache.DEFAULT_PARTITION, "a"),
+				Arrays.asList(cache.getPartitions().toArray()));
+	}
+
+	/** a busy tenant only evicts its own entries and the overflow */
+	public void testQuotaIsKept() {
+		cache.put("quiet:1", "q1");
+		cache.put("quiet:2", "q2");
+		for (int i = 0; i < 10; i++) {
+			cache.put("busy:" + i, "b" + i);
+		}
+		assertEquals("q1", cache.get("quiet:1"));
+		assertEquals("q2", cache.get("quiet:2"));
+		// the quota of busy and the overflow pool
+		for (int i = 6; i < 10; i++) {
+			assertEquals("b" + i, cache.get("busy:" + i));
+		}
+		assertNull(cache.get("busy:0"));
+		assertEquals(6, cache.getStats("busy").getEvictionCount());
+		assertEquals(0, cache.getStats("quiet").getEvictionCount());
+		assertEquals(4, cache.getStats("busy").getSize());
+		assertEquals(6, cache.getStats().getSize());
+	}
+
+	public void testOverflowHitMovesBack() {
+		cache.put("a:1", "1");
+		cache.put("a:2", "2");
+		cache.put("a:3", "3");
+		// a:1 overflowed, and is moved back in place of a:2
+		assertEquals("1", cache.get("a:1"));
+		cache.put("b:1", "x");
+		cache.put("b:2", "y");
+		cache.put("b:3", "z");
+		cache.put("b:4", "w");
+		// the overflow pool now holds b:1 and b:2
+		assertEquals("1", cache.get("a:1"));
+		assertEquals("3", cache.get("a:3"));
+		assertNull(cache.get("a:2"));
+		assertEquals(1, cache.getStats("a").getEvictionCount());
+		assertEquals(2, cache.getStats("a").getSize());
+	}
+
+	public void testPerTenantStats() {
+		cache.put("a:1", "1");
+		cache.get("a:1");
+		cache.get("a:2");
+		cache.get("b:1");
+		assertEquals(1, cache.getStats("a").getHitCount());
+		assertEquals(1, cache.getStats("a").getMissCount());
+		assertEquals(1, cache.getStats("b").getMissCount());
+		assertEquals(1, cache.getStats().getHitCount());
+		assertEquals(2, cache.getStats().getMissCount());
+		assertSame(CacheStats.EMPTY, cache.getStats("unknown"));
+	}
+
+	public void testSetQuota() {
+		for (int i = 0; i < 4; i++) {
+			cache.put("a:" + i, "" + i);
+		}
+		cache.setQuota("a", 1);
+		assertEquals(1, cache.getQuota("a"));
+		assertEquals(2, cache.getQuota("b"));
+		// a:2 overflowed, pushing a:0 out
+		assertEquals(1, cache.getStats("a").getEvictionCount());
+		assertNull(cache.get("a:0"));
+		assertEquals("3", cache.get("a:3"));
+		cache.setQuota("b", 3);
+		for (int i = 0; i < 3; i++) {
+			cache.put("b:" + i, "" + i);
+		}
+		for (int i = 0; i < 3; i++) {
+			assertEquals("" + i, cache.get("b:" + i));
+		}
+	}
+
+	public void testFlushPartition() {
+		for (int i = 0; i < 4; i++) {
+			cache.put("a:" + i, "" + i);
+		}
+		cache.put("b:1", "x");
+		cache.flush("a");
+		for (int i = 0; i < 4; i++) {
+			assertNull(cache.get("a:" + i));
+		}
+		assertEquals(0, cache.getStats("a").getSize());
+		assertEquals(0, cache.getStats("a").getEvictionCount());
+		assertEquals("x", cache.get("b:1"));
+		cache.flush();
+		assertNull(cache.get("b:1"));
+	}
+
+	public void testKeysSpanPartitionsAndOverflow() {
+		for (int i = 0; i < 3; i++) {
+			cache.put("a:" + i, "" + i);
+		}
+		cache.put("b:1", "x");
+		assertEquals(new HashSet<String>(Arrays.asList("a:0", "a:1", "a:2",
+				"b:1")), new HashSet<String>(cache.keys()));
+	}
+
+	public void testNoOverflow() {
+		cache = new PartitionedCache<String, String>(PREFIX, 1, 0);
+		cache.put("a:1", "1");
+		cache.put("a:2", "2");
+		assertNull(cache.get("a:1"));
+		assertEquals(1, cache.getStats("a").getEvictionCount());
+		assertEquals(1, cache.getStats("a").getSize());
+	}
+
+	public void testRegister() throws Exception {
+		cache.put("a:1", "1");
+		cache.register("partitioned");
+		cache.put("b:1", "1");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			assertTrue(server.isRegistered(CacheMgr.objectName("partitioned/a")));
+			// registered when first used
+			assertTrue(server.isRegistered(CacheMgr.objectName("partitioned/b")));
+			assertEquals(1L, server.getAttribute(CacheMgr
+					.objectName("partitioned/b"), "Size"));
+		} finally {
+			CacheMgr.unregister("partitioned");
+			CacheMgr.unregister("partitioned/a");
+			CacheMgr.unregister("partitioned/b");
+		}
+	}
+
+}
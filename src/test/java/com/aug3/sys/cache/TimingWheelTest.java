@@ -0,0 +1,113 @@
+package com.aug3.sys.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the hierarchical timing wheel
+ * 
+ * 
+ */
+public class TimingWheelTest extends TestCase {
+
+	private static final long TICK = 10;
+
+	public void testExpiresAtDeadline() {
+		TimingWheel<String> wheel = new TimingWheel<String>(TICK, 0);
+		wheel.schedule("a", 25);
+		wheel.schedule("b", 100);
+		List<String> expired = new ArrayList<String>();
+		wheel.advance(20, expired);
+		assertTrue(expired.isEmpty());
+		wheel.advance(30, expired);
+		assertEquals(Arrays.asList("a"), expired);
+		wheel.advance(99, expired);
+		assertEquals(1, expired.size());
+		wheel.advance(100, expired);
+		assertEquals(Arrays.asList("a", "b"), expired);
+		assertEquals(0, wheel.size());
+	}
+
+	public void testPastDeadlineExpiresOnNextTick() {
+		TimingWheel<String> wheel = new TimingWheel<String>(TICK, 1000);
+		wheel.schedule("a", 500);
+		List<String> expired = new ArrayList<String>();
+		wheel.advance(1005, expired);
+		assertTrue(expired.isEmpty());
+		wheel.advance(1010, expired);
+		assertEquals(Arrays.asList("a"), expired);
+	}
+
+	public void testCancel() {
+		TimingWheel<String> wheel = new TimingWheel<String>(TICK, 0);
+		TimingWheel.Timer<String> a = wheel.schedule("a", 50);
+		wheel.schedule("b", 50);
+		wheel.cancel(a);
+		wheel.cancel(a);
+		assertEquals(1, wheel.size());
+		List<String> expired = new ArrayList<String>();
+		wheel.advance(60, expired);
+		assertEquals(Arrays.asList("b"), expired);
+	}
+
+	/** timers on every level expire neither early nor more than a tick late */
+	public void testCascading() {
+		Random random = new Random(42);
+		TimingWheel<Long> wheel = new TimingWheel<Long>(TICK, 0);
+		List<Long> deadlines = new ArrayList<Long>();
+		for (int i = 0; i < 2000; i++) {
+			// up to about 3 levels of the wheel
+			long deadline = 1 + (long) (random.nextDouble() * TICK * 300000);
+			deadlines.add(deadline);
+			wheel.schedule(deadline, deadline);
+		}
+		List<Long> expired = new ArrayList<Long>();
+		long now = 0;
+		while (wheel.size() > 0) {
+			now += 1 + random.nextInt((int) TICK * 50);
+			int before = expired.size();
+			wheel.advance(now, expired);
+			for (Long deadline : expired.subList(before, expired.size())) {
+				assertTrue(deadline + " expired at " + now, deadline <= now);
+				assertTrue(deadline + " expired late at " + now,
+						now - deadline < TICK * 51);
+			}
+		}
+		Collections.sort(deadlines);
+		Collections.sort(expired);
+		assertEquals(deadlines, expired);
+	}
+
+	/** timers beyond the span of the wheel come round again */
+	public void testBeyondTheWheel() {
+		TimingWheel<String> wheel = new TimingWheel<String>(1, 0);
+		long far = (1L << 24) * 3 + 5;
+		wheel.schedule("far", far);
+		List<String> expired = new ArrayList<String>();
+		for (long now = 0; now < far; now += 1 << 20) {
+			wheel.advance(now, expired);
+		}
+		assertTrue(expired.isEmpty());
+		wheel.advance(far, expired);
+		assertEquals(Arrays.asList("far"), expired);
+	}
+
+	/** a wheel left idle longer than its span is rebuilt */
+	public void testLongIdle() {
+		TimingWheel<String> wheel = new TimingWheel<String>(1, 0);
+		wheel.schedule("a", 100);
+		wheel.schedule("b", (1L << 26));
+		List<String> expired = new ArrayList<String>();
+		wheel.advance((1L << 25), expired);
+		assertEquals(Arrays.asList("a"), expired);
+		assertEquals(1, wheel.size());
+		wheel.advance((1L << 26), expired);
+		assertEquals(Arrays.asList("a", "b"), expired);
+	}
+
+}
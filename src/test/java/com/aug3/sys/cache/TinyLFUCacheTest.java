@@ -0,0 +1,69 @@
+package com.aug3.sys.cache;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the W-TinyLFU cache
+ *
+ *
+ */
+public class TinyLFUCacheTest extends TestCase {
+
+	public void testGetPutRemove() {
+		ICache<String, String> cache = new TinyLFUCache<String, String>(10);
+		assertNull(cache.put("a", "one"));
+		assertEquals("one", cache.get("a"));
+		assertEquals("one", cache.put("a", "uno"));
+		assertTrue(cache.containsKey("a"));
+		assertEquals("uno", cache.remove("a"));
+		assertFalse(cache.containsKey("a"));
+		assertNull(cache.get("a"));
+	}
+
+	/** Checks to see if capacity is indeed respected. */
+	public void testSizeLimit() {
+		TinyLFUCache<Integer, Integer> cache = new TinyLFUCache<Integer, Integer>(
+				50);
+		for (int i = 0; i < 1000; i++) {
+			cache.put(i, i);
+			assertTrue(cache.size() <= 50);
+		}
+		assertEquals(50, cache.size());
+	}
+
+	/** a scan of keys used once must not flush the frequently used ones */
+	public void testScanResistance() {
+		TinyLFUCache<Integer, Integer> cache = new TinyLFUCache<Integer, Integer>(
+				100);
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 50; i++) {
+				if (cache.get(i) == null) {
+					cache.put(i, i);
+				}
+			}
+		}
+		for (int i = 1000; i < 3000; i++) {
+			cache.put(i, i);
+		}
+		int survivors = 0;
+		for (int i = 0; i < 50; i++) {
+			if (cache.containsKey(i)) {
+				survivors++;
+			}
+		}
+		assertTrue("only " + survivors + " hot entries left", survivors >= 45);
+	}
+
+	public void testFlush() {
+		TinyLFUCache<Integer, Integer> cache = new TinyLFUCache<Integer, Integer>(
+				10);
+		for (int i = 0; i < 20; i++) {
+			cache.put(i, i);
+		}
+		cache.flush();
+		assertEquals(0, cache.size());
+		cache.put(1, 1);
+		assertEquals(Integer.valueOf(1), cache.get(1));
+	}
+
+}
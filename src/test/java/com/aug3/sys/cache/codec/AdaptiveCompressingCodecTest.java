@@ -0,0 +1,92 @@
+package com.aug3.sys.cache.codec;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the adaptive compressing codec
+ *
+ *
+ */
+public class AdaptiveCompressingCodecTest extends TestCase {
+
+	private AdaptiveCompressingCodec<byte[]> codec;
+
+	@Override
+	protected void setUp() throws Exception {
+		// a generous budget, so that only the ratio decides
+		codec = new AdaptiveCompressingCodec<byte[]>(
+				new CompactCodec<byte[]>(), Compression.DEFLATE, 256, 1e9);
+	}
+
+	public void testIncompressibleValuesAreSampled() {
+		final int[] compressed = new int[1];
+		codec = new AdaptiveCompressingCodec<byte[]>(
+				new CompactCodec<byte[]>(), Compression.DEFLATE, 256, 1e9) {
+			@Override
+			protected void compressed(int length, int compressedLength,
+					long nanos) {
+				super.compressed(length, compressedLength, nanos);
+				compressed[0]++;
+			}
+		};
+		Random random = new Random(1);
+		for (int i = 0; i < AdaptiveCompressingCodec.WARM_UP
+				+ AdaptiveCompressingCodec.SAMPLE_EVERY * 4; i++) {
+			byte[] value = new byte[4096];
+			random.nextBytes(value);
+			byte[] bytes = codec.encode(value);
+			assertEquals(Compression.NONE.getId(), bytes[0]);
+			assertEquals(value.length, codec.decode(bytes).length);
+		}
+		// the warm-up, then one value in 64
+		assertEquals(AdaptiveCompressingCodec.WARM_UP + 4, compressed[0]);
+	}
+
+	public void testCompressibleValuesAreCompressed() {
+		byte[] value = new byte[1000];
+		for (int i = 0; i < 100; i++) {
+			byte[] bytes = codec.encode(value);
+			assertEquals(Compression.DEFLATE.getId(), bytes[0]);
+			assertEquals(value.length, codec.decode(bytes).length);
+		}
+	}
+
+	public void testSmallValuesAreNotCompressed() {
+		assertFalse(codec.shouldCompress(255));
+		byte[] bytes = codec.encode(new byte[200]);
+		assertEquals(Compression.NONE.getId(), bytes[0]);
+	}
+
+	public void testBudget() {
+		AdaptiveCompressingCodec<byte[]> stingy = new AdaptiveCompressingCodec<byte[]>(
+				new CompactCodec<byte[]>(), Compression.DEFLATE, 256, 1e-9);
+		byte[] value = new byte[1000];
+		for (int i = 0; i < AdaptiveCompressingCodec.WARM_UP; i++) {
+			stingy.encode(value);
+		}
+		assertFalse(stingy.shouldCompress(value.length));
+	}
+
+	public void testEffectiveThreshold() {
+		assertEquals(256, codec.getEffectiveThreshold());
+		Random random = new Random(1);
+		for (int i = 0; i < AdaptiveCompressingCodec.WARM_UP; i++) {
+			byte[] value = new byte[300];
+			random.nextBytes(value);
+			codec.encode(value);
+		}
+		// 256 to 511 bytes are no longer compressed
+		assertEquals(512, codec.getEffectiveThreshold());
+	}
+
+	public void testReadableByCompressingCodec() {
+		CompressingCodec<byte[]> plain = new CompressingCodec<byte[]>(
+				new CompactCodec<byte[]>(), 1024, Compression.GZIP);
+		byte[] value = new byte[2000];
+		assertEquals(value.length, plain.decode(codec.encode(value)).length);
+		assertEquals(value.length, codec.decode(plain.encode(value)).length);
+	}
+
+}
@@ -0,0 +1,82 @@
+package com.aug3.sys.cache.codec;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import com.aug3.sys.cfg.ValueSet;
+
+/**
+ * Compares the size and the encoding and decoding times of the value codecs
+ * on typical cached values: a <code>Properties</code>, a map of strings and a
+ * <code>ValueSet</code>, each of about a hundred entries.
+ *
+ * This is not a unit test; run it with
+ *
+ * <code>java com.aug3.sys.cache.codec.CodecBenchmark [iterations]</code>
+ *
+ */
+public class CodecBenchmark {
+
+	private static final int ENTRIES = 100;
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+		Properties props = new Properties();
+		Map<String, String> map = new HashMap<String, String>();
+		ValueSet vs = new ValueSet("benchmark");
+		for (int i = 0; i < ENTRIES; i++) {
+			props.setProperty("app.module" + i + ".url", "http://host" + i
+					+ ".example.com:8080/service");
+			map.put("user:" + i, "name-" + i + "@example.com");
+			vs.putValue("setting" + i, i % 3 == 0 ? (Object) ("value" + i)
+					: (Object) Integer.valueOf(i), "description of setting " + i);
+		}
+
+		Map<String, ValueCodec<Object>> codecs = new LinkedHashMap<String, ValueCodec<Object>>();
+		codecs.put("serializing", new SerializingCodec<Object>());
+		codecs.put("compact", new CompactCodec<Object>());
+		codecs.put("serializing+deflate", new CompressingCodec<Object>(
+				new SerializingCodec<Object>(), 0, Compression.DEFLATE));
+		codecs.put("compact+deflate", new CompressingCodec<Object>(
+				new CompactCodec<Object>(), 0, Compression.DEFLATE));
+
+		Object[] values = { props, map, vs };
+		String[] names = { "Properties", "Map<String,String>", "ValueSet" };
+		System.out.println(String.format("%-20s %-20s %8s %12s %12s", "value",
+				"codec", "bytes", "encode(us)", "decode(us)"));
+		for (int v = 0; v < values.length; v++) {
+			for (Map.Entry<String, ValueCodec<Object>> e : codecs.entrySet()) {
+				ValueCodec<Object> codec = e.getValue();
+				// warm up before measuring
+				run(codec, values[v], iterations / 4);
+				double[] times = run(codec, values[v], iterations);
+				System.out.println(String.format("%-20s %-20s %8d %12.1f %12.1f",
+						names[v], e.getKey(), codec.encode(values[v]).length,
+						times[0], times[1]));
+			}
+		}
+	}
+
+	/**
+	 * @return the average encoding and decoding times in microseconds
+	 */
+	private static double[] run(ValueCodec<Object> codec, Object value,
+			int iterations) {
+		byte[] bytes = null;
+		long begin = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			bytes = codec.encode(value);
+		}
+		long encoded = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			codec.decode(bytes);
+		}
+		long decoded = System.nanoTime();
+		return new double[] { (encoded - begin) / 1000.0 / iterations,
+				(decoded - encoded) / 1000.0 / iterations };
+	}
+
+}
@@ -0,0 +1,169 @@
+package com.aug3.sys.cache.codec;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.aug3.sys.cfg.ValueSet;
+import com.aug3.sys.util.ObjectIO;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the compact value codec
+ *
+ *
+ */
+public class CompactCodecTest extends TestCase {
+
+	private CompactCodec<Object> codec = new CompactCodec<Object>();
+
+	public void testScalars() {
+		Object[] values = { null, "", "héllo 世界", 0, -1,
+				Integer.MAX_VALUE, Integer.MIN_VALUE, 42L, Long.MIN_VALUE,
+				true, false, 3.5d, Double.NaN, 1.25f, (short) -7, (byte) 9,
+				'x', new Date(1234567890L) };
+		for (Object value : values) {
+			Object copy = roundTrip(value);
+			assertEquals(value, copy);
+			if (value != null) {
+				assertEquals(value.getClass(), copy.getClass());
+			}
+		}
+	}
+
+	public void testBytes() {
+		byte[] bytes = { 1, 2, 3, -1 };
+		assertTrue(Arrays.equals(bytes, (byte[]) roundTrip(bytes)));
+	}
+
+	public void testCollectionsKeepTheirClass() {
+		List<Object> values = new ArrayList<Object>();
+		values.add(new HashMap<String, Object>(sample()));
+		values.add(new LinkedHashMap<String, Object>(sample()));
+		values.add(new ConcurrentHashMap<String, Object>(sample()));
+		values.add(new TreeMap<String, Object>(sample()));
+		values.add(new ArrayList<Object>(sample().values()));
+		values.add(new LinkedList<Object>(sample().values()));
+		values.add(new HashSet<Object>(sample().values()));
+		values.add(new LinkedHashSet<Object>(sample().values()));
+		for (Object value : values) {
+			Object copy = roundTrip(value);
+			assertEquals(value, copy);
+			assertEquals(value.getClass(), copy.getClass());
+		}
+	}
+
+	public void testNestedValues() {
+		Map<String, Object> map = sample();
+		map.put("list", new ArrayList<Object>(sample().values()));
+		map.put("map", sample());
+		assertEquals(map, roundTrip(map));
+	}
+
+	public void testProperties() {
+		Properties props = new Properties();
+		props.setProperty("url", "jdbc:mysql://localhost/db");
+		props.setProperty("pool.size", "10");
+		Object copy = roundTrip(props);
+		assertTrue(copy instanceof Properties);
+		assertEquals(props, copy);
+	}
+
+	public void testPropertiesWithDefaultsAreSerialized() {
+		Properties defaults = new Properties();
+		defaults.setProperty("a", "1");
+		Properties props = new Properties(defaults);
+		props.setProperty("b", "2");
+		Properties copy = (Properties) roundTrip(props);
+		assertEquals("1", copy.getProperty("a"));
+		assertEquals("2", copy.getProperty("b"));
+	}
+
+	public void testValueSet() {
+		ValueSet vs = new ValueSet("database");
+		vs.putValue("host", "localhost", "the database host");
+		vs.putValue("port", 3306);
+		vs.putValue("ssl", true);
+		vs.updateValue("ssl", false);
+		vs.resetValue("port");
+		ValueSet copy = (ValueSet) roundTrip(vs);
+		assertEquals("database", copy.getConfigTypeName());
+		assertEquals(vs.getAllNames(), copy.getAllNames());
+		assertEquals(vs.getValueMap(), copy.getValueMap());
+		assertEquals("the database host", copy.getDescription("host"));
+		assertEquals(vs.getUpdateSet(), copy.getUpdateSet());
+		assertEquals(vs.getResetSet(), copy.getResetSet());
+	}
+
+	public void testUnknownClassesAreSerialized() {
+		Point point = new Point(3, 4);
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("point", point);
+		assertEquals(map, roundTrip(map));
+	}
+
+	public void testReadsSerializedValues() throws Exception {
+		Map<String, Object> map = sample();
+		assertEquals(map, codec.decode(ObjectIO.toByteArray(map)));
+	}
+
+	public void testSmallerThanSerialization() throws Exception {
+		Map<String, Object> map = sample();
+		assertTrue(codec.encode(map).length < ObjectIO.toByteArray(map).length);
+	}
+
+	public void testObjectIO() throws Exception {
+		Map<String, Object> map = sample();
+		assertEquals(map, ObjectIO.fromCompactByteArray(ObjectIO
+				.toCompactByteArray(map)));
+		assertEquals(map, ObjectIO.fromCompactByteArray(ObjectIO
+				.toByteArray(map)));
+	}
+
+	private Object roundTrip(Object value) {
+		return codec.decode(codec.encode(value));
+	}
+
+	private static Map<String, Object> sample() {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("name", "sample");
+		map.put("count", 12);
+		map.put("total", 123456789012L);
+		map.put("enabled", true);
+		map.put("ratio", 0.75d);
+		return map;
+	}
+
+	@SuppressWarnings("serial")
+	private static class Point implements Serializable {
+		final int x;
+		final int y;
+
+		Point(int x, int y) {
+			this.x = x;
+			this.y = y;
+		}
+
+		public boolean equals(Object o) {
+			return o instanceof Point && ((Point) o).x == x
+					&& ((Point) o).y == y;
+		}
+
+		public int hashCode() {
+			return 31 * x + y;
+		}
+	}
+
+}
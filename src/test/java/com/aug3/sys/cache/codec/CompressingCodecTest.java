@@ -0,0 +1,124 @@
+package com.aug3.sys.cache.codec;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.aug3.sys.CommonRuntimeException;
+
+/**
+ * Tests for the compressing codec
+ *
+ *
+ */
+public class CompressingCodecTest extends TestCase {
+
+	public void testSmallValuesAreNotCompressed() {
+		CompressingCodec<String> codec = new CompressingCodec<String>(
+				new CompactCodec<String>(), 1024, Compression.DEFLATE);
+		String value = "short";
+		byte[] bytes = codec.encode(value);
+		assertEquals(Compression.NONE.getId(), bytes[0]);
+		assertEquals(value, codec.decode(bytes));
+	}
+
+	public void testDeflate() {
+		checkCompressed(Compression.DEFLATE);
+	}
+
+	public void testGzip() {
+		checkCompressed(Compression.GZIP);
+	}
+
+	public void testLzf() {
+		checkCompressed(Compression.LZF);
+	}
+
+	public void testLzfRoundTrips() {
+		Random random = new Random(1);
+		byte[] noise = new byte[20000];
+		random.nextBytes(noise);
+		byte[] runs = new byte[20000];
+		for (int i = 0; i < runs.length; i++) {
+			runs[i] = (byte) (i / 1000);
+		}
+		byte[] text = repeated().getBytes();
+		// matches further than the window reaches
+		byte[] far = new byte[20000];
+		System.arraycopy(noise, 0, far, 0, 10000);
+		System.arraycopy(noise, 0, far, 10000, 10000);
+		byte[][] inputs = { new byte[0], { 1 }, { 1, 2, 3 }, noise, runs,
+				text, far };
+		for (byte[] input : inputs) {
+			byte[] compressed = Lzf.compress(input);
+			assertTrue(Arrays.equals(input, Lzf.decompress(compressed, 0)));
+		}
+		assertTrue(Lzf.compress(runs).length < runs.length / 20);
+	}
+
+	public void testTruncatedLzf() {
+		byte[] compressed = Lzf.compress(repeated().getBytes());
+		for (int length : new int[] { 2, 10, compressed.length - 1 }) {
+			byte[] truncated = new byte[length];
+			System.arraycopy(compressed, 0, truncated, 0, length);
+			try {
+				Lzf.decompress(truncated, 0);
+				fail("truncated to " + length);
+			} catch (CommonRuntimeException e) {
+				// expected
+			}
+		}
+	}
+
+	public void testUnknownCompression() {
+		CompressingCodec<String> codec = new CompressingCodec<String>(
+				new CompactCodec<String>(), 0, Compression.DEFLATE);
+		byte[] bytes = codec.encode("value");
+		bytes[0] = 42;
+		try {
+			codec.decode(bytes);
+			fail("no compression has id 42");
+		} catch (CommonRuntimeException e) {
+			// expected
+		}
+	}
+
+	public void testIncompressibleValuesAreStoredRaw() {
+		CompressingCodec<byte[]> codec = new CompressingCodec<byte[]>(
+				new CompactCodec<byte[]>(), 16, Compression.DEFLATE);
+		byte[] random = new byte[4096];
+		new Random(1).nextBytes(random);
+		byte[] bytes = codec.encode(random);
+		assertEquals(Compression.NONE.getId(), bytes[0]);
+		assertEquals(random.length, codec.decode(bytes).length);
+	}
+
+	public void testNoCompression() {
+		CompressingCodec<String> codec = new CompressingCodec<String>(
+				new CompactCodec<String>(), 0, Compression.NONE);
+		String value = repeated();
+		byte[] bytes = codec.encode(value);
+		assertEquals(Compression.NONE.getId(), bytes[0]);
+		assertEquals(value, codec.decode(bytes));
+	}
+
+	private void checkCompressed(Compression compression) {
+		CompressingCodec<String> codec = new CompressingCodec<String>(
+				new CompactCodec<String>(), 1024, compression);
+		String value = repeated();
+		byte[] bytes = codec.encode(value);
+		assertEquals(compression.getId(), bytes[0]);
+		assertTrue(bytes.length < value.length() / 4);
+		assertEquals(value, codec.decode(bytes));
+	}
+
+	private static String repeated() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			sb.append("config.key.").append(i % 10).append('=').append("value;");
+		}
+		return sb.toString();
+	}
+
+}
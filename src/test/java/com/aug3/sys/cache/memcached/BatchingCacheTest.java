@@ -0,0 +1,172 @@
+package com.aug3.sys.cache.memcached;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.aug3.sys.cache.AbstractCache;
+
+/**
+ * Tests for the batching of concurrent gets, with a map standing in for
+ * memcached
+ *
+ *
+ */
+public class BatchingCacheTest extends TestCase {
+
+	private BlockingRemote remote;
+
+	protected void setUp() {
+		remote = new BlockingRemote();
+		for (String key : new String[] { "a", "b", "c", "d" }) {
+			remote.map.put(key, key.toUpperCase());
+		}
+	}
+
+	/** with no other get being sent, a get does not wait for the window */
+	public void testLoneGetIsNotDelayed() {
+		remote.release.countDown();
+		BatchingCache<String> cache = new BatchingCache<String>(remote,
+				TimeUnit.SECONDS.toNanos(10), 8);
+		long start = System.currentTimeMillis();
+		assertEquals("A", cache.get("a"));
+		assertNull(cache.get("missing"));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(2, remote.gets);
+		assertEquals(2, cache.getBatchSizes()[0]);
+	}
+
+	/** the gets arriving while a batch is sent go together once full */
+	public void testConcurrentGetsShareOneMultiGet() throws Exception {
+		BatchingCache<String> cache = new BatchingCache<String>(remote,
+				TimeUnit.SECONDS.toNanos(10), 3);
+		Getter first = new Getter(cache, "a");
+		first.start();
+		remote.started.await();
+		List<Getter> getters = new ArrayList<Getter>();
+		for (String key : new String[] { "b", "c", "d" }) {
+			Getter getter = new Getter(cache, key);
+			getter.start();
+			getters.add(getter);
+		}
+		for (Getter getter : getters) {
+			getter.join(5000);
+			assertEquals(getter.key.toUpperCase(), getter.value);
+		}
+		assertEquals(1, remote.bulkGets);
+		assertEquals(3, remote.lastBulk.size());
+		remote.release.countDown();
+		first.join(5000);
+		assertEquals("A", first.value);
+		long[] sizes = cache.getBatchSizes();
+		assertEquals(1, sizes[0]);
+		assertEquals(1, sizes[1]);
+	}
+
+	/** a batch that does not fill up is sent at the end of the window */
+	public void testWindowSendsPartialBatch() throws Exception {
+		BatchingCache<String> cache = new BatchingCache<String>(remote,
+				TimeUnit.MILLISECONDS.toNanos(50), 8);
+		Getter first = new Getter(cache, "a");
+		first.start();
+		remote.started.await();
+		Getter second = new Getter(cache, "b");
+		second.start();
+		second.join(5000);
+		assertEquals("B", second.value);
+		// 50 ms is in the last bucket
+		assertEquals(1, cache.getAddedLatencies()[BatchingCache.BUCKETS - 1]);
+		remote.release.countDown();
+		first.join(5000);
+		assertEquals("A", first.value);
+	}
+
+	public void testLabels() {
+		assertEquals("1", BatchingCache.batchSizeLabel(0));
+		assertEquals("4-7", BatchingCache.batchSizeLabel(2));
+		assertEquals("<1us", BatchingCache.addedLatencyLabel(0));
+		assertEquals("128-256us", BatchingCache.addedLatencyLabel(8));
+		assertEquals(">=16384us", BatchingCache
+				.addedLatencyLabel(BatchingCache.BUCKETS - 1));
+	}
+
+	private static class Getter extends Thread {
+		final BatchingCache<String> cache;
+		final String key;
+		volatile String value;
+
+		Getter(BatchingCache<String> cache, String key) {
+			this.cache = cache;
+			this.key = key;
+		}
+
+		public void run() {
+			value = cache.get(key);
+		}
+	}
+
+	/**
+	 * A remote cache whose gets of "a" wait for the release latch, the other
+	 * gets answering at once.
+	 */
+	private static class BlockingRemote extends AbstractCache<String, String> {
+		final Map<String, String> map = new ConcurrentHashMap<String, String>();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		volatile int gets;
+		volatile int bulkGets;
+		volatile Collection<? extends String> lastBulk;
+
+		public synchronized Map<String, String> getAll(
+				Collection<? extends String> keys) {
+			bulkGets++;
+			lastBulk = keys;
+			Map<String, String> values = new HashMap<String, String>();
+			for (String key : keys) {
+				if (map.containsKey(key)) {
+					values.put(key, map.get(key));
+				}
+			}
+			return values;
+		}
+
+		public String get(String key) {
+			synchronized (this) {
+				gets++;
+			}
+			if ("a".equals(key)) {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return map.get(key);
+		}
+
+		public String put(String key, String value) {
+			return map.put(key, value);
+		}
+
+		public String remove(String key) {
+			return map.remove(key);
+		}
+
+		public boolean containsKey(String key) {
+			return map.containsKey(key);
+		}
+
+		public void flush() {
+			map.clear();
+		}
+	}
+
+}
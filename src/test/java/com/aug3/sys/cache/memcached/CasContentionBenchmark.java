@@ -0,0 +1,130 @@
+package com.aug3.sys.cache.memcached;
+
+import java.util.concurrent.CountDownLatch;
+
+import com.aug3.sys.CommonRuntimeException;
+import com.aug3.sys.cache.codec.CompactCodec;
+import com.danga.MemCached.SockIOPool;
+
+/**
+ * Measures concurrent updates of one memcached key, against the embedded
+ * stand-in server: a read followed by a put, as the config finder used to
+ * do, against <code>compute</code>, at 1 to 32 threads, through the nio
+ * adapter and then the danga one.
+ *
+ * Every thread increments a counter a number of times. The counter ends lower
+ * than the number of increments when updates were lost; compute loses none,
+ * at the cost of the retries counted in its throughput. This is not a unit
+ * test; run it with
+ *
+ * <code>java com.aug3.sys.cache.memcached.CasContentionBenchmark [incrementsPerThread]</code>
+ *
+ */
+public class CasContentionBenchmark {
+
+	private static final int[] THREADS = { 1, 2, 4, 8, 16, 32 };
+	private static final String KEY = "counter";
+
+	public static void main(String[] args) throws Exception {
+		int increments = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		EmbeddedMemCachedServer server = new EmbeddedMemCachedServer();
+		server.start(0);
+		NioMemCachedClient client = new NioMemCachedClient(
+				new String[] { server.address() }, null, 2, 1, 1000);
+		SockIOPool pool = SockIOPool.getInstance(MemCachedPoolMgr
+				.poolName(server.address()));
+		pool.setServers(new String[] { server.address() });
+		pool.setFailover(false);
+		pool.setMaxConn(THREADS[THREADS.length - 1]);
+		pool.initialize();
+		try {
+			System.out.println("nio");
+			measure(new NioMemCachedAdapter<Integer>(client,
+					new CompactCodec<Integer>()), increments);
+			System.out.println("danga");
+			measure(new MemCachedAdapter<Integer>(client.getRouter(), false,
+					new CompactCodec<Integer>()), increments);
+		} finally {
+			pool.shutDown();
+			client.close();
+			server.stop();
+		}
+	}
+
+	private static void measure(CasCache<Integer> cache, int increments)
+			throws InterruptedException {
+		System.out.println("threads  get+put (ops/ms)  lost  compute (ops/ms)  lost");
+		for (int threads : THREADS) {
+			// warm up both before measuring
+			run(cache, false, threads, increments / 4);
+			run(cache, true, threads, increments / 4);
+			long begin = System.nanoTime();
+			int lost = run(cache, false, threads, increments);
+			double plain = throughput(threads * increments, begin);
+			begin = System.nanoTime();
+			int casLost = run(cache, true, threads, increments);
+			double cas = throughput(threads * increments, begin);
+			System.out.println(String.format("%7d  %16.1f  %4d  %16.1f  %4d",
+					threads, plain, lost, cas, casLost));
+		}
+	}
+
+	/**
+	 * @return the number of increments lost
+	 */
+	private static int run(final CasCache<Integer> cache,
+			final boolean atomic, int threads, final int increments)
+			throws InterruptedException {
+		cache.put(KEY, Integer.valueOf(0));
+		final CasCache.Updater<Integer> increment = new CasCache.Updater<Integer>() {
+			public Integer update(Integer current) {
+				return Integer.valueOf(current == null ? 1 : current
+						.intValue() + 1);
+			}
+		};
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					try {
+						for (int i = 0; i < increments; i++) {
+							increment(cache, atomic, increment);
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		start.countDown();
+		done.await();
+		return threads * increments - cache.get(KEY).intValue();
+	}
+
+	private static void increment(CasCache<Integer> cache,
+			boolean atomic, CasCache.Updater<Integer> increment) {
+		if (!atomic) {
+			cache.put(KEY, increment.update(cache.get(KEY)));
+			return;
+		}
+		try {
+			cache.compute(KEY, increment);
+		} catch (CommonRuntimeException e) {
+			// gave up after the retries, counted as lost
+		}
+	}
+
+	/**
+	 * @return throughput in operations per millisecond
+	 */
+	private static double throughput(int ops, long begin) {
+		return ops / ((System.nanoTime() - begin) / 1000000.0);
+	}
+
+}
@@ -0,0 +1,435 @@
+package com.aug3.sys.cache.memcached;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import com.aug3.sys.cache.ConcurrentLRUCache;
+import com.aug3.sys.cache.ICache;
+
+/**
+ * An in-process server speaking the memcached text protocol, so that the
+ * memcached client, the adapter and the router can be tested and benchmarked
+ * without a real memcached. The items are kept in an <code>ICache</code>, a
+ * <code>ConcurrentLRUCache</code> by default.
+ *
+ * It supports get, gets, set, add, replace, cas, delete, flush_all, version
+ * and quit, with expiry times and noreply. A single thread serves all the
+ * connections with a selector, so every command is atomic.
+ *
+ * It can also run on its own:
+ *
+ * <code>java com.aug3.sys.cache.memcached.EmbeddedMemCachedServer [port] [capacity]</code>
+ *
+ */
+public class EmbeddedMemCachedServer {
+
+	/** relative expiry times are at most 30 days, as in memcached */
+	private static final long MAX_RELATIVE_EXPIRY = 60 * 60 * 24 * 30;
+	private static final int MAX_LINE = 2048;
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private final ICache<String, Item> items;
+	private ServerSocketChannel server;
+	private Selector selector;
+	private Thread thread;
+	private long nextCas = 1;
+
+	public EmbeddedMemCachedServer() {
+		this(new ConcurrentLRUCache<String, Item>(100000));
+	}
+
+	public EmbeddedMemCachedServer(ICache<String, Item> items) {
+		this.items = items;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 11211;
+		int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		EmbeddedMemCachedServer server = new EmbeddedMemCachedServer(
+				new ConcurrentLRUCache<String, Item>(capacity));
+		server.start(port);
+		System.out.println("memcached stand-in listening on "
+				+ server.address());
+		server.thread.join();
+	}
+
+	/**
+	 * Starts listening on the port, any free port if it is 0.
+	 */
+	public synchronized void start(int port) throws IOException {
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress("127.0.0.1", port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		thread = new Thread("memcached-stand-in-" + getPort()) {
+			public void run() {
+				serve();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() throws IOException {
+		if (thread == null) {
+			return;
+		}
+		thread.interrupt();
+		selector.wakeup();
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+	}
+
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * @return the address of the server, as given to the memcached client.
+	 */
+	public String address() {
+		return "127.0.0.1:" + getPort();
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER METHODS
+	// ---------------------------------------------------------------------
+
+	private void serve() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							Connection connection = (Connection) key
+									.attachment();
+							if (key.isReadable()) {
+								connection.read();
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.flush();
+							}
+						}
+					} catch (IOException e) {
+						key.cancel();
+						key.channel().close();
+					}
+				}
+			}
+		} catch (IOException e) {
+			// the selector failed, the server stops
+		} finally {
+			close();
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new Connection(channel, key));
+	}
+
+	private void close() {
+		for (SelectionKey key : selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	/**
+	 * @return the absolute expiry time in milliseconds of an item stored with
+	 *         the exptime of the protocol, 0 for never, -1 if already expired.
+	 */
+	static long expiry(long exptime, long now) {
+		if (exptime == 0) {
+			return 0;
+		}
+		if (exptime < 0) {
+			return -1;
+		}
+		if (exptime <= MAX_RELATIVE_EXPIRY) {
+			return now + exptime * 1000;
+		}
+		// a Unix time
+		long expiry = exptime * 1000;
+		return expiry <= now ? -1 : expiry;
+	}
+
+	private Item lookup(String key, long now) {
+		Item item = items.get(key);
+		if (item != null && item.isExpired(now)) {
+			items.remove(key);
+			return null;
+		}
+		return item;
+	}
+
+	/**
+	 * Runs a command and returns its response, or null when the connection
+	 * is to be closed.
+	 */
+	private String execute(String[] words, byte[] data, Connection connection) {
+		String command = words[0];
+		long now = System.currentTimeMillis();
+		if ("get".equals(command) || "gets".equals(command)) {
+			boolean withCas = "gets".equals(command);
+			for (int i = 1; i < words.length; i++) {
+				Item item = lookup(words[i], now);
+				if (item != null) {
+					connection.write("VALUE " + words[i] + " " + item.flags
+							+ " " + item.data.length
+							+ (withCas ? " " + item.cas : "") + "\r\n");
+					connection.write(item.data);
+					connection.write(CRLF);
+				}
+			}
+			return "END";
+		} else if (data != null) {
+			return store(words, data, now);
+		} else if ("delete".equals(command)) {
+			if (words.length < 2) {
+				return "ERROR";
+			}
+			Item item = lookup(words[1], now);
+			if (item == null) {
+				return "NOT_FOUND";
+			}
+			items.remove(words[1]);
+			return "DELETED";
+		} else if ("flush_all".equals(command)) {
+			items.flush();
+			return "OK";
+		} else if ("version".equals(command)) {
+			return "VERSION 1.4.0-embedded";
+		} else if ("quit".equals(command)) {
+			return null;
+		}
+		return "ERROR";
+	}
+
+	private String store(String[] words, byte[] data, long now) {
+		String command = words[0];
+		String key = words[1];
+		long expiry = expiry(Long.parseLong(words[3]), now);
+		Item existing = lookup(key, now);
+		if ("add".equals(command) && existing != null) {
+			return "NOT_STORED";
+		}
+		if ("replace".equals(command) && existing == null) {
+			return "NOT_STORED";
+		}
+		if ("cas".equals(command)) {
+			if (existing == null) {
+				return "NOT_FOUND";
+			}
+			if (existing.cas != Long.parseLong(words[5])) {
+				return "EXISTS";
+			}
+		}
+		if (expiry < 0) {
+			// stored already expired
+			items.remove(key);
+		} else {
+			items.put(key, new Item(Integer.parseInt(words[2]), expiry,
+					nextCas++, data));
+		}
+		return "STORED";
+	}
+
+	private static boolean isStorage(String command) {
+		return "set".equals(command) || "add".equals(command)
+				|| "replace".equals(command) || "cas".equals(command);
+	}
+
+	private static byte[] ascii(String s) {
+		try {
+			return s.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER CLASSES
+	// ---------------------------------------------------------------------
+
+	/**
+	 * A stored value with its protocol metadata.
+	 */
+	public static final class Item {
+		final int flags;
+		final long expiry;
+		final long cas;
+		final byte[] data;
+
+		Item(int flags, long expiry, long cas, byte[] data) {
+			this.flags = flags;
+			this.expiry = expiry;
+			this.cas = cas;
+			this.data = data;
+		}
+
+		boolean isExpired(long now) {
+			return expiry > 0 && now >= expiry;
+		}
+	}
+
+	/**
+	 * The buffers of a client connection. Commands may arrive split across
+	 * reads, or several in one read.
+	 */
+	private final class Connection {
+
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		private ByteBuffer in = ByteBuffer.allocate(4096);
+		private final LinkedList<ByteBuffer> out = new LinkedList<ByteBuffer>();
+
+		Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+		}
+
+		void read() throws IOException {
+			if (!in.hasRemaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+				in.flip();
+				bigger.put(in);
+				in = bigger;
+			}
+			if (channel.read(in) < 0) {
+				throw new IOException("closed by the client");
+			}
+			in.flip();
+			boolean open = true;
+			while (open) {
+				int start = in.position();
+				int eol = findLineEnd();
+				if (eol < 0) {
+					if (in.remaining() > MAX_LINE) {
+						throw new IOException("line too long");
+					}
+					break;
+				}
+				byte[] line = new byte[eol - start];
+				in.get(line);
+				in.position(eol + 2);
+				String[] words = new String(line, "US-ASCII").trim().split(
+						" +");
+				byte[] data = null;
+				if (isStorage(words[0])) {
+					int length = words.length < 5 ? -1 : parseLength(words[4]);
+					if (length < 0) {
+						write("CLIENT_ERROR bad command line format\r\n");
+						continue;
+					}
+					if (in.remaining() < length + 2) {
+						// wait for the rest of the data block
+						in.position(start);
+						break;
+					}
+					data = new byte[length];
+					in.get(data);
+					in.position(in.position() + 2);
+				}
+				boolean noreply = "noreply".equals(words[words.length - 1]);
+				String response;
+				try {
+					response = execute(words, data, this);
+				} catch (RuntimeException e) {
+					// a malformed number or a missing argument
+					response = "CLIENT_ERROR bad command line format";
+				}
+				if (response == null) {
+					open = false;
+				} else if (!noreply) {
+					write(response + "\r\n");
+				}
+			}
+			in.compact();
+			flush();
+			if (!open) {
+				key.cancel();
+				channel.close();
+			}
+		}
+
+		private int parseLength(String length) {
+			try {
+				return Integer.parseInt(length);
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		/** @return the position of the next \r\n, or -1 */
+		private int findLineEnd() {
+			for (int i = in.position(); i + 1 < in.limit(); i++) {
+				if (in.get(i) == '\r' && in.get(i + 1) == '\n') {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		void write(String s) {
+			write(ascii(s));
+		}
+
+		void write(byte[] bytes) {
+			out.add(ByteBuffer.wrap(bytes));
+		}
+
+		void flush() throws IOException {
+			while (!out.isEmpty()) {
+				ByteBuffer buffer = out.getFirst();
+				channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					key.interestOps(SelectionKey.OP_READ
+							| SelectionKey.OP_WRITE);
+					return;
+				}
+				out.removeFirst();
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+package com.aug3.sys.cache.memcached;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the memcached protocol stand-in server
+ *
+ *
+ */
+public class EmbeddedMemCachedServerTest extends TestCase {
+
+	private EmbeddedMemCachedServer server;
+	private Socket socket;
+	private InputStream in;
+	private OutputStream out;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new EmbeddedMemCachedServer();
+		server.start(0);
+		socket = new Socket("127.0.0.1", server.getPort());
+		socket.setSoTimeout(5000);
+		in = socket.getInputStream();
+		out = socket.getOutputStream();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		socket.close();
+		server.stop();
+	}
+
+	public void testSetGet() throws IOException {
+		send("set k 5 0 3\r\nabc\r\n");
+		assertEquals("STORED", line());
+		send("get k\r\n");
+		assertEquals("VALUE k 5 3", line());
+		assertEquals("abc", line());
+		assertEquals("END", line());
+		send("get missing\r\n");
+		assertEquals("END", line());
+	}
+
+	public void testMultiGet() throws IOException {
+		send("set a 0 0 1\r\n1\r\nset b 0 0 1\r\n2\r\n");
+		assertEquals("STORED", line());
+		assertEquals("STORED", line());
+		send("get a missing b\r\n");
+		assertEquals("VALUE a 0 1", line());
+		assertEquals("1", line());
+		assertEquals("VALUE b 0 1", line());
+		assertEquals("2", line());
+		assertEquals("END", line());
+	}
+
+	public void testCas() throws IOException {
+		send("cas k 0 0 1 1\r\nx\r\n");
+		assertEquals("NOT_FOUND", line());
+		send("set k 0 0 1\r\na\r\n");
+		assertEquals("STORED", line());
+		send("gets k\r\n");
+		String[] header = line().split(" ");
+		assertEquals(5, header.length);
+		long cas = Long.parseLong(header[4]);
+		line();
+		line();
+		send("cas k 0 0 1 " + cas + "\r\nb\r\n");
+		assertEquals("STORED", line());
+		// the value changed since the gets
+		send("cas k 0 0 1 " + cas + "\r\nc\r\n");
+		assertEquals("EXISTS", line());
+		send("get k\r\n");
+		line();
+		assertEquals("b", line());
+		assertEquals("END", line());
+	}
+
+	public void testAddReplace() throws IOException {
+		send("replace k 0 0 1\r\na\r\n");
+		assertEquals("NOT_STORED", line());
+		send("add k 0 0 1\r\na\r\n");
+		assertEquals("STORED", line());
+		send("add k 0 0 1\r\nb\r\n");
+		assertEquals("NOT_STORED", line());
+		send("replace k 0 0 1\r\nc\r\n");
+		assertEquals("STORED", line());
+	}
+
+	public void testDeleteAndFlush() throws IOException {
+		send("set a 0 0 1\r\n1\r\nset b 0 0 1\r\n2\r\n");
+		line();
+		line();
+		send("delete a\r\n");
+		assertEquals("DELETED", line());
+		send("delete a\r\n");
+		assertEquals("NOT_FOUND", line());
+		send("flush_all\r\n");
+		assertEquals("OK", line());
+		send("get b\r\n");
+		assertEquals("END", line());
+	}
+
+	public void testExpiry() throws IOException {
+		assertEquals(0, EmbeddedMemCachedServer.expiry(0, 1000));
+		assertEquals(11000, EmbeddedMemCachedServer.expiry(10, 1000));
+		// larger than 30 days is a Unix time
+		assertEquals(4000000000000L, EmbeddedMemCachedServer.expiry(
+				4000000000L, 1000));
+		assertEquals(-1, EmbeddedMemCachedServer.expiry(3000000, 4000000000L));
+
+		send("set k 0 -1 1\r\na\r\n");
+		assertEquals("STORED", line());
+		send("get k\r\n");
+		assertEquals("END", line());
+	}
+
+	public void testNoreplyAndErrors() throws IOException {
+		send("set k 0 0 1 noreply\r\na\r\n");
+		send("bogus\r\n");
+		assertEquals("ERROR", line());
+		send("set k 0 0 x\r\n");
+		assertEquals("CLIENT_ERROR bad command line format", line());
+		send("get k\r\n");
+		assertEquals("VALUE k 0 1", line());
+	}
+
+	/** a command and its data may arrive over several reads */
+	public void testSplitAndLargeValues() throws Exception {
+		byte[] value = new byte[100000];
+		Arrays.fill(value, (byte) 'v');
+		send("set big 0 0 " + value.length + "\r\n");
+		out.write(value, 0, 50000);
+		out.flush();
+		Thread.sleep(50);
+		out.write(value, 50000, 50000);
+		send("\r\n");
+		assertEquals("STORED", line());
+		send("get big\r\n");
+		assertEquals("VALUE big 0 100000", line());
+		assertEquals(new String(value, "US-ASCII"), line());
+		assertEquals("END", line());
+	}
+
+	public void testVersionProbe() throws IOException {
+		MemCachedRouter.VersionProbe probe = new MemCachedRouter.VersionProbe(
+				1000);
+		assertTrue(probe.isAlive(server.address()));
+		server.stop();
+		assertFalse(probe.isAlive(server.address()));
+	}
+
+	public void testQuit() throws IOException {
+		send("quit\r\n");
+		assertEquals(-1, in.read());
+	}
+
+	private void send(String s) throws IOException {
+		out.write(s.getBytes("US-ASCII"));
+		out.flush();
+	}
+
+	private String line() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0) {
+				throw new IOException("closed by the server");
+			}
+			if (c != '\r') {
+				line.write(c);
+			}
+		}
+		return line.toString("US-ASCII");
+	}
+
+}
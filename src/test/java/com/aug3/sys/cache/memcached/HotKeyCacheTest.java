@@ -0,0 +1,113 @@
+package com.aug3.sys.cache.memcached;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import com.aug3.sys.cache.HotKeyDetector;
+
+/**
+ * Tests for the hot key cache, with a map standing in for memcached
+ *
+ *
+ */
+public class HotKeyCacheTest extends TestCase {
+
+	private NearCacheTest.RemoteCache remote;
+	private HotKeyCache<String> cache;
+
+	protected void setUp() {
+		remote = new NearCacheTest.RemoteCache();
+		// hot from the third read, counting every read
+		cache = new HotKeyCache<String>(remote, new HotKeyDetector(64, 10000,
+				10, 1, 3, 4), 60000);
+	}
+
+	public void testHotKeysAreReplicated() {
+		remote.map.put("a", "one");
+		remote.map.put("b", "two");
+		for (int i = 0; i < 10; i++) {
+			assertEquals("one", cache.get("a"));
+		}
+		assertEquals("two", cache.get("b"));
+		// two reads before it got hot, one to fill the replica
+		assertEquals(4, remote.gets);
+		assertEquals(7, cache.getReplicaHitCount());
+		assertEquals(Arrays.asList("a"), Arrays.asList(cache.getHotKeys()
+				.keySet().toArray()));
+		assertEquals(7, cache.getStats().getHitCount());
+	}
+
+	public void testColdKeysGoToRemote() {
+		remote.map.put("a", "one");
+		cache.get("a");
+		cache.get("a");
+		assertEquals(2, remote.gets);
+		assertEquals(0, cache.getReplicaHitCount());
+	}
+
+	public void testWritesUpdateReplica() {
+		remote.map.put("a", "one");
+		for (int i = 0; i < 3; i++) {
+			cache.get("a");
+		}
+		cache.put("a", "uno");
+		assertEquals("uno", remote.map.get("a"));
+		assertEquals("uno", cache.get("a"));
+		cache.remove("a");
+		assertNull(cache.get("a"));
+		assertFalse(cache.containsKey("a"));
+	}
+
+	public void testReplicaExpires() throws Exception {
+		cache = new HotKeyCache<String>(remote, new HotKeyDetector(64, 10000,
+				10, 1, 1, 4), 50);
+		remote.map.put("a", "one");
+		cache.get("a");
+		remote.map.put("a", "uno");
+		assertEquals("one", cache.get("a"));
+		Thread.sleep(100);
+		assertEquals("uno", cache.get("a"));
+	}
+
+	public void testGetAll() {
+		remote.map.put("a", "one");
+		remote.map.put("b", "two");
+		for (int i = 0; i < 3; i++) {
+			cache.get("a");
+		}
+		Map<String, String> values = cache.getAll(Arrays.asList("a", "b",
+				"c"));
+		assertEquals(2, values.size());
+		assertEquals("one", values.get("a"));
+		assertEquals("two", values.get("b"));
+		assertEquals(1, remote.bulkGets);
+		assertEquals(1, cache.getReplicaHitCount());
+	}
+
+	public void testMBean() throws Exception {
+		remote.map.put("a", "one");
+		for (int i = 0; i < 5; i++) {
+			cache.get("a");
+		}
+		HotKeyMgr.register("test", cache);
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = HotKeyMgr.objectName("test");
+			String[] hotKeys = (String[]) server.getAttribute(name, "HotKeys");
+			assertEquals(1, hotKeys.length);
+			assertEquals("a=5", hotKeys[0]);
+			assertEquals(10L, server.getAttribute(name, "WindowSeconds"));
+			server.invoke(name, "clearHotKeys", null, null);
+			assertEquals(0, server.getAttribute(name, "HotKeyCount"));
+		} finally {
+			HotKeyMgr.unregister("test");
+		}
+	}
+
+}
@@ -1,22 +1,57 @@
 package com.aug3.sys.cache.memcached;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import junit.framework.Assert;
 
+import org.junit.After;
 import org.junit.Before;
-import org.junit.Ignore;
+import org.junit.Test;
 
+import com.aug3.sys.CommonRuntimeException;
+import com.aug3.sys.cache.codec.CompactCodec;
 import com.aug3.sys.cache.memcached.MemCachedAdapter;
+import com.danga.MemCached.SockIOPool;
 
-@Ignore
 public class MemCachedAdapterTest {
 
+	private EmbeddedMemCachedServer first;
+	private EmbeddedMemCachedServer second;
+	private MemCachedRouter router;
+
 	MemCachedAdapter<String> cache;
 
 	@Before
 	public void setUp() throws Exception {
-		cache = new MemCachedAdapter<String>();
+		first = new EmbeddedMemCachedServer();
+		first.start(0);
+		second = new EmbeddedMemCachedServer();
+		second.start(0);
+		router = new MemCachedRouter(new String[] { first.address(),
+				second.address() }, null);
+		for (String server : router.getServers()) {
+			SockIOPool pool = SockIOPool.getInstance(MemCachedPoolMgr
+					.poolName(server));
+			pool.setServers(new String[] { server });
+			pool.setFailover(false);
+			pool.initialize();
+		}
+		cache = new MemCachedAdapter<String>(router, false, null);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (String server : router.getServers()) {
+			SockIOPool.getInstance(MemCachedPoolMgr.poolName(server))
+					.shutDown();
+		}
+		first.stop();
+		second.stop();
 	}
 
+	@Test
 	public void testCache() {
 		cache.put("junit:test", "value");
 		Assert.assertTrue(cache.containsKey("junit:test"));
@@ -26,20 +61,135 @@ public class MemCachedAdapterTest {
 
 	}
 
+	@Test
 	public void testExpire() {
-		cache.set("junit:test:expire", "value1", 10);
+		cache.set("junit:test:expired", "value", 1);
+		cache.set("junit:test:expire", "value1", 2);
 		Assert.assertTrue(cache.containsKey("junit:test:expire"));
 		Assert.assertEquals("value1", cache.get("junit:test:expire"));
 		try {
-			Thread.sleep(5000);
+			Thread.sleep(1000);
 		} catch (InterruptedException e) {
 		}
 		cache.set("junit:test:expire", "value2");
 		try {
-			Thread.sleep(15000);
+			Thread.sleep(2000);
 		} catch (InterruptedException e) {
 		}
 		Assert.assertEquals("value2", cache.get("junit:test:expire"));
+		Assert.assertNull(cache.get("junit:test:expired"));
+	}
+
+	@Test
+	public void testPreviousValue() {
+		Assert.assertNull(cache.put("junit:test:previous", "value1"));
+		Assert.assertNull(cache.put("junit:test:previous", "value2"));
+
+		MemCachedAdapter<String> returning = new MemCachedAdapter<String>(
+				router, true, null);
+		Assert.assertEquals("value2", returning.put("junit:test:previous",
+				"value3"));
+		Assert.assertEquals("value3", returning.remove("junit:test:previous"));
+		Assert.assertNull(returning.remove("junit:test:previous"));
+		Assert.assertFalse(cache.delete("junit:test:previous"));
+		Assert.assertNull(returning.put("junit:test:previous", "value4"));
+		Assert.assertTrue(cache.delete("junit:test:previous"));
+	}
+
+	@Test
+	public void testCompute() {
+		CasCache.Updater<String> append = new CasCache.Updater<String>() {
+			public String update(String current) {
+				return current == null ? "x" : current + "x";
+			}
+		};
+		Assert.assertEquals("x", cache.compute("junit:test:compute", append));
+		Assert.assertEquals("xx", cache.compute("junit:test:compute", append));
+		Assert.assertEquals("xx", cache.get("junit:test:compute"));
+		Assert.assertNull(cache.compute("junit:test:compute",
+				new CasCache.Updater<String>() {
+					public String update(String current) {
+						return null;
+					}
+				}));
+		Assert.assertNull(cache.get("junit:test:compute"));
+	}
+
+	@Test
+	public void testMergeAndPutIfAbsent() {
+		CasCache.Merger<String> concat = new CasCache.Merger<String>() {
+			public String merge(String current, String value) {
+				return current + value;
+			}
+		};
+		Assert.assertEquals("1", cache.merge("junit:test:merge", "1", concat));
+		Assert.assertEquals("12", cache.merge("junit:test:merge", "2", concat));
+		Assert.assertEquals("12", cache.putIfAbsent("junit:test:merge", "3"));
+		Assert.assertNull(cache.putIfAbsent("junit:test:absent", "3"));
+		Assert.assertEquals("3", cache.get("junit:test:absent"));
+	}
+
+	/** with a codec, the updates store and read its byte arrays */
+	@Test
+	public void testComputeWithCodec() {
+		MemCachedAdapter<String> encoding = new MemCachedAdapter<String>(
+				router, false, new CompactCodec<String>());
+		Assert.assertNull(encoding.putIfAbsent("junit:test:codec", "1"));
+		Assert.assertEquals("12", encoding.compute("junit:test:codec",
+				new CasCache.Updater<String>() {
+					public String update(String current) {
+						return current + "2";
+					}
+				}));
+		Assert.assertEquals("12", encoding.get("junit:test:codec"));
+	}
+
+	/** the updates fail at once when no server is available for the key */
+	@Test
+	public void testUpdateWithoutServer() {
+		for (String server : router.getServers()) {
+			router.eject(server);
+		}
+		try {
+			cache.putIfAbsent("junit:test:down", "1");
+			Assert.fail("updated without a server");
+		} catch (CommonRuntimeException e) {
+			// expected
+		}
+		Assert.assertNull(cache.get("junit:test:down"));
+	}
+
+	/** without a codec, the nio adapter shares the values of this one */
+	@Test
+	public void testSharesValuesWithNioAdapter() {
+		MemCachedAdapter<Object> danga = new MemCachedAdapter<Object>(router,
+				false, null);
+		NioMemCachedClient client = new NioMemCachedClient(new String[] {
+				first.address(), second.address() }, null, 1, 1, 1000);
+		try {
+			NioMemCachedAdapter<Object> nio = new NioMemCachedAdapter<Object>(
+					client, null);
+			List<String> list = new ArrayList<String>(Arrays.asList("a", "b"));
+			Object[] values = { "value", Integer.valueOf(42), list };
+			for (int i = 0; i < values.length; i++) {
+				danga.put("junit:test:danga:" + i, values[i]);
+				Assert.assertEquals(values[i], nio.get("junit:test:danga:" + i));
+				nio.put("junit:test:nio:" + i, values[i]);
+				Assert.assertEquals(values[i], danga.get("junit:test:nio:" + i));
+			}
+			Assert.assertEquals(2, nio.getAll(
+					Arrays.asList("junit:test:danga:0", "junit:test:danga:1"))
+					.size());
+			Assert.assertEquals("value!", nio.compute("junit:test:danga:0",
+					new CasCache.Updater<Object>() {
+						public Object update(Object current) {
+							return current + "!";
+						}
+					}));
+			Assert.assertEquals("value!", danga.get("junit:test:danga:0"));
+		} finally {
+			client.close();
+		}
 	}
 
 }
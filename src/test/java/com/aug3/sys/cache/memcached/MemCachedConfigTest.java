@@ -1,10 +1,17 @@
 package com.aug3.sys.cache.memcached;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
 import junit.framework.Assert;
 
 import org.junit.Before;
-import org.junit.Ignore;
+import org.junit.Test;
 
+import com.aug3.sys.cache.codec.CompactCodec;
+import com.aug3.sys.cache.codec.ValueCodec;
 import com.aug3.sys.cache.memcached.MemCachedConfig;
 
 /**
@@ -13,7 +20,6 @@ import com.aug3.sys.cache.memcached.MemCachedConfig;
  * 
  * 
  */
-@Ignore
 public class MemCachedConfigTest {
 
 	private MemCachedConfig config;
@@ -38,4 +44,28 @@ public class MemCachedConfigTest {
 		Assert.assertEquals(1, (int) weights[0]);
 	}
 
+	/** the values stored survive a change of the compression algorithm */
+	@Test
+	public void testSwitchingCompressionReadsOldValues() {
+		Map<String, String> value = new HashMap<String, String>();
+		for (int i = 0; i < 100; i++) {
+			value.put("key" + i, "a value compressed well, " + i);
+		}
+		for (String from : Arrays.asList("none", "deflate", "lzf")) {
+			byte[] stored = codecOf(from).encode(value);
+			for (String to : Arrays.asList("none", "deflate", "lzf")) {
+				Assert.assertEquals(from + " read with " + to, value, codecOf(
+						to).decode(stored));
+			}
+		}
+	}
+
+	private static ValueCodec<Object> codecOf(String algorithm) {
+		Properties props = new Properties();
+		props.setProperty("memcached.codec", CompactCodec.class.getName());
+		props.setProperty("memcached.compress.algorithm", algorithm);
+		props.setProperty("memcached.compress.threshold", "64");
+		return new MemCachedConfig(props).createCodec();
+	}
+
 }
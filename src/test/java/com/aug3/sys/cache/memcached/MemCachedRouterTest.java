@@ -0,0 +1,219 @@
+package com.aug3.sys.cache.memcached;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the consistent-hash routing of memcached keys and the ejection
+ * of dead servers
+ * 
+ * 
+ */
+public class MemCachedRouterTest extends TestCase {
+
+	private static final String[] SERVERS = { "10.0.0.1:11211",
+			"10.0.0.2:11211", "10.0.0.3:11211", "10.0.0.4:11211" };
+	private static final int KEYS = 20000;
+
+	public void testKnownHash() {
+		// the first 4 bytes of MD5("") are d4 1d 8c d9, read little-endian
+		assertEquals(0xd98c1dd4L, MemCachedRouter.hash(""));
+	}
+
+	public void testEvenDistribution() {
+		MemCachedRouter router = new MemCachedRouter(SERVERS, null);
+		Map<String, Integer> counts = count(router);
+		for (String server : SERVERS) {
+			int count = counts.get(server);
+			assertTrue(server + " got " + count, count > KEYS / 4 * 0.8
+					&& count < KEYS / 4 * 1.2);
+		}
+	}
+
+	public void testWeights() {
+		MemCachedRouter router = new MemCachedRouter(new String[] {
+				SERVERS[0], SERVERS[1] }, new Integer[] { 1, 3 });
+		Map<String, Integer> counts = count(router);
+		double share = counts.get(SERVERS[1]) / (double) KEYS;
+		assertTrue("share " + share, share > 0.68 && share < 0.82);
+	}
+
+	/** only the keys of an ejected server move, and come back on rejoin */
+	public void testEjectMovesOnlyItsKeys() {
+		MemCachedRouter router = new MemCachedRouter(SERVERS, null);
+		Map<String, String> before = routes(router);
+		router.eject(SERVERS[2]);
+		assertEquals(3, router.getLiveServers().size());
+		Map<String, String> after = routes(router);
+		for (Map.Entry<String, String> e : before.entrySet()) {
+			String server = after.get(e.getKey());
+			assertFalse(SERVERS[2].equals(server));
+			if (!SERVERS[2].equals(e.getValue())) {
+				assertEquals(e.getValue(), server);
+			}
+		}
+		router.rejoin(SERVERS[2]);
+		assertEquals(before, routes(router));
+	}
+
+	/** adding a server moves about 1/n of the keys, all to the new server */
+	public void testAddingServerMovesFewKeys() {
+		Map<String, String> before = routes(new MemCachedRouter(Arrays
+				.copyOf(SERVERS, 3), null));
+		Map<String, String> after = routes(new MemCachedRouter(SERVERS, null));
+		int moved = 0;
+		for (Map.Entry<String, String> e : before.entrySet()) {
+			String server = after.get(e.getKey());
+			if (!server.equals(e.getValue())) {
+				assertEquals(SERVERS[3], server);
+				moved++;
+			}
+		}
+		assertTrue("moved " + moved, moved > KEYS / 4 * 0.8
+				&& moved < KEYS / 4 * 1.2);
+	}
+
+	public void testAllServersDown() {
+		MemCachedRouter router = new MemCachedRouter(new String[] {
+				SERVERS[0], SERVERS[1] }, null);
+		router.eject(SERVERS[0]);
+		router.eject(SERVERS[1]);
+		assertNull(router.route("key"));
+		assertTrue(router.routeAll(Arrays.asList("a", "b")).isEmpty());
+	}
+
+	public void testRouteAll() {
+		MemCachedRouter router = new MemCachedRouter(SERVERS, null);
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 100; i++) {
+			keys.add("key" + i);
+		}
+		int total = 0;
+		for (Map.Entry<String, List<String>> e : router.routeAll(keys)
+				.entrySet()) {
+			for (String key : e.getValue()) {
+				assertEquals(e.getKey(), router.route(key));
+			}
+			total += e.getValue().size();
+		}
+		assertEquals(100, total);
+	}
+
+	/** a stand-in server that stops answering is ejected, then rejoins */
+	public void testHealthChecks() throws Exception {
+		StandInServer up = new StandInServer();
+		StandInServer flaky = new StandInServer();
+		MemCachedRouter router = new MemCachedRouter(new String[] {
+				up.address(), flaky.address() }, null);
+		try {
+			router.startHealthChecks(new MemCachedRouter.VersionProbe(500),
+					20, 2);
+			flaky.answering = false;
+			assertTrue(waitFor(router, 1));
+			assertEquals(Arrays.asList(up.address()), router
+					.getLiveServers());
+			assertEquals(up.address(), router.route("any key"));
+			flaky.answering = true;
+			assertTrue(waitFor(router, 2));
+		} finally {
+			router.stopHealthChecks();
+			up.close();
+			flaky.close();
+		}
+	}
+
+	public void testVersionProbe() throws Exception {
+		StandInServer server = new StandInServer();
+		MemCachedRouter.Probe probe = new MemCachedRouter.VersionProbe(500);
+		try {
+			assertTrue(probe.isAlive(server.address()));
+			server.answering = false;
+			assertFalse(probe.isAlive(server.address()));
+		} finally {
+			server.close();
+		}
+		assertFalse(probe.isAlive(server.address()));
+	}
+
+	private static boolean waitFor(MemCachedRouter router, int live)
+			throws InterruptedException {
+		for (int i = 0; i < 200; i++) {
+			if (router.getLiveServers().size() == live) {
+				return true;
+			}
+			Thread.sleep(10);
+		}
+		return false;
+	}
+
+	private static Map<String, String> routes(MemCachedRouter router) {
+		Map<String, String> routes = new HashMap<String, String>();
+		for (int i = 0; i < KEYS; i++) {
+			routes.put("key" + i, router.route("key" + i));
+		}
+		return routes;
+	}
+
+	private static Map<String, Integer> count(MemCachedRouter router) {
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (String server : routes(router).values()) {
+			Integer count = counts.get(server);
+			counts.put(server, count == null ? 1 : count + 1);
+		}
+		return counts;
+	}
+
+	/**
+	 * Answers the version command, or closes the connection without
+	 * answering when it is told to fail.
+	 */
+	private static class StandInServer extends Thread {
+
+		private final ServerSocket socket;
+		volatile boolean answering = true;
+
+		StandInServer() throws IOException {
+			socket = new ServerSocket(0);
+			setDaemon(true);
+			start();
+		}
+
+		String address() {
+			return "127.0.0.1:" + socket.getLocalPort();
+		}
+
+		public void run() {
+			while (!socket.isClosed()) {
+				try {
+					Socket client = socket.accept();
+					try {
+						if (answering) {
+							client.getInputStream().read(new byte[64]);
+							OutputStream out = client.getOutputStream();
+							out.write("VERSION 1.4.0\r\n".getBytes("US-ASCII"));
+							out.flush();
+						}
+					} finally {
+						client.close();
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+
+}
@@ -0,0 +1,226 @@
+package com.aug3.sys.cache.memcached;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.aug3.sys.cache.AbstractCache;
+import com.aug3.sys.cfg.UpdateNotification;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the near cache, with a map standing in for memcached
+ *
+ *
+ */
+public class NearCacheTest extends TestCase {
+
+	private RemoteCache remote;
+	private NearCache<String> cache;
+
+	protected void setUp() {
+		remote = new RemoteCache();
+		cache = new NearCache<String>(remote, 10, 60000);
+	}
+
+	public void testLocalTierServesRepeatedReads() {
+		remote.map.put("a", "one");
+		assertEquals("one", cache.get("a"));
+		assertEquals("one", cache.get("a"));
+		assertEquals("one", cache.get("a"));
+		assertEquals(1, remote.gets);
+		assertEquals(2, cache.getLocalHitCount());
+		assertEquals(1, cache.getRemoteHitCount());
+		assertEquals(2.0 / 3, cache.getLocalHitRate(), 0.001);
+		assertEquals(1.0, cache.getRemoteHitRate(), 0.001);
+	}
+
+	public void testMissesAreCounted() {
+		assertNull(cache.get("a"));
+		assertEquals(1, cache.getMissCount());
+		assertEquals(0.0, cache.getRemoteHitRate(), 0.001);
+	}
+
+	public void testWritesGoThrough() {
+		cache.put("a", "one");
+		assertEquals("one", remote.map.get("a"));
+		assertEquals("one", cache.get("a"));
+		assertEquals(0, remote.gets);
+		cache.remove("a");
+		assertNull(remote.map.get("a"));
+		assertNull(cache.get("a"));
+	}
+
+	public void testLocalCopyExpires() throws Exception {
+		cache = new NearCache<String>(remote, 10, 50);
+		remote.map.put("a", "one");
+		cache.get("a");
+		remote.map.put("a", "uno");
+		assertEquals("one", cache.get("a"));
+		Thread.sleep(100);
+		assertEquals("uno", cache.get("a"));
+	}
+
+	public void testNotificationInvalidates() {
+		remote.map.put("a", "one");
+		remote.map.put("b", "two");
+		cache.get("a");
+		cache.get("b");
+		remote.map.put("a", "uno");
+		remote.map.put("b", "dos");
+
+		UpdateNotification notification = new UpdateNotification();
+		notification.setCustomStrVal1("a");
+		cache.onNotification(notification);
+		assertEquals("uno", cache.get("a"));
+		assertEquals("two", cache.get("b"));
+
+		cache.onNotification(new UpdateNotification());
+		assertEquals("dos", cache.get("b"));
+	}
+
+	/** a write through one near cache invalidates the others of the process */
+	public void testOtherInstanceInvalidated() {
+		NearCache<String> other = new NearCache<String>(remote, 10, 60000);
+		remote.map.put("a", "one");
+		other.get("a");
+		cache.put("a", "uno");
+		NearCache.dispatch(cache.invalidation("a"));
+		assertEquals("uno", cache.get("a"));
+		assertEquals("uno", other.get("a"));
+		// the writer kept its copy, the other fetched the key again
+		assertEquals(2, remote.gets);
+	}
+
+	/** the callback does not keep the near caches no longer used */
+	public void testUnusedInstanceCollected() throws Exception {
+		int before = NearCache.listenerCount();
+		new NearCache<String>(remote, 10, 60000);
+		assertEquals(before + 1, NearCache.listenerCount());
+		for (int i = 0; i < 20 && NearCache.listenerCount() > before; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertTrue(NearCache.listenerCount() <= before);
+	}
+
+	/** keys missing locally are fetched from the remote cache in one call */
+	public void testGetAll() {
+		remote.map.put("a", "one");
+		remote.map.put("b", "two");
+		cache.get("a");
+		Map<String, String> values = cache.getAll(Arrays.asList("a", "b",
+				"c"));
+		assertEquals(2, values.size());
+		assertEquals("two", values.get("b"));
+		assertEquals(1, remote.gets);
+		assertEquals(1, remote.bulkGets);
+		assertEquals(1, cache.getLocalHitCount());
+		assertEquals(2, cache.getRemoteHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals("two", cache.get("b"));
+		assertEquals(1, remote.bulkGets);
+	}
+
+	public void testComputeUpdatesLocalCopy() {
+		CasRemoteCache casRemote = new CasRemoteCache();
+		cache = new NearCache<String>(casRemote, 10, 60000);
+		casRemote.map.put("a", "one");
+		assertEquals("one!", cache.compute("a",
+				new CasCache.Updater<String>() {
+					public String update(String current) {
+						return current + "!";
+					}
+				}));
+		assertEquals("one!", casRemote.map.get("a"));
+		assertEquals("one!", cache.get("a"));
+		assertEquals(0, casRemote.gets);
+		assertEquals("one!", cache.putIfAbsent("a", "two"));
+		assertNull(cache.putIfAbsent("b", "two"));
+		assertEquals("two", cache.get("b"));
+		assertEquals(0, casRemote.gets);
+	}
+
+	public void testComputeNeedsCasRemote() {
+		try {
+			cache.putIfAbsent("a", "one");
+			fail("the remote cache has no atomic updates");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	static class CasRemoteCache extends RemoteCache implements
+			CasCache<String> {
+
+		public synchronized String compute(String key,
+				Updater<String> updater) {
+			String value = updater.update(map.get(key));
+			if (value == null) {
+				map.remove(key);
+			} else {
+				map.put(key, value);
+			}
+			return value;
+		}
+
+		public synchronized String merge(String key, final String value,
+				final Merger<String> merger) {
+			return compute(key, new Updater<String>() {
+				public String update(String current) {
+					return current == null ? value : merger.merge(current,
+							value);
+				}
+			});
+		}
+
+		public synchronized String putIfAbsent(String key, String value) {
+			String current = map.get(key);
+			if (current == null) {
+				map.put(key, value);
+			}
+			return current;
+		}
+	}
+
+	static class RemoteCache extends AbstractCache<String, String> {
+		final Map<String, String> map = new HashMap<String, String>();
+		int gets;
+		int bulkGets;
+
+		public Map<String, String> getAll(Collection<? extends String> keys) {
+			bulkGets++;
+			Map<String, String> values = new HashMap<String, String>();
+			for (String key : keys) {
+				if (map.containsKey(key)) {
+					values.put(key, map.get(key));
+				}
+			}
+			return values;
+		}
+
+		public String get(String key) {
+			gets++;
+			return map.get(key);
+		}
+
+		public String put(String key, String value) {
+			return map.put(key, value);
+		}
+
+		public String remove(String key) {
+			return map.remove(key);
+		}
+
+		public boolean containsKey(String key) {
+			return map.containsKey(key);
+		}
+
+		public void flush() {
+			map.clear();
+		}
+	}
+
+}
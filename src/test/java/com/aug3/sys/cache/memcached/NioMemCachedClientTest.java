@@ -0,0 +1,385 @@
+package com.aug3.sys.cache.memcached;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import com.aug3.sys.cache.codec.CompactCodec;
+import com.aug3.sys.cache.memcached.MemCachedConnection.CommandOp;
+import com.aug3.sys.cache.memcached.MemCachedConnection.GetOp;
+import com.aug3.sys.cache.memcached.MemCachedConnection.Op;
+import com.aug3.sys.cache.memcached.MemCachedConnection.Reply;
+import com.aug3.sys.util.ObjectIO;
+import com.danga.MemCached.MemCachedClient;
+import com.danga.MemCached.SockIOPool;
+
+/**
+ * Tests for the non-blocking memcached client and its adapter, against
+ * embedded servers
+ *
+ *
+ */
+public class NioMemCachedClientTest extends TestCase {
+
+	private EmbeddedMemCachedServer first;
+	private EmbeddedMemCachedServer second;
+	private NioMemCachedClient client;
+	private NioMemCachedAdapter<String> cache;
+
+	@Override
+	protected void setUp() throws Exception {
+		first = new EmbeddedMemCachedServer();
+		first.start(0);
+		second = new EmbeddedMemCachedServer();
+		second.start(0);
+		client = new NioMemCachedClient(new String[] { first.address(),
+				second.address() }, null, 2, 1, 1000);
+		cache = new NioMemCachedAdapter<String>(client,
+				new CompactCodec<String>());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		client.close();
+		first.stop();
+		second.stop();
+	}
+
+	public void testPutGetRemove() {
+		assertNull(cache.get("a"));
+		cache.put("a", "1");
+		assertEquals("1", cache.get("a"));
+		assertTrue(cache.containsKey("a"));
+		cache.remove("a");
+		assertNull(cache.get("a"));
+		assertFalse(cache.delete("a"));
+		assertEquals(1, cache.getStats().getHitCount());
+		assertEquals(2, cache.getStats().getMissCount());
+	}
+
+	public void testKeysNeedingEncoding() {
+		cache.put("a key with spaces\r\n", "1");
+		assertEquals("1", cache.get("a key with spaces\r\n"));
+	}
+
+	public void testBulkOperationsSpanServers() {
+		Map<String, String> values = new HashMap<String, String>();
+		for (int i = 0; i < 200; i++) {
+			values.put("k" + i, "v" + i);
+		}
+		cache.putAll(values);
+		List<String> keys = new ArrayList<String>(values.keySet());
+		keys.add("missing");
+		assertEquals(values, cache.getAll(keys));
+		assertEquals(2, client.getRouter().getLiveServers().size());
+
+		cache.removeAll(values.keySet());
+		assertTrue(cache.getAll(keys).isEmpty());
+	}
+
+	public void testFlush() {
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.flush();
+		assertNull(cache.get("a"));
+		assertNull(cache.get("b"));
+	}
+
+	public void testLargeValue() {
+		char[] chars = new char[300000];
+		Arrays.fill(chars, 'x');
+		String large = new String(chars);
+		cache.put("large", large);
+		assertEquals(large, cache.get("large"));
+	}
+
+	/** many threads reading at once share the connections */
+	public void testConcurrentGets() throws Exception {
+		cache.put("shared", "value");
+		final List<String> results = new ArrayList<String>();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					List<Future<String>> futures = new ArrayList<Future<String>>();
+					for (int j = 0; j < 200; j++) {
+						futures.add(cache.getAsync("shared"));
+					}
+					try {
+						for (Future<String> future : futures) {
+							String value = future.get(5, TimeUnit.SECONDS);
+							synchronized (results) {
+								results.add(value);
+							}
+						}
+					} catch (Exception e) {
+						fail(e.toString());
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(1600, results.size());
+		for (String value : results) {
+			assertEquals("value", value);
+		}
+	}
+
+	public void testAsync() throws Exception {
+		Future<Boolean> set = cache.setAsync("a", "1", 60);
+		assertTrue(set.get(1, TimeUnit.SECONDS));
+		assertEquals("1", cache.getAsync("a").get(1, TimeUnit.SECONDS));
+		assertEquals(1, cache.getAllAsync(Arrays.asList("a", "b")).get(1,
+				TimeUnit.SECONDS).size());
+		assertTrue(cache.deleteAsync("a").get(1, TimeUnit.SECONDS));
+	}
+
+	public void testGetsAndCas() throws Exception {
+		assertNull(client.gets("a").get(1, TimeUnit.SECONDS));
+		assertTrue(client.add("a", new byte[] { 1 }, 0).get(1,
+				TimeUnit.SECONDS));
+		assertFalse(client.add("a", new byte[] { 2 }, 0).get(1,
+				TimeUnit.SECONDS));
+		CasValue<byte[]> read = client.gets("a").get(1, TimeUnit.SECONDS);
+		assertTrue(Arrays.equals(new byte[] { 1 }, read.getValue()));
+		assertTrue(client.cas("a", new byte[] { 3 }, read.getCas(), 0).get(1,
+				TimeUnit.SECONDS));
+		// changed since it was read
+		assertFalse(client.cas("a", new byte[] { 4 }, read.getCas(), 0).get(
+				1, TimeUnit.SECONDS));
+		assertTrue(Arrays.equals(new byte[] { 3 }, client.get("a").get(1,
+				TimeUnit.SECONDS)));
+	}
+
+	public void testCompute() {
+		CasCache.Updater<String> append = new CasCache.Updater<String>() {
+			public String update(String current) {
+				return current == null ? "x" : current + "x";
+			}
+		};
+		assertEquals("x", cache.compute("a", append));
+		assertEquals("xx", cache.compute("a", append));
+		assertEquals("xx", cache.get("a"));
+		assertNull(cache.compute("a", new CasCache.Updater<String>() {
+			public String update(String current) {
+				return null;
+			}
+		}));
+		assertNull(cache.get("a"));
+	}
+
+	public void testMergeAndPutIfAbsent() {
+		CasCache.Merger<String> concat = new CasCache.Merger<String>() {
+			public String merge(String current, String value) {
+				return current + value;
+			}
+		};
+		assertEquals("1", cache.merge("a", "1", concat));
+		assertEquals("12", cache.merge("a", "2", concat));
+		assertEquals("12", cache.putIfAbsent("a", "3"));
+		assertNull(cache.putIfAbsent("b", "3"));
+		assertEquals("3", cache.get("b"));
+	}
+
+	/** without a codec, the updates use the serialization too */
+	public void testComputeWithoutCodec() {
+		NioMemCachedAdapter<String> serializing = new NioMemCachedAdapter<String>(
+				client, null);
+		assertNull(serializing.putIfAbsent("a", "1"));
+		assertEquals("12", serializing.compute("a",
+				new CasCache.Updater<String>() {
+					public String update(String current) {
+						return current + "2";
+					}
+				}));
+		assertEquals("12", serializing.get("a"));
+	}
+
+	/** concurrent increments of one key are all kept */
+	public void testConcurrentComputeLosesNoUpdate() throws Exception {
+		final CasCache.Updater<String> increment = new CasCache.Updater<String>() {
+			public String update(String current) {
+				return String.valueOf(current == null ? 1 : Integer
+						.parseInt(current) + 1);
+			}
+		};
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						for (int j = 0; j < 50; j++) {
+							cache.compute("counter", increment);
+						}
+					} catch (Throwable e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals("[]", failures.toString());
+		assertEquals("400", cache.get("counter"));
+	}
+
+	/** runs of gets are merged, without moving them across other commands */
+	public void testCoalesce() {
+		Queue<Op<?>> pending = new LinkedList<Op<?>>();
+		pending.add(new GetOp("a", false));
+		pending.add(new GetOp("b", false));
+		pending.add(new GetOp("a", false));
+		pending.add(new CommandOp("delete a", null, "DELETED"));
+		pending.add(new GetOp("a", false));
+		pending.add(new GetOp("c", false));
+		pending.add(new GetOp("d", false));
+		List<Reply> replies = MemCachedConnection.coalesce(pending, 2);
+		assertTrue(pending.isEmpty());
+		assertEquals(5, replies.size());
+		assertEquals("a b", ((MemCachedConnection.Batch) replies.get(0))
+				.keys());
+		assertEquals("a", ((MemCachedConnection.Batch) replies.get(1))
+				.keys());
+		assertTrue(replies.get(2) instanceof CommandOp);
+		assertEquals("a c", ((MemCachedConnection.Batch) replies.get(3))
+				.keys());
+		assertEquals("d", ((MemCachedConnection.Batch) replies.get(4))
+				.keys());
+	}
+
+	/**
+	 * The danga client, with one pool per server and the keys routed as
+	 * <code>MemCachedAdapter</code> routes them, and the nio client read the
+	 * values of each other, keys needing encoding included.
+	 */
+	public void testSharesValuesWithDangaClient() throws Exception {
+		MemCachedRouter router = new MemCachedRouter(new String[] {
+				first.address(), second.address() }, null);
+		Map<String, MemCachedClient> danga = new HashMap<String, MemCachedClient>();
+		for (String server : router.getServers()) {
+			SockIOPool pool = SockIOPool.getInstance(MemCachedPoolMgr
+					.poolName(server));
+			pool.setServers(new String[] { server });
+			pool.setFailover(false);
+			pool.initialize();
+			danga.put(server, new MemCachedClient(MemCachedPoolMgr
+					.poolName(server)));
+		}
+		try {
+			for (int i = 0; i < 20; i++) {
+				String fromDanga = "app-props:name" + i + ":";
+				byte[] value = fromDanga.getBytes("UTF-8");
+				assertTrue(danga.get(router.route(fromDanga)).set(fromDanga,
+						value));
+				assertTrue(Arrays.equals(value, client.get(fromDanga).get(1,
+						TimeUnit.SECONDS)));
+
+				String fromNio = "type$$org" + i + "#key";
+				value = fromNio.getBytes("UTF-8");
+				assertTrue(client.set(fromNio, value, 0).get(1,
+						TimeUnit.SECONDS));
+				assertTrue(Arrays.equals(value, (byte[]) danga.get(
+						router.route(fromNio)).get(fromNio)));
+			}
+		} finally {
+			for (String server : router.getServers()) {
+				SockIOPool.getInstance(MemCachedPoolMgr.poolName(server))
+						.shutDown();
+			}
+		}
+	}
+
+	/** the values the danga client stored in its own formats read serialized */
+	public void testReadsDangaFormats() throws Exception {
+		byte[] number = { 0, 0, 0, 0, 0, 0, 1, 0 };
+		assertEquals(Long.valueOf(256), ObjectIO.fromByteArray(DangaFormat
+				.toSerialized(16384, number)));
+		ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(zipped);
+		out.write("value".getBytes("UTF-8"));
+		out.close();
+		assertEquals("value", ObjectIO.fromByteArray(DangaFormat.toSerialized(
+				32 | DangaFormat.COMPRESSED, zipped.toByteArray())));
+		byte[] serialized = ObjectIO.toByteArray(new ArrayList<String>());
+		assertSame(serialized, DangaFormat.toSerialized(DangaFormat.SERIALIZED,
+				serialized));
+		// corrupt data and unknown flags are misses
+		assertNull(DangaFormat.toSerialized(32 | DangaFormat.COMPRESSED,
+				number));
+		assertNull(DangaFormat.toSerialized(0, number));
+	}
+
+	public void testUnreachableServerFailsFast() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		NioMemCachedClient dead = new NioMemCachedClient(
+				new String[] { "127.0.0.1:" + port }, null, 1, 1, 1000);
+		try {
+			try {
+				dead.get("a").get(1, TimeUnit.SECONDS);
+				fail("the server is down");
+			} catch (ExecutionException e) {
+				// expected
+			}
+			long start = System.currentTimeMillis();
+			NioMemCachedAdapter<String> deadCache = new NioMemCachedAdapter<String>(
+					dead, null);
+			assertNull(deadCache.get("a"));
+			assertFalse(deadCache.set("a", "1"));
+			assertTrue(System.currentTimeMillis() - start < 500);
+		} finally {
+			dead.close();
+		}
+	}
+
+	public void testServerNotAnsweringTimesOut() throws Exception {
+		ServerSocket silent = new ServerSocket(0);
+		NioMemCachedClient slow = new NioMemCachedClient(
+				new String[] { "127.0.0.1:" + silent.getLocalPort() }, null,
+				1, 1, 200);
+		try {
+			NioMemCachedAdapter<String> slowCache = new NioMemCachedAdapter<String>(
+					slow, null);
+			long start = System.currentTimeMillis();
+			assertNull(slowCache.get("a"));
+			assertTrue(System.currentTimeMillis() - start < 1000);
+		} finally {
+			slow.close();
+			silent.close();
+		}
+	}
+
+	public void testServerDown() throws Exception {
+		cache.put("a", "1");
+		first.stop();
+		second.stop();
+		assertNull(cache.get("a"));
+		// all servers ejected
+		client.getRouter().eject(first.address());
+		client.getRouter().eject(second.address());
+		assertFalse(cache.set("a", "1"));
+		assertTrue(cache.getAll(Arrays.asList("a")).isEmpty());
+	}
+
+}
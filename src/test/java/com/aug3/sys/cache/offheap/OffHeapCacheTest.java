@@ -0,0 +1,141 @@
+package com.aug3.sys.cache.offheap;
+
+import java.io.File;
+import java.util.Properties;
+
+import com.aug3.sys.cache.codec.SerializingCodec;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the off-heap cache
+ *
+ *
+ */
+public class OffHeapCacheTest extends TestCase {
+
+	private File file;
+
+	protected void setUp() throws Exception {
+		file = File.createTempFile("offheap", ".cache");
+		file.delete();
+	}
+
+	protected void tearDown() {
+		file.delete();
+		new File(file.getPath() + ".index").delete();
+	}
+
+	public void testGetPutRemove() {
+		OffHeapCache<String> cache = newCache(10, 4096, null);
+		assertNull(cache.put("a", "one"));
+		assertEquals("one", cache.get("a"));
+		assertTrue(cache.containsKey("a"));
+		assertEquals("one", cache.put("a", "uno"));
+		assertEquals("uno", cache.get("a"));
+		assertEquals("uno", cache.remove("a"));
+		assertNull(cache.get("a"));
+		assertFalse(cache.containsKey("a"));
+		assertEquals(0, cache.usedBytes());
+	}
+
+	/** values spanning many blocks come back intact */
+	public void testLargeValue() {
+		OffHeapCache<Properties> cache = new OffHeapCache<Properties>(10,
+				1 << 20, 64, null, new SerializingCodec<Properties>());
+		Properties props = new Properties();
+		for (int i = 0; i < 500; i++) {
+			props.setProperty("key" + i, "value" + i);
+		}
+		cache.put("props", props);
+		assertEquals(props, cache.get("props"));
+		assertNotSame(props, cache.get("props"));
+	}
+
+	public void testCapacityLimit() {
+		OffHeapCache<String> cache = newCache(3, 4096, null);
+		cache.put("a", "one");
+		cache.put("b", "two");
+		cache.put("c", "three");
+		cache.get("a");
+		cache.put("d", "four");
+		assertEquals(3, cache.size());
+		assertEquals("one", cache.get("a"));
+		assertNull(cache.get("b"));
+	}
+
+	/** the least recently used entries make room when memory is full */
+	public void testMemoryLimit() {
+		OffHeapCache<String> cache = newCache(1000, 64 * 100, null);
+		for (int i = 0; i < 200; i++) {
+			cache.put("key" + i, "value" + i);
+		}
+		assertTrue(cache.size() < 200);
+		assertTrue(cache.usedBytes() <= cache.memory());
+		assertEquals("value199", cache.get("key199"));
+		assertNull(cache.get("key0"));
+	}
+
+	public void testValueLargerThanMemoryNotCached() {
+		OffHeapCache<String> cache = newCache(10, 64 * 2, null);
+		cache.put("a", "one");
+		cache.put("a", new String(new char[1000]));
+		assertFalse(cache.containsKey("a"));
+		assertEquals(0, cache.size());
+	}
+
+	public void testFlush() {
+		OffHeapCache<String> cache = newCache(10, 4096, null);
+		cache.put("a", "one");
+		cache.put("b", "two");
+		cache.flush();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.usedBytes());
+		assertNull(cache.get("a"));
+	}
+
+	public void testPersistence() {
+		OffHeapCache<String> cache = newCache(10, 4096, file);
+		cache.put("a", "one");
+		cache.put("b", "two");
+		cache.remove("b");
+		cache.close();
+		assertNull(cache.get("a"));
+
+		OffHeapCache<String> reopened = newCache(10, 4096, file);
+		assertEquals("one", reopened.get("a"));
+		assertNull(reopened.get("b"));
+		reopened.put("c", "three");
+		assertEquals("one", reopened.get("a"));
+		reopened.close();
+	}
+
+	/** as after a crash, a mapped cache without its index starts empty */
+	public void testNotClosedStartsEmpty() {
+		OffHeapCache<String> cache = newCache(10, 4096, file);
+		cache.put("a", "one");
+		cache.close();
+		new File(file.getPath() + ".index").delete();
+
+		OffHeapCache<String> reopened = newCache(10, 4096, file);
+		assertNull(reopened.get("a"));
+		reopened.close();
+	}
+
+	/** a file used by another cache is not shared */
+	public void testFileInUse() {
+		OffHeapCache<String> first = newCache(10, 4096, file);
+		OffHeapCache<String> second = newCache(10, 4096, file);
+		second.put("a", "two");
+		first.put("a", "one");
+		assertEquals("two", second.get("a"));
+		first.close();
+	}
+
+	private OffHeapCache<String> newCache(int capacity, long memory,
+			File file) {
+		return new OffHeapCache<String>(capacity, memory, 64, file,
+				new SerializingCodec<String>());
+	}
+
+}
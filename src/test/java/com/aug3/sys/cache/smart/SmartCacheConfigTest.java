@@ -1,8 +1,12 @@
 package com.aug3.sys.cache.smart;
 
+import java.io.File;
+import java.util.Properties;
+
 import junit.framework.TestCase;
 
-import com.aug3.sys.cache.LRUCache;
+import com.aug3.sys.cache.CacheSnapshot;
+import com.aug3.sys.cache.ConcurrentLRUCache;
 import com.aug3.sys.cache.MockICache;
 import com.aug3.sys.cache.smart.NullReader;
 import com.aug3.sys.cache.smart.SmartCacheConfig;
@@ -19,7 +23,7 @@ public class SmartCacheConfigTest extends TestCase {
 	private SmartCacheConfig<String> testee = new SmartCacheConfig<String>();
 
 	public void testGetDefaultICache() {
-		assertTrue(testee.getCache("undefined") instanceof LRUCache<?, ?>);
+		assertTrue(testee.getCache("undefined") instanceof ConcurrentLRUCache<?, ?>);
 	}
 
 	public void testGetDefaultReader() {
@@ -36,4 +40,58 @@ public class SmartCacheConfigTest extends TestCase {
 
 	}
 
+	public void testGetDefaultExpiryPolicy() {
+		assertSame(ExpiryPolicy.NONE, testee.getExpiryPolicy("undefined"));
+	}
+
+	public void testGetDefinedExpiryPolicy() {
+		Properties props = new Properties();
+		props.setProperty("scache.expire.write.timed", "600");
+		props.setProperty("scache.refresh.write.timed", "60");
+		ExpiryPolicy policy = new SmartCacheConfig<String>(props)
+				.getExpiryPolicy("timed");
+		assertEquals(600000, policy.getExpireAfterWrite());
+		assertEquals(0, policy.getExpireAfterAccess());
+		assertEquals(60000, policy.getRefreshAfterWrite());
+		assertEquals(0, policy.getExpireAbsentAfterWrite());
+	}
+
+	public void testGetAbsentPolicy() {
+		Properties props = new Properties();
+		props.setProperty("scache.expire.absent.tenants", "30");
+		props.setProperty("scache.absent.size.tenants", "50");
+		SmartCacheConfig<String> config = new SmartCacheConfig<String>(props);
+		assertEquals(30000, config.getExpiryPolicy("tenants")
+				.getExpireAbsentAfterWrite());
+		assertEquals(50, config.getAbsentCapacity("tenants"));
+		assertEquals(SmartCacheConfig.DEFAULT_ABSENT_SIZE, config
+				.getAbsentCapacity("undefined"));
+	}
+
+	public void testGetSnapshot() {
+		Properties props = new Properties();
+		props.setProperty("scache.snapshot.file.tenants", "/tmp/tenants.snap");
+		props.setProperty("scache.snapshot.interval.tenants", "60");
+		props.setProperty("scache.snapshot.stamp", "2.1");
+		SmartCacheConfig<String> config = new SmartCacheConfig<String>(props);
+		CacheSnapshot snapshot = config.getSnapshot("tenants");
+		assertEquals(new File("/tmp/tenants.snap"), snapshot.getFile());
+		assertEquals("2.1", snapshot.getStamp());
+		assertEquals(60000, config.getSnapshotInterval("tenants"));
+		assertNull(config.getSnapshot("undefined"));
+		assertEquals(0, config.getSnapshotInterval("undefined"));
+	}
+
+	public void testGetLoaderSettings() {
+		Properties props = new Properties();
+		props.setProperty("scache.load.timeout.tenants", "500");
+		props.setProperty("scache.loader.threads", "2");
+		SmartCacheConfig<String> config = new SmartCacheConfig<String>(props);
+		assertEquals(500, config.getLoadTimeout("tenants"));
+		assertEquals(0, config.getLoadTimeout("undefined"));
+		assertEquals(2, config.getLoaderThreads());
+		assertEquals(SmartCacheConfig.DEFAULT_LOADER_QUEUE, config
+				.getLoaderQueueSize());
+	}
+
 }
@@ -1,7 +1,27 @@
 package com.aug3.sys.cache.smart;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import junit.framework.TestCase;
 
+import com.aug3.sys.cache.CacheSnapshot;
+import com.aug3.sys.cache.CacheStats;
 import com.aug3.sys.cache.LRUCache;
 import com.aug3.sys.cache.smart.SmartCache;
 
@@ -35,4 +55,749 @@ public class SmartCacheTest extends TestCase {
 		assertEquals(FETCHED_VALUE, testee.get(KEY));
 	}
 
+	/** concurrent misses on one key must result in a single reader call */
+	public void testConcurrentMissesShareOneLoad() throws Exception {
+		BlockingReader reader = new BlockingReader(null);
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader);
+		List<Object> results = getConcurrently(cache, reader, 8);
+		assertEquals(1, reader.calls.get());
+		for (Object result : results) {
+			assertEquals(FETCHED_VALUE, result);
+		}
+		assertEquals(FETCHED_VALUE, cache.get(KEY));
+		assertEquals(1, reader.calls.get());
+	}
+
+	/** a failing load is reported to every thread waiting on it */
+	public void testFailureReachesAllWaiters() throws Exception {
+		RuntimeException failure = new IllegalStateException("no file");
+		BlockingReader reader = new BlockingReader(failure);
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader);
+		List<Object> results = getConcurrently(cache, reader, 8);
+		assertEquals(1, reader.calls.get());
+		for (Object result : results) {
+			assertSame(failure, result);
+		}
+	}
+
+	public void testExpireAfterWrite() throws Exception {
+		CountingReader reader = new CountingReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader, new ExpiryPolicy(100,
+						0, 0));
+		assertEquals("value1", cache.get(KEY));
+		assertEquals("value1", cache.get(KEY));
+		Thread.sleep(150);
+		assertFalse(cache.containsKey(KEY));
+		assertEquals("value2", cache.get(KEY));
+	}
+
+	public void testExpireAfterAccess() throws Exception {
+		CountingReader reader = new CountingReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader, new ExpiryPolicy(0,
+						200, 0));
+		assertEquals("value1", cache.get(KEY));
+		for (int i = 0; i < 4; i++) {
+			Thread.sleep(100);
+			assertEquals("value1", cache.get(KEY));
+		}
+		Thread.sleep(250);
+		assertEquals("value2", cache.get(KEY));
+	}
+
+	/** a stale entry is served while the reload happens in the background */
+	public void testRefreshAfterWrite() throws Exception {
+		CountingReader reader = new CountingReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader, new ExpiryPolicy(0, 0,
+						100));
+		assertEquals("value1", cache.get(KEY));
+		Thread.sleep(150);
+		assertEquals("value1", cache.get(KEY));
+		for (int i = 0; i < 50 && reader.calls.get() < 2; i++) {
+			Thread.sleep(20);
+		}
+		Thread.sleep(20);
+		assertEquals("value2", cache.get(KEY));
+		assertEquals(2, reader.calls.get());
+	}
+
+	/** only the missing keys are loaded, with one call to a batch reader */
+	public void testGetAllWithBatchReader() {
+		CountingBatchReader reader = new CountingBatchReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader);
+		cache.put("a", "cached");
+		Map<String, String> values = cache.getAll(Arrays.asList("a", "b",
+				"c", "none"));
+		assertEquals(3, values.size());
+		assertEquals("cached", values.get("a"));
+		assertEquals("fetched:b", values.get("b"));
+		assertEquals("fetched:c", values.get("c"));
+		assertEquals(1, reader.batches.get());
+		assertEquals(Arrays.asList("b", "c", "none"), reader.lastBatch);
+
+		assertEquals("fetched:b", cache.get("b"));
+		assertEquals(1, reader.batches.get());
+	}
+
+	/** a plain reader is called once per missing key */
+	public void testGetAllWithReader() {
+		CountingReader reader = new CountingReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader);
+		Map<String, String> values = cache.getAll(Arrays.asList("a", "b"));
+		assertEquals(2, values.size());
+		assertEquals(2, reader.calls.get());
+		cache.getAll(Arrays.asList("a", "b"));
+		assertEquals(2, reader.calls.get());
+	}
+
+	/** a value put in the base cache by someone else is reloaded */
+	public void testForeignValueIsMiss() {
+		LRUCache<String, String> base = new LRUCache<String, String>();
+		base.put("a", "foreign");
+		base.put("b", "foreign");
+		CountingReader reader = new CountingReader();
+		SmartCache<String> cache = new SmartCache<String>(base, reader);
+		assertFalse(cache.containsKey("a"));
+		assertEquals("value1", cache.get("a"));
+		assertEquals("value2", cache.getAll(Arrays.asList("b")).get("b"));
+		assertEquals("value1", cache.get("a"));
+		assertEquals(2, reader.calls.get());
+	}
+
+	/** a foreign value replaced or removed is no previous value */
+	public void testForeignValueIsNoPreviousValue() {
+		LRUCache<String, String> base = new LRUCache<String, String>();
+		base.put("a", "foreign");
+		base.put("b", "foreign");
+		SmartCache<String> cache = new SmartCache<String>(base,
+				new CountingReader());
+		assertNull(cache.put("a", "mine"));
+		assertEquals("mine", cache.put("a", "other"));
+		assertNull(cache.remove("b"));
+	}
+
+	public void testPutAllRemoveAll() {
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), new CountingReader());
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("a", "one");
+		values.put("b", "two");
+		cache.putAll(values);
+		assertTrue(cache.containsKey("a"));
+		assertEquals("two", cache.get("b"));
+		cache.removeAll(values.keySet());
+		assertFalse(cache.containsKey("a"));
+		assertFalse(cache.containsKey("b"));
+	}
+
+	public void testRemovePrefixed() {
+		CountingBatchReader reader = new CountingBatchReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader, new ExpiryPolicy(0,
+						0, 0, 60000));
+		cache.put("org:a", "one");
+		cache.put("other:a", "two");
+		assertNull(cache.get("none:org"));
+		assertNull(cache.get("none:other"));
+		cache.removePrefixed("org:");
+		cache.removePrefixed("none:org");
+		assertFalse(cache.containsKey("org:a"));
+		assertTrue(cache.containsKey("other:a"));
+		// no longer known as absent
+		assertNull(cache.get("none:org"));
+		assertNull(cache.get("none:other"));
+		assertEquals(3, reader.calls.get());
+	}
+
+	public void testAbsentResultsCached() throws Exception {
+		CountingBatchReader reader = new CountingBatchReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader, new ExpiryPolicy(0,
+						0, 0, 100));
+		assertNull(cache.get("none"));
+		assertNull(cache.get("none"));
+		assertEquals(1, reader.calls.get());
+		assertFalse(cache.containsKey("none"));
+		assertEquals(1, cache.getStats().getHitCount());
+
+		Thread.sleep(150);
+		assertNull(cache.get("none"));
+		assertEquals(2, reader.calls.get());
+	}
+
+	/** without a policy for absent results, the reader is asked every time */
+	public void testAbsentResultsNotCachedByDefault() {
+		CountingBatchReader reader = new CountingBatchReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader);
+		assertNull(cache.get("none"));
+		assertNull(cache.get("none"));
+		assertEquals(2, reader.calls.get());
+	}
+
+	public void testPutClearsAbsence() {
+		CountingBatchReader reader = new CountingBatchReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader, new ExpiryPolicy(0,
+						0, 0, 60000));
+		assertNull(cache.get("none"));
+		cache.put("none", "created");
+		assertEquals("created", cache.get("none"));
+		cache.remove("none");
+		assertNull(cache.get("none"));
+		assertEquals(2, reader.calls.get());
+	}
+
+	public void testAbsentKeysBounded() {
+		CountingBatchReader reader = new CountingBatchReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader, new ExpiryPolicy(0,
+						0, 0, 60000), 1);
+		assertNull(cache.get("none1"));
+		assertNull(cache.get("none1"));
+		assertEquals(1, reader.calls.get());
+		assertNull(cache.get("none2"));
+		assertNull(cache.get("none1"));
+		assertEquals(3, reader.calls.get());
+	}
+
+	public void testGetAllSkipsAbsentKeys() {
+		CountingBatchReader reader = new CountingBatchReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader, new ExpiryPolicy(0,
+						0, 0, 60000));
+		Map<String, String> values = cache.getAll(Arrays.asList("b", "none"));
+		assertEquals(1, values.size());
+		assertEquals(Arrays.asList("b", "none"), reader.lastBatch);
+		values = cache.getAll(Arrays.asList("b", "none"));
+		assertEquals(1, values.size());
+		assertEquals(1, reader.batches.get());
+		assertNull(cache.get("none"));
+		assertEquals(0, reader.calls.get());
+	}
+
+	public void testStats() {
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(1), new CountingReader());
+		cache.get("a");
+		cache.get("a");
+		cache.get("b");
+		CacheStats stats = cache.getStats();
+		assertEquals(1, stats.getHitCount());
+		assertEquals(2, stats.getMissCount());
+		assertEquals(2, stats.getLoadSuccessCount());
+		assertEquals(0, stats.getLoadFailureCount());
+		assertEquals(1, stats.getEvictionCount());
+		assertEquals(1, stats.getSize());
+		long loads = 0;
+		for (long count : stats.getLoadLatencies()) {
+			loads += count;
+		}
+		assertEquals(2, loads);
+	}
+
+	public void testStatsCountFailedLoads() {
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), new Reader<String>() {
+					public String fetch(String uri) {
+						throw new IllegalStateException("no file");
+					}
+				});
+		try {
+			cache.get(KEY);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(1, cache.getStats().getLoadFailureCount());
+	}
+
+	/** a batch is one load */
+	public void testStatsWithBatchReader() {
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), new CountingBatchReader());
+		cache.put("a", "cached");
+		cache.getAll(Arrays.asList("a", "b", "c"));
+		CacheStats stats = cache.getStats();
+		assertEquals(1, stats.getHitCount());
+		assertEquals(2, stats.getMissCount());
+		assertEquals(1, stats.getLoadSuccessCount());
+	}
+
+	public void testGetAsync() throws Exception {
+		testee.put(KEY, PUT_VALUE);
+		Future<String> cached = testee.getAsync(KEY);
+		assertTrue(cached.isDone());
+		assertEquals(PUT_VALUE, cached.get());
+		assertEquals(FETCHED_VALUE, testee.getAsync("other").get());
+		assertEquals(FETCHED_VALUE, testee.get("other"));
+	}
+
+	/** asynchronous misses on one key share the load, as synchronous ones */
+	public void testAsyncMissesShareOneLoad() throws Exception {
+		BlockingReader reader = new BlockingReader(null);
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader);
+		Future<String> first = cache.getAsync(KEY);
+		reader.started.await();
+		Future<String> second = cache.getAsync(KEY);
+		assertFalse(second.isDone());
+		reader.release.countDown();
+		assertEquals(FETCHED_VALUE, first.get());
+		assertEquals(FETCHED_VALUE, second.get());
+		assertEquals(1, reader.calls.get());
+	}
+
+	public void testAsyncFailure() throws Exception {
+		RuntimeException failure = new IllegalStateException("no file");
+		BlockingReader reader = new BlockingReader(failure);
+		reader.release.countDown();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader);
+		try {
+			cache.getAsync(KEY).get();
+			fail("the load failure should be reported");
+		} catch (ExecutionException e) {
+			assertSame(failure, e.getCause());
+		}
+	}
+
+	/** a load that times out is cancelled and the expired value served */
+	public void testLoadTimeoutServesExpiredValue() throws Exception {
+		BlockingReader reader = new BlockingReader(null);
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader, new ExpiryPolicy(100,
+						0, 0));
+		cache.setLoadTimeout(100);
+		cache.put(KEY, PUT_VALUE);
+		Thread.sleep(150);
+		long start = System.currentTimeMillis();
+		assertEquals(PUT_VALUE, cache.getAsync(KEY).get());
+		assertTrue(System.currentTimeMillis() - start < 2000);
+		assertEquals(1, reader.calls.get());
+	}
+
+	public void testLoadTimeoutWithoutExpiredValue() throws Exception {
+		BlockingReader reader = new BlockingReader(null);
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader);
+		cache.setLoadTimeout(100);
+		try {
+			cache.getAsync(KEY).get();
+			fail("the load should time out");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		// the next read does not join the cancelled load
+		reader.release.countDown();
+		assertEquals(FETCHED_VALUE, cache.getAsync(KEY).get());
+	}
+
+	/** a saturated loader fails the load at once instead of queuing it */
+	public void testSaturatedLoaderFailsFast() throws Exception {
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), new CountingReader());
+		cache.setLoader(new Executor() {
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException("saturated");
+			}
+		});
+		Future<String> future = cache.getAsync(KEY);
+		assertTrue(future.isDone());
+		try {
+			future.get();
+			fail("the rejected load should fail");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		cache.setLoader(new Executor() {
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+		assertEquals("value1", cache.getAsync(KEY).get());
+	}
+
+	/**
+	 * a batch does not wait on the loader for a load queued behind it, as
+	 * with scache.loader.threads=1
+	 */
+	public void testGetAllAsyncOverlappingGetAsync() throws Exception {
+		CountingBatchReader reader = new CountingBatchReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader);
+		ExecutorService loader = Executors.newSingleThreadExecutor();
+		try {
+			cache.setLoader(loader);
+			final CountDownLatch blocked = new CountDownLatch(1);
+			loader.execute(new Runnable() {
+				public void run() {
+					try {
+						blocked.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			Future<Map<String, String>> all = cache.getAllAsync(Arrays
+					.asList("a", "b"));
+			Future<String> one = cache.getAsync("a");
+			blocked.countDown();
+
+			Map<String, String> values = all.get(5, TimeUnit.SECONDS);
+			assertEquals("fetched:a", values.get("a"));
+			assertEquals("fetched:b", values.get("b"));
+			assertEquals("fetched:a", one.get(5, TimeUnit.SECONDS));
+		} finally {
+			loader.shutdownNow();
+		}
+	}
+
+	/** the missing keys are loaded in one batch, absent ones left out */
+	public void testGetAllAsyncWithBatchReader() throws Exception {
+		CountingBatchReader reader = new CountingBatchReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader);
+		cache.put("a", "cached");
+		Map<String, String> values = cache.getAllAsync(
+				Arrays.asList("a", "b", "c", "none")).get();
+		assertEquals(3, values.size());
+		assertEquals("cached", values.get("a"));
+		assertEquals("fetched:b", values.get("b"));
+		assertEquals("fetched:c", values.get("c"));
+		assertEquals(1, reader.batches.get());
+		assertEquals(Arrays.asList("b", "c", "none"), reader.lastBatch);
+		assertEquals("fetched:b", cache.get("b"));
+		assertEquals(1, reader.batches.get());
+	}
+
+	/** restored entries are served instead of calling the reader */
+	public void testWarmStart() throws Exception {
+		CacheSnapshot snapshot = newSnapshot(KEY, "saved", System
+				.currentTimeMillis());
+		CountingReader reader = new CountingReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader);
+		cache.warmStart(snapshot, 0);
+		assertEquals("saved", cache.get(KEY));
+		assertEquals(0, reader.calls.get());
+		assertEquals("value1", cache.get("other"));
+	}
+
+	public void testWarmStartWithBatchReader() throws Exception {
+		CacheSnapshot snapshot = newSnapshot("a", "saved", System
+				.currentTimeMillis());
+		CountingBatchReader reader = new CountingBatchReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader);
+		cache.warmStart(snapshot, 0);
+		Map<String, String> values = cache.getAll(Arrays.asList("a", "b",
+				"c"));
+		assertEquals("saved", values.get("a"));
+		assertEquals("fetched:b", values.get("b"));
+		assertEquals(Arrays.asList("b", "c"), reader.lastBatch);
+	}
+
+	/** an entry whose source changed since it was saved is loaded again */
+	public void testWarmStartSkipsOutdatedEntries() throws Exception {
+		CacheSnapshot snapshot = newSnapshot(KEY, "saved", 1000L);
+		VersionedCountingReader reader = new VersionedCountingReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader);
+		cache.warmStart(snapshot, 0);
+		reader.modified = 2000L;
+		assertEquals("value1", cache.get(KEY));
+	}
+
+	public void testWarmStartSkipsExpiredEntries() throws Exception {
+		CacheSnapshot snapshot = newSnapshot(KEY, "saved", System
+				.currentTimeMillis() - 1000);
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), new CountingReader(),
+				new ExpiryPolicy(500, 0, 0));
+		cache.warmStart(snapshot, 0);
+		assertEquals("value1", cache.get(KEY));
+	}
+
+	/** a removed key must not come back from the snapshot */
+	public void testRemoveForgetsRestoredEntry() throws Exception {
+		CacheSnapshot snapshot = newSnapshot(KEY, "saved", System
+				.currentTimeMillis());
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), new CountingReader());
+		cache.warmStart(snapshot, 0);
+		cache.remove(KEY);
+		assertEquals("value1", cache.get(KEY));
+	}
+
+	/** on a shared cache, only the keys of the smart cache are saved */
+	public void testWarmStartWithKeyPrefix() throws Exception {
+		CacheSnapshot snapshot = newSnapshot("other:a", "saved", System
+				.currentTimeMillis());
+		LRUCache<String, String> shared = new LRUCache<String, String>();
+		shared.put("other:b", "not a smart cache entry");
+		SmartCache<String> cache = new SmartCache<String>(shared,
+				new CountingReader());
+		cache.warmStart(snapshot, 0, "mine:");
+		cache.put("mine:a", "put");
+		assertEquals("value1", cache.get("other:a"));
+		Collection<CacheSnapshot.Entry> saved = cache.snapshotEntries();
+		assertEquals(1, saved.size());
+		assertEquals("mine:a", saved.iterator().next().getKey());
+	}
+
+	/** an expired value is served when its reload fails, then backed off */
+	public void testStaleValueServedOnFailure() throws Exception {
+		FlakyReader reader = new FlakyReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader, new ExpiryPolicy(100,
+						0, 0));
+		cache.serveStaleOnError(10, 0, 60000);
+		assertEquals("value1", cache.get(KEY));
+		Thread.sleep(150);
+		reader.failing = true;
+		assertEquals("value1", cache.get(KEY));
+		assertEquals(2, reader.calls.get());
+		assertEquals(1, cache.getStaleCount());
+		// backing off: the reader is left alone
+		assertEquals("value1", cache.get(KEY));
+		assertEquals(2, reader.calls.get());
+		assertEquals(2, cache.getStaleCount());
+	}
+
+	public void testLoadRetriedAfterBackoff() throws Exception {
+		FlakyReader reader = new FlakyReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader, new ExpiryPolicy(50,
+						0, 0));
+		cache.serveStaleOnError(10, 0, 100);
+		assertEquals("value1", cache.get(KEY));
+		Thread.sleep(100);
+		reader.failing = true;
+		assertEquals("value1", cache.get(KEY));
+		Thread.sleep(150);
+		reader.failing = false;
+		assertEquals("value3", cache.get(KEY));
+		assertEquals(1, cache.getStaleCount());
+	}
+
+	/** the last known good value outlives its eviction */
+	public void testEvictedValueServedOnFailure() {
+		FlakyReader reader = new FlakyReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(1), reader);
+		cache.serveStaleOnError(10, 0, 60000);
+		assertEquals("value1", cache.get("a"));
+		assertEquals("value2", cache.get("b"));
+		reader.failing = true;
+		assertEquals("value1", cache.get("a"));
+		assertEquals(1, cache.getStaleCount());
+	}
+
+	public void testFailureThrownWithoutStaleValue() throws Exception {
+		FlakyReader reader = new FlakyReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader, new ExpiryPolicy(50,
+						0, 0));
+		assertEquals("value1", cache.get(KEY));
+		Thread.sleep(100);
+		reader.failing = true;
+		try {
+			cache.get(KEY);
+			fail("stale values are not served by default");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		cache.serveStaleOnError(10, 0, 60000);
+		try {
+			cache.get("other");
+			fail("the key has no value to serve");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(0, cache.getStaleCount());
+	}
+
+	public void testMaxStaleness() throws Exception {
+		FlakyReader reader = new FlakyReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader, new ExpiryPolicy(50,
+						0, 0));
+		cache.serveStaleOnError(10, 100, 60000);
+		assertEquals("value1", cache.get(KEY));
+		Thread.sleep(150);
+		reader.failing = true;
+		try {
+			cache.get(KEY);
+			fail("the value is too old to be served");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testGetAllServesStaleValues() throws Exception {
+		FlakyReader reader = new FlakyReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader, new ExpiryPolicy(50,
+						0, 0));
+		cache.serveStaleOnError(10, 0, 60000);
+		assertEquals("value1", cache.get("a"));
+		assertEquals("value2", cache.get("b"));
+		Thread.sleep(100);
+		reader.failing = true;
+		Map<String, String> values = cache.getAll(Arrays.asList("a", "b"));
+		assertEquals("value1", values.get("a"));
+		assertEquals("value2", values.get("b"));
+		assertEquals(2, cache.getStaleCount());
+	}
+
+	public void testRemoveForgetsStaleValue() {
+		FlakyReader reader = new FlakyReader();
+		SmartCache<String> cache = new SmartCache<String>(
+				new LRUCache<String, String>(), reader);
+		cache.serveStaleOnError(10, 0, 60000);
+		cache.put(KEY, PUT_VALUE);
+		cache.remove(KEY);
+		reader.failing = true;
+		try {
+			cache.get(KEY);
+			fail("a removed value must not be served");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	private CacheSnapshot newSnapshot(String key, String value, long time)
+			throws Exception {
+		File file = File.createTempFile("smartcache", ".snapshot");
+		// after the snapshot is saved by the shutdown hook
+		file.deleteOnExit();
+		CacheSnapshot snapshot = new CacheSnapshot(file, null);
+		List<CacheSnapshot.Entry> entries = new ArrayList<CacheSnapshot.Entry>();
+		entries.add(new CacheSnapshot.Entry(key, value, time));
+		snapshot.write(entries);
+		return snapshot;
+	}
+
+	/**
+	 * Starts the given number of threads calling get on the same key, lets
+	 * the reader finish once all of them are waiting, and collects either the
+	 * values or the exceptions they got.
+	 */
+	private List<Object> getConcurrently(final SmartCache<String> cache,
+			BlockingReader reader, int threads) throws InterruptedException {
+		final List<Object> results = new ArrayList<Object>();
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			new Thread() {
+				public void run() {
+					Object result;
+					try {
+						result = cache.get(KEY);
+					} catch (RuntimeException e) {
+						result = e;
+					}
+					synchronized (results) {
+						results.add(result);
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		reader.started.await();
+		// give the other threads time to pile up behind the load
+		Thread.sleep(200);
+		reader.release.countDown();
+		done.await();
+		return results;
+	}
+
+	private static class CountingReader implements Reader<String> {
+
+		final AtomicInteger calls = new AtomicInteger();
+
+		public String fetch(String uri) {
+			return "value" + calls.incrementAndGet();
+		}
+	}
+
+	private static class FlakyReader extends CountingReader {
+
+		volatile boolean failing;
+
+		public String fetch(String uri) {
+			String value = super.fetch(uri);
+			if (failing) {
+				throw new IllegalStateException("no file");
+			}
+			return value;
+		}
+	}
+
+	private static class VersionedCountingReader extends CountingReader
+			implements VersionedReader<String> {
+
+		volatile long modified;
+
+		public long lastModified(String uri) {
+			return modified;
+		}
+	}
+
+	private static class CountingBatchReader extends CountingReader
+			implements BatchReader<String> {
+
+		final AtomicInteger batches = new AtomicInteger();
+		Collection<String> lastBatch;
+
+		public String fetch(String uri) {
+			calls.incrementAndGet();
+			return uri.startsWith("none") ? null : "fetched:" + uri;
+		}
+
+		public Map<String, String> fetchAll(Collection<String> uris) {
+			batches.incrementAndGet();
+			lastBatch = uris;
+			Map<String, String> values = new HashMap<String, String>();
+			for (String uri : uris) {
+				if (!uri.startsWith("none")) {
+					values.put(uri, "fetched:" + uri);
+				}
+			}
+			return values;
+		}
+	}
+
+	private static class BlockingReader implements Reader<String> {
+
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		private final RuntimeException failure;
+
+		BlockingReader(RuntimeException failure) {
+			this.failure = failure;
+		}
+
+		public String fetch(String uri) {
+			calls.incrementAndGet();
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return FETCHED_VALUE;
+		}
+	}
+
 }
@@ -0,0 +1,55 @@
+package com.aug3.sys.cfg;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the invalidation of the partitioned cache of the configuration
+ * server proxy
+ *
+ *
+ */
+public class MonitoringPartitionedCacheTest extends TestCase {
+
+	private MonitoringPartitionedCache cache;
+
+	@Override
+	protected void setUp() throws Exception {
+		cache = new MonitoringPartitionedCache(new OrgPartitioner(), 1, 2);
+	}
+
+	/** the entries of the key go, whether in a partition or overflowed */
+	public void testRemovesPrefixedEntriesEverywhere() {
+		cache.put("company$$org1", "set");
+		cache.put("company$$org1#a", "a");
+		cache.put("company$$org2", "other");
+		cache.clearCache(notification("company$$org1"));
+		assertNull(cache.get("company$$org1"));
+		assertNull(cache.get("company$$org1#a"));
+		assertEquals("other", cache.get("company$$org2"));
+		assertEquals(0, cache.getStats("org1").getSize());
+		assertEquals(0, cache.getStats("org1").getEvictionCount());
+	}
+
+	public void testClearsAllWithoutKey() {
+		cache.put("company$$org1", "set");
+		cache.put("company$$org2", "other");
+		cache.clearCache(notification(null));
+		assertNull(cache.get("company$$org1"));
+		assertNull(cache.get("company$$org2"));
+	}
+
+	public void testIgnoresCacheChanges() {
+		cache.put("company$$org1", "set");
+		UpdateNotification change = notification("company$$org1");
+		change.setCustomLongVal1(UpdateNotification.CACHE_CHANGE_CODE);
+		cache.clearCache(change);
+		assertEquals("set", cache.get("company$$org1"));
+	}
+
+	private static UpdateNotification notification(String key) {
+		UpdateNotification notification = new UpdateNotification();
+		notification.setCustomStrVal1(key);
+		return notification;
+	}
+
+}
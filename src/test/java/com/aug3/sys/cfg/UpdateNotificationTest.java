@@ -0,0 +1,42 @@
+package com.aug3.sys.cfg;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the matching of update notifications with the callbacks
+ *
+ *
+ */
+public class UpdateNotificationTest extends TestCase {
+
+	public void testConfigChangeReachesAll() {
+		UpdateNotification change = new UpdateNotification();
+		change.setCustomStrVal1("company");
+		assertTrue(change.reaches(null));
+		assertTrue(change.reaches(new UpdateNotification()));
+	}
+
+	public void testTokenMustMatch() {
+		UpdateNotification change = new UpdateNotification();
+		change.setCallbackToken("other");
+		assertFalse(change.reaches(tokenMatcher("near-cache")));
+	}
+
+	/** legacy callbacks matching everything do not see the cache changes */
+	public void testCacheChangeOnlyReachesItsToken() {
+		UpdateNotification change = new UpdateNotification();
+		change.setCallbackToken("near-cache");
+		change.setCustomLongVal1(UpdateNotification.CACHE_CHANGE_CODE);
+		assertFalse(change.reaches(null));
+		assertFalse(change.reaches(new UpdateNotification()));
+		assertTrue(change.reaches(tokenMatcher("near-cache")));
+		assertFalse(change.reaches(tokenMatcher("other")));
+	}
+
+	private static UpdateNotification tokenMatcher(String token) {
+		UpdateNotification matcher = new UpdateNotification();
+		matcher.setCallbackToken(token);
+		return matcher;
+	}
+
+}
@@ -0,0 +1,97 @@
+package com.aug3.sys.properties;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.aug3.sys.cache.ConcurrentLRUCache;
+import com.aug3.sys.cache.smart.ExpiryPolicy;
+import com.aug3.sys.cache.smart.Reader;
+import com.aug3.sys.cache.smart.SmartCache;
+
+/**
+ * Tests for the reads of AppProp
+ * 
+ * 
+ */
+public class AppPropTest extends TestCase {
+
+	private static final String ORG = "companyA";
+
+	public void testGet() {
+		FileReader reader = new FileReader();
+		reader.props = new Properties();
+		reader.props.setProperty("color", "blue");
+		AppProp testee = new AppProp("appconfig", new SmartCache<Properties>(
+				new ConcurrentLRUCache<String, Properties>(), reader));
+		assertEquals("blue", testee.get(null, ORG, "color"));
+		assertNull(testee.get(null, ORG, "size"));
+	}
+
+	/** an organization without files has no properties, and is not read again */
+	public void testGetWithoutFiles() {
+		FileReader reader = new FileReader();
+		AppProp testee = new AppProp("appconfig", new SmartCache<Properties>(
+				new ConcurrentLRUCache<String, Properties>(), reader,
+				new ExpiryPolicy(0, 0, 0, 60000)));
+		assertNull(testee.get(null, ORG, "color"));
+		assertNull(testee.get(null, ORG, "color"));
+		assertEquals(1, reader.calls.get());
+	}
+
+	/** a write only invalidates the property sets including the file */
+	public void testPutInvalidatesSetsOfFile() {
+		FileReader reader = new FileReader();
+		reader.props = new Properties();
+		AppProp testee = new AppProp("appconfig", new SmartCache<Properties>(
+				new ConcurrentLRUCache<String, Properties>(), reader),
+				new NullWriter());
+		testee.get("track", ORG, "color");
+		testee.get("track", "companyB", "color");
+		testee.get("other", ORG, "color");
+		assertEquals(3, reader.calls.get());
+
+		testee.put("track", ORG, "color", "red");
+		testee.get("track", ORG, "color");
+		testee.get("track", "companyB", "color");
+		testee.get("other", ORG, "color");
+		assertEquals(4, reader.calls.get());
+
+		// the level1 file is shared by its organizations
+		testee.put("track", null, "color", "red");
+		testee.get("track", ORG, "color");
+		testee.get("track", "companyB", "color");
+		testee.get("other", ORG, "color");
+		assertEquals(6, reader.calls.get());
+	}
+
+	// ---------------------------------------------------------------------
+	// HELPER CLASSES
+	// ---------------------------------------------------------------------
+
+	/** writes nothing */
+	private static class NullWriter extends PropWriter {
+
+		NullWriter() {
+			super(null);
+		}
+
+		void writeAll(CacheKey key, Map<String, String> data) {
+		}
+	}
+
+	/** stands for the PropReader, null meaning that no file exists */
+	private static class FileReader implements Reader<Properties> {
+
+		final AtomicInteger calls = new AtomicInteger();
+		Properties props;
+
+		public Properties fetch(String uri) {
+			calls.incrementAndGet();
+			return props;
+		}
+	}
+
+}